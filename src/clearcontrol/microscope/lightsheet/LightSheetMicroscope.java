@@ -14,6 +14,9 @@ import clearcontrol.microscope.lightsheet.component.lightsheet.LightSheetInterfa
 import clearcontrol.microscope.lightsheet.component.opticalswitch.LightSheetOpticalSwitch;
 import clearcontrol.microscope.lightsheet.interactive.InteractiveAcquisition;
 import clearcontrol.microscope.lightsheet.processor.LightSheetFastFusionProcessor;
+import clearcontrol.microscope.lightsheet.processor.compression.StackCompressionProcessor;
+import clearcontrol.microscope.lightsheet.processor.content.SampleBoundsProcessor;
+import clearcontrol.microscope.lightsheet.processor.correction.BackgroundCorrectionProcessor;
 import clearcontrol.microscope.lightsheet.state.InterpolatedAcquisitionState;
 import clearcontrol.microscope.lightsheet.timelapse.LightSheetTimelapse;
 import clearcontrol.microscope.timelapse.TimelapseInterface;
@@ -28,7 +31,10 @@ public class LightSheetMicroscope extends
                                   implements
                                   LightSheetMicroscopeInterface
 {
+  private SampleBoundsProcessor mSampleBoundsProcessor;
+  private BackgroundCorrectionProcessor mBackgroundCorrectionProcessor;
   private LightSheetFastFusionProcessor mStackFusionProcessor;
+  private StackCompressionProcessor mStackCompressionProcessor;
 
   /**
    * Instantiates a lightsheet microscope with a given name.
@@ -51,6 +57,30 @@ public class LightSheetMicroscope extends
           pMaxStackProcessingQueueLength,
           pThreadPoolSize);
 
+    // optional detection of empty planes and tiles as stacks enter the
+    // pipeline, fused stacks fed back into the pipeline go through untouched:
+    mSampleBoundsProcessor =
+                           new SampleBoundsProcessor("Sample Bounds Stack Processor");
+
+    addDevice(0, mSampleBoundsProcessor);
+
+    mStackProcessingPipeline.addStackProcessor(mSampleBoundsProcessor,
+                                               "SampleBounds",
+                                               32,
+                                               32);
+
+    // optional per camera correction of raw views, fused stacks fed back
+    // into the pipeline go through untouched:
+    mBackgroundCorrectionProcessor =
+                                   new BackgroundCorrectionProcessor("Background Correction Stack Processor");
+
+    addDevice(0, mBackgroundCorrectionProcessor);
+
+    mStackProcessingPipeline.addStackProcessor(mBackgroundCorrectionProcessor,
+                                               "BackgroundCorrection",
+                                               32,
+                                               32);
+
     mStackFusionProcessor =
                           new LightSheetFastFusionProcessor("Fusion Stack Processor",
                                                             this,
@@ -63,6 +93,52 @@ public class LightSheetMicroscope extends
                                                32,
                                                32);
 
+    // extra fused stacks (e.g. one per camera) are fed back into the
+    // pipeline, the fusion processor lets fused stacks through untouched:
+    mStackFusionProcessor.setAdditionalOutputVariable(getStackProcesssingPipeline().getInputVariable());
+
+    // optional compression of the stacks leaving the fusion stage, lossless
+    // unless the planes found empty by the sample bounds stage are skipped:
+    mStackCompressionProcessor =
+                               new StackCompressionProcessor("Compression Stack Processor");
+
+    addDevice(0, mStackCompressionProcessor);
+
+    mStackProcessingPipeline.addStackProcessor(mStackCompressionProcessor,
+                                               "StackCompression",
+                                               32,
+                                               32);
+
+  }
+
+  /**
+   * Returns the sample bounds processor
+   * 
+   * @return sample bounds processor
+   */
+  public SampleBoundsProcessor getSampleBoundsProcessor()
+  {
+    return mSampleBoundsProcessor;
+  }
+
+  /**
+   * Returns the background correction processor
+   * 
+   * @return background correction processor
+   */
+  public BackgroundCorrectionProcessor getBackgroundCorrectionProcessor()
+  {
+    return mBackgroundCorrectionProcessor;
+  }
+
+  /**
+   * Returns the stack compression processor
+   * 
+   * @return stack compression processor
+   */
+  public StackCompressionProcessor getStackCompressionProcessor()
+  {
+    return mStackCompressionProcessor;
   }
 
   @Override
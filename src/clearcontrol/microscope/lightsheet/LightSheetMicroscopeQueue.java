@@ -1,6 +1,7 @@
 package clearcontrol.microscope.lightsheet;
 
 import clearcontrol.core.device.queue.QueueInterface;
+import clearcontrol.core.variable.bounded.BoundedVariable;
 import clearcontrol.devices.cameras.StackCameraDeviceInterface;
 import clearcontrol.devices.cameras.StackCameraQueue;
 import clearcontrol.microscope.MicroscopeQueueBase;
@@ -14,6 +15,7 @@ import clearcontrol.microscope.lightsheet.component.opticalswitch.LightSheetOpti
 import clearcontrol.microscope.lightsheet.component.opticalswitch.LightSheetOpticalSwitchQueue;
 import clearcontrol.microscope.lightsheet.signalgen.LightSheetSignalGeneratorDevice;
 import clearcontrol.microscope.lightsheet.signalgen.LightSheetSignalGeneratorQueue;
+import clearcontrol.microscope.lightsheet.signalgen.staves.LightSheetStaves;
 import clearcontrol.stack.metadata.MetaDataEntryInterface;
 import clearcontrol.stack.metadata.MetaDataVoxelDim;
 import clearcontrol.stack.metadata.StackMetaData;
@@ -231,6 +233,147 @@ public class LightSheetMicroscopeQueue extends
     return super.getQueueLength();
   }
 
+  /**
+   * Appends a range of planes to this queue from per-DOF value columns. The
+   * device queue variables of all DOFs are resolved once for the whole range,
+   * and a variable is only set when its value differs from the previous plane.
+   * All other settings (exposure, ROI, camera and laser on/off, ...) are
+   * expected to be set beforehand as they are the same for all planes. Each
+   * plane is set and appended once, through the device queue variables.
+   * 
+   * @param pColumns
+   *          values indexed [dof][device][plane], with DOFs in the order of
+   *          {@link LightSheetDOF}
+   * @param pPlaneIndexMin
+   *          lower plane index (inclusive)
+   * @param pPlaneIndexMax
+   *          higher plane index (exclusive)
+   * @param pDetectionArmIndexMin
+   *          lower detection arm index (inclusive)
+   * @param pDetectionArmIndexMax
+   *          higher detection arm index (exclusive)
+   * @param pLightSheetIndexMin
+   *          lower lightsheet index (inclusive)
+   * @param pLightSheetIndexMax
+   *          higher lightsheet index (exclusive)
+   */
+  @SuppressWarnings("unchecked")
+  public void addPlanes(double[][][] pColumns,
+                        int pPlaneIndexMin,
+                        int pPlaneIndexMax,
+                        int pDetectionArmIndexMin,
+                        int pDetectionArmIndexMax,
+                        int pLightSheetIndexMin,
+                        int pLightSheetIndexMax)
+  {
+    int lNumberOfDetectionArms = pDetectionArmIndexMax
+                                 - pDetectionArmIndexMin;
+    int lNumberOfLightSheets = pLightSheetIndexMax
+                               - pLightSheetIndexMin;
+    int lNumberOfColumns = lNumberOfDetectionArms
+                           + (LightSheetDOF.values().length - 1)
+                             * lNumberOfLightSheets;
+
+    BoundedVariable<Number>[] lVariables =
+                                         new BoundedVariable[lNumberOfColumns];
+    double[][] lColumns = new double[lNumberOfColumns][];
+
+    int i = 0;
+    for (int d = pDetectionArmIndexMin; d < pDetectionArmIndexMax; d++)
+    {
+      lVariables[i] = getDetectionArmDeviceQueue(d).getZVariable();
+      lColumns[i++] = pColumns[LightSheetDOF.DZ.ordinal()][d];
+    }
+
+    for (int l = pLightSheetIndexMin; l < pLightSheetIndexMax; l++)
+    {
+      LightSheetQueue lLightSheetQueue = getLightSheetDeviceQueue(l);
+      for (LightSheetDOF lDOF : LightSheetDOF.values())
+      {
+        if (lDOF == LightSheetDOF.DZ)
+          continue;
+        lVariables[i] = getLightSheetDOFVariable(lLightSheetQueue, lDOF);
+        lColumns[i++] = pColumns[lDOF.ordinal()][l];
+      }
+    }
+
+    // lightsheet staves are compiled plane by plane in the same pass, from the
+    // values read back from the bounded variables so that compiled planes are
+    // clamped exactly as the queue variables, device functions are only
+    // resolved once for the whole range:
+    LightSheetSignalGeneratorQueue lSignalGeneratorQueue =
+                                                         getLightSheetSignalGeneratorQueue();
+    LightSheetStaves[] lLightSheetStaves =
+                                         new LightSheetStaves[lSignalGeneratorQueue == null ? 0
+                                                                                            : lNumberOfLightSheets];
+    for (int l = 0; l < lLightSheetStaves.length; l++)
+      lLightSheetStaves[l] =
+                           lSignalGeneratorQueue.getLightSheetStaves(pLightSheetIndexMin
+                                                                     + l);
+
+    int lNumberOfPlanes = pPlaneIndexMax - pPlaneIndexMin;
+    for (LightSheetStaves lStaves : lLightSheetStaves)
+      lStaves.prepareCompilation(lNumberOfPlanes);
+
+    try
+    {
+      for (int p = pPlaneIndexMin; p < pPlaneIndexMax; p++)
+      {
+        setPlaneVariables(lVariables, lColumns, p, pPlaneIndexMin);
+        for (LightSheetStaves lStaves : lLightSheetStaves)
+          lStaves.compilePlane(p - pPlaneIndexMin);
+        addCurrentStateToQueue();
+      }
+    }
+    finally
+    {
+      for (LightSheetStaves lStaves : lLightSheetStaves)
+        lStaves.setCompiledPlaneIndex(-1);
+    }
+  }
+
+  private static void setPlaneVariables(BoundedVariable<Number>[] pVariables,
+                                        double[][] pColumns,
+                                        int pPlaneIndex,
+                                        int pPlaneIndexMin)
+  {
+    // only variables that change from one plane to the next are set:
+    for (int c = 0; c < pVariables.length; c++)
+    {
+      double[] lColumn = pColumns[c];
+      if (pPlaneIndex == pPlaneIndexMin
+          || lColumn[pPlaneIndex] != lColumn[pPlaneIndex - 1])
+        pVariables[c].set(lColumn[pPlaneIndex]);
+    }
+  }
+
+  private static BoundedVariable<Number> getLightSheetDOFVariable(LightSheetQueue pLightSheetQueue,
+                                                                  LightSheetDOF pLightSheetDOF)
+  {
+    switch (pLightSheetDOF)
+    {
+    case IX:
+      return pLightSheetQueue.getXVariable();
+    case IY:
+      return pLightSheetQueue.getYVariable();
+    case IZ:
+      return pLightSheetQueue.getZVariable();
+    case IA:
+      return pLightSheetQueue.getAlphaInDegreesVariable();
+    case IB:
+      return pLightSheetQueue.getBetaInDegreesVariable();
+    case IW:
+      return pLightSheetQueue.getWidthVariable();
+    case IH:
+      return pLightSheetQueue.getHeightVariable();
+    case IP:
+      return pLightSheetQueue.getPowerVariable();
+    default:
+      throw new IllegalArgumentException("Not a lightsheet DOF: "
+                                         + pLightSheetDOF);
+    }
+  }
+
   /**
    * Sets to zero (default) all lightsheet microscope parameters.
    */
@@ -354,98 +354,108 @@ public abstract class StandardAdaptationModule extends
                                                   .get()
                                                   .getNumberOfDetectionArms();
 
-    for (int cpi = 0; cpi < lNumberOfControlPlanes; cpi++)
+    // all corrections are applied as one batch so that listeners of the
+    // state (queue, charts) are notified once:
+    pStateToUpdate.getInterpolationTables().beginBatch();
+    try
     {
-
-      for (int l = 0; l < lNumberOfLightSheets; l++)
+      for (int cpi = 0; cpi < lNumberOfControlPlanes; cpi++)
       {
-        int lSelectedDetectionArm = 0;
-        Result lResult = getResult(cpi, l, 0);
 
-        if (lResult == null)
+        for (int l = 0; l < lNumberOfLightSheets; l++)
         {
-          severe("Found null result for cpi=%d, l=%d \n", cpi, l);
-          continue;
-        }
+          int lSelectedDetectionArm = 0;
+          Result lResult = getResult(cpi, l, 0);
 
-        for (int d = 1; d < lNumberOfDetectionArms; d++)
-        {
-          Result lOneResult = getResult(cpi, l, d);
+          if (lResult == null)
+          {
+            severe("Found null result for cpi=%d, l=%d \n", cpi, l);
+            continue;
+          }
 
-          if (lOneResult != null)
-            if (lOneResult.metricmax
-                * lOneResult.probability > lResult.metricmax
-                                           * lResult.probability)
-            {
-              lResult = lOneResult;
-              lSelectedDetectionArm = d;
-            }
-        }
+          for (int d = 1; d < lNumberOfDetectionArms; d++)
+          {
+            Result lOneResult = getResult(cpi, l, d);
+
+            if (lOneResult != null)
+              if (lOneResult.metricmax
+                  * lOneResult.probability > lResult.metricmax
+                                             * lResult.probability)
+              {
+                lResult = lOneResult;
+                lSelectedDetectionArm = d;
+              }
+          }
 
-        double lCorrection = (pFlipCorrectionSign ? -1 : 1)
-                             * lResult.argmax;
+          double lCorrection = (pFlipCorrectionSign ? -1 : 1)
+                               * lResult.argmax;
 
-        boolean lProbabilityInsufficient =
-                                         lResult.probability < getProbabilityThresholdVariable().get();
+          boolean lProbabilityInsufficient =
+                                           lResult.probability < getProbabilityThresholdVariable().get();
 
-        boolean lMetricMaxInsufficient =
-                                       lResult.metricmax < getImageMetricThresholdVariable().get();
+          boolean lMetricMaxInsufficient =
+                                         lResult.metricmax < getImageMetricThresholdVariable().get();
 
-        if (lMetricMaxInsufficient)
-        {
-          warning("Metric maximum too low (%g < %g) for cpi=%d, l=%d using neighbooring values\n",
-                  lResult.metricmax,
-                  getImageMetricThresholdVariable().get(),
-                  cpi,
-                  l);
-        }
+          if (lMetricMaxInsufficient)
+          {
+            warning("Metric maximum too low (%g < %g) for cpi=%d, l=%d using neighbooring values\n",
+                    lResult.metricmax,
+                    getImageMetricThresholdVariable().get(),
+                    cpi,
+                    l);
+          }
 
-        if (lProbabilityInsufficient)
-        {
-          warning("Probability too low (%g < %g) for cpi=%d, l=%d using neighbooring values\n",
-                  lResult.probability,
-                  getProbabilityThresholdVariable().get(),
-                  cpi,
-                  l);
-        }
+          if (lProbabilityInsufficient)
+          {
+            warning("Probability too low (%g < %g) for cpi=%d, l=%d using neighbooring values\n",
+                    lResult.probability,
+                    getProbabilityThresholdVariable().get(),
+                    cpi,
+                    l);
+          }
 
-        boolean lMissingInfo = lMetricMaxInsufficient
-                               || lProbabilityInsufficient;
+          boolean lMissingInfo = lMetricMaxInsufficient
+                                 || lProbabilityInsufficient;
 
-        if (lMissingInfo)
-        {
-          lCorrection =
-                      computeCorrectionBasedOnNeighbooringControlPlanes(pRelativeCorrection,
-                                                                        pStateToUpdate,
-                                                                        cpi,
-                                                                        l);
-        }
+          if (lMissingInfo)
+          {
+            lCorrection =
+                        computeCorrectionBasedOnNeighbooringControlPlanes(pRelativeCorrection,
+                                                                          pStateToUpdate,
+                                                                          cpi,
+                                                                          l);
+          }
+
+          info("Applying correction: %g \n", lCorrection);
 
-        info("Applying correction: %g \n", lCorrection);
-
-        getAdaptiveEngine().addEntry(getName(),
-                                     false,
-                                     "LS",
-                                     "CPI",
-                                     9,
-                                     l,
-                                     cpi,
-                                     String.format("argmax=%g\nmetricmax=%g\nprob=%g\ncorr=%g\nmissing=%s\nselected=%d",
-                                                   lResult.argmax,
-                                                   lResult.metricmax,
-                                                   lResult.probability,
-                                                   lCorrection,
-                                                   lMissingInfo,
-                                                   lSelectedDetectionArm));
-
-        if (pRelativeCorrection)
-          pStateToUpdate.getInterpolationTables()
-                        .add(mLightSheetDOF, cpi, l, lCorrection);
-        else
-          pStateToUpdate.getInterpolationTables()
-                        .set(mLightSheetDOF, cpi, l, lCorrection);
+          getAdaptiveEngine().addEntry(getName(),
+                                       false,
+                                       "LS",
+                                       "CPI",
+                                       9,
+                                       l,
+                                       cpi,
+                                       String.format("argmax=%g\nmetricmax=%g\nprob=%g\ncorr=%g\nmissing=%s\nselected=%d",
+                                                     lResult.argmax,
+                                                     lResult.metricmax,
+                                                     lResult.probability,
+                                                     lCorrection,
+                                                     lMissingInfo,
+                                                     lSelectedDetectionArm));
+
+          if (pRelativeCorrection)
+            pStateToUpdate.getInterpolationTables()
+                          .add(mLightSheetDOF, cpi, l, lCorrection);
+          else
+            pStateToUpdate.getInterpolationTables()
+                          .set(mLightSheetDOF, cpi, l, lCorrection);
+        }
       }
     }
+    finally
+    {
+      pStateToUpdate.getInterpolationTables().commitBatch();
+    }
   }
 
   protected double computeCorrectionBasedOnNeighbooringControlPlanes(boolean pRelativeCorrection,
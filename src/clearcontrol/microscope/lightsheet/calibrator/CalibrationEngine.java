@@ -20,6 +20,7 @@ import clearcontrol.microscope.lightsheet.calibrator.modules.impl.CalibrationXY;
 import clearcontrol.microscope.lightsheet.calibrator.modules.impl.CalibrationZ;
 import clearcontrol.microscope.lightsheet.component.detection.DetectionArmInterface;
 import clearcontrol.microscope.lightsheet.component.lightsheet.LightSheetInterface;
+import clearcontrol.microscope.lightsheet.timelapse.LightSheetTimelapse;
 import clearcontrol.scripting.engine.ScriptingEngine;
 
 import org.ejml.simple.SimpleMatrix;
@@ -159,6 +160,7 @@ public class CalibrationEngine extends TaskDevice implements
     {
       mProgressVariable.set(0.0);
       calibrate();
+      clearQueueCaches();
       mProgressVariable.set(1.0);
       info("############################################## Calibration done");
     }
@@ -593,6 +595,24 @@ public class CalibrationEngine extends TaskDevice implements
       lLightSheetDevice.resetFunctions();
 
     }
+
+    clearQueueCaches();
+  }
+
+  /**
+   * Clears the queue caches of the timelapse devices, cached queues were
+   * built with the previous calibration functions.
+   */
+  private void clearQueueCaches()
+  {
+    final int lNumberOfTimelapseDevices =
+                                        mLightSheetMicroscope.getDeviceLists()
+                                                             .getNumberOfDevices(LightSheetTimelapse.class);
+
+    for (int i = 0; i < lNumberOfTimelapseDevices; i++)
+      mLightSheetMicroscope.getDeviceLists()
+                           .getDevice(LightSheetTimelapse.class, i)
+                           .clearQueueCache();
   }
 
   /**
@@ -726,6 +746,8 @@ public class CalibrationEngine extends TaskDevice implements
 
     lCalibrationData.copyTo(mPositionersMap);
 
+    clearQueueCaches();
+
     return true;
   }
 
@@ -36,6 +36,7 @@ import clearcontrol.microscope.lightsheet.component.lightsheet.LightSheet;
 import clearcontrol.microscope.lightsheet.component.opticalswitch.LightSheetOpticalSwitch;
 import clearcontrol.microscope.lightsheet.extendeddepthfield.DepthOfFocusImagingEngine;
 import clearcontrol.microscope.lightsheet.gui.LightSheetMicroscopeGUI;
+import clearcontrol.microscope.lightsheet.processor.compression.CompressedRawFileStackSink;
 import clearcontrol.microscope.lightsheet.signalgen.LightSheetSignalGeneratorDevice;
 import clearcontrol.microscope.lightsheet.simulation.LightSheetMicroscopeSimulationDevice;
 import clearcontrol.microscope.lightsheet.state.ControlPlaneLayout;
@@ -338,6 +339,7 @@ public class LightSheetMicroscopeDemo extends Application implements
                                     lLightSheetMicroscope.addTimelapse();
 
       lTimelapse.addFileStackSinkType(RawFileStackSink.class);
+      lTimelapse.addFileStackSinkType(CompressedRawFileStackSink.class);
 
       // Now that the microscope has been setup, we can connect the simulator to
       // it:
@@ -0,0 +1,210 @@
+package clearcontrol.microscope.lightsheet.processor;
+
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import clearcl.ClearCLImage;
+import clearcontrol.core.log.LoggingFeature;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import coremem.ContiguousMemoryInterface;
+import coremem.recycling.RecyclerInterface;
+
+/**
+ * Fused stack handoff. Takes care of moving fused images from the device into
+ * recycled stacks:
+ * <ul>
+ * <li>the destination stack is requested from the recycler ahead of time, while
+ * views are still being uploaded and fused,</li>
+ * <li>the fused image is downloaded in chunks of planes on a dedicated thread,
+ * and plane listeners are notified as soon as each chunk has landed.</li>
+ * </ul>
+ *
+ * @author royer
+ */
+class FusedStackHandoff implements LoggingFeature
+{
+  private final ExecutorService mExecutor;
+  private final CopyOnWriteArrayList<FusedStackPlaneListener> mPlaneListenerList =
+                                                                                 new CopyOnWriteArrayList<>();
+
+  private Future<StackInterface> mPreRequestedStackFuture;
+  private long[] mPreRequestedDimensions;
+
+  /**
+   * Instantiates a fused stack handoff
+   */
+  FusedStackHandoff()
+  {
+    mExecutor = Executors.newSingleThreadExecutor((r) -> {
+      Thread lThread = new Thread(r, "FusedStackHandoff");
+      lThread.setDaemon(true);
+      return lThread;
+    });
+  }
+
+  void addPlaneListener(FusedStackPlaneListener pListener)
+  {
+    mPlaneListenerList.add(pListener);
+  }
+
+  void removePlaneListener(FusedStackPlaneListener pListener)
+  {
+    mPlaneListenerList.remove(pListener);
+  }
+
+  /**
+   * Requests a stack of given dimensions from the recycler in the background,
+   * does nothing if a stack is already pending.
+   *
+   * @param pStackRecycler
+   *          stack recycler
+   * @param pDimensions
+   *          fused stack dimensions
+   */
+  synchronized void preRequest(RecyclerInterface<StackInterface, StackRequest> pStackRecycler,
+                               long[] pDimensions)
+  {
+    if (mPreRequestedStackFuture != null)
+      return;
+
+    mPreRequestedDimensions = pDimensions.clone();
+    mPreRequestedStackFuture =
+                             mExecutor.submit(() -> pStackRecycler.getOrWait(1000,
+                                                                             TimeUnit.SECONDS,
+                                                                             StackRequest.build(pDimensions)));
+  }
+
+  /**
+   * Returns a stack of given dimensions: the pre-requested stack if there is
+   * one with matching dimensions, a freshly requested stack otherwise.
+   *
+   * @param pStackRecycler
+   *          stack recycler
+   * @param pDimensions
+   *          fused stack dimensions
+   * @return stack
+   */
+  synchronized StackInterface obtain(RecyclerInterface<StackInterface, StackRequest> pStackRecycler,
+                                     long[] pDimensions)
+  {
+    Future<StackInterface> lFuture = mPreRequestedStackFuture;
+    long[] lDimensions = mPreRequestedDimensions;
+    mPreRequestedStackFuture = null;
+    mPreRequestedDimensions = null;
+
+    if (lFuture != null)
+    {
+      try
+      {
+        StackInterface lStack = lFuture.get();
+        if (lStack != null && Arrays.equals(lDimensions, pDimensions))
+          return lStack;
+
+        warning("Pre-requested fused stack has dimensions %s instead of %s, requesting a new one",
+                Arrays.toString(lDimensions),
+                Arrays.toString(pDimensions));
+        if (lStack != null)
+          lStack.release();
+      }
+      catch (Throwable e)
+      {
+        warning("Could not obtain pre-requested fused stack: %s",
+                e.toString());
+      }
+    }
+
+    return pStackRecycler.getOrWait(1000,
+                                    TimeUnit.SECONDS,
+                                    StackRequest.build(pDimensions));
+  }
+
+  /**
+   * Downloads a fused image into a stack in the background
+   *
+   * @param pFusedImage
+   *          fused image
+   * @param pFusedStack
+   *          destination stack
+   * @param pChunkDepth
+   *          number of planes per chunk
+   * @return future to wait for the download completion
+   */
+  Future<?> downloadAsync(ClearCLImage pFusedImage,
+                          StackInterface pFusedStack,
+                          int pChunkDepth)
+  {
+    return mExecutor.submit(() -> download(pFusedImage,
+                                           pFusedStack,
+                                           pChunkDepth));
+  }
+
+  /**
+   * Downloads a fused image into a stack chunk by chunk, notifying plane
+   * listeners after each chunk
+   *
+   * @param pFusedImage
+   *          fused image
+   * @param pFusedStack
+   *          destination stack
+   * @param pChunkDepth
+   *          number of planes per chunk
+   */
+  void download(ClearCLImage pFusedImage,
+                StackInterface pFusedStack,
+                int pChunkDepth)
+  {
+    long lWidth = pFusedImage.getWidth();
+    long lHeight = pFusedImage.getHeight();
+    long lDepth = pFusedImage.getDepth();
+
+    if (pChunkDepth <= 0 || pChunkDepth >= lDepth)
+    {
+      pFusedImage.writeTo(pFusedStack.getContiguousMemory(), true);
+      notifyPlanesAvailable(pFusedStack, 0, lDepth);
+      return;
+    }
+
+    long lPlaneSizeInBytes = pFusedImage.getSizeInBytes() / lDepth;
+    ContiguousMemoryInterface lMemory = pFusedStack.getContiguousMemory();
+
+    for (long z = 0; z < lDepth; z += pChunkDepth)
+    {
+      long lNumberOfPlanes = Math.min(pChunkDepth, lDepth - z);
+      pFusedImage.writeTo(lMemory.subRegion(z * lPlaneSizeInBytes,
+                                            lNumberOfPlanes
+                                                         * lPlaneSizeInBytes),
+                          new long[]
+                          { 0, 0, z },
+                          new long[]
+                          { lWidth, lHeight, lNumberOfPlanes },
+                          true);
+      notifyPlanesAvailable(pFusedStack, z, lNumberOfPlanes);
+    }
+  }
+
+  private void notifyPlanesAvailable(StackInterface pFusedStack,
+                                     long pFirstPlane,
+                                     long pNumberOfPlanes)
+  {
+    for (FusedStackPlaneListener lListener : mPlaneListenerList)
+    {
+      try
+      {
+        lListener.planesAvailable(pFusedStack,
+                                  pFirstPlane,
+                                  pNumberOfPlanes);
+      }
+      catch (Throwable e)
+      {
+        severe("Fused stack plane listener failed: %s", e.toString());
+        e.printStackTrace();
+      }
+    }
+  }
+
+}
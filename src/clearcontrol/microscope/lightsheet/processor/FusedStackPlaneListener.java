@@ -0,0 +1,29 @@
+package clearcontrol.microscope.lightsheet.processor;
+
+import clearcontrol.stack.StackInterface;
+
+/**
+ * Fused stack plane listener. Fused stacks are downloaded from the device in
+ * chunks of planes, listeners are notified as soon as a chunk has landed in
+ * host memory so that they can start consuming planes before the whole volume
+ * is available.
+ *
+ * @author royer
+ */
+public interface FusedStackPlaneListener
+{
+  /**
+   * Notifies that a range of planes of a fused stack is available in host
+   * memory
+   *
+   * @param pFusedStack
+   *          fused stack being downloaded
+   * @param pFirstPlane
+   *          index of the first available plane
+   * @param pNumberOfPlanes
+   *          number of available planes
+   */
+  void planesAvailable(StackInterface pFusedStack,
+                       long pFirstPlane,
+                       long pNumberOfPlanes);
+}
@@ -0,0 +1,125 @@
+package clearcontrol.microscope.lightsheet.processor;
+
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fusion engine slot. A slot owns one fusion engine and a single worker thread,
+ * all stacks of a given time point are routed to the same slot so that
+ * different time points can be uploaded and fused concurrently in different
+ * slots.
+ *
+ * @author royer
+ */
+class FusionEngineSlot
+{
+  /**
+   * Stages a slot can be in
+   */
+  enum Stage
+  {
+   Idle, Upload, Fusion, Download
+  }
+
+  private final int mSlotIndex;
+  private final LightSheetFastFusionEngine mEngine;
+  private final ExecutorService mExecutor;
+
+  private volatile Long mTimePoint;
+  private volatile Stage mStage = Stage.Idle;
+  private volatile long mLastActivityTimeInNanoseconds;
+  // keys of the fused images already emitted for the current time point:
+  private final HashSet<String> mEmittedKeys = new HashSet<>();
+
+  /**
+   * Instantiates a fusion engine slot
+   *
+   * @param pSlotIndex
+   *          slot index
+   * @param pEngine
+   *          fusion engine owned by this slot
+   */
+  FusionEngineSlot(int pSlotIndex, LightSheetFastFusionEngine pEngine)
+  {
+    mSlotIndex = pSlotIndex;
+    mEngine = pEngine;
+    mExecutor = Executors.newSingleThreadExecutor((r) -> {
+      Thread lThread = new Thread(r, "FusionEngineSlot" + pSlotIndex);
+      lThread.setDaemon(true);
+      return lThread;
+    });
+  }
+
+  int getSlotIndex()
+  {
+    return mSlotIndex;
+  }
+
+  LightSheetFastFusionEngine getEngine()
+  {
+    return mEngine;
+  }
+
+  Long getTimePoint()
+  {
+    return mTimePoint;
+  }
+
+  boolean isFree()
+  {
+    return mTimePoint == null;
+  }
+
+  void assign(long pTimePoint)
+  {
+    mTimePoint = pTimePoint;
+    mEmittedKeys.clear();
+    touch();
+  }
+
+  void free()
+  {
+    mTimePoint = null;
+    mStage = Stage.Idle;
+  }
+
+  Stage getStage()
+  {
+    return mStage;
+  }
+
+  void setStage(Stage pStage)
+  {
+    mStage = pStage;
+    touch();
+  }
+
+  long getLastActivityTimeInNanoseconds()
+  {
+    return mLastActivityTimeInNanoseconds;
+  }
+
+  HashSet<String> getEmittedKeys()
+  {
+    return mEmittedKeys;
+  }
+
+  Future<?> submit(Runnable pRunnable)
+  {
+    touch();
+    return mExecutor.submit(pRunnable);
+  }
+
+  void shutdown()
+  {
+    mExecutor.shutdown();
+  }
+
+  private void touch()
+  {
+    mLastActivityTimeInNanoseconds = System.nanoTime();
+  }
+
+}
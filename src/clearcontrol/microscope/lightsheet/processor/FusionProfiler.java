@@ -0,0 +1,143 @@
+package clearcontrol.microscope.lightsheet.processor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import clearcontrol.microscope.lightsheet.processor.FusionTimePointProfile.TaskTiming;
+
+/**
+ * Fusion profiler. Collects, for the time point currently being fused by one
+ * engine, per task timings, image memory usage and host-device transfers.
+ * A profiler is owned by a single engine, but is updated both from the thread
+ * executing that engine's tasks and from asynchronous upload threads, all
+ * updates are therefore synchronized.
+ *
+ * @author royer
+ */
+public class FusionProfiler
+{
+  private volatile boolean mEnabled;
+
+  private FusionTimePointProfile mProfile = new FusionTimePointProfile();
+  private Map<String, Long> mLiveImageMap = new HashMap<>();
+
+  /**
+   * Returns true if profiling is enabled
+   *
+   * @return true if enabled
+   */
+  public boolean isEnabled()
+  {
+    return mEnabled;
+  }
+
+  /**
+   * Enables or disables profiling
+   *
+   * @param pEnabled
+   *          true to enable
+   */
+  public void setEnabled(boolean pEnabled)
+  {
+    mEnabled = pEnabled;
+  }
+
+  /**
+   * Records the execution of a task
+   *
+   * @param pTaskName
+   *          task name
+   * @param pWallTimeInNanoseconds
+   *          wall time from submission to completion
+   * @param pDeviceTimeInNanoseconds
+   *          time spent waiting for the device after submission
+   */
+  public synchronized void recordTask(String pTaskName,
+                                      long pWallTimeInNanoseconds,
+                                      long pDeviceTimeInNanoseconds)
+  {
+    if (!mEnabled)
+      return;
+
+    TaskTiming lTaskTiming =
+                           mProfile.mTaskTimingMap.computeIfAbsent(pTaskName,
+                                                                   (k) -> new TaskTiming());
+    lTaskTiming.mNumberOfExecutions++;
+    lTaskTiming.mWallTimeInNanoseconds += pWallTimeInNanoseconds;
+    lTaskTiming.mDeviceTimeInNanoseconds += pDeviceTimeInNanoseconds;
+  }
+
+  /**
+   * Records the images currently held by the engine, allocations and releases
+   * are derived from the difference with the previous snapshot
+   *
+   * @param pLiveImageMap
+   *          map from image key to image size in bytes
+   */
+  public synchronized void recordLiveImages(Map<String, Long> pLiveImageMap)
+  {
+    if (!mEnabled)
+      return;
+
+    long lLiveBytes = 0;
+    for (Map.Entry<String, Long> lEntry : pLiveImageMap.entrySet())
+    {
+      lLiveBytes += lEntry.getValue();
+      if (!mLiveImageMap.containsKey(lEntry.getKey()))
+        mProfile.mNumberOfImageAllocations++;
+    }
+    for (String lKey : mLiveImageMap.keySet())
+      if (!pLiveImageMap.containsKey(lKey))
+        mProfile.mNumberOfImageReleases++;
+
+    mProfile.mPeakImageMemoryInBytes =
+                                     Math.max(mProfile.mPeakImageMemoryInBytes,
+                                              lLiveBytes);
+    mLiveImageMap = new HashMap<>(pLiveImageMap);
+  }
+
+  /**
+   * Records bytes transferred from host to device
+   *
+   * @param pBytes
+   *          number of bytes
+   */
+  public synchronized void recordHostToDevice(long pBytes)
+  {
+    if (mEnabled)
+      mProfile.mHostToDeviceBytes += pBytes;
+  }
+
+  /**
+   * Records bytes transferred from device to host
+   *
+   * @param pBytes
+   *          number of bytes
+   */
+  public synchronized void recordDeviceToHost(long pBytes)
+  {
+    if (mEnabled)
+      mProfile.mDeviceToHostBytes += pBytes;
+  }
+
+  /**
+   * Finishes the profile of the current time point and starts a new one
+   *
+   * @param pTimePoint
+   *          time point of the finished profile
+   * @return finished profile, or null if profiling is disabled
+   */
+  public synchronized FusionTimePointProfile finishTimePoint(long pTimePoint)
+  {
+    FusionTimePointProfile lProfile = mProfile;
+    mProfile = new FusionTimePointProfile();
+    mLiveImageMap = new HashMap<>();
+
+    if (!mEnabled)
+      return null;
+
+    lProfile.mTimePoint = pTimePoint;
+    return lProfile;
+  }
+
+}
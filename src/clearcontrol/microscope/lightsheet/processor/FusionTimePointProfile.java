@@ -0,0 +1,132 @@
+package clearcontrol.microscope.lightsheet.processor;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Fusion profile of one time point: per task wall and device time, image
+ * memory high-water mark, image allocations and releases, and bytes transferred
+ * between host and device. Fields are public so that profiles can be
+ * serialized as is.
+ *
+ * @author royer
+ */
+public class FusionTimePointProfile
+{
+  /**
+   * Timing of one fusion task
+   */
+  public static class TaskTiming
+  {
+    @SuppressWarnings("javadoc")
+    public int mNumberOfExecutions;
+
+    @SuppressWarnings("javadoc")
+    public long mWallTimeInNanoseconds, mDeviceTimeInNanoseconds;
+  }
+
+  @SuppressWarnings("javadoc")
+  public long mTimePoint;
+
+  @SuppressWarnings("javadoc")
+  public long mPeakImageMemoryInBytes, mNumberOfImageAllocations,
+      mNumberOfImageReleases, mHostToDeviceBytes, mDeviceToHostBytes;
+
+  @SuppressWarnings("javadoc")
+  public LinkedHashMap<String, TaskTiming> mTaskTimingMap =
+                                                          new LinkedHashMap<>();
+
+  /**
+   * Returns the total wall time spent in tasks
+   *
+   * @return total wall time in nanoseconds
+   */
+  public long getTotalWallTimeInNanoseconds()
+  {
+    long lTotal = 0;
+    for (TaskTiming lTaskTiming : mTaskTimingMap.values())
+      lTotal += lTaskTiming.mWallTimeInNanoseconds;
+    return lTotal;
+  }
+
+  /**
+   * Returns the name of the task with the largest wall time, or null if no task
+   * was executed
+   *
+   * @return slowest task name
+   */
+  public String getSlowestTask()
+  {
+    String lSlowestTask = null;
+    long lMaxWallTime = -1;
+    for (Map.Entry<String, TaskTiming> lEntry : mTaskTimingMap.entrySet())
+      if (lEntry.getValue().mWallTimeInNanoseconds > lMaxWallTime)
+      {
+        lMaxWallTime = lEntry.getValue().mWallTimeInNanoseconds;
+        lSlowestTask = lEntry.getKey();
+      }
+    return lSlowestTask;
+  }
+
+  /**
+   * Writes the CSV header matching the rows written by writeCSVRows
+   *
+   * @param pWriter
+   *          writer
+   */
+  public static void writeCSVHeader(PrintWriter pWriter)
+  {
+    pWriter.println("timepoint,task,executions,wall_ms,device_ms,peak_image_memory_bytes,image_allocations,image_releases,host_to_device_bytes,device_to_host_bytes");
+  }
+
+  /**
+   * Writes this profile as CSV rows: one row per task followed by a 'total'
+   * row
+   *
+   * @param pWriter
+   *          writer
+   */
+  public void writeCSVRows(PrintWriter pWriter)
+  {
+    long lTotalWallTime = 0, lTotalDeviceTime = 0;
+    int lTotalExecutions = 0;
+    for (Map.Entry<String, TaskTiming> lEntry : mTaskTimingMap.entrySet())
+    {
+      TaskTiming lTaskTiming = lEntry.getValue();
+      writeCSVRow(pWriter,
+                  lEntry.getKey(),
+                  lTaskTiming.mNumberOfExecutions,
+                  lTaskTiming.mWallTimeInNanoseconds,
+                  lTaskTiming.mDeviceTimeInNanoseconds);
+      lTotalExecutions += lTaskTiming.mNumberOfExecutions;
+      lTotalWallTime += lTaskTiming.mWallTimeInNanoseconds;
+      lTotalDeviceTime += lTaskTiming.mDeviceTimeInNanoseconds;
+    }
+    writeCSVRow(pWriter,
+                "total",
+                lTotalExecutions,
+                lTotalWallTime,
+                lTotalDeviceTime);
+  }
+
+  private void writeCSVRow(PrintWriter pWriter,
+                           String pTask,
+                           int pNumberOfExecutions,
+                           long pWallTimeInNanoseconds,
+                           long pDeviceTimeInNanoseconds)
+  {
+    pWriter.printf("%d,\"%s\",%d,%.3f,%.3f,%d,%d,%d,%d,%d\n",
+                   mTimePoint,
+                   pTask,
+                   pNumberOfExecutions,
+                   pWallTimeInNanoseconds * 1e-6,
+                   pDeviceTimeInNanoseconds * 1e-6,
+                   mPeakImageMemoryInBytes,
+                   mNumberOfImageAllocations,
+                   mNumberOfImageReleases,
+                   mHostToDeviceBytes,
+                   mDeviceToHostBytes);
+  }
+
+}
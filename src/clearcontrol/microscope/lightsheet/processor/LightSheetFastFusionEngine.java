@@ -1,31 +1,38 @@
 package clearcontrol.microscope.lightsheet.processor;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Future;
 
 import clearcl.ClearCLContext;
+import clearcl.ClearCLImage;
 import clearcl.enums.ImageChannelDataType;
 import clearcontrol.core.concurrent.executors.AsynchronousExecutorFeature;
 import clearcontrol.core.configuration.MachineConfiguration;
+import clearcontrol.core.log.LoggingFeature;
 import clearcontrol.gui.jfx.custom.visualconsole.VisualConsoleInterface;
 import clearcontrol.gui.jfx.custom.visualconsole.VisualConsoleInterface.ChartType;
+import clearcontrol.microscope.lightsheet.processor.graph.FusionGraphBuilder;
+import clearcontrol.microscope.lightsheet.processor.graph.FusionGraphDescription;
+import clearcontrol.microscope.lightsheet.processor.graph.LegacyFusionGraphs;
 import clearcontrol.microscope.lightsheet.stacks.MetaDataView;
 import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.metadata.MetaDataOrdinals;
 import clearcontrol.stack.metadata.StackMetaData;
 import fastfuse.FastFusionEngine;
 import fastfuse.FastFusionEngineInterface;
 import fastfuse.FastFusionMemoryPool;
-import fastfuse.registration.AffineMatrix;
-import fastfuse.tasks.CompositeTasks;
 import fastfuse.tasks.DownsampleXYbyHalfTask;
-import fastfuse.tasks.DownsampleXYbyHalfTask.Type;
-import fastfuse.tasks.FlipTask;
-import fastfuse.tasks.GaussianBlurTask;
-import fastfuse.tasks.IdentityTask;
-import fastfuse.tasks.MemoryReleaseTask;
 import fastfuse.tasks.RegistrationListener;
 import fastfuse.tasks.RegistrationTask;
 import fastfuse.tasks.TaskInterface;
-import fastfuse.tasks.TenengradFusionTask;
 
 /**
  * Lightsheet fast fusion engine
@@ -36,7 +43,8 @@ public class LightSheetFastFusionEngine extends FastFusionEngine
                                         implements
                                         FastFusionEngineInterface,
                                         AsynchronousExecutorFeature,
-                                        RegistrationListener
+                                        RegistrationListener,
+                                        LoggingFeature
 {
 
   private VisualConsoleInterface mVisualConsoleInterface;
@@ -52,14 +60,93 @@ public class LightSheetFastFusionEngine extends FastFusionEngine
                                                           .getBooleanProperty("fastfuse.downscale",
                                                                               true);
 
+  private volatile boolean mGraphBuilder =
+                                         MachineConfiguration.get()
+                                                             .getBooleanProperty("fastfuse.graphbuilder",
+                                                                                 false);
+
   private volatile double mMemRatio =
                                     MachineConfiguration.get()
                                                         .getDoubleProperty("fastfuse.memratio",
                                                                            0.8);
 
+  private volatile int mRegistrationPyramidLevels =
+                                                  MachineConfiguration.get()
+                                                                      .getIntegerProperty("fastfuse.pyramid.levels",
+                                                                                          1);
+
   private StackMetaData mFusedStackMetaData = new StackMetaData();
 
   private RegistrationTask mRegistrationTask;
+  private RegistrationPyramid mRegistrationPyramid;
+
+  // reference laser line for registration, -1 -> first laser line seen:
+  private final int mConfiguredReferenceLaserLine =
+                                                  MachineConfiguration.get()
+                                                                      .getIntegerProperty("fastfuse.referencelaser",
+                                                                                          -1);
+
+  // per laser line graphs: the reference channel registers the views, the
+  // other channels reuse its theta:
+  private FusionGraphDescription mChannelGraphDescription;
+  private final Set<String> mChannelKeyPrefixSet =
+                                                 new CopyOnWriteArraySet<>();
+  private volatile String mReferenceChannelKeyPrefix;
+  private final Map<String, RegistrationTask> mChannelRegistrationTaskMap =
+                                                                          new ConcurrentHashMap<>();
+  private final Map<String, RegistrationPyramid> mChannelRegistrationPyramidMap =
+                                                                                new ConcurrentHashMap<>();
+  private final List<RegistrationTask> mFollowerRegistrationTaskList =
+                                                                     new CopyOnWriteArrayList<>();
+  private final List<RegistrationPyramid> mFollowerRegistrationPyramidList =
+                                                                           new CopyOnWriteArrayList<>();
+  // registrations of the other camera pairs (camera 2 onto camera 0, etc.),
+  // of the reference graph and per channel:
+  private final List<RegistrationPyramid> mAdditionalRegistrationPyramidList =
+                                                                             new CopyOnWriteArrayList<>();
+  private final Map<String, List<RegistrationPyramid>> mChannelAdditionalRegistrationPyramidMap =
+                                                                                              new ConcurrentHashMap<>();
+  // last time point received per channel, and the time point before the
+  // latest one, used to detect that the reference channel stopped arriving:
+  private final Map<String, Long> mChannelTimePointMap =
+                                                       new ConcurrentHashMap<>();
+  private volatile Long mLatestTimePoint, mPreviousTimePoint;
+  // channels for which views were passed since the last reset:
+  private final Set<String> mPassedChannelKeyPrefixSet =
+                                                       new CopyOnWriteArraySet<>();
+
+  private volatile long mMemoryPoolSizeInBytes;
+
+  private final FusionProfiler mProfiler = new FusionProfiler();
+  private volatile boolean mProfiledTasks;
+  private int mTaskCounter = 0;
+
+  private final Map<String, String> mAliasMap = new HashMap<>();
+
+  private volatile double[] mLastUsedTheta;
+  private volatile double mLastUsedThetaScore = Double.NaN;
+  private volatile boolean mRegistrationCheckOnly;
+
+  private final int mNumberOfLightSheets;
+  private final int mNumberOfDetectionArms;
+
+  // largest Gaussian sigma along Z used by the task graph, determines the halo
+  // needed when fusing Z slabs independently:
+  private volatile float mMaxKernelSigmaZ = 0;
+  private static final int cMinimalZHalo = 4;
+
+  private static final int[] cKernelSizesRegistration = new int[]
+  { 3, 3, 3 };
+  private static final float[] cKernelSigmasRegistration = new float[]
+  { 0.5f, 0.5f, 0.5f };
+  private static final float[] cKernelSigmasFusion = new float[]
+  { 15, 15, 5 };
+  private static final float[] cKernelSigmasBackground = new float[]
+  { 30, 30, 10 };
+
+  // the default graph, for stacks without laser line, is built on first use:
+  private final boolean mDefaultGraphWithGraphBuilder;
+  private volatile boolean mDefaultGraphBuilt;
 
   /**
    * Instantiates a lightsheet fast fusion engine
@@ -77,9 +164,80 @@ public class LightSheetFastFusionEngine extends FastFusionEngine
                                     VisualConsoleInterface pVisualConsoleInterface,
                                     int pNumberOfLightSheets,
                                     int pNumberOfDetectionArms)
+  {
+    this(pContext,
+         pVisualConsoleInterface,
+         pNumberOfLightSheets,
+         pNumberOfDetectionArms,
+         1);
+  }
+
+  /**
+   * Instantiates a lightsheet fast fusion engine that uses only a share of the
+   * image memory pool. The pool is shared by all engines of a context, engines
+   * that fuse concurrently must split its budget. The share is advisory: it
+   * sizes getMemoryPoolSizeInBytes() and getFreeMemoryEstimateInBytes(), which
+   * callers use to bound their uploads, but allocations are not limited to it.
+   * 
+   * @param pContext
+   *          ClearCL context
+   * @param pVisualConsoleInterface
+   *          visual console interface for logging purposes
+   * @param pNumberOfLightSheets
+   *          number of lightsheets
+   * @param pNumberOfDetectionArms
+   *          number of detection arms
+   * @param pMemoryShare
+   *          advisory share of the memory pool budget used by this engine,
+   *          within ]0,1]
+   */
+  public LightSheetFastFusionEngine(ClearCLContext pContext,
+                                    VisualConsoleInterface pVisualConsoleInterface,
+                                    int pNumberOfLightSheets,
+                                    int pNumberOfDetectionArms,
+                                    double pMemoryShare)
+  {
+    this(pContext,
+         pVisualConsoleInterface,
+         pNumberOfLightSheets,
+         pNumberOfDetectionArms,
+         pMemoryShare,
+         MachineConfiguration.get()
+                             .getBooleanProperty("fastfuse.profiling",
+                                                 false));
+  }
+
+  /**
+   * Instantiates a lightsheet fast fusion engine that uses only a share of the
+   * image memory pool, with or without profiling. Tasks are only wrapped for
+   * profiling when profiling is enabled at construction.
+   * 
+   * @param pContext
+   *          ClearCL context
+   * @param pVisualConsoleInterface
+   *          visual console interface for logging purposes
+   * @param pNumberOfLightSheets
+   *          number of lightsheets
+   * @param pNumberOfDetectionArms
+   *          number of detection arms
+   * @param pMemoryShare
+   *          advisory share of the memory pool budget used by this engine,
+   *          within ]0,1]
+   * @param pProfiling
+   *          true to profile task executions
+   */
+  public LightSheetFastFusionEngine(ClearCLContext pContext,
+                                    VisualConsoleInterface pVisualConsoleInterface,
+                                    int pNumberOfLightSheets,
+                                    int pNumberOfDetectionArms,
+                                    double pMemoryShare,
+                                    boolean pProfiling)
   {
     super(pContext);
     mVisualConsoleInterface = pVisualConsoleInterface;
+    mNumberOfLightSheets = pNumberOfLightSheets;
+    mNumberOfDetectionArms = pNumberOfDetectionArms;
+    mProfiler.setEnabled(pProfiling);
     if (mVisualConsoleInterface != null)
     {
       mVisualConsoleInterface.configureChart("Registration error",
@@ -159,357 +317,360 @@ public class LightSheetFastFusionEngine extends FastFusionEngine
                                              ChartType.Line);
     }
 
-    // setting up pool with max pool size:
+    // setting up pool with max pool size, the pool is a singleton sized for
+    // the whole device and shared by all engines: the share below is only
+    // used for accounting, it is not enforced by the pool:
     long lMaxMemoryInBytes =
                            (long) (mMemRatio
                                    * pContext.getDevice()
                                              .getGlobalMemorySizeInBytes());
     FastFusionMemoryPool.getInstance(pContext, lMaxMemoryInBytes);
+    mMemoryPoolSizeInBytes =
+                           (long) (lMaxMemoryInBytes
+                                   * Math.max(0, Math.min(1, pMemoryShare)));
+
+    FusionGraphDescription lDescription =
+                                        new FusionGraphDescription(pNumberOfLightSheets,
+                                                                   pNumberOfDetectionArms);
+    lDescription.setDownscale(isDownscale());
+    lDescription.setRegistration(isRegistration());
+    lDescription.setRegistrationPyramidLevels(mRegistrationPyramidLevels);
+    lDescription.setRegistrationKernels(cKernelSigmasRegistration,
+                                        cKernelSizesRegistration);
+    if (pNumberOfLightSheets * pNumberOfDetectionArms > 4)
+    {
+      lDescription.setKernelSigmasFusion(cKernelSigmasFusion);
+      lDescription.setKernelSigmasBackground(cKernelSigmasBackground);
+    }
+    // X mirroring of each detection arm, hand-written graphs assume that odd
+    // arms are mirrored:
+    boolean lDefaultFlipX = true;
+    for (int c = 0; c < pNumberOfDetectionArms; c++)
+    {
+      boolean lFlipX = MachineConfiguration.get()
+                                           .getBooleanProperty("fastfuse.flipx.c"
+                                                               + c,
+                                                               lDescription.isFlipX(c));
+      lDefaultFlipX &= lFlipX == lDescription.isFlipX(c);
+      lDescription.setFlipX(c, lFlipX);
+    }
+    mChannelGraphDescription = lDescription;
 
-    int[] lKernelSizesRegistration = new int[]
-    { 3, 3, 3 };
-    float[] lKernelSigmasRegistration = new float[]
-    { 0.5f, 0.5f, 0.5f };
+    // the hand-written graphs use the same kernels as the description, so the
+    // halo is known before any graph is built:
+    mMaxKernelSigmaZ = lDescription.getMaxKernelSigmaZ();
 
-    float[] lKernelSigmasFusion = new float[]
-    { 15, 15, 5 };
+    mDefaultGraphWithGraphBuilder =
+                                  mGraphBuilder || !lDefaultFlipX
+                                    || !LegacyFusionGraphs.isSupported(pNumberOfLightSheets,
+                                                                       pNumberOfDetectionArms);
+  }
 
-    float[] lKernelSigmasBackground = new float[]
-    { 30, 30, 10 };
+  /**
+   * Makes sure that the default task graph, for stacks without laser line,
+   * exists. It is only built on first use so that engines fusing per laser
+   * line do not carry its tasks.
+   */
+  private void ensureDefaultGraph()
+  {
+    if (mDefaultGraphBuilt)
+      return;
 
-    if (pNumberOfLightSheets == 1)
+    synchronized (mChannelKeyPrefixSet)
     {
-      if (pNumberOfDetectionArms == 1)
+      if (mDefaultGraphBuilt)
+        return;
+
+      if (mDefaultGraphWithGraphBuilder)
       {
-        setupOneLightsheetOneDetectionArm();
+        mChannelGraphDescription.setDownscale(isDownscale());
+        mChannelGraphDescription.setRegistration(isRegistration());
+        setupWithGraphBuilder(mChannelGraphDescription);
       }
-      else if (pNumberOfDetectionArms == 2)
+      else
       {
-        setupOneLightsheetTwoDetectionArm(lKernelSizesRegistration,
-                                          lKernelSigmasRegistration);
+        LegacyFusionGraphs lLegacyFusionGraphs =
+                                               new LegacyFusionGraphs(isDownscale(),
+                                                                      isRegistration(),
+                                                                      mRegistrationPyramidLevels);
+        addTasks(lLegacyFusionGraphs.build(mNumberOfLightSheets,
+                                           mNumberOfDetectionArms,
+                                           cKernelSizesRegistration,
+                                           cKernelSigmasRegistration,
+                                           cKernelSigmasFusion,
+                                           cKernelSigmasBackground));
+        mRegistrationTask = lLegacyFusionGraphs.getRegistrationTask();
+        mRegistrationPyramid =
+                             lLegacyFusionGraphs.getRegistrationPyramid();
       }
+
+      mDefaultGraphBuilt = true;
+      info("Added default fusion graph");
     }
-    else if (pNumberOfLightSheets == 2)
-    {
-      if (pNumberOfDetectionArms == 1)
-      {
-        setupTwoLightSheetsOneDetectionArm();
+  }
 
-      }
-      else if (pNumberOfDetectionArms == 2)
-      {
+  /**
+   * Sets up the task graph from a declarative description using the fusion
+   * graph builder, this works for any number of lightsheets and detection
+   * arms.
+   * 
+   * @param pDescription
+   *          fusion graph description
+   */
+  protected void setupWithGraphBuilder(FusionGraphDescription pDescription)
+  {
+    FusionGraphBuilder lFusionGraphBuilder =
+                                           new FusionGraphBuilder(pDescription);
+    addTasks(lFusionGraphBuilder.build());
+    mRegistrationTask = lFusionGraphBuilder.getRegistrationTask();
+    mRegistrationPyramid = lFusionGraphBuilder.getRegistrationPyramid();
+    setAdditionalRegistrationPyramids(getAdditionalRegistrationPyramids(lFusionGraphBuilder));
+    mAliasMap.putAll(lFusionGraphBuilder.getAliasMap());
+    mMaxKernelSigmaZ = Math.max(mMaxKernelSigmaZ,
+                                pDescription.getMaxKernelSigmaZ());
+  }
 
-        setupTwoLightsheetsTwoDetectionArms(lKernelSizesRegistration,
-                                            lKernelSigmasRegistration);
-      }
+  /**
+   * Makes sure that a task graph exists for the channel with given key prefix
+   * (e.g. 'ch1-'), the graph is built on first use. The reference channel is
+   * the configured reference laser line (property 'fastfuse.referencelaser'),
+   * or else the first channel seen: its registration is optimised as usual.
+   * Registration of the other channels is reduced to a single evaluation
+   * starting from the reference theta, so all colors are fused with the same
+   * transform.
+   * 
+   * @param pChannelKeyPrefix
+   *          channel key prefix, empty for stacks without laser line
+   */
+  public void ensureChannel(String pChannelKeyPrefix)
+  {
+    if (pChannelKeyPrefix.isEmpty())
+    {
+      ensureDefaultGraph();
+      return;
     }
-    else if (pNumberOfLightSheets == 4)
+
+    if (mChannelKeyPrefixSet.contains(pChannelKeyPrefix))
+      return;
+
+    synchronized (mChannelKeyPrefixSet)
     {
-      if (pNumberOfDetectionArms == 1)
+      if (mChannelKeyPrefixSet.contains(pChannelKeyPrefix))
+        return;
+
+      boolean lReference = mReferenceChannelKeyPrefix == null;
+
+      FusionGraphDescription lDescription =
+                                          mChannelGraphDescription.withKeyPrefix(pChannelKeyPrefix);
+      lDescription.setDownscale(isDownscale());
+      lDescription.setRegistration(isRegistration());
+      if (!lReference
+          && !pChannelKeyPrefix.equals(getConfiguredReferenceChannelKeyPrefix()))
+        lDescription.setRegistrationPyramidLevels(1);
+
+      FusionGraphBuilder lFusionGraphBuilder =
+                                             new FusionGraphBuilder(lDescription);
+      addTasks(lFusionGraphBuilder.build());
+      mAliasMap.putAll(lFusionGraphBuilder.getAliasMap());
+      mMaxKernelSigmaZ = Math.max(mMaxKernelSigmaZ,
+                                  lDescription.getMaxKernelSigmaZ());
+
+      RegistrationTask lRegistrationTask =
+                                         lFusionGraphBuilder.getRegistrationTask();
+      if (lRegistrationTask != null)
       {
-        setupFourLightsheetsOneDetectionArm();
+        mChannelRegistrationTaskMap.put(pChannelKeyPrefix,
+                                        lRegistrationTask);
+        if (lFusionGraphBuilder.getRegistrationPyramid() != null)
+          mChannelRegistrationPyramidMap.put(pChannelKeyPrefix,
+                                             lFusionGraphBuilder.getRegistrationPyramid());
+        // only the reference channel reports its theta:
+        lRegistrationTask.addListener(new ChannelRegistrationListener(pChannelKeyPrefix));
+        mChannelAdditionalRegistrationPyramidMap.put(pChannelKeyPrefix,
+                                                     getAdditionalRegistrationPyramids(lFusionGraphBuilder));
       }
-      else if (pNumberOfDetectionArms == 2)
-      {
 
-        setupFourLightsheetsTwoDetectionArms(lKernelSizesRegistration,
-                                             lKernelSigmasRegistration,
-                                             lKernelSigmasFusion,
-                                             lKernelSigmasBackground);
+      if (lReference)
+      {
+        mReferenceChannelKeyPrefix = pChannelKeyPrefix;
+        if (lRegistrationTask != null)
+        {
+          mRegistrationTask = lRegistrationTask;
+          mRegistrationPyramid =
+                               lFusionGraphBuilder.getRegistrationPyramid();
+          setAdditionalRegistrationPyramids(mChannelAdditionalRegistrationPyramidMap.get(pChannelKeyPrefix));
+        }
+      }
+      else if (lRegistrationTask != null)
+      {
+        setFollower(lRegistrationTask,
+                    lFusionGraphBuilder.getRegistrationPyramid());
       }
-    }
 
+      mChannelKeyPrefixSet.add(pChannelKeyPrefix);
+      info("Added fusion graph for channel '%s'%s",
+           pChannelKeyPrefix,
+           lReference ? " (registration reference)" : "");
+    }
   }
 
-  protected void setupFourLightsheetsTwoDetectionArms(int[] pKernelSizesRegistration,
-                                                      float[] pKernelSigmasRegistration,
-                                                      float[] pKernelSigmasFusion,
-                                                      float[] pKernelSigmasBackground)
+  /**
+   * Records the time point of a stack of the channel with given key prefix,
+   * and elects this channel as registration reference if it is the configured
+   * reference laser line, or if the views of the current reference channel
+   * stopped arriving (e.g. its laser was switched off).
+   * 
+   * @param pChannelKeyPrefix
+   *          channel key prefix, empty for stacks without laser line
+   * @param pTimePoint
+   *          time point, null if unknown
+   */
+  public void updateReferenceChannel(String pChannelKeyPrefix,
+                                     Long pTimePoint)
   {
-    if (isDownscale())
-      addTasks(DownsampleXYbyHalfTask.applyAndReleaseInputs(Type.Median,
-                                                            "d",
-                                                            "C0L0",
-                                                            "C0L1",
-                                                            "C0L2",
-                                                            "C0L3",
-                                                            "C1L0",
-                                                            "C1L1",
-                                                            "C1L2",
-                                                            "C1L3"));
-    else
-      addTasks(IdentityTask.withSuffix("d",
-                                       "C0L0",
-                                       "C0L1",
-                                       "C0L2",
-                                       "C0L3",
-                                       "C1L0",
-                                       "C1L1",
-                                       "C1L2",
-                                       "C1L3"));
-
-    ImageChannelDataType lInitialFusionDataType =
-                                                isRegistration() ? ImageChannelDataType.Float
-                                                                 : ImageChannelDataType.UnsignedInt16;
-
-    addTasks(CompositeTasks.fuseWithSmoothWeights("C0",
-                                                  lInitialFusionDataType,
-                                                  pKernelSigmasFusion,
-                                                  true,
-                                                  "C0L0d",
-                                                  "C0L1d",
-                                                  "C0L2d",
-                                                  "C0L3d"));
-
-    addTasks(CompositeTasks.fuseWithSmoothWeights("C1",
-                                                  lInitialFusionDataType,
-                                                  pKernelSigmasFusion,
-                                                  true,
-                                                  "C1L0d",
-                                                  "C1L1d",
-                                                  "C1L2d",
-                                                  "C1L3d"));
-
-    if (isRegistration())
+    if (pChannelKeyPrefix.isEmpty())
+      return;
+
+    synchronized (mChannelKeyPrefixSet)
     {
-      List<TaskInterface> lRegistrationTaskList =
-                                                CompositeTasks.registerWithBlurPreprocessing("C0",
-                                                                                             "C1",
-                                                                                             "C1adjusted",
-                                                                                             pKernelSigmasRegistration,
-                                                                                             pKernelSizesRegistration,
-                                                                                             AffineMatrix.scaling(-1,
-                                                                                                                  1,
-                                                                                                                  1),
-                                                                                             true);
-      addTasks(lRegistrationTaskList);
-      // extract registration task from list
-      for (TaskInterface lTask : lRegistrationTaskList)
-        if (lTask instanceof RegistrationTask)
+      if (pTimePoint != null)
+      {
+        mChannelTimePointMap.put(pChannelKeyPrefix, pTimePoint);
+        if (mLatestTimePoint == null || pTimePoint > mLatestTimePoint)
         {
-          mRegistrationTask = (RegistrationTask) lTask;
-          break;
+          mPreviousTimePoint = mLatestTimePoint;
+          mLatestTimePoint = pTimePoint;
         }
-    }
-    else
-    {
-      addTask(FlipTask.flipX("C1", "C1adjusted"));
-      addTask(new MemoryReleaseTask("C1adjusted", "C1"));
-    }
+      }
 
-    // addTasks(CompositeTasks.fuseWithSmoothWeights("fused",
-    // ImageChannelDataType.UnsignedInt16,
-    // pKernelSigmasFusion,
-    // true,
-    // "C0",
-    // "C1adjusted"));
+      if (pChannelKeyPrefix.equals(mReferenceChannelKeyPrefix))
+        return;
 
-    addTasks(CompositeTasks.fuseWithSmoothWeights("fused-preliminary",
-                                                  ImageChannelDataType.Float,
-                                                  pKernelSigmasFusion,
-                                                  true,
-                                                  "C0",
-                                                  "C1adjusted"));
+      Long lReferenceTimePoint =
+                               mChannelTimePointMap.get(mReferenceChannelKeyPrefix);
+      boolean lConfigured =
+                          pChannelKeyPrefix.equals(getConfiguredReferenceChannelKeyPrefix());
+      boolean lStale = lReferenceTimePoint != null
+                       && mPreviousTimePoint != null
+                       && lReferenceTimePoint < mPreviousTimePoint;
 
-    addTasks(CompositeTasks.subtractBlurredCopyFromFloatImage("fused-preliminary",
-                                                              "fused",
-                                                              pKernelSigmasBackground,
-                                                              true,
-                                                              ImageChannelDataType.UnsignedInt16));
+      if (lConfigured || lStale)
+        electReferenceChannel(pChannelKeyPrefix);
+    }
   }
 
-  protected void setupFourLightsheetsOneDetectionArm()
+  private static Long getTimePoint(StackMetaData pStackMetaData)
   {
-    if (isDownscale())
-    {
-      addTask(new DownsampleXYbyHalfTask("C0L0", "C0L0d"));
-      addTask(new DownsampleXYbyHalfTask("C0L1", "C0L1d"));
-      addTask(new DownsampleXYbyHalfTask("C0L2", "C0L2d"));
-      addTask(new DownsampleXYbyHalfTask("C0L3", "C0L3d"));
-    }
-    else
-    {
-      addTask(new IdentityTask("C0L0", "C0L0d"));
-      addTask(new IdentityTask("C0L1", "C0L1d"));
-      addTask(new IdentityTask("C0L2", "C0L2d"));
-      addTask(new IdentityTask("C0L3", "C0L3d"));
-    }
-
-    addTask(new TenengradFusionTask("C0L0d",
-                                    "C0L1d",
-                                    "C0L2d",
-                                    "C0L3d",
-                                    "fused",
-                                    ImageChannelDataType.UnsignedInt16));
+    Object lTimePoint =
+                      pStackMetaData.getValue(MetaDataOrdinals.TimePoint);
+    if (lTimePoint instanceof Number)
+      return ((Number) lTimePoint).longValue();
+    return null;
   }
 
-  protected void setupTwoLightsheetsTwoDetectionArms(int[] lKernelSizes,
-                                                     float[] lKernelSigmas)
+  private String getConfiguredReferenceChannelKeyPrefix()
   {
-    if (isRegistration())
-    {
-      if (isDownscale())
-      {
-        addTask(new DownsampleXYbyHalfTask("C0L0", "C0L0d"));
-        addTask(new DownsampleXYbyHalfTask("C0L1", "C0L1d"));
-        addTask(new DownsampleXYbyHalfTask("C1L0", "C1L0d"));
-        addTask(new DownsampleXYbyHalfTask("C1L1", "C1L1d"));
-      }
-      else
-      {
-        addTask(new IdentityTask("C0L0", "C0L0d"));
-        addTask(new IdentityTask("C0L1", "C0L1d"));
-        addTask(new IdentityTask("C1L0", "C1L0d"));
-        addTask(new IdentityTask("C1L1", "C1L1d"));
-      }
+    if (mConfiguredReferenceLaserLine < 0)
+      return null;
+    return MetaDataView.getChannelKeyPrefix(mConfiguredReferenceLaserLine);
+  }
 
-      addTask(new TenengradFusionTask("C0L0d",
-                                      "C0L1d",
-                                      "C0",
-                                      ImageChannelDataType.Float));
-      addTask(new TenengradFusionTask("C1L0d",
-                                      "C1L1d",
-                                      "C1",
-                                      ImageChannelDataType.Float));
-
-      addTask(new GaussianBlurTask("C0",
-                                   "C0blur",
-                                   lKernelSigmas,
-                                   lKernelSizes));
-      addTask(new GaussianBlurTask("C1",
-                                   "C1blur",
-                                   lKernelSigmas,
-                                   lKernelSizes));
-
-      mRegistrationTask = new RegistrationTask("C0blur",
-                                               "C1blur",
-                                               "C0",
-                                               "C1",
-                                               "C1reg");
-
-      mRegistrationTask.getParameters()
-                       .setZeroTransformMatrix(AffineMatrix.scaling(-1,
-                                                                    1,
-                                                                    1));
-
-      addTask(mRegistrationTask);
-      addTask(new TenengradFusionTask("C0",
-                                      "C1reg",
-                                      "fused",
-                                      ImageChannelDataType.UnsignedInt16));
-    }
-    else
+  private void electReferenceChannel(String pChannelKeyPrefix)
+  {
+    String lOldReferenceChannelKeyPrefix = mReferenceChannelKeyPrefix;
+    RegistrationTask lOldRegistrationTask =
+                                          mChannelRegistrationTaskMap.get(lOldReferenceChannelKeyPrefix);
+    if (lOldRegistrationTask != null)
+      setFollower(lOldRegistrationTask,
+                  mChannelRegistrationPyramidMap.get(lOldReferenceChannelKeyPrefix));
+
+    RegistrationTask lRegistrationTask =
+                                       mChannelRegistrationTaskMap.get(pChannelKeyPrefix);
+    RegistrationPyramid lRegistrationPyramid =
+                                             mChannelRegistrationPyramidMap.get(pChannelKeyPrefix);
+    if (lRegistrationTask != null)
     {
-      addTask(new TenengradFusionTask("C0L0",
-                                      "C0L1",
-                                      "C0",
-                                      ImageChannelDataType.UnsignedInt16));
-      addTask(new TenengradFusionTask("C1L0",
-                                      "C1L1",
-                                      "C1",
-                                      ImageChannelDataType.UnsignedInt16));
-
-      addTask(FlipTask.flipX("C1", "C1flipped"));
-
-      addTask(new TenengradFusionTask("C0",
-                                      "C1flipped",
-                                      "fused",
-                                      ImageChannelDataType.UnsignedInt16));
+      // the registration parameters are set again by the processor before the
+      // next fusion:
+      mFollowerRegistrationTaskList.remove(lRegistrationTask);
+      mFollowerRegistrationPyramidList.remove(lRegistrationPyramid);
+      mRegistrationTask = lRegistrationTask;
+      mRegistrationPyramid = lRegistrationPyramid;
+      setAdditionalRegistrationPyramids(mChannelAdditionalRegistrationPyramidMap.get(pChannelKeyPrefix));
+      if (mLastUsedTheta != null)
+        setRegistrationInitialTheta(mLastUsedTheta);
     }
+
+    mReferenceChannelKeyPrefix = pChannelKeyPrefix;
+    info("Channel '%s' is now the registration reference (was '%s')",
+         pChannelKeyPrefix,
+         lOldReferenceChannelKeyPrefix);
   }
 
-  protected void setupTwoLightSheetsOneDetectionArm()
+  private void setFollower(RegistrationTask pRegistrationTask,
+                           RegistrationPyramid pRegistrationPyramid)
   {
-    if (isDownscale())
+    if (pRegistrationPyramid != null)
     {
-      addTask(new DownsampleXYbyHalfTask("C0L0", "C0L0d"));
-      addTask(new DownsampleXYbyHalfTask("C0L1", "C0L1d"));
-    }
-    else
-    {
-      addTask(new IdentityTask("C0L0", "C0L0d"));
-      addTask(new IdentityTask("C0L1", "C0L1d"));
+      pRegistrationPyramid.configure(0, 1, 0, 0);
+      if (mLastUsedTheta != null)
+        pRegistrationPyramid.setInitialTheta(mLastUsedTheta);
+      mFollowerRegistrationPyramidList.add(pRegistrationPyramid);
     }
+    else if (mLastUsedTheta != null)
+      pRegistrationTask.setInitialTheta(mLastUsedTheta);
 
-    addTask(new TenengradFusionTask("C0L0d",
-                                    "C0L1d",
-                                    "fused",
-                                    ImageChannelDataType.UnsignedInt16));
+    pRegistrationTask.getParameters().setNumberOfRestarts(0);
+    pRegistrationTask.getParameters().setMaxNumberOfEvaluations(1);
+    pRegistrationTask.setSmoothingConstant(1);
+    mFollowerRegistrationTaskList.add(pRegistrationTask);
   }
 
-  protected void setupOneLightsheetTwoDetectionArm(int[] lKernelSizes,
-                                                   float[] lKernelSigmas)
+  /**
+   * Forwards the registration events of a channel's registration task, as long
+   * as that channel is the registration reference
+   */
+  private class ChannelRegistrationListener implements
+                                            RegistrationListener
   {
-    if (isRegistration())
-    {
-      if (isDownscale())
-      {
-        addTask(new DownsampleXYbyHalfTask("C0L0", "C0L0d"));
-        addTask(new DownsampleXYbyHalfTask("C1L0", "C1L0d"));
-      }
-      else
-      {
-        addTask(new IdentityTask("C0L0", "C0L0d"));
-        addTask(new IdentityTask("C1L0", "C1L0d"));
-      }
+    private final String mChannelKeyPrefix;
 
-      addTask(new GaussianBlurTask("C0L0d",
-                                   "C0L0blur",
-                                   lKernelSigmas,
-                                   lKernelSizes));
-      addTask(new GaussianBlurTask("C1L0d",
-                                   "C1L0blur",
-                                   lKernelSigmas,
-                                   lKernelSizes));
-
-      mRegistrationTask = new RegistrationTask("C0L0blur",
-                                               "C1L0blur",
-                                               "C0L0d",
-                                               "C1L0d",
-                                               "C1L0reg");
-      mRegistrationTask.getParameters()
-                       .setZeroTransformMatrix(AffineMatrix.scaling(-1,
-                                                                    1,
-                                                                    1));
-
-      addTask(mRegistrationTask);
-      addTask(new TenengradFusionTask("C0L0d",
-                                      "C1L0reg",
-                                      "fused",
-                                      ImageChannelDataType.UnsignedInt16));
-    }
-    else
+    private ChannelRegistrationListener(String pChannelKeyPrefix)
     {
-      if (isDownscale())
-      {
-        addTask(new DownsampleXYbyHalfTask("C0L0", "C0L0d"));
-        addTask(new DownsampleXYbyHalfTask("C1L0", "C1L0d"));
-      }
-      else
-      {
-        addTask(new IdentityTask("C0L0", "C0L0d"));
-        addTask(new IdentityTask("C1L0", "C1L0d"));
-      }
+      mChannelKeyPrefix = pChannelKeyPrefix;
+    }
 
-      addTask(FlipTask.flipX("C1L0d", "C1L0flipped"));
+    private boolean isReference()
+    {
+      return mChannelKeyPrefix.equals(mReferenceChannelKeyPrefix);
+    }
 
-      addTask(new TenengradFusionTask("C0L0d",
-                                      "C1flipped",
-                                      "fused",
-                                      ImageChannelDataType.UnsignedInt16));
+    @Override
+    public void newUsedTheta(double[] pTheta)
+    {
+      if (isReference())
+        LightSheetFastFusionEngine.this.newUsedTheta(pTheta);
+    }
 
+    @Override
+    public void newComputedTheta(double[] pTheta)
+    {
+      if (isReference())
+        LightSheetFastFusionEngine.this.newComputedTheta(pTheta);
     }
-  }
 
-  protected void setupOneLightsheetOneDetectionArm()
-  {
-    if (isDownscale())
+    @Override
+    public void notifyListenersOfNewScoreForUsedTheta(double pScore)
     {
-      addTask(new DownsampleXYbyHalfTask("C0L0", "fused"));
+      if (isReference())
+        LightSheetFastFusionEngine.this.notifyListenersOfNewScoreForUsedTheta(pScore);
     }
-    else
+
+    @Override
+    public void notifyListenersOfNewScoreForComputedTheta(double pScore)
     {
-      addTask(new IdentityTask("C0L0", "fused"));
+      if (isReference())
+        LightSheetFastFusionEngine.this.notifyListenersOfNewScoreForComputedTheta(pScore);
     }
   }
 
@@ -528,6 +689,7 @@ public class LightSheetFastFusionEngine extends FastFusionEngine
   {
     super.reset(pCloseImages);
     mFusedStackMetaData.clear();
+    mPassedChannelKeyPrefixSet.clear();
   }
 
   /**
@@ -545,11 +707,14 @@ public class LightSheetFastFusionEngine extends FastFusionEngine
    * Passes a stack to this Fast Fusion engine.
    * 
    * @param pWaitToFinish
-   *          true ->
+   *          true -> upload happens on the caller's thread, false -> upload
+   *          happens asynchronously
    * @param pStack
    *          stack
+   * @return future of the asynchronous upload, null if the upload was
+   *         synchronous or the stack was rejected
    */
-  public void passStack(boolean pWaitToFinish, StackInterface pStack)
+  public Future<?> passStack(boolean pWaitToFinish, StackInterface pStack)
   {
     try
     {
@@ -563,45 +728,154 @@ public class LightSheetFastFusionEngine extends FastFusionEngine
       if (lCameraIndex == null || lLightSheetIndex == null)
       {
         pStack.release();
-        return;
+        return null;
       }
 
+      String lChannelKeyPrefix =
+                               MetaDataView.getChannelKeyPrefix(lStackMetaData);
+      ensureChannel(lChannelKeyPrefix);
+      updateReferenceChannel(lChannelKeyPrefix,
+                             getTimePoint(lStackMetaData));
+      mPassedChannelKeyPrefixSet.add(lChannelKeyPrefix);
+
       if (mRegistrationTask != null)
       {
         float lZAspectRatio =
                             (float) (lStackMetaData.getVoxelDimZ()
                                      / lStackMetaData.getVoxelDimX());
-        mRegistrationTask.getParameters().setScaleZ(lZAspectRatio);
+        setRegistrationScaleZ(lZAspectRatio);
 
-        mRegistrationTask.addListener(this);
+        // channel registration tasks have their own listeners:
+        if (lChannelKeyPrefix.isEmpty())
+          mRegistrationTask.addListener(this);
 
         // mRegisteredFusionTask.setLowerBounds(pLowerBound);
 
       }
 
-      String lKey = MetaDataView.getCxLyString(lStackMetaData);
+      String lKey = MetaDataView.getViewKey(lStackMetaData);
 
       Runnable lRunnable = () -> {
         passImage(lKey,
                   pStack.getContiguousMemory(),
                   ImageChannelDataType.UnsignedInt16,
                   pStack.getDimensions());
+        mProfiler.recordHostToDevice(pStack.getSizeInBytes());
 
         fuseMetaData(pStack);
 
         pStack.release();
       };
 
-      if (pWaitToFinish)
-        lRunnable.run();
-      else
-        executeAsynchronously(lRunnable);
+      if (!pWaitToFinish)
+        return executeAsynchronously(lRunnable);
+
+      lRunnable.run();
     }
     catch (Throwable e)
     {
       e.printStackTrace();
     }
+    return null;
+
+  }
+
+  /**
+   * Passes a Z slab of a stack to this Fast Fusion engine. The stack is not
+   * released, this is the responsibility of the caller once all slabs have
+   * been fused.
+   * 
+   * @param pStack
+   *          stack
+   * @param pFirstPlane
+   *          index of the first plane of the slab
+   * @param pNumberOfPlanes
+   *          number of planes in the slab
+   */
+  public void passStackSlab(StackInterface pStack,
+                            long pFirstPlane,
+                            long pNumberOfPlanes)
+  {
+    StackMetaData lStackMetaData = pStack.getMetaData();
+    String lKey = MetaDataView.getViewKey(lStackMetaData);
+    if (lKey == null)
+      return;
+
+    String lChannelKeyPrefix =
+                             MetaDataView.getChannelKeyPrefix(lStackMetaData);
+    ensureChannel(lChannelKeyPrefix);
+    updateReferenceChannel(lChannelKeyPrefix,
+                           getTimePoint(lStackMetaData));
+    mPassedChannelKeyPrefixSet.add(lChannelKeyPrefix);
+
+    if (mRegistrationTask != null)
+    {
+      float lZAspectRatio =
+                          (float) (lStackMetaData.getVoxelDimZ()
+                                   / lStackMetaData.getVoxelDimX());
+      setRegistrationScaleZ(lZAspectRatio);
+      if (lChannelKeyPrefix.isEmpty())
+        mRegistrationTask.addListener(this);
+    }
+
+    // views are unsigned 16 bit stacks:
+    long lPlaneSizeInBytes = pStack.getWidth() * pStack.getHeight()
+                             * Character.BYTES;
+
+    passImage(lKey,
+              pStack.getContiguousMemory()
+                    .subRegion(pFirstPlane * lPlaneSizeInBytes,
+                               pNumberOfPlanes * lPlaneSizeInBytes),
+              ImageChannelDataType.UnsignedInt16,
+              new long[]
+              { pStack.getWidth(), pStack.getHeight(), pNumberOfPlanes });
+    mProfiler.recordHostToDevice(pNumberOfPlanes * lPlaneSizeInBytes);
+
+    fuseMetaData(pStack);
+  }
 
+  /**
+   * Returns the number of planes that need to be added on each side of a Z
+   * slab to cover the Gaussian kernels of the task graph. This is derived from
+   * the largest Gaussian sigma along Z used by the task graph. The Z
+   * displacement of the registration transform comes on top of it, see
+   * {@link ZSlabFusion}.
+   * 
+   * @return kernel Z halo in planes
+   */
+  public int getZHalo()
+  {
+    return Math.max(cMinimalZHalo, (int) Math.ceil(3 * mMaxKernelSigmaZ));
+  }
+
+  /**
+   * Returns the keys (e.g. C0L1) of all views expected by this engine
+   * 
+   * @return list of view keys
+   */
+  public List<String> getViewKeys()
+  {
+    return getViewKeys("");
+  }
+
+  /**
+   * Returns the keys (e.g. ch1-C0L1) of all views of a channel expected by
+   * this engine
+   * 
+   * @param pChannelKeyPrefix
+   *          channel key prefix
+   * @return list of view keys
+   */
+  public List<String> getViewKeys(String pChannelKeyPrefix)
+  {
+    ArrayList<String> lViewKeyList = new ArrayList<>();
+    for (int c = 0; c < mNumberOfDetectionArms; c++)
+      for (int l = 0; l < mNumberOfLightSheets; l++)
+        lViewKeyList.add(String.format("%sC%dL%d",
+                                       pChannelKeyPrefix,
+                                       c,
+                                       l));
+    return lViewKeyList;
   }
 
   private void fuseMetaData(StackInterface pStack)
@@ -613,13 +887,163 @@ public class LightSheetFastFusionEngine extends FastFusionEngine
   }
 
   /**
-   * Returns true if the fusion is done
+   * Adds a task, when profiling is enabled tasks are wrapped so that their
+   * executions can be profiled
+   * 
+   * @param pTask
+   *          task
+   */
+  @Override
+  public void addTask(TaskInterface pTask)
+  {
+    if (!mProfiler.isEnabled())
+    {
+      super.addTask(pTask);
+      return;
+    }
+
+    String lName = String.format("%02d %s",
+                                 mTaskCounter++,
+                                 pTask.getClass().getSimpleName());
+    mProfiledTasks = true;
+    super.addTask(new ProfiledTask(pTask, lName, this));
+  }
+
+  /**
+   * Returns true if the tasks of this engine are profiled, that is if
+   * profiling was enabled when the tasks were added
+   * 
+   * @return true if tasks are profiled
+   */
+  public boolean hasProfiledTasks()
+  {
+    return mProfiledTasks;
+  }
+
+  /**
+   * Adds a list of tasks, see addTask
+   * 
+   * @param pTaskList
+   *          task list
+   */
+  public void addTasks(List<TaskInterface> pTaskList)
+  {
+    for (TaskInterface lTask : pTaskList)
+      addTask(lTask);
+  }
+
+  /**
+   * Records the images currently held by this engine in the profiler
+   */
+  void recordLiveImages()
+  {
+    mProfiler.recordLiveImages(getLiveImageMap());
+  }
+
+  private HashMap<String, Long> getLiveImageMap()
+  {
+    HashMap<String, Long> lLiveImageMap = new HashMap<>();
+    for (String lKey : getAvailableImagesSlotKeys())
+    {
+      ClearCLImage lImage = super.getImage(lKey);
+      if (lImage != null)
+        lLiveImageMap.put(lKey, lImage.getSizeInBytes());
+    }
+    return lLiveImageMap;
+  }
+
+  /**
+   * Returns the size of the image memory pool share of this engine. This is an
+   * advisory budget, the shared pool does not enforce it.
+   * 
+   * @return memory pool size in bytes
+   */
+  public long getMemoryPoolSizeInBytes()
+  {
+    return mMemoryPoolSizeInBytes;
+  }
+
+  /**
+   * Returns an estimate of the free image memory: pool size minus the size of
+   * the images currently held by this engine
+   * 
+   * @return free memory estimate in bytes
+   */
+  public long getFreeMemoryEstimateInBytes()
+  {
+    long lLiveBytes = 0;
+    for (Long lSize : getLiveImageMap().values())
+      lLiveBytes += lSize;
+    return Math.max(0, mMemoryPoolSizeInBytes - lLiveBytes);
+  }
+
+  /**
+   * Returns the profiler of this engine
+   * 
+   * @return fusion profiler
+   */
+  public FusionProfiler getProfiler()
+  {
+    return mProfiler;
+  }
+
+  @Override
+  public ClearCLImage getImage(String pKey)
+  {
+    return super.getImage(resolveAlias(pKey));
+  }
+
+  @Override
+  public boolean isImageAvailable(String pKey)
+  {
+    return super.isImageAvailable(resolveAlias(pKey));
+  }
+
+  private String resolveAlias(String pKey)
+  {
+    String lKey = mAliasMap.get(pKey);
+    return lKey == null ? pKey : lKey;
+  }
+
+  /**
+   * Returns true if the fusion is done for all channels passed since the last
+   * reset
    * 
    * @return true -> fusion done
    */
   public boolean isDone()
   {
-    return isImageAvailable("fused");
+    Set<String> lChannelKeyPrefixSet = getPassedChannelKeyPrefixes();
+    if (lChannelKeyPrefixSet.isEmpty())
+      return isDone("");
+
+    for (String lChannelKeyPrefix : lChannelKeyPrefixSet)
+      if (!isDone(lChannelKeyPrefix))
+        return false;
+    return true;
+  }
+
+  /**
+   * Returns true if the fusion of a given channel is done
+   * 
+   * @param pChannelKeyPrefix
+   *          channel key prefix, empty for stacks without laser line
+   * @return true -> channel fused
+   */
+  public boolean isDone(String pChannelKeyPrefix)
+  {
+    return isImageAvailable(pChannelKeyPrefix + "fused");
+  }
+
+  /**
+   * Returns the key prefixes of the channels for which views were passed since
+   * the last reset
+   * 
+   * @return channel key prefixes
+   */
+  public Set<String> getPassedChannelKeyPrefixes()
+  {
+    return new HashSet<>(mPassedChannelKeyPrefixSet);
   }
 
   /**
@@ -677,6 +1101,7 @@ public class LightSheetFastFusionEngine extends FastFusionEngine
   @Override
   public void notifyListenersOfNewScoreForUsedTheta(double pScore)
   {
+    mLastUsedThetaScore = pScore;
     mVisualConsoleInterface.addPoint("Registration error",
                                      "error (actual)",
                                      false,
@@ -735,6 +1160,12 @@ public class LightSheetFastFusionEngine extends FastFusionEngine
   @Override
   public void newUsedTheta(double[] pTheta)
   {
+    mLastUsedTheta = pTheta.clone();
+    for (RegistrationPyramid lFollowerRegistrationPyramid : mFollowerRegistrationPyramidList)
+      lFollowerRegistrationPyramid.setInitialTheta(mLastUsedTheta);
+    for (RegistrationTask lFollowerRegistrationTask : mFollowerRegistrationTaskList)
+      if (!isFollowerPyramidLevel(lFollowerRegistrationTask))
+        lFollowerRegistrationTask.setInitialTheta(mLastUsedTheta);
     double Tx = pTheta[0];
     double Ty = pTheta[1];
     double Tz = pTheta[2];
@@ -781,6 +1212,109 @@ public class LightSheetFastFusionEngine extends FastFusionEngine
     mCounter++;
   }
 
+  /**
+   * Sets the initial registration parameters (theta) from which the next
+   * registration optimisation starts (warm start).
+   * 
+   * @param pTheta
+   *          initial theta (Tx, Ty, Tz, Rx, Ry, Rz)
+   */
+  public void setRegistrationInitialTheta(double[] pTheta)
+  {
+    if (mRegistrationPyramid != null)
+      mRegistrationPyramid.setInitialTheta(pTheta);
+    else if (mRegistrationTask != null)
+      mRegistrationTask.setInitialTheta(pTheta);
+  }
+
+  private void setRegistrationScaleZ(float pScaleZ)
+  {
+    if (mRegistrationPyramid != null)
+      mRegistrationPyramid.setScaleZ(pScaleZ);
+    else
+      mRegistrationTask.getParameters().setScaleZ(pScaleZ);
+    for (RegistrationPyramid lFollowerRegistrationPyramid : mFollowerRegistrationPyramidList)
+      lFollowerRegistrationPyramid.setScaleZ(pScaleZ);
+    for (RegistrationTask lFollowerRegistrationTask : mFollowerRegistrationTaskList)
+      if (!isFollowerPyramidLevel(lFollowerRegistrationTask))
+        lFollowerRegistrationTask.getParameters().setScaleZ(pScaleZ);
+    for (RegistrationPyramid lAdditionalRegistrationPyramid : mAdditionalRegistrationPyramidList)
+      lAdditionalRegistrationPyramid.setScaleZ(pScaleZ);
+    for (List<RegistrationPyramid> lChannelRegistrationPyramidList : mChannelAdditionalRegistrationPyramidMap.values())
+      for (RegistrationPyramid lAdditionalRegistrationPyramid : lChannelRegistrationPyramidList)
+        lAdditionalRegistrationPyramid.setScaleZ(pScaleZ);
+  }
+
+  private static List<RegistrationPyramid> getAdditionalRegistrationPyramids(FusionGraphBuilder pFusionGraphBuilder)
+  {
+    List<RegistrationPyramid> lRegistrationPyramidList =
+                                                       pFusionGraphBuilder.getRegistrationPyramids();
+    if (lRegistrationPyramidList.size() <= 1)
+      return new ArrayList<>();
+    return new ArrayList<>(lRegistrationPyramidList.subList(1,
+                                                            lRegistrationPyramidList.size()));
+  }
+
+  private void setAdditionalRegistrationPyramids(List<RegistrationPyramid> pRegistrationPyramidList)
+  {
+    mAdditionalRegistrationPyramidList.clear();
+    if (pRegistrationPyramidList != null)
+      mAdditionalRegistrationPyramidList.addAll(pRegistrationPyramidList);
+  }
+
+  private boolean isFollowerPyramidLevel(RegistrationTask pRegistrationTask)
+  {
+    for (RegistrationPyramid lFollowerRegistrationPyramid : mFollowerRegistrationPyramidList)
+      if (lFollowerRegistrationPyramid.getFinestRegistrationTask() == pRegistrationTask)
+        return true;
+    return false;
+  }
+
+  /**
+   * Returns the last registration parameters (theta) actually used for fusion,
+   * or null if no registration happened yet
+   * 
+   * @return last used theta
+   */
+  public double[] getLastUsedTheta()
+  {
+    double[] lLastUsedTheta = mLastUsedTheta;
+    return lLastUsedTheta == null ? null : lLastUsedTheta.clone();
+  }
+
+  /**
+   * Returns the registration error for the last used theta
+   * 
+   * @return registration error
+   */
+  public double getLastUsedThetaScore()
+  {
+    return mLastUsedThetaScore;
+  }
+
+  /**
+   * Returns true if the registration for the current time point is only a
+   * consistency check (single evaluation at a cached theta)
+   * 
+   * @return true if check only
+   */
+  public boolean isRegistrationCheckOnly()
+  {
+    return mRegistrationCheckOnly;
+  }
+
+  /**
+   * Sets whether the registration for the current time point is only a
+   * consistency check
+   * 
+   * @param pRegistrationCheckOnly
+   *          true if check only
+   */
+  public void setRegistrationCheckOnly(boolean pRegistrationCheckOnly)
+  {
+    mRegistrationCheckOnly = pRegistrationCheckOnly;
+  }
+
   /**
    * Returns registration task
    * 
@@ -791,4 +1325,29 @@ public class LightSheetFastFusionEngine extends FastFusionEngine
     return mRegistrationTask;
   }
 
+  /**
+   * Returns the registrations of the camera pairs other than the first one
+   * (camera 2 onto camera 0, camera 3 onto camera 0, etc.). They are given the
+   * same search parameters as the first pair but are optimised on their own:
+   * warm start, consistency checks and theta reporting only concern the first
+   * pair.
+   * 
+   * @return registration pyramids (single level ones included)
+   */
+  public List<RegistrationPyramid> getAdditionalRegistrationPyramids()
+  {
+    return mAdditionalRegistrationPyramidList;
+  }
+
+  /**
+   * Returns the registration pyramid, or null if registration is single
+   * resolution
+   * 
+   * @return registration pyramid or null
+   */
+  public RegistrationPyramid getRegistrationPyramid()
+  {
+    return mRegistrationPyramid;
+  }
+
 }
@@ -1,16 +1,36 @@
 package clearcontrol.microscope.lightsheet.processor;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import clearcl.ClearCLContext;
 import clearcl.ClearCLImage;
 import clearcl.util.ElapsedTime;
+import clearcontrol.core.configuration.MachineConfiguration;
 import clearcontrol.core.log.LoggingFeature;
 import clearcontrol.core.variable.Variable;
 import clearcontrol.core.variable.bounded.BoundedVariable;
 import clearcontrol.gui.jfx.custom.visualconsole.VisualConsoleInterface;
+import clearcontrol.gui.jfx.custom.visualconsole.VisualConsoleInterface.ChartType;
 import clearcontrol.microscope.lightsheet.LightSheetMicroscope;
+import clearcontrol.microscope.lightsheet.processor.cpu.CPUFusionImage;
+import clearcontrol.microscope.lightsheet.processor.cpu.LightSheetCPUFusionEngine;
+import clearcontrol.microscope.lightsheet.stacks.MetaDataEmptyPlanes;
+import clearcontrol.microscope.lightsheet.stacks.MetaDataSampleBounds;
+import clearcontrol.microscope.lightsheet.stacks.MetaDataStagePosition;
 import clearcontrol.microscope.lightsheet.stacks.MetaDataView;
 import clearcontrol.microscope.lightsheet.stacks.MetaDataViewFlags;
 import clearcontrol.microscope.stacks.metadata.MetaDataAcquisitionType;
@@ -24,7 +44,10 @@ import clearcontrol.stack.processor.StackProcessorInterface;
 import clearcontrol.stack.processor.clearcl.ClearCLStackProcessorBase;
 import coremem.recycling.RecyclerInterface;
 
-import org.apache.commons.lang3.tuple.Triple;
+import org.apache.commons.lang3.tuple.Pair;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 
 /**
  * Lightsheet fusion processor
@@ -40,11 +63,21 @@ public class LightSheetFastFusionProcessor extends
 {
   private final LightSheetMicroscope mLightSheetMicroscope;
   private LightSheetFastFusionEngine mEngine;
+  private LightSheetCPUFusionEngine mCPUEngine;
+  // same bookkeeping as below, for the CPU engine:
+  private final HashSet<String> mCPUEmittedKeys = new HashSet<>();
+  private Long mCPUTimePoint;
+  private Set<String> mCPUExpectedChannelKeyPrefixSet =
+                                                      Collections.emptySet();
 
-  ConcurrentLinkedQueue<Triple<Integer, StackMetaData, ClearCLImage>> mFusedStackQueue =
-                                                                                       new ConcurrentLinkedQueue<>();
+  // keys of the fused images already emitted for the current time point:
+  private final HashSet<String> mEmittedKeys = new HashSet<>();
+  private Long mCurrentTimePoint;
 
-  private volatile StackInterface mFusedStack;
+  // channels received for the last complete time point, a time point is only
+  // complete once all of them have been fused:
+  private volatile Set<String> mExpectedChannelKeyPrefixSet =
+                                                            Collections.emptySet();
 
   private final Variable<Integer> mNumberOfRestartsVariable =
                                                             new Variable<Integer>("NumberOfRestarts",
@@ -73,6 +106,161 @@ public class LightSheetFastFusionProcessor extends
                                                                   new Variable<Integer>("TransformLockThreshold",
                                                                                         20);
 
+  private final Variable<Boolean> mRegistrationWarmStartVariable =
+                                                                new Variable<Boolean>("RegistrationWarmStart",
+                                                                                      true);
+
+  private final Variable<Boolean> mSkipRegistrationWhenLockedVariable =
+                                                                     new Variable<Boolean>("SkipRegistrationWhenLocked",
+                                                                                           false);
+
+  private final BoundedVariable<Double> mRegistrationErrorBudgetVariable =
+                                                                         new BoundedVariable<Double>("RegistrationErrorBudget",
+                                                                                                     0.1);
+
+  private final Variable<Long> mNumberOfSkippedRegistrationsVariable =
+                                                                     new Variable<Long>("NumberOfSkippedRegistrations",
+                                                                                        0L);
+
+  private final RegistrationThetaCache mRegistrationThetaCache =
+                                                               new RegistrationThetaCache();
+
+  private final Variable<Integer> mNumberOfEngineSlotsVariable =
+                                                             new Variable<Integer>("NumberOfEngineSlots",
+                                                                                   1);
+
+  private final Variable<Integer> mUploadStageOccupancyVariable =
+                                                               new Variable<Integer>("UploadStageOccupancy",
+                                                                                     0);
+
+  private final Variable<Integer> mFusionStageOccupancyVariable =
+                                                               new Variable<Integer>("FusionStageOccupancy",
+                                                                                     0);
+
+  private final Variable<Integer> mDownloadStageOccupancyVariable =
+                                                                 new Variable<Integer>("DownloadStageOccupancy",
+                                                                                       0);
+
+  private final Variable<Boolean> mStreamingFusionVariable =
+                                                          new Variable<Boolean>("StreamingFusion",
+                                                                                MachineConfiguration.get()
+                                                                                                    .getBooleanProperty("fastfuse.streaming",
+                                                                                                                        false));
+
+  private final Variable<Integer> mSlabDepthVariable =
+                                                     new Variable<Integer>("SlabDepth",
+                                                                           MachineConfiguration.get()
+                                                                                               .getIntegerProperty("fastfuse.slabdepth",
+                                                                                                                   128));
+
+  private final Variable<Integer> mDownloadChunkDepthVariable =
+                                                             new Variable<Integer>("DownloadChunkDepth",
+                                                                                   MachineConfiguration.get()
+                                                                                                       .getIntegerProperty("fastfuse.downloadchunkdepth",
+                                                                                                                           16));
+
+  private final Variable<Boolean> mProfilingVariable =
+                                                     new Variable<Boolean>("Profiling",
+                                                                           MachineConfiguration.get()
+                                                                                               .getBooleanProperty("fastfuse.profiling",
+                                                                                                                   false));
+
+  private final Variable<Double> mFusionTimeVariable =
+                                                     new Variable<Double>("FusionTime",
+                                                                          0.0);
+
+  private final Variable<String> mSlowestTaskVariable =
+                                                      new Variable<String>("SlowestTask",
+                                                                           "");
+
+  private final Variable<Long> mPeakImageMemoryVariable =
+                                                        new Variable<Long>("PeakImageMemory",
+                                                                           0L);
+
+  private final Variable<Long> mImageAllocationsVariable =
+                                                         new Variable<Long>("ImageAllocations",
+                                                                            0L);
+
+  private final Variable<Long> mImageReleasesVariable =
+                                                      new Variable<Long>("ImageReleases",
+                                                                         0L);
+
+  private final Variable<Long> mHostToDeviceBytesVariable =
+                                                          new Variable<Long>("HostToDeviceBytes",
+                                                                             0L);
+
+  private final Variable<Long> mDeviceToHostBytesVariable =
+                                                          new Variable<Long>("DeviceToHostBytes",
+                                                                             0L);
+
+  private final ArrayDeque<FusionTimePointProfile> mProfileHistory =
+                                                                   new ArrayDeque<>();
+  private static final int cMaxProfileHistoryLength = 1000;
+  private volatile boolean mProfileChartsConfigured;
+  private volatile boolean mUnprofiledTasksWarned;
+  private final Object mProfileDumpLock = new Object();
+
+  private final Variable<Boolean> mAsynchronousUploadVariable =
+                                                             new Variable<Boolean>("AsynchronousUpload",
+                                                                                   MachineConfiguration.get()
+                                                                                                       .getBooleanProperty("fastfuse.asyncupload",
+                                                                                                                           false));
+
+  private final BoundedVariable<Double> mInFlightMemoryRatioVariable =
+                                                                     new BoundedVariable<Double>("InFlightMemoryRatio",
+                                                                                                 MachineConfiguration.get()
+                                                                                                                     .getDoubleProperty("fastfuse.inflightratio",
+                                                                                                                                        0.5));
+
+  private final Variable<Integer> mNumberOfInFlightUploadsVariable =
+                                                                 new Variable<Integer>("NumberOfInFlightUploads",
+                                                                                       0);
+
+  private final Variable<Long> mInFlightBytesVariable =
+                                                      new Variable<Long>("InFlightBytes",
+                                                                         0L);
+
+  private final Variable<Long> mNumberOfUploadBackpressureWaitsVariable =
+                                                                        new Variable<Long>("NumberOfUploadBackpressureWaits",
+                                                                                           0L);
+
+  private final ArrayDeque<Pair<Future<?>, Long>> mInFlightUploadQueue =
+                                                                       new ArrayDeque<>();
+  private final HashSet<String> mSubmittedViewKeySet = new HashSet<>();
+
+  private final FusedStackHandoff mFusedStackHandoff =
+                                                     new FusedStackHandoff();
+
+  private final HashMap<String, StackInterface> mStreamingViewMap =
+                                                                 new HashMap<>();
+
+  private final ArrayList<FusionEngineSlot> mEngineSlotList =
+                                                            new ArrayList<>();
+
+  private final ConcurrentLinkedQueue<StackInterface> mReadyFusedStackQueue =
+                                                                          new ConcurrentLinkedQueue<>();
+
+  private volatile Variable<StackInterface> mAdditionalOutputVariable;
+  // bounded by getAdditionalOutputCapacity(), producers wait on the queue's
+  // monitor until the drain thread makes room:
+  private final LinkedBlockingQueue<StackInterface> mAdditionalOutputQueue =
+                                                                           new LinkedBlockingQueue<>();
+  private Thread mAdditionalOutputDrainThread;
+
+  // number of time points of fused stacks the additional output can hold:
+  private static final int cAdditionalOutputTimePoints = 2;
+  private static final long cAdditionalOutputWaitInSeconds = 10;
+
+  private static final long cSlotEvictionTimeOutInSeconds = 60;
+
+  // estimated device memory needed to fuse one time point, in multiples of the
+  // size of all its views (views, intermediate and fused images):
+  private static final double cSlotWorkingSetFactor = 3;
+
+  // registration and theta cache updates happen on slot threads:
+  private final Object mRegistrationConfigurationLock = new Object();
+  private volatile boolean mStrandedOutputWarned;
+
   /**
    * Instantiates a lightsheet stack processor
    *
@@ -95,14 +283,6 @@ public class LightSheetFastFusionProcessor extends
   public StackInterface process(StackInterface pStack,
                                 RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
   {
-
-    if (mEngine == null)
-      mEngine =
-              new LightSheetFastFusionEngine(getContext(),
-                                             (VisualConsoleInterface) this,
-                                             mLightSheetMicroscope.getNumberOfLightSheets(),
-                                             mLightSheetMicroscope.getNumberOfDetectionArms());
-
     info("Received stack for processing: %s", pStack);
 
     if (isPassThrough(pStack))
@@ -112,63 +292,68 @@ public class LightSheetFastFusionProcessor extends
       return pStack;
     }
 
-    if (mEngine.isDownscale())
-    {
-      double lVoxelDimX = pStack.getMetaData().getVoxelDimX();
-      double lVoxelDimY = pStack.getMetaData().getVoxelDimY();
-
-      pStack.getMetaData().setVoxelDimX(2 * lVoxelDimX);
-      pStack.getMetaData().setVoxelDimY(2 * lVoxelDimY);
-    }
+    if (getContext() == null)
+      return processOnCPU(pStack, pStackRecycler);
 
-    mEngine.passStack(true, pStack);
+    if (getStreamingFusionVariable().get()
+        && !pStack.getMetaData()
+                  .hasEntry(MetaDataFusion.RequestPerCameraFusion))
+      return processStreaming(pStack, pStackRecycler);
 
-    if (mEngine.getRegistrationTask() != null)
+    // pipelined fusion returns fused stacks while the slots keep working, it
+    // needs the additional output for the stacks it cannot return:
+    if (getNumberOfEngineSlotsVariable().get() > 1)
     {
-      try
+      if (mAdditionalOutputVariable != null)
+        return processPipelined(pStack, pStackRecycler);
+      if (!mStrandedOutputWarned)
       {
+        warning("No additional output variable set, fusing with a single engine instead of %d slots",
+                getNumberOfEngineSlotsVariable().get());
+        mStrandedOutputWarned = true;
+      }
+    }
 
-        if (getTransformLockSwitchVariable().get().booleanValue()
-            && pStack.getMetaData()
-                     .getValue(MetaDataOrdinals.TimePoint) > getTransformLockThresholdVariable().get()
-                                                                                                .intValue())
-        {
-          getSmoothingConstantVariable().set(0.02);
-          getTransformLockSwitchVariable().set(false);
-        }
+    if (mEngine == null)
+      mEngine = newEngine();
 
-        mEngine.getRegistrationTask()
-               .getParameters()
-               .setNumberOfRestarts(getNumberOfRestartsVariable().get()
-                                                                 .intValue());
+    if (getAsynchronousUploadVariable().get()
+        && !pStack.getMetaData()
+                  .hasEntry(MetaDataFusion.RequestPerCameraFusion))
+      return processAsynchronously(pStack, pStackRecycler);
 
-        mEngine.getRegistrationTask()
-               .getParameters()
-               .setTranslationSearchRadius(getTranslationSearchRadiusVariable().get()
-                                                                               .doubleValue());
+    long lTimePoint = getTimePoint(pStack);
+    boolean lPerCameraFusion =
+                             pStack.getMetaData()
+                                   .hasEntry(MetaDataFusion.RequestPerCameraFusion);
 
-        mEngine.getRegistrationTask()
-               .getParameters()
-               .setRotationSearchRadius(getRotationSearchRadiusVariable().get()
-                                                                         .doubleValue());
+    checkTimePoint(lTimePoint);
+    adjustVoxelDimensions(mEngine.isDownscale(), pStack);
 
-        mEngine.getRegistrationTask()
-               .getParameters()
-               .setMaxNumberOfEvaluations((int) getMaxNumberOfEvaluationsVariable().get()
-                                                                                   .intValue());
+    // the destination of the fused image is requested while views are being
+    // uploaded and fused:
+    mFusedStackHandoff.preRequest(pStackRecycler,
+                                  getFusedDimensions(mEngine.isDownscale(),
+                                                     pStack));
 
-        mEngine.getRegistrationTask()
-               .setSmoothingConstant(getSmoothingConstantVariable().get()
-                                                                   .doubleValue());
+    mEngine.passStack(true, pStack);
 
-      }
-      catch (Throwable e)
-      {
-        severe("Problem while setting fast fusion parameters: %s",
-               e.toString());
-      }
-    }
+    configureRegistration(mEngine, pStack);
+    configureProfiling(mEngine);
+
+    return fuse(lPerCameraFusion, lTimePoint, pStackRecycler);
+  }
 
+  /**
+   * Executes all fusion tasks that can be executed with the views passed so far
+   * and returns a fused stack if one is ready. Views of different laser lines
+   * are fused separately, each channel is emitted once, as soon as it is
+   * fused. The engine is reset once all channels of the time point are fused.
+   */
+  private StackInterface fuse(boolean pPerCameraFusion,
+                              long pTimePoint,
+                              RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
+  {
     // if (mEngine.isReady())
     {
       ElapsedTime.measureForceOutput("FastFuseTaskExecution", () -> {
@@ -177,166 +362,1403 @@ public class LightSheetFastFusionProcessor extends
       });
     }
 
-    if (pStack.getMetaData()
-              .hasEntry(MetaDataFusion.RequestPerCameraFusion))
+    emitReadyFusedStacks(mEngine,
+                         pPerCameraFusion,
+                         mEmittedKeys,
+                         pStackRecycler);
+
+    if (isTimePointDone(mEngine, pPerCameraFusion, mEmittedKeys))
     {
-      int lNumberOfDetectionArms =
-                                 mLightSheetMicroscope.getNumberOfDetectionArms();
-      for (int c = 0; c < lNumberOfDetectionArms; c++)
-      {
-        String lKey = "C" + c;
-        ClearCLImage lImage = mEngine.getImage(lKey);
-        if (lImage != null)
-          mFusedStackQueue.add(Triple.of(c,
-                                         mEngine.getFusedMetaData()
-                                                .clone(),
-                                         lImage));
-      }
+      finishTimePoint(mEngine, pTimePoint);
+      mEngine.reset(false);
+      mEmittedKeys.clear();
+      mCurrentTimePoint = null;
+    }
 
-      Triple<Integer, StackMetaData, ClearCLImage> lImageFromQueue =
-                                                                   mFusedStackQueue.poll();
+    return pollReadyFusedStack();
+  }
 
-      if (lImageFromQueue != null)
-      {
-        StackInterface lStack =
-                              copyFusedStack(pStackRecycler,
-                                             lImageFromQueue.getRight(),
-                                             lImageFromQueue.getMiddle(),
-                                             "C" + lImageFromQueue.getLeft());
-        lStack.getMetaData().addEntry(MetaDataView.Camera,
-                                      lImageFromQueue.getLeft());
-        return lStack;
-      }
+  /**
+   * Called by the single engine paths before a stack is passed: if the stack
+   * belongs to a new time point while channels of the previous time point are
+   * still pending, the previous time point is abandoned.
+   */
+  private void checkTimePoint(long pTimePoint)
+  {
+    if (mCurrentTimePoint != null
+        && mCurrentTimePoint.longValue() != pTimePoint
+        && !mEngine.getPassedChannelKeyPrefixes().isEmpty())
+    {
+      while (!mInFlightUploadQueue.isEmpty())
+        waitForOldestUpload();
+      updateInFlightVariables();
+      mSubmittedViewKeySet.clear();
 
+      abandonTimePoint(mEngine, mCurrentTimePoint);
+      mEmittedKeys.clear();
     }
-    else if (mEngine.isDone())
+    mCurrentTimePoint = pTimePoint;
+  }
+
+  /**
+   * Asynchronous processing: views are uploaded on the engine's executor so
+   * that the upload of one view overlaps the acquisition of the next. The
+   * number of bytes being uploaded is bounded by a window sized from the free
+   * image memory, producers block when the window is full. Fusion happens once
+   * all views of the time point have been uploaded.
+   */
+  private StackInterface processAsynchronously(StackInterface pStack,
+                                               RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
+  {
+    String lKey = MetaDataView.getViewKey(pStack.getMetaData());
+    String lChannelKeyPrefix =
+                             MetaDataView.getChannelKeyPrefix(pStack.getMetaData());
+    long lTimePoint = getTimePoint(pStack);
+    long lStackSizeInBytes = pStack.getSizeInBytes();
+
+    checkTimePoint(lTimePoint);
+    adjustVoxelDimensions(mEngine.isDownscale(), pStack);
+    mFusedStackHandoff.preRequest(pStackRecycler,
+                                  getFusedDimensions(mEngine.isDownscale(),
+                                                     pStack));
+
+    // the stack is released by the upload, registration is configured first,
+    // on the graph of the stack's channel:
+    mEngine.ensureChannel(lChannelKeyPrefix);
+    configureRegistration(mEngine, pStack);
+    configureProfiling(mEngine);
+
+    acquireUploadWindow(lStackSizeInBytes);
+    Future<?> lUpload = mEngine.passStack(false, pStack);
+    if (lUpload != null)
+      mInFlightUploadQueue.add(Pair.of(lUpload, lStackSizeInBytes));
+    updateInFlightVariables();
+
+    if (lKey != null)
+      mSubmittedViewKeySet.add(lKey);
+    List<String> lChannelViewKeys = mEngine.getViewKeys(lChannelKeyPrefix);
+    if (!mSubmittedViewKeySet.containsAll(lChannelViewKeys))
+      return null;
+
+    mSubmittedViewKeySet.removeAll(lChannelViewKeys);
+    while (!mInFlightUploadQueue.isEmpty())
+      waitForOldestUpload();
+    updateInFlightVariables();
+
+    return fuse(false, lTimePoint, pStackRecycler);
+  }
+
+  private void acquireUploadWindow(long pStackSizeInBytes)
+  {
+    reapFinishedUploads();
+
+    long lWindowInBytes =
+                        (long) (mEngine.getFreeMemoryEstimateInBytes()
+                                * getInFlightMemoryRatioVariable().get());
+
+    // at least one upload is always allowed in flight:
+    boolean lWaited = false;
+    while (!mInFlightUploadQueue.isEmpty()
+           && getInFlightBytes() + pStackSizeInBytes > lWindowInBytes)
     {
-      ClearCLImage lFusedImage = mEngine.getImage("fused");
+      waitForOldestUpload();
+      lWaited = true;
+    }
 
-      return copyFusedStack(pStackRecycler,
-                            lFusedImage,
-                            mEngine.getFusedMetaData(),
-                            null);
+    if (lWaited)
+      getNumberOfUploadBackpressureWaitsVariable().set(getNumberOfUploadBackpressureWaitsVariable().get()
+                                                       + 1);
+  }
+
+  private void reapFinishedUploads()
+  {
+    while (!mInFlightUploadQueue.isEmpty()
+           && mInFlightUploadQueue.peekFirst().getLeft().isDone())
+      waitForOldestUpload();
+  }
+
+  private void waitForOldestUpload()
+  {
+    Pair<Future<?>, Long> lUpload = mInFlightUploadQueue.pollFirst();
+    try
+    {
+      lUpload.getLeft().get();
+    }
+    catch (Throwable e)
+    {
+      severe("Problem during asynchronous stack upload: %s",
+             e.toString());
+      e.printStackTrace();
     }
+  }
 
-    return null;
+  private long getInFlightBytes()
+  {
+    long lInFlightBytes = 0;
+    for (Pair<Future<?>, Long> lUpload : mInFlightUploadQueue)
+      lInFlightBytes += lUpload.getRight();
+    return lInFlightBytes;
   }
 
-  protected StackInterface copyFusedStack(RecyclerInterface<StackInterface, StackRequest> pStackRecycler,
-                                          ClearCLImage lFusedImage,
-                                          StackMetaData pStackMetaData,
-                                          String pChannel)
+  private void updateInFlightVariables()
   {
-    mFusedStack =
-                pStackRecycler.getOrWait(1000,
-                                         TimeUnit.SECONDS,
-                                         StackRequest.build(lFusedImage.getDimensions()));
+    getNumberOfInFlightUploadsVariable().set(mInFlightUploadQueue.size());
+    getInFlightBytesVariable().set(getInFlightBytes());
+  }
 
-    mFusedStack.setMetaData(pStackMetaData);
-    mFusedStack.getMetaData().addEntry(MetaDataFusion.Fused, true);
-    if (pChannel != null)
-      mFusedStack.getMetaData().addEntry(MetaDataChannel.Channel,
-                                         pChannel);
-    mFusedStack.getMetaData().removeAllEntries(MetaDataView.class);
-    mFusedStack.getMetaData()
-               .removeAllEntries(MetaDataViewFlags.class);
-    mFusedStack.getMetaData().removeEntry(MetaDataOrdinals.Index);
+  /**
+   * Streaming processing: views of a time point are kept in host memory until
+   * all of them have arrived, they are then fused Z slab by Z slab so that
+   * device memory usage is bounded by the slab size.
+   */
+  private StackInterface processStreaming(StackInterface pStack,
+                                          RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
+  {
+    String lKey = MetaDataView.getViewKey(pStack.getMetaData());
+    if (lKey == null)
+    {
+      pStack.release();
+      return null;
+    }
+    String lChannelKeyPrefix =
+                             MetaDataView.getChannelKeyPrefix(pStack.getMetaData());
 
-    info("Resulting fused stack metadata:"
-         + mFusedStack.getMetaData());
+    if (mEngine == null)
+      mEngine = newEngine();
+
+    adjustVoxelDimensions(mEngine.isDownscale(), pStack);
 
-    lFusedImage.writeTo(mFusedStack.getContiguousMemory(), true);
+    StackInterface lPreviousStack = mStreamingViewMap.put(lKey, pStack);
+    if (lPreviousStack != null)
+    {
+      warning("View %s received twice before fusion, dropping previous one",
+              lKey);
+      lPreviousStack.release();
+    }
 
-    mEngine.reset(false);
+    // channels are fused separately, as soon as all their views arrived:
+    List<String> lChannelViewKeys = mEngine.getViewKeys(lChannelKeyPrefix);
+    if (!mStreamingViewMap.keySet().containsAll(lChannelViewKeys))
+      return null;
 
-    return mFusedStack;
+    HashMap<String, StackInterface> lChannelViewMap = new HashMap<>();
+    for (String lChannelViewKey : lChannelViewKeys)
+      lChannelViewMap.put(lChannelViewKey,
+                          mStreamingViewMap.remove(lChannelViewKey));
+
+    try
+    {
+      configureProfiling(mEngine);
+      ZSlabFusion lZSlabFusion = new ZSlabFusion(mEngine);
+      StackInterface lFusedStack =
+                                 lZSlabFusion.fuse(lChannelViewMap,
+                                                   lChannelKeyPrefix,
+                                                   getSlabDepthVariable().get(),
+                                                   (s) -> configureRegistration(mEngine,
+                                                                                s),
+                                                   pStackRecycler);
+      if (lFusedStack != null)
+      {
+        setFusedMetaData(lFusedStack,
+                         lFusedStack.getMetaData(),
+                         getChannelName(lChannelKeyPrefix));
+        publishProfile(mEngine, getTimePoint(lFusedStack));
+      }
+      return lFusedStack;
+    }
+    catch (Throwable e)
+    {
+      severe("Problem during Z slab fusion: %s", e.toString());
+      e.printStackTrace();
+      return null;
+    }
+    finally
+    {
+      for (StackInterface lViewStack : lChannelViewMap.values())
+        lViewStack.release();
+      mEngine.reset(false);
+    }
   }
 
-  private boolean isPassThrough(StackInterface pStack)
+  /**
+   * CPU processing: used when no OpenCL context is available, stacks are fused
+   * with the pure Java CPU fusion engine. Like the OpenCL paths, each laser
+   * line is fused separately and emitted as its own channel. This fallback
+   * does no registration, registration settings are ignored.
+   */
+  private StackInterface processOnCPU(StackInterface pStack,
+                                      RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
   {
-    AcquisitionType lAcquisitionType =
-                                     pStack.getMetaData()
-                                           .getValue(MetaDataAcquisitionType.AcquisitionType);
+    if (mCPUEngine == null)
+    {
+      info("No OpenCL context available, using CPU fusion engine");
+      mCPUEngine =
+                 new LightSheetCPUFusionEngine(mLightSheetMicroscope.getNumberOfLightSheets(),
+                                               mLightSheetMicroscope.getNumberOfDetectionArms());
+    }
 
-    if (lAcquisitionType != AcquisitionType.TimeLapse)
-      return true;
+    boolean lPerCameraFusion =
+                             pStack.getMetaData()
+                                   .hasEntry(MetaDataFusion.RequestPerCameraFusion);
+    long lTimePoint = getTimePoint(pStack);
 
-    if (pStack.getMetaData()
-              .hasEntry(MetaDataFusion.RequestFullFusion))
-      return false;
+    try
+    {
+      checkCPUTimePoint(lTimePoint);
+      adjustVoxelDimensions(mCPUEngine.isDownscale(), pStack);
+      mCPUEngine.passStack(pStack);
 
-    if (pStack.getMetaData()
-              .hasEntry(MetaDataFusion.RequestPerCameraFusion))
+      ElapsedTime.measureForceOutput("CPUFusionTaskExecution", () -> {
+        int lNumberOfTasksExecuted = mCPUEngine.executeAllTasks();
+        info("executed %d CPU fusion tasks", lNumberOfTasksExecuted);
+      });
+
+      Set<String> lChannelKeyPrefixSet =
+                                       mCPUEngine.getPassedChannelKeyPrefixes();
+      boolean lTimePointDone =
+                             !lChannelKeyPrefixSet.isEmpty()
+                               && lChannelKeyPrefixSet.containsAll(mCPUExpectedChannelKeyPrefixSet);
+      for (String lChannelKeyPrefix : lChannelKeyPrefixSet)
+      {
+        if (!lPerCameraFusion)
+        {
+          lTimePointDone &= emitCPUFusedStack(lChannelKeyPrefix + "fused",
+                                              getChannelName(lChannelKeyPrefix),
+                                              null,
+                                              pStackRecycler);
+          continue;
+        }
+
+        for (int c = 0; c < mLightSheetMicroscope.getNumberOfDetectionArms(); c++)
+        {
+          String lCameraKey = lChannelKeyPrefix + "C" + c;
+          lTimePointDone &= emitCPUFusedStack(lCameraKey,
+                                              lCameraKey,
+                                              c,
+                                              pStackRecycler);
+        }
+      }
+
+      if (lTimePointDone)
+      {
+        mCPUExpectedChannelKeyPrefixSet = lChannelKeyPrefixSet;
+        mCPUEngine.reset();
+        mCPUEmittedKeys.clear();
+        mCPUTimePoint = null;
+      }
+    }
+    catch (Throwable e)
+    {
+      severe("Problem while fusing on CPU: %s", e.toString());
+      e.printStackTrace();
+      mCPUEngine.reset();
+      mCPUEmittedKeys.clear();
+      mCPUTimePoint = null;
+    }
+
+    return pollReadyFusedStack();
+  }
+
+  /**
+   * Emits the CPU fused image with given key if it is ready and not emitted
+   * yet, returns true once it has been emitted
+   */
+  private boolean emitCPUFusedStack(String pImageKey,
+                                    String pChannel,
+                                    Integer pCameraIndex,
+                                    RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
+  {
+    if (mCPUEmittedKeys.contains(pImageKey))
+      return true;
+
+    CPUFusionImage lImage = mCPUEngine.getImage(pImageKey);
+    if (lImage == null)
       return false;
 
+    StackInterface lStack = copyFusedStack(pStackRecycler,
+                                           lImage,
+                                           mCPUEngine.getFusedMetaData(),
+                                           pChannel);
+    if (pCameraIndex != null)
+      lStack.getMetaData().addEntry(MetaDataView.Camera, pCameraIndex);
+    mReadyFusedStackQueue.add(lStack);
+    mCPUEmittedKeys.add(pImageKey);
     return true;
   }
 
   /**
-   * Returns the variable holding the translation search radius.
-   *
-   * @return translation search radius variable.
+   * Same as checkTimePoint for the CPU engine: channels of the previous time
+   * point that are still pending when a new time point arrives are abandoned.
    */
-  public BoundedVariable<Double> getTranslationSearchRadiusVariable()
+  private void checkCPUTimePoint(long pTimePoint)
   {
-    return mTranslationSearchRadiusVariable;
+    Set<String> lChannelKeyPrefixSet =
+                                     mCPUEngine.getPassedChannelKeyPrefixes();
+    if (mCPUTimePoint != null && mCPUTimePoint.longValue() != pTimePoint
+        && !lChannelKeyPrefixSet.isEmpty())
+    {
+      warning("Abandoning incomplete CPU time point %d, channels received: %s, expected: %s",
+              mCPUTimePoint,
+              lChannelKeyPrefixSet,
+              mCPUExpectedChannelKeyPrefixSet);
+      mCPUExpectedChannelKeyPrefixSet = lChannelKeyPrefixSet;
+      mCPUEngine.reset();
+      mCPUEmittedKeys.clear();
+    }
+    mCPUTimePoint = pTimePoint;
   }
 
   /**
-   * Returns the variable holding the rotation search radius
-   *
-   * @return rotation search radius
+   * Pipelined processing: stacks are routed to engine slots according to their
+   * time point, upload and fusion happen on the slot's thread so that the next
+   * time point can be uploaded while the previous one is still being fused.
    */
-  public BoundedVariable<Double> getRotationSearchRadiusVariable()
+  private StackInterface processPipelined(StackInterface pStack,
+                                          RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
   {
-    return mRotationSearchRadiusVariable;
+    long lTimePoint = getTimePoint(pStack);
+
+    FusionEngineSlot lSlot = acquireEngineSlot(lTimePoint,
+                                               pStack.getSizeInBytes());
+
+    if (lSlot == null)
+    {
+      severe("Could not acquire a fusion engine slot for time point %d, dropping stack",
+             lTimePoint);
+      pStack.release();
+      return pollReadyFusedStack();
+    }
+
+    boolean lPerCameraFusion =
+                             pStack.getMetaData()
+                                   .hasEntry(MetaDataFusion.RequestPerCameraFusion);
+
+    lSlot.submit(() -> {
+      try
+      {
+        LightSheetFastFusionEngine lEngine = lSlot.getEngine();
+
+        setSlotStage(lSlot, FusionEngineSlot.Stage.Upload);
+        adjustVoxelDimensions(lEngine.isDownscale(), pStack);
+        lEngine.passStack(true, pStack);
+        configureRegistration(lEngine, pStack);
+        configureProfiling(lEngine);
+
+        setSlotStage(lSlot, FusionEngineSlot.Stage.Fusion);
+        int lNumberOfTasksExecuted = lEngine.executeAllTasks();
+        info("slot %d executed %d fusion tasks for time point %d",
+             lSlot.getSlotIndex(),
+             lNumberOfTasksExecuted,
+             lTimePoint);
+
+        setSlotStage(lSlot, FusionEngineSlot.Stage.Download);
+        emitReadyFusedStacks(lEngine,
+                             lPerCameraFusion,
+                             lSlot.getEmittedKeys(),
+                             pStackRecycler);
+        drainReadyFusedStacks(true);
+
+        if (isTimePointDone(lEngine,
+                            lPerCameraFusion,
+                            lSlot.getEmittedKeys()))
+        {
+          finishTimePoint(lEngine, lTimePoint);
+          lEngine.reset(false);
+          releaseEngineSlot(lSlot);
+        }
+        else
+          setSlotStage(lSlot, FusionEngineSlot.Stage.Upload);
+      }
+      catch (Throwable e)
+      {
+        severe("Problem while fusing time point %d in slot %d: %s",
+               lTimePoint,
+               lSlot.getSlotIndex(),
+               e.toString());
+        e.printStackTrace();
+        lSlot.getEngine().reset(false);
+        releaseEngineSlot(lSlot);
+      }
+    });
+
+    // fused stacks of slots still working are emitted through the additional
+    // output as soon as they are ready:
+    return pollReadyFusedStack();
   }
 
   /**
-   * Returns the variable holding the number of optimization restarts
-   *
-   * @return number of optimization restarts variable
+   * Emits, for each channel passed to the engine, the fused stack (or the
+   * per-camera fused stacks) that are ready and not emitted yet
    */
-  public Variable<Integer> getNumberOfRestartsVariable()
+  private void emitReadyFusedStacks(LightSheetFastFusionEngine pEngine,
+                                    boolean pPerCameraFusion,
+                                    Set<String> pEmittedKeys,
+                                    RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
   {
-    return mNumberOfRestartsVariable;
+    for (String lChannelKeyPrefix : pEngine.getPassedChannelKeyPrefixes())
+    {
+      if (!pPerCameraFusion)
+      {
+        emitFusedStack(pEngine,
+                       lChannelKeyPrefix + "fused",
+                       getChannelName(lChannelKeyPrefix),
+                       null,
+                       pEmittedKeys,
+                       pStackRecycler);
+        continue;
+      }
+
+      for (int c = 0; c < mLightSheetMicroscope.getNumberOfDetectionArms(); c++)
+      {
+        String lCameraKey = lChannelKeyPrefix + "C" + c;
+        emitFusedStack(pEngine,
+                       lCameraKey,
+                       lCameraKey,
+                       c,
+                       pEmittedKeys,
+                       pStackRecycler);
+      }
+    }
+  }
+
+  private void emitFusedStack(LightSheetFastFusionEngine pEngine,
+                              String pImageKey,
+                              String pChannel,
+                              Integer pCameraIndex,
+                              Set<String> pEmittedKeys,
+                              RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
+  {
+    if (pEmittedKeys.contains(pImageKey)
+        || !pEngine.isImageAvailable(pImageKey))
+      return;
+
+    ClearCLImage lImage = pEngine.getImage(pImageKey);
+    StackInterface lStack = copyFusedStack(pStackRecycler,
+                                           lImage,
+                                           pEngine.getFusedMetaData(),
+                                           pChannel);
+    if (pCameraIndex != null)
+      lStack.getMetaData().addEntry(MetaDataView.Camera, pCameraIndex);
+    pEngine.getProfiler().recordDeviceToHost(lImage.getSizeInBytes());
+
+    mReadyFusedStackQueue.add(lStack);
+    pEmittedKeys.add(pImageKey);
   }
 
   /**
-   * Returns the max number of evaluations variable
-   *
-   * @return max number of evaluations variable
+   * Returns true once every channel passed to the engine has been emitted, and
+   * all channels of the last complete time point have been received
    */
-  public Variable<Integer> getMaxNumberOfEvaluationsVariable()
+  private boolean isTimePointDone(LightSheetFastFusionEngine pEngine,
+                                  boolean pPerCameraFusion,
+                                  Set<String> pEmittedKeys)
   {
-    return mMaxNumberOfEvaluationsVariable;
+    Set<String> lChannelKeyPrefixSet =
+                                     pEngine.getPassedChannelKeyPrefixes();
+    if (lChannelKeyPrefixSet.isEmpty()
+        || !lChannelKeyPrefixSet.containsAll(mExpectedChannelKeyPrefixSet))
+      return false;
+
+    for (String lChannelKeyPrefix : lChannelKeyPrefixSet)
+    {
+      if (!pPerCameraFusion)
+      {
+        if (!pEmittedKeys.contains(lChannelKeyPrefix + "fused"))
+          return false;
+        continue;
+      }
+
+      // per-camera fusion of a channel is complete once all cameras are
+      // emitted, or once the cameras have been fused together:
+      if (pEngine.isImageAvailable(lChannelKeyPrefix + "fused"))
+        continue;
+      for (int c = 0; c < mLightSheetMicroscope.getNumberOfDetectionArms(); c++)
+        if (!pEmittedKeys.contains(lChannelKeyPrefix + "C" + c))
+          return false;
+    }
+    return true;
+  }
+
+  private void finishTimePoint(LightSheetFastFusionEngine pEngine,
+                               long pTimePoint)
+  {
+    updateRegistrationThetaCache(pEngine);
+    publishProfile(pEngine, pTimePoint);
+    mExpectedChannelKeyPrefixSet = pEngine.getPassedChannelKeyPrefixes();
+  }
+
+  private void abandonTimePoint(LightSheetFastFusionEngine pEngine,
+                                Long pTimePoint)
+  {
+    Set<String> lChannelKeyPrefixSet =
+                                     pEngine.getPassedChannelKeyPrefixes();
+    warning("Abandoning incomplete time point %d, channels received: %s, expected: %s",
+            pTimePoint,
+            lChannelKeyPrefixSet,
+            mExpectedChannelKeyPrefixSet);
+    if (!lChannelKeyPrefixSet.isEmpty())
+      mExpectedChannelKeyPrefixSet = lChannelKeyPrefixSet;
+    pEngine.reset(false);
   }
 
   /**
-   * Returns the variable holding the smoothing constant
-   *
-   * @return smoothing constant variable
+   * Returns the channel name of fused stacks of a channel, e.g. 'ch1' for the
+   * key prefix 'ch1-', or null for stacks without laser line
    */
-  public BoundedVariable<Double> getSmoothingConstantVariable()
+  private static String getChannelName(String pChannelKeyPrefix)
   {
-    return mSmoothingConstantVariable;
+    if (pChannelKeyPrefix.isEmpty())
+      return null;
+    return pChannelKeyPrefix.substring(0,
+                                       pChannelKeyPrefix.length() - 1);
   }
 
   /**
-   * Returns the switch that decides whether to lock the transformation after a
-   * certain number of time points has elapsed
-   *
-   * @return Transform lock switch variable
+   * Returns the next ready fused stack. When an additional output is set, the
+   * other ready fused stacks are emitted right away through it instead of
+   * waiting for further input stacks, as far as the additional output has
+   * room: the remaining ones stay ready for the next call.
    */
-  public Variable<Boolean> getTransformLockSwitchVariable()
+  private StackInterface pollReadyFusedStack()
   {
-    return mTransformLockSwitchVariable;
+    StackInterface lStack = mReadyFusedStackQueue.poll();
+    // the pipeline thread feeds the stages the drain thread emits into, it
+    // must not wait for the drain thread:
+    drainReadyFusedStacks(false);
+    return lStack;
   }
 
   /**
-   * Returns the variable holding the number of timepoints until the
-   * transformation should be 'locked' with more stringent temporal filtering
-   *
+   * Moves ready fused stacks to the additional output. Fused stacks are never
+   * dropped: when the additional output is full, fusion threads wait for the
+   * drain thread to make room, which holds back further fusion.
+   */
+  private void drainReadyFusedStacks(boolean pWaitForRoom)
+  {
+    if (mAdditionalOutputVariable == null)
+      return;
+
+    synchronized (mAdditionalOutputQueue)
+    {
+      while (!mReadyFusedStackQueue.isEmpty())
+      {
+        if (mAdditionalOutputQueue.size() >= getAdditionalOutputCapacity())
+        {
+          if (!pWaitForRoom)
+            return;
+          try
+          {
+            long lStartTime = System.nanoTime();
+            mAdditionalOutputQueue.wait(TimeUnit.SECONDS.toMillis(cAdditionalOutputWaitInSeconds));
+            if (System.nanoTime()
+                - lStartTime >= TimeUnit.SECONDS.toNanos(cAdditionalOutputWaitInSeconds))
+              warning("Additional output full for %d s, fusion waits for the pipeline to catch up",
+                      cAdditionalOutputWaitInSeconds);
+          }
+          catch (InterruptedException e)
+          {
+            // ready stacks stay queued for the next drain:
+            Thread.currentThread().interrupt();
+            return;
+          }
+          continue;
+        }
+
+        StackInterface lStack = mReadyFusedStackQueue.poll();
+        if (lStack != null)
+          mAdditionalOutputQueue.add(lStack);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of fused stacks the additional output can hold: at
+   * most one per view and channel for a few time points.
+   */
+  private int getAdditionalOutputCapacity()
+  {
+    int lNumberOfViews = mLightSheetMicroscope.getNumberOfLightSheets()
+                         * mLightSheetMicroscope.getNumberOfDetectionArms();
+    int lNumberOfChannels =
+                          Math.max(1,
+                                   mLightSheetMicroscope.getNumberOfLaserLines());
+    return Math.max(1, lNumberOfViews) * lNumberOfChannels
+           * cAdditionalOutputTimePoints;
+  }
+
+  /**
+   * Sets the variable through which fused stacks are emitted when more than
+   * one is ready at once (e.g. one per camera), typically the input variable
+   * of the stack processing pipeline: fused stacks pass through this processor
+   * untouched. Stacks are handed over by an internal drain thread. Fused
+   * stacks are never dropped: when the drain thread falls behind, fusion
+   * threads wait for it, which applies backpressure to fusion.
+   *
+   * @param pAdditionalOutputVariable
+   *          additional output variable
+   */
+  public void setAdditionalOutputVariable(Variable<StackInterface> pAdditionalOutputVariable)
+  {
+    mAdditionalOutputVariable = pAdditionalOutputVariable;
+
+    synchronized (mAdditionalOutputQueue)
+    {
+      if (mAdditionalOutputDrainThread != null)
+        return;
+
+      mAdditionalOutputDrainThread = new Thread(() -> {
+        while (true)
+        {
+          try
+          {
+            StackInterface lStack = mAdditionalOutputQueue.take();
+            synchronized (mAdditionalOutputQueue)
+            {
+              mAdditionalOutputQueue.notifyAll();
+            }
+            mAdditionalOutputVariable.set(lStack);
+          }
+          catch (InterruptedException e)
+          {
+            return;
+          }
+          catch (Throwable e)
+          {
+            severe("Problem while emitting fused stack: %s",
+                   e.toString());
+            e.printStackTrace();
+          }
+        }
+      }, "FusedStackDrain");
+      mAdditionalOutputDrainThread.setDaemon(true);
+      mAdditionalOutputDrainThread.start();
+    }
+  }
+
+  private FusionEngineSlot acquireEngineSlot(long pTimePoint,
+                                             long pStackSizeInBytes)
+  {
+    synchronized (mEngineSlotList)
+    {
+      ensureEngineSlots(pStackSizeInBytes);
+
+      while (true)
+      {
+        FusionEngineSlot lFreeSlot = null;
+        for (FusionEngineSlot lSlot : mEngineSlotList)
+        {
+          Long lSlotTimePoint = lSlot.getTimePoint();
+          if (lSlotTimePoint != null && lSlotTimePoint == pTimePoint)
+            return lSlot;
+          if (lFreeSlot == null && lSlot.isFree())
+            lFreeSlot = lSlot;
+        }
+
+        if (lFreeSlot != null)
+        {
+          lFreeSlot.assign(pTimePoint);
+          updateStageOccupancy();
+          return lFreeSlot;
+        }
+
+        FusionEngineSlot lStaleSlot = getStaleEngineSlot();
+        if (lStaleSlot != null)
+        {
+          warning("Evicting incomplete time point %d from slot %d",
+                  lStaleSlot.getTimePoint(),
+                  lStaleSlot.getSlotIndex());
+          lStaleSlot.submit(() -> {
+            abandonTimePoint(lStaleSlot.getEngine(),
+                             lStaleSlot.getTimePoint());
+            releaseEngineSlot(lStaleSlot);
+          });
+        }
+
+        try
+        {
+          mEngineSlotList.wait(1000);
+        }
+        catch (InterruptedException e)
+        {
+          return null;
+        }
+      }
+    }
+  }
+
+  private FusionEngineSlot getStaleEngineSlot()
+  {
+    long lNow = System.nanoTime();
+    for (FusionEngineSlot lSlot : mEngineSlotList)
+      if (lSlot.getStage() == FusionEngineSlot.Stage.Upload
+          && lNow - lSlot.getLastActivityTimeInNanoseconds() > TimeUnit.SECONDS.toNanos(cSlotEvictionTimeOutInSeconds))
+        return lSlot;
+    return null;
+  }
+
+  private void releaseEngineSlot(FusionEngineSlot pSlot)
+  {
+    synchronized (mEngineSlotList)
+    {
+      pSlot.free();
+      updateStageOccupancy();
+      mEngineSlotList.notifyAll();
+    }
+  }
+
+  private void ensureEngineSlots(long pStackSizeInBytes)
+  {
+    int lNumberOfSlots = getMaxNumberOfEngineSlots(pStackSizeInBytes);
+    if (mEngineSlotList.size() == lNumberOfSlots)
+      return;
+
+    for (FusionEngineSlot lSlot : mEngineSlotList)
+      if (!lSlot.isFree())
+        return;
+
+    for (FusionEngineSlot lSlot : mEngineSlotList)
+    {
+      lSlot.shutdown();
+      lSlot.getEngine().reset(true);
+    }
+    mEngineSlotList.clear();
+
+    // all engines share the same memory pool, each gets an equal share:
+    for (int i = 0; i < lNumberOfSlots; i++)
+      mEngineSlotList.add(new FusionEngineSlot(i,
+                                               newEngine(1.0
+                                                         / lNumberOfSlots)));
+
+    info("Using %d fusion engine slots", lNumberOfSlots);
+  }
+
+  /**
+   * Returns the number of engine slots requested, capped so that the working
+   * set of all slots fits in the shared memory pool
+   */
+  private int getMaxNumberOfEngineSlots(long pStackSizeInBytes)
+  {
+    int lRequestedNumberOfSlots =
+                                Math.max(1,
+                                         getNumberOfEngineSlotsVariable().get());
+
+    long lMemoryPoolSizeInBytes =
+                                (long) (MachineConfiguration.get()
+                                                            .getDoubleProperty("fastfuse.memratio",
+                                                                               0.8)
+                                        * getContext().getDevice()
+                                                      .getGlobalMemorySizeInBytes());
+    double lWorkingSetInBytes =
+                              cSlotWorkingSetFactor * pStackSizeInBytes
+                                * mLightSheetMicroscope.getNumberOfLightSheets()
+                                * mLightSheetMicroscope.getNumberOfDetectionArms();
+    int lMaxNumberOfSlots =
+                          (int) Math.max(1,
+                                         lMemoryPoolSizeInBytes
+                                            / Math.max(1,
+                                                       lWorkingSetInBytes));
+
+    if (lRequestedNumberOfSlots > lMaxNumberOfSlots)
+    {
+      warning("Requested %d fusion engine slots, but only %d fit in the memory pool",
+              lRequestedNumberOfSlots,
+              lMaxNumberOfSlots);
+      return lMaxNumberOfSlots;
+    }
+    return lRequestedNumberOfSlots;
+  }
+
+  private void setSlotStage(FusionEngineSlot pSlot,
+                            FusionEngineSlot.Stage pStage)
+  {
+    synchronized (mEngineSlotList)
+    {
+      pSlot.setStage(pStage);
+      updateStageOccupancy();
+    }
+  }
+
+  private void updateStageOccupancy()
+  {
+    int lUpload = 0, lFusion = 0, lDownload = 0;
+    for (FusionEngineSlot lSlot : mEngineSlotList)
+    {
+      if (lSlot.isFree())
+        continue;
+      switch (lSlot.getStage())
+      {
+      case Upload:
+        lUpload++;
+        break;
+      case Fusion:
+        lFusion++;
+        break;
+      case Download:
+        lDownload++;
+        break;
+      default:
+        break;
+      }
+    }
+    getUploadStageOccupancyVariable().set(lUpload);
+    getFusionStageOccupancyVariable().set(lFusion);
+    getDownloadStageOccupancyVariable().set(lDownload);
+  }
+
+  private LightSheetFastFusionEngine newEngine()
+  {
+    return newEngine(1);
+  }
+
+  private LightSheetFastFusionEngine newEngine(double pMemoryShare)
+  {
+    // tasks are only wrapped for profiling if profiling is enabled:
+    return new LightSheetFastFusionEngine(getContext(),
+                                          (VisualConsoleInterface) this,
+                                          mLightSheetMicroscope.getNumberOfLightSheets(),
+                                          mLightSheetMicroscope.getNumberOfDetectionArms(),
+                                          pMemoryShare,
+                                          getProfilingVariable().get());
+  }
+
+  private long getTimePoint(StackInterface pStack)
+  {
+    Object lTimePoint =
+                      pStack.getMetaData()
+                            .getValue(MetaDataOrdinals.TimePoint);
+    if (lTimePoint instanceof Number)
+      return ((Number) lTimePoint).longValue();
+    return 0;
+  }
+
+  private void adjustVoxelDimensions(boolean pDownscale,
+                                     StackInterface pStack)
+  {
+    if (pDownscale)
+    {
+      double lVoxelDimX = pStack.getMetaData().getVoxelDimX();
+      double lVoxelDimY = pStack.getMetaData().getVoxelDimY();
+
+      pStack.getMetaData().setVoxelDimX(2 * lVoxelDimX);
+      pStack.getMetaData().setVoxelDimY(2 * lVoxelDimY);
+    }
+  }
+
+  private void configureRegistration(LightSheetFastFusionEngine pEngine,
+                                     StackInterface pStack)
+  {
+    synchronized (mRegistrationConfigurationLock)
+    {
+      if (pEngine.getRegistrationTask() != null)
+      {
+        try
+        {
+
+          if (getTransformLockSwitchVariable().get().booleanValue()
+              && pStack.getMetaData()
+                       .getValue(MetaDataOrdinals.TimePoint) > getTransformLockThresholdVariable().get()
+                                                                                                  .intValue())
+          {
+            getSmoothingConstantVariable().set(0.02);
+            getTransformLockSwitchVariable().set(false);
+          }
+
+          pEngine.getRegistrationTask()
+                 .getParameters()
+                 .setNumberOfRestarts(getNumberOfRestartsVariable().get()
+                                                                   .intValue());
+
+          pEngine.getRegistrationTask()
+                 .getParameters()
+                 .setTranslationSearchRadius(getTranslationSearchRadiusVariable().get()
+                                                                                 .doubleValue());
+
+          pEngine.getRegistrationTask()
+                 .getParameters()
+                 .setRotationSearchRadius(getRotationSearchRadiusVariable().get()
+                                                                           .doubleValue());
+
+          pEngine.getRegistrationTask()
+                 .getParameters()
+                 .setMaxNumberOfEvaluations((int) getMaxNumberOfEvaluationsVariable().get()
+                                                                                     .intValue());
+
+          pEngine.getRegistrationTask()
+                 .setSmoothingConstant(getSmoothingConstantVariable().get()
+                                                                     .doubleValue());
+
+          boolean lCheckOnly = false;
+          if (getRegistrationWarmStartVariable().get())
+          {
+            String lPositionKey =
+                                MetaDataStagePosition.getStagePositionKey(pStack.getMetaData());
+            RegistrationThetaCache.Entry lEntry =
+                                                mRegistrationThetaCache.get(lPositionKey);
+            if (lEntry != null)
+            {
+              pEngine.setRegistrationInitialTheta(lEntry.getTheta());
+              lCheckOnly = getSkipRegistrationWhenLockedVariable().get()
+                           && isTransformLocked(pStack)
+                           && !lEntry.isFullOptimisationNeeded();
+            }
+          }
+
+          if (lCheckOnly)
+          {
+            // single evaluation at the cached theta, used as is:
+            pEngine.getRegistrationTask()
+                   .getParameters()
+                   .setNumberOfRestarts(0);
+            pEngine.getRegistrationTask()
+                   .getParameters()
+                   .setMaxNumberOfEvaluations(1);
+            pEngine.getRegistrationTask().setSmoothingConstant(1);
+          }
+          pEngine.setRegistrationCheckOnly(lCheckOnly);
+
+          // coarse-to-fine: full budget on the coarsest level, finer levels
+          // only refine:
+          if (pEngine.getRegistrationPyramid() != null)
+            pEngine.getRegistrationPyramid()
+                   .configure(lCheckOnly ? 0
+                                         : getNumberOfRestartsVariable().get()
+                                                                        .intValue(),
+                              lCheckOnly ? 1
+                                         : getMaxNumberOfEvaluationsVariable().get()
+                                                                              .intValue(),
+                              getTranslationSearchRadiusVariable().get()
+                                                                  .doubleValue(),
+                              getRotationSearchRadiusVariable().get()
+                                                               .doubleValue());
+
+          // the other camera pairs get the full search budget, they have no
+          // cached theta:
+          for (RegistrationPyramid lRegistrationPyramid : pEngine.getAdditionalRegistrationPyramids())
+          {
+            lRegistrationPyramid.configure(getNumberOfRestartsVariable().get()
+                                                                        .intValue(),
+                                           getMaxNumberOfEvaluationsVariable().get()
+                                                                              .intValue(),
+                                           getTranslationSearchRadiusVariable().get()
+                                                                               .doubleValue(),
+                                           getRotationSearchRadiusVariable().get()
+                                                                            .doubleValue());
+            lRegistrationPyramid.getFinestRegistrationTask()
+                                .setSmoothingConstant(getSmoothingConstantVariable().get()
+                                                                                    .doubleValue());
+          }
+
+        }
+        catch (Throwable e)
+        {
+          severe("Problem while setting fast fusion parameters: %s",
+                 e.toString());
+        }
+      }
+    }
+  }
+
+  private boolean isTransformLocked(StackInterface pStack)
+  {
+    return getTimePoint(pStack) > getTransformLockThresholdVariable().get()
+                                                                     .intValue();
+  }
+
+  private void updateRegistrationThetaCache(LightSheetFastFusionEngine pEngine)
+  {
+    synchronized (mRegistrationConfigurationLock)
+    {
+      double[] lTheta = pEngine.getLastUsedTheta();
+      if (pEngine.getRegistrationTask() == null || lTheta == null)
+        return;
+
+      String lPositionKey =
+                          MetaDataStagePosition.getStagePositionKey(pEngine.getFusedMetaData());
+      double lScore = pEngine.getLastUsedThetaScore();
+
+      if (pEngine.isRegistrationCheckOnly())
+      {
+        getNumberOfSkippedRegistrationsVariable().set(getNumberOfSkippedRegistrationsVariable().get()
+                                                      + 1);
+        boolean lBudgetExceeded =
+                                mRegistrationThetaCache.updateAfterCheck(lPositionKey,
+                                                                         lScore,
+                                                                         getRegistrationErrorBudgetVariable().get());
+        if (lBudgetExceeded)
+          info("Registration error %g exceeds budget at stage position %s, full registration at next time point",
+               lScore,
+               lPositionKey);
+        pEngine.setRegistrationCheckOnly(false);
+      }
+      else
+        mRegistrationThetaCache.updateAfterFullOptimisation(lPositionKey,
+                                                            lTheta,
+                                                            lScore);
+    }
+  }
+
+  private void configureProfiling(LightSheetFastFusionEngine pEngine)
+  {
+    boolean lProfiling = getProfilingVariable().get();
+    if (lProfiling && !pEngine.hasProfiledTasks()
+        && !mUnprofiledTasksWarned)
+    {
+      warning("Fusion engine created without profiling, only memory and transfers are profiled");
+      mUnprofiledTasksWarned = true;
+    }
+    pEngine.getProfiler().setEnabled(lProfiling);
+  }
+
+  private void publishProfile(LightSheetFastFusionEngine pEngine,
+                              long pTimePoint)
+  {
+    FusionProfiler lProfiler = pEngine.getProfiler();
+    if (!lProfiler.isEnabled())
+      return;
+
+    FusionTimePointProfile lProfile =
+                                    lProfiler.finishTimePoint(pTimePoint);
+    if (lProfile == null)
+      return;
+
+    synchronized (mProfileHistory)
+    {
+      mProfileHistory.addLast(lProfile);
+      while (mProfileHistory.size() > cMaxProfileHistoryLength)
+        mProfileHistory.removeFirst();
+    }
+
+    double lFusionTimeInMilliseconds =
+                                     lProfile.getTotalWallTimeInNanoseconds()
+                                       * 1e-6;
+    getFusionTimeVariable().set(lFusionTimeInMilliseconds);
+    String lSlowestTask = lProfile.getSlowestTask();
+    getSlowestTaskVariable().set(lSlowestTask == null ? ""
+                                                      : lSlowestTask);
+    getPeakImageMemoryVariable().set(lProfile.mPeakImageMemoryInBytes);
+    getImageAllocationsVariable().set(lProfile.mNumberOfImageAllocations);
+    getImageReleasesVariable().set(lProfile.mNumberOfImageReleases);
+    getHostToDeviceBytesVariable().set(lProfile.mHostToDeviceBytes);
+    getDeviceToHostBytesVariable().set(lProfile.mDeviceToHostBytes);
+
+    info("Fusion profile of time point %d: %.1f ms, slowest task: %s, peak image memory: %d bytes",
+         pTimePoint,
+         lFusionTimeInMilliseconds,
+         lSlowestTask,
+         lProfile.mPeakImageMemoryInBytes);
+
+    if (!mProfileChartsConfigured)
+    {
+      configureChart("Fusion profile",
+                     "fusion time",
+                     "time",
+                     "ms",
+                     ChartType.Line);
+      configureChart("Fusion memory",
+                     "peak image memory",
+                     "time",
+                     "MB",
+                     ChartType.Line);
+      configureChart("Fusion transfers",
+                     "host to device",
+                     "time",
+                     "MB",
+                     ChartType.Line);
+      configureChart("Fusion transfers",
+                     "device to host",
+                     "time",
+                     "MB",
+                     ChartType.Line);
+      mProfileChartsConfigured = true;
+    }
+    addPoint("Fusion profile",
+             "fusion time",
+             false,
+             pTimePoint,
+             lFusionTimeInMilliseconds);
+    addPoint("Fusion memory",
+             "peak image memory",
+             false,
+             pTimePoint,
+             lProfile.mPeakImageMemoryInBytes * 1e-6);
+    addPoint("Fusion transfers",
+             "host to device",
+             false,
+             pTimePoint,
+             lProfile.mHostToDeviceBytes * 1e-6);
+    addPoint("Fusion transfers",
+             "device to host",
+             false,
+             pTimePoint,
+             lProfile.mDeviceToHostBytes * 1e-6);
+
+    String lDumpFileName =
+                         MachineConfiguration.get()
+                                             .getStringProperty("fastfuse.profiling.dumpfile",
+                                                                null);
+    if (lDumpFileName != null && !lDumpFileName.isEmpty())
+      appendProfile(new File(lDumpFileName), lProfile);
+  }
+
+  /**
+   * Appends the profile of one time point to a file: as CSV rows, with a
+   * header if the file is empty, or as one JSON object per line if the file
+   * name ends with '.json'
+   *
+   * @param pFile
+   *          file
+   * @param pProfile
+   *          time point profile
+   */
+  public void appendProfile(File pFile, FusionTimePointProfile pProfile)
+  {
+    // time points fused by different engine slots are appended one by one:
+    synchronized (mProfileDumpLock)
+    {
+      boolean lEmptyFile = !pFile.exists() || pFile.length() == 0;
+      try (PrintWriter lPrintWriter =
+                                    new PrintWriter(new FileWriter(pFile,
+                                                                   true)))
+      {
+        if (pFile.getName().toLowerCase().endsWith(".json"))
+          lPrintWriter.println(new ObjectMapper().writeValueAsString(pProfile));
+        else
+        {
+          if (lEmptyFile)
+            FusionTimePointProfile.writeCSVHeader(lPrintWriter);
+          pProfile.writeCSVRows(lPrintWriter);
+        }
+      }
+      catch (IOException e)
+      {
+        severe("Problem while appending fusion profile to file %s: %s",
+               pFile.getAbsolutePath(),
+               e.toString());
+      }
+    }
+  }
+
+  /**
+   * Writes the profiles of the last time points to a file, as JSON if the file
+   * name ends with '.json' and as CSV otherwise
+   *
+   * @param pFile
+   *          file
+   */
+  public void dumpProfiles(File pFile)
+  {
+    ArrayList<FusionTimePointProfile> lProfileList;
+    synchronized (mProfileHistory)
+    {
+      lProfileList = new ArrayList<>(mProfileHistory);
+    }
+
+    try
+    {
+      if (pFile.getName().toLowerCase().endsWith(".json"))
+      {
+        ObjectMapper lObjectMapper = new ObjectMapper();
+        lObjectMapper.enable(SerializationFeature.INDENT_OUTPUT);
+        lObjectMapper.writeValue(pFile, lProfileList);
+      }
+      else
+      {
+        try (PrintWriter lPrintWriter = new PrintWriter(pFile))
+        {
+          FusionTimePointProfile.writeCSVHeader(lPrintWriter);
+          for (FusionTimePointProfile lProfile : lProfileList)
+            lProfile.writeCSVRows(lPrintWriter);
+        }
+      }
+    }
+    catch (IOException e)
+    {
+      severe("Problem while writing fusion profiles to file %s: %s",
+             pFile.getAbsolutePath(),
+             e.toString());
+    }
+  }
+
+  protected StackInterface copyFusedStack(RecyclerInterface<StackInterface, StackRequest> pStackRecycler,
+                                          ClearCLImage lFusedImage,
+                                          StackMetaData pStackMetaData,
+                                          String pChannel)
+  {
+    StackInterface lFusedStack =
+                               mFusedStackHandoff.obtain(pStackRecycler,
+                                                         lFusedImage.getDimensions());
+
+    setFusedMetaData(lFusedStack, pStackMetaData, pChannel);
+
+    mFusedStackHandoff.download(lFusedImage,
+                                lFusedStack,
+                                getDownloadChunkDepthVariable().get());
+
+    return lFusedStack;
+  }
+
+  protected StackInterface copyFusedStack(RecyclerInterface<StackInterface, StackRequest> pStackRecycler,
+                                          CPUFusionImage pFusedImage,
+                                          StackMetaData pStackMetaData,
+                                          String pChannel)
+  {
+    StackInterface lFusedStack =
+                               pStackRecycler.getOrWait(1000,
+                                                        TimeUnit.SECONDS,
+                                                        StackRequest.build(pFusedImage.getDimensions()));
+
+    setFusedMetaData(lFusedStack, pStackMetaData, pChannel);
+
+    pFusedImage.writeToUnsignedInt16(lFusedStack.getContiguousMemory());
+
+    return lFusedStack;
+  }
+
+  private static long[] getFusedDimensions(boolean pDownscale,
+                                           StackInterface pStack)
+  {
+    long lDownscaleFactor = pDownscale ? 2 : 1;
+    return new long[]
+    { pStack.getWidth() / lDownscaleFactor,
+      pStack.getHeight() / lDownscaleFactor,
+      pStack.getDepth() };
+  }
+
+  /**
+   * Adds a listener notified each time a chunk of planes of a fused stack has
+   * been downloaded
+   *
+   * @param pListener
+   *          fused stack plane listener
+   */
+  public void addFusedStackPlaneListener(FusedStackPlaneListener pListener)
+  {
+    mFusedStackHandoff.addPlaneListener(pListener);
+  }
+
+  /**
+   * Removes a fused stack plane listener
+   *
+   * @param pListener
+   *          fused stack plane listener
+   */
+  public void removeFusedStackPlaneListener(FusedStackPlaneListener pListener)
+  {
+    mFusedStackHandoff.removePlaneListener(pListener);
+  }
+
+  private void setFusedMetaData(StackInterface pFusedStack,
+                                StackMetaData pStackMetaData,
+                                String pChannel)
+  {
+    pFusedStack.setMetaData(pStackMetaData);
+    pFusedStack.getMetaData().addEntry(MetaDataFusion.Fused, true);
+    if (pChannel != null)
+      pFusedStack.getMetaData().addEntry(MetaDataChannel.Channel,
+                                         pChannel);
+    pFusedStack.getMetaData().removeAllEntries(MetaDataView.class);
+    // sample bounds of individual views do not apply to the fused stack:
+    pFusedStack.getMetaData()
+               .removeAllEntries(MetaDataSampleBounds.class);
+    pFusedStack.getMetaData()
+               .removeAllEntries(MetaDataEmptyPlanes.class);
+    pFusedStack.getMetaData()
+               .removeAllEntries(MetaDataViewFlags.class);
+    pFusedStack.getMetaData().removeEntry(MetaDataOrdinals.Index);
+
+    info("Resulting fused stack metadata:"
+         + pFusedStack.getMetaData());
+  }
+
+  private boolean isPassThrough(StackInterface pStack)
+  {
+    AcquisitionType lAcquisitionType =
+                                     pStack.getMetaData()
+                                           .getValue(MetaDataAcquisitionType.AcquisitionType);
+
+    if (lAcquisitionType != AcquisitionType.TimeLapse)
+      return true;
+
+    // fused stacks emitted through the additional output:
+    if (pStack.getMetaData().hasEntry(MetaDataFusion.Fused))
+      return true;
+
+    if (pStack.getMetaData()
+              .hasEntry(MetaDataFusion.RequestFullFusion))
+      return false;
+
+    if (pStack.getMetaData()
+              .hasEntry(MetaDataFusion.RequestPerCameraFusion))
+      return false;
+
+    return true;
+  }
+
+  /**
+   * Returns the variable holding the translation search radius.
+   *
+   * @return translation search radius variable.
+   */
+  public BoundedVariable<Double> getTranslationSearchRadiusVariable()
+  {
+    return mTranslationSearchRadiusVariable;
+  }
+
+  /**
+   * Returns the variable holding the rotation search radius
+   *
+   * @return rotation search radius
+   */
+  public BoundedVariable<Double> getRotationSearchRadiusVariable()
+  {
+    return mRotationSearchRadiusVariable;
+  }
+
+  /**
+   * Returns the variable holding the number of optimization restarts
+   *
+   * @return number of optimization restarts variable
+   */
+  public Variable<Integer> getNumberOfRestartsVariable()
+  {
+    return mNumberOfRestartsVariable;
+  }
+
+  /**
+   * Returns the max number of evaluations variable
+   *
+   * @return max number of evaluations variable
+   */
+  public Variable<Integer> getMaxNumberOfEvaluationsVariable()
+  {
+    return mMaxNumberOfEvaluationsVariable;
+  }
+
+  /**
+   * Returns the variable holding the smoothing constant
+   *
+   * @return smoothing constant variable
+   */
+  public BoundedVariable<Double> getSmoothingConstantVariable()
+  {
+    return mSmoothingConstantVariable;
+  }
+
+  /**
+   * Returns the switch that decides whether to lock the transformation after a
+   * certain number of time points has elapsed
+   *
+   * @return Transform lock switch variable
+   */
+  public Variable<Boolean> getTransformLockSwitchVariable()
+  {
+    return mTransformLockSwitchVariable;
+  }
+
+  /**
+   * Returns the variable holding the number of timepoints until the
+   * transformation should be 'locked' with more stringent temporal filtering
+   *
    * @return transform lock timer variable
    */
   public Variable<Integer> getTransformLockThresholdVariable()
@@ -344,4 +1766,264 @@ public class LightSheetFastFusionProcessor extends
     return mTransformLockThresholdVariable;
   }
 
+  /**
+   * Returns the variable holding the streaming fusion switch. When on, views
+   * are fused in overlapping Z slabs so that stacks larger than the device
+   * memory can be fused without downscaling.
+   *
+   * @return streaming fusion variable
+   */
+  public Variable<Boolean> getStreamingFusionVariable()
+  {
+    return mStreamingFusionVariable;
+  }
+
+  /**
+   * Returns the variable holding the number of planes per Z slab (without
+   * halo) for streaming fusion.
+   *
+   * @return slab depth variable
+   */
+  public Variable<Integer> getSlabDepthVariable()
+  {
+    return mSlabDepthVariable;
+  }
+
+  /**
+   * Returns the variable holding the number of planes downloaded at once from
+   * the device, 0 downloads whole volumes
+   *
+   * @return download chunk depth variable
+   */
+  public Variable<Integer> getDownloadChunkDepthVariable()
+  {
+    return mDownloadChunkDepthVariable;
+  }
+
+  /**
+   * Returns the variable holding the switch for asynchronous stack upload
+   *
+   * @return asynchronous upload variable
+   */
+  public Variable<Boolean> getAsynchronousUploadVariable()
+  {
+    return mAsynchronousUploadVariable;
+  }
+
+  /**
+   * Returns the variable holding the fraction of the free image memory that stacks being uploaded may occupy
+   *
+   * @return in-flight memory ratio variable
+   */
+  public BoundedVariable<Double> getInFlightMemoryRatioVariable()
+  {
+    return mInFlightMemoryRatioVariable;
+  }
+
+  /**
+   * Returns the variable holding the number of stacks currently being uploaded
+   *
+   * @return number of in-flight uploads variable
+   */
+  public Variable<Integer> getNumberOfInFlightUploadsVariable()
+  {
+    return mNumberOfInFlightUploadsVariable;
+  }
+
+  /**
+   * Returns the variable holding the number of bytes currently being uploaded
+   *
+   * @return in-flight bytes variable
+   */
+  public Variable<Long> getInFlightBytesVariable()
+  {
+    return mInFlightBytesVariable;
+  }
+
+  /**
+   * Returns the variable holding the number of times a producer had to wait for the upload window
+   *
+   * @return number of upload backpressure waits variable
+   */
+  public Variable<Long> getNumberOfUploadBackpressureWaitsVariable()
+  {
+    return mNumberOfUploadBackpressureWaitsVariable;
+  }
+
+  /**
+   * Returns the variable holding the profiling switch. Task timings are only
+   * collected by engines created while profiling is enabled.
+   *
+   * @return profiling variable
+   */
+  public Variable<Boolean> getProfilingVariable()
+  {
+    return mProfilingVariable;
+  }
+
+  /**
+   * Returns the variable holding the total fusion task time of the last profiled time point, in milliseconds
+   *
+   * @return fusion time variable
+   */
+  public Variable<Double> getFusionTimeVariable()
+  {
+    return mFusionTimeVariable;
+  }
+
+  /**
+   * Returns the variable holding the name of the slowest fusion task of the last profiled time point
+   *
+   * @return slowest task variable
+   */
+  public Variable<String> getSlowestTaskVariable()
+  {
+    return mSlowestTaskVariable;
+  }
+
+  /**
+   * Returns the variable holding the image memory high-water mark of the last profiled time point, in bytes
+   *
+   * @return peak image memory variable
+   */
+  public Variable<Long> getPeakImageMemoryVariable()
+  {
+    return mPeakImageMemoryVariable;
+  }
+
+  /**
+   * Returns the variable holding the number of image allocations of the last profiled time point
+   *
+   * @return image allocations variable
+   */
+  public Variable<Long> getImageAllocationsVariable()
+  {
+    return mImageAllocationsVariable;
+  }
+
+  /**
+   * Returns the variable holding the number of image releases of the last profiled time point
+   *
+   * @return image releases variable
+   */
+  public Variable<Long> getImageReleasesVariable()
+  {
+    return mImageReleasesVariable;
+  }
+
+  /**
+   * Returns the variable holding the number of bytes uploaded to the device for the last profiled time point
+   *
+   * @return host to device bytes variable
+   */
+  public Variable<Long> getHostToDeviceBytesVariable()
+  {
+    return mHostToDeviceBytesVariable;
+  }
+
+  /**
+   * Returns the variable holding the number of bytes downloaded from the device for the last profiled time point
+   *
+   * @return device to host bytes variable
+   */
+  public Variable<Long> getDeviceToHostBytesVariable()
+  {
+    return mDeviceToHostBytesVariable;
+  }
+
+  /**
+   * Returns the variable holding the registration warm start switch. When on,
+   * registration starts from the last used registration parameters recorded
+   * for the same stage position.
+   *
+   * @return registration warm start variable
+   */
+  public Variable<Boolean> getRegistrationWarmStartVariable()
+  {
+    return mRegistrationWarmStartVariable;
+  }
+
+  /**
+   * Returns the variable holding the skip-registration-when-locked switch.
+   * When on, and once the transform lock time point threshold is passed,
+   * registration is replaced by a single evaluation at the cached parameters
+   * as long as the registration error stays within budget.
+   *
+   * @return skip registration when locked variable
+   */
+  public Variable<Boolean> getSkipRegistrationWhenLockedVariable()
+  {
+    return mSkipRegistrationWhenLockedVariable;
+  }
+
+  /**
+   * Returns the variable holding the registration error budget: tolerated
+   * relative increase of the registration error before a full registration is
+   * triggered again.
+   *
+   * @return registration error budget variable
+   */
+  public BoundedVariable<Double> getRegistrationErrorBudgetVariable()
+  {
+    return mRegistrationErrorBudgetVariable;
+  }
+
+  /**
+   * Returns the variable counting the number of skipped registrations
+   *
+   * @return number of skipped registrations variable
+   */
+  public Variable<Long> getNumberOfSkippedRegistrationsVariable()
+  {
+    return mNumberOfSkippedRegistrationsVariable;
+  }
+
+  /**
+   * Returns the variable holding the number of fusion engine slots. With more
+   * than one slot, consecutive time points are fused in a pipelined fashion:
+   * views of the next time point are uploaded while the previous time point is
+   * still being registered and fused. Pipelined fusion needs an additional
+   * output (see setAdditionalOutputVariable), without it a single engine is
+   * used.
+   *
+   * @return number of engine slots variable
+   */
+  public Variable<Integer> getNumberOfEngineSlotsVariable()
+  {
+    return mNumberOfEngineSlotsVariable;
+  }
+
+  /**
+   * Returns the variable holding the number of engine slots currently in the
+   * upload stage
+   *
+   * @return upload stage occupancy variable
+   */
+  public Variable<Integer> getUploadStageOccupancyVariable()
+  {
+    return mUploadStageOccupancyVariable;
+  }
+
+  /**
+   * Returns the variable holding the number of engine slots currently in the
+   * fusion stage
+   *
+   * @return fusion stage occupancy variable
+   */
+  public Variable<Integer> getFusionStageOccupancyVariable()
+  {
+    return mFusionStageOccupancyVariable;
+  }
+
+  /**
+   * Returns the variable holding the number of engine slots currently in the
+   * download stage
+   *
+   * @return download stage occupancy variable
+   */
+  public Variable<Integer> getDownloadStageOccupancyVariable()
+  {
+    return mDownloadStageOccupancyVariable;
+  }
+
 }
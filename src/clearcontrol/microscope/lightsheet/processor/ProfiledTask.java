@@ -0,0 +1,80 @@
+package clearcontrol.microscope.lightsheet.processor;
+
+import java.util.Set;
+
+import fastfuse.FastFusionEngineInterface;
+import fastfuse.tasks.TaskInterface;
+
+/**
+ * Task decorator that reports the wall time and device time of each execution
+ * to the engine's profiler. When profiling is enabled, blocking executions are
+ * split into a non-blocking submission followed by waiting for the queue, the
+ * time spent waiting is reported as device time.
+ *
+ * @author royer
+ */
+class ProfiledTask implements TaskInterface
+{
+  private final TaskInterface mDelegate;
+  private final String mName;
+  private final LightSheetFastFusionEngine mEngine;
+
+  /**
+   * Instantiates a profiled task
+   *
+   * @param pDelegate
+   *          task to profile
+   * @param pName
+   *          task name used in profiles
+   * @param pEngine
+   *          engine executing the task
+   */
+  ProfiledTask(TaskInterface pDelegate,
+               String pName,
+               LightSheetFastFusionEngine pEngine)
+  {
+    mDelegate = pDelegate;
+    mName = pName;
+    mEngine = pEngine;
+  }
+
+  TaskInterface getDelegate()
+  {
+    return mDelegate;
+  }
+
+  @Override
+  public boolean checkIfRequiredImagesAvailable(Set<String> pAvailableImageKeys)
+  {
+    return mDelegate.checkIfRequiredImagesAvailable(pAvailableImageKeys);
+  }
+
+  @Override
+  public boolean enqueue(FastFusionEngineInterface pFastFusionEngine,
+                         boolean pWaitToFinish)
+  {
+    FusionProfiler lProfiler = mEngine.getProfiler();
+    if (!lProfiler.isEnabled())
+      return mDelegate.enqueue(pFastFusionEngine, pWaitToFinish);
+
+    long lStartTime = System.nanoTime();
+    boolean lResult = mDelegate.enqueue(pFastFusionEngine, false);
+    long lSubmittedTime = System.nanoTime();
+    if (pWaitToFinish)
+      pFastFusionEngine.getContext().getDefaultQueue().waitToFinish();
+    long lEndTime = System.nanoTime();
+
+    lProfiler.recordTask(mName,
+                         lEndTime - lStartTime,
+                         lEndTime - lSubmittedTime);
+    mEngine.recordLiveImages();
+    return lResult;
+  }
+
+  @Override
+  public String toString()
+  {
+    return mName;
+  }
+
+}
@@ -0,0 +1,287 @@
+package clearcontrol.microscope.lightsheet.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import fastfuse.registration.AffineMatrix;
+import fastfuse.tasks.DownsampleXYbyHalfTask;
+import fastfuse.tasks.MemoryReleaseTask;
+import fastfuse.tasks.RegistrationListener;
+import fastfuse.tasks.RegistrationTask;
+import fastfuse.tasks.TaskInterface;
+
+/**
+ * Multi-resolution registration pyramid. The blurred images are repeatedly
+ * downsampled by a factor two along X and Y, registration is first optimised on
+ * the coarsest level with the full budget (restarts, evaluations, search
+ * radii), the resulting parameters are then handed over to the next finer level
+ * as starting point where they are only refined with a small budget. Only the
+ * finest level produces the registered image used for fusion, and only the
+ * finest level should be listened to for reporting.
+ *
+ * Levels are executed in the order of the task list: coarsest first.
+ *
+ * @author royer
+ */
+public class RegistrationPyramid
+{
+  // evaluation budget of refinement levels relative to the coarsest level:
+  private static final int cRefinementEvaluationsDivisor = 10;
+  // translation search radius for refinement levels, in voxels:
+  private static final double cRefinementTranslationSearchRadius = 2;
+  // rotation search radius for refinement levels relative to coarsest level:
+  private static final double cRefinementRotationSearchRadiusFactor =
+                                                                    0.25;
+
+  private final int mNumberOfLevels;
+  private final ArrayList<RegistrationTask> mLevelList =
+                                                       new ArrayList<>();
+  private final ArrayList<TaskInterface> mTaskList = new ArrayList<>();
+
+  /**
+   * Instantiates a registration pyramid
+   *
+   * @param pNumberOfLevels
+   *          number of levels (1 means single resolution registration)
+   * @param pImageABlurredKey
+   *          blurred reference image key
+   * @param pImageBBlurredKey
+   *          blurred moving image key
+   * @param pImageAKey
+   *          reference image key
+   * @param pImageBKey
+   *          moving image key
+   * @param pRegisteredImageBKey
+   *          registered moving image key
+   * @param pZeroTransformMatrix
+   *          zero transform matrix (e.g. X flip), or null for identity
+   */
+  public RegistrationPyramid(int pNumberOfLevels,
+                             String pImageABlurredKey,
+                             String pImageBBlurredKey,
+                             String pImageAKey,
+                             String pImageBKey,
+                             String pRegisteredImageBKey,
+                             AffineMatrix pZeroTransformMatrix)
+  {
+    mNumberOfLevels = Math.max(1, pNumberOfLevels);
+
+    // downsampled blurred images, level 0 is full resolution:
+    String[] lBlurredAKeys = new String[mNumberOfLevels];
+    String[] lBlurredBKeys = new String[mNumberOfLevels];
+    lBlurredAKeys[0] = pImageABlurredKey;
+    lBlurredBKeys[0] = pImageBBlurredKey;
+    for (int l = 1; l < mNumberOfLevels; l++)
+    {
+      lBlurredAKeys[l] = pImageABlurredKey + "p" + l;
+      lBlurredBKeys[l] = pImageBBlurredKey + "p" + l;
+      mTaskList.add(new DownsampleXYbyHalfTask(lBlurredAKeys[l - 1],
+                                               lBlurredAKeys[l]));
+      mTaskList.add(new DownsampleXYbyHalfTask(lBlurredBKeys[l - 1],
+                                               lBlurredBKeys[l]));
+    }
+
+    // coarse levels, coarsest first, register blurred images onto each other:
+    ArrayList<String> lCoarseOutputKeys = new ArrayList<>();
+    for (int l = mNumberOfLevels - 1; l >= 1; l--)
+    {
+      String lOutputKey = pRegisteredImageBKey + "p" + l;
+      RegistrationTask lRegistrationTask =
+                                         new RegistrationTask(lBlurredAKeys[l],
+                                                              lBlurredBKeys[l],
+                                                              lBlurredAKeys[l],
+                                                              lBlurredBKeys[l],
+                                                              lOutputKey);
+      if (pZeroTransformMatrix != null)
+        lRegistrationTask.getParameters()
+                         .setZeroTransformMatrix(pZeroTransformMatrix);
+      mLevelList.add(lRegistrationTask);
+      mTaskList.add(lRegistrationTask);
+      mTaskList.add(new MemoryReleaseTask(lOutputKey,
+                                          lBlurredAKeys[l],
+                                          lBlurredBKeys[l]));
+      lCoarseOutputKeys.add(lOutputKey);
+    }
+
+    // finest level:
+    RegistrationTask lFinestRegistrationTask =
+                                             new RegistrationTask(pImageABlurredKey,
+                                                                  pImageBBlurredKey,
+                                                                  pImageAKey,
+                                                                  pImageBKey,
+                                                                  pRegisteredImageBKey);
+    if (pZeroTransformMatrix != null)
+      lFinestRegistrationTask.getParameters()
+                             .setZeroTransformMatrix(pZeroTransformMatrix);
+    mLevelList.add(lFinestRegistrationTask);
+    mTaskList.add(lFinestRegistrationTask);
+    if (!lCoarseOutputKeys.isEmpty())
+      mTaskList.add(new MemoryReleaseTask(pRegisteredImageBKey,
+                                          lCoarseOutputKeys.toArray(new String[lCoarseOutputKeys.size()])));
+
+    // hand over parameters from each level to the next finer level:
+    for (int i = 0; i < mLevelList.size() - 1; i++)
+    {
+      RegistrationTask lFinerLevel = mLevelList.get(i + 1);
+      mLevelList.get(i).addListener(new RegistrationListener()
+      {
+        @Override
+        public void newUsedTheta(double[] pTheta)
+        {
+          lFinerLevel.setInitialTheta(upscale(pTheta));
+        }
+
+        @Override
+        public void newComputedTheta(double[] pTheta)
+        {
+        }
+
+        @Override
+        public void notifyListenersOfNewScoreForUsedTheta(double pScore)
+        {
+        }
+
+        @Override
+        public void notifyListenersOfNewScoreForComputedTheta(double pScore)
+        {
+        }
+      });
+    }
+  }
+
+  /**
+   * Returns the tasks of this pyramid (downsampling, coarse levels, finest
+   * level and memory release tasks), in execution order.
+   *
+   * @return task list
+   */
+  public List<TaskInterface> getTasks()
+  {
+    return mTaskList;
+  }
+
+  /**
+   * Returns the finest level registration task, its listeners receive the
+   * parameters actually used for fusion.
+   *
+   * @return finest level registration task
+   */
+  public RegistrationTask getFinestRegistrationTask()
+  {
+    return mLevelList.get(mLevelList.size() - 1);
+  }
+
+  /**
+   * Returns the number of levels
+   *
+   * @return number of levels
+   */
+  public int getNumberOfLevels()
+  {
+    return mNumberOfLevels;
+  }
+
+  /**
+   * Sets the Z scale (voxel depth over voxel width) at full resolution, coarser
+   * levels get a proportionally smaller Z scale since voxels are wider.
+   *
+   * @param pScaleZ
+   *          Z scale at full resolution
+   */
+  public void setScaleZ(float pScaleZ)
+  {
+    for (int i = 0; i < mLevelList.size(); i++)
+    {
+      int lLevel = mLevelList.size() - 1 - i;
+      mLevelList.get(i)
+                .getParameters()
+                .setScaleZ(pScaleZ / (1 << lLevel));
+    }
+  }
+
+  /**
+   * Distributes the registration budget: the coarsest level gets the full
+   * budget, finer levels only refine.
+   *
+   * @param pNumberOfRestarts
+   *          number of restarts
+   * @param pMaxNumberOfEvaluations
+   *          max number of evaluations
+   * @param pTranslationSearchRadius
+   *          translation search radius
+   * @param pRotationSearchRadius
+   *          rotation search radius
+   */
+  public void configure(int pNumberOfRestarts,
+                        int pMaxNumberOfEvaluations,
+                        double pTranslationSearchRadius,
+                        double pRotationSearchRadius)
+  {
+    for (int i = 0; i < mLevelList.size(); i++)
+    {
+      RegistrationTask lLevel = mLevelList.get(i);
+      int lLevelIndex = mLevelList.size() - 1 - i;
+      if (i == 0)
+      {
+        // coarsest level, translations are in coarse voxels:
+        lLevel.getParameters().setNumberOfRestarts(pNumberOfRestarts);
+        lLevel.getParameters()
+              .setMaxNumberOfEvaluations(pMaxNumberOfEvaluations);
+        lLevel.getParameters()
+              .setTranslationSearchRadius(pTranslationSearchRadius
+                                          / (1 << lLevelIndex));
+        lLevel.getParameters()
+              .setRotationSearchRadius(pRotationSearchRadius);
+      }
+      else
+      {
+        lLevel.getParameters().setNumberOfRestarts(0);
+        lLevel.getParameters()
+              .setMaxNumberOfEvaluations(Math.max(1,
+                                                  pMaxNumberOfEvaluations
+                                                     / cRefinementEvaluationsDivisor));
+        lLevel.getParameters()
+              .setTranslationSearchRadius(Math.min(pTranslationSearchRadius,
+                                                   cRefinementTranslationSearchRadius));
+        lLevel.getParameters()
+              .setRotationSearchRadius(pRotationSearchRadius
+                                       * cRefinementRotationSearchRadiusFactor);
+      }
+
+      // coarse levels hand over what they compute, smoothing only applies to
+      // the finest level:
+      if (lLevelIndex > 0)
+        lLevel.setSmoothingConstant(1);
+    }
+  }
+
+  /**
+   * Sets the starting parameters (expressed at full resolution) of the
+   * coarsest level
+   *
+   * @param pTheta
+   *          full resolution theta (Tx, Ty, Tz, Rx, Ry, Rz)
+   */
+  public void setInitialTheta(double[] pTheta)
+  {
+    double[] lTheta = pTheta.clone();
+    int lCoarsestLevelIndex = mLevelList.size() - 1;
+    lTheta[0] /= (1 << lCoarsestLevelIndex);
+    lTheta[1] /= (1 << lCoarsestLevelIndex);
+    mLevelList.get(0).setInitialTheta(lTheta);
+  }
+
+  /**
+   * Converts parameters from one level to the next finer level: translations
+   * along X and Y double, Z translation and rotations are unchanged (only X and
+   * Y are downsampled).
+   */
+  private static double[] upscale(double[] pTheta)
+  {
+    double[] lTheta = pTheta.clone();
+    lTheta[0] *= 2;
+    lTheta[1] *= 2;
+    return lTheta;
+  }
+
+}
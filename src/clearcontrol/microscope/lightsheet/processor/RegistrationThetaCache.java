@@ -0,0 +1,124 @@
+package clearcontrol.microscope.lightsheet.processor;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registration theta cache. Remembers, per stage position, the last
+ * registration parameters (theta) found by a full optimisation and the
+ * corresponding registration error. This is used to warm-start registration,
+ * and to replace the full optimisation by a single evaluation consistency check
+ * as long as the error stays within budget.
+ *
+ * @author royer
+ */
+class RegistrationThetaCache
+{
+  private static final String cDefaultPositionKey = "default";
+
+  /**
+   * Cache entry for one stage position
+   */
+  static class Entry
+  {
+    private final double[] mTheta;
+    private final double mReferenceScore;
+    private volatile boolean mFullOptimisationNeeded;
+
+    private Entry(double[] pTheta, double pReferenceScore)
+    {
+      mTheta = pTheta.clone();
+      mReferenceScore = pReferenceScore;
+    }
+
+    double[] getTheta()
+    {
+      return mTheta.clone();
+    }
+
+    double getReferenceScore()
+    {
+      return mReferenceScore;
+    }
+
+    boolean isFullOptimisationNeeded()
+    {
+      return mFullOptimisationNeeded;
+    }
+  }
+
+  private final ConcurrentHashMap<String, Entry> mEntryMap =
+                                                           new ConcurrentHashMap<>();
+
+  /**
+   * Returns the entry for a given stage position
+   *
+   * @param pPositionKey
+   *          stage position key, null for unknown position
+   * @return entry or null
+   */
+  Entry get(String pPositionKey)
+  {
+    return mEntryMap.get(key(pPositionKey));
+  }
+
+  /**
+   * Records the result of a full registration optimisation
+   *
+   * @param pPositionKey
+   *          stage position key, null for unknown position
+   * @param pTheta
+   *          used theta
+   * @param pScore
+   *          registration error for used theta
+   */
+  void updateAfterFullOptimisation(String pPositionKey,
+                                   double[] pTheta,
+                                   double pScore)
+  {
+    mEntryMap.put(key(pPositionKey), new Entry(pTheta, pScore));
+  }
+
+  /**
+   * Records the result of a consistency check (single evaluation at the cached
+   * theta)
+   *
+   * @param pPositionKey
+   *          stage position key, null for unknown position
+   * @param pScore
+   *          registration error at the cached theta
+   * @param pErrorBudget
+   *          tolerated relative increase of the registration error
+   * @return true if the error budget is exceeded and a full optimisation is
+   *         needed
+   */
+  boolean updateAfterCheck(String pPositionKey,
+                           double pScore,
+                           double pErrorBudget)
+  {
+    Entry lEntry = mEntryMap.get(key(pPositionKey));
+    if (lEntry == null)
+      return true;
+
+    double lMaxScore = lEntry.getReferenceScore()
+                       + Math.abs(lEntry.getReferenceScore())
+                         * pErrorBudget;
+    if (pScore > lMaxScore)
+      lEntry.mFullOptimisationNeeded = true;
+
+    return lEntry.isFullOptimisationNeeded();
+  }
+
+  /**
+   * Clears the cache
+   */
+  void clear()
+  {
+    mEntryMap.clear();
+  }
+
+  private static String key(String pPositionKey)
+  {
+    return pPositionKey == null ? cDefaultPositionKey : pPositionKey;
+  }
+
+}
@@ -0,0 +1,331 @@
+package clearcontrol.microscope.lightsheet.processor;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import clearcl.ClearCLImage;
+import clearcontrol.core.log.LoggingFeature;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.metadata.StackMetaData;
+import coremem.ContiguousMemoryInterface;
+import coremem.offheap.OffHeapMemory;
+import coremem.recycling.RecyclerInterface;
+
+/**
+ * Z slab streaming fusion. Views are split into Z slabs that are fused one
+ * after the other by the same fusion engine and task graph. Each slab is
+ * extended on both sides by a halo that covers the Gaussian kernels of the
+ * task graph and the Z displacement of the registration transform, only the
+ * interior planes of each fused slab are copied into the final fused stack.
+ * This bounds device memory usage by the slab size instead of the stack size.
+ * <p>
+ * Registration parameters (theta) are taken as translations in voxels and
+ * rotations in degrees about the centre of the registered image, with Z
+ * scaled by the voxel aspect ratio. Since each slab is rotated about its own
+ * centre, the theta of the central slab is converted for each other slab so
+ * that all slabs are fused with the same transform in stack coordinates.
+ *
+ * @author royer
+ */
+public class ZSlabFusion implements LoggingFeature
+{
+  private final LightSheetFastFusionEngine mEngine;
+
+  /**
+   * Instantiates a Z slab fusion for a given fusion engine
+   *
+   * @param pEngine
+   *          fusion engine
+   */
+  ZSlabFusion(LightSheetFastFusionEngine pEngine)
+  {
+    mEngine = pEngine;
+  }
+
+  /**
+   * Fuses the given views of one channel slab by slab. The central slab is
+   * fused first and determines the registration, the following slabs reuse
+   * the registration transform converted to their own centre.
+   *
+   * @param pViewMap
+   *          map from view key (e.g. ch1-C0L1) to view stack
+   * @param pChannelKeyPrefix
+   *          key prefix of the channel of the views, empty for stacks without
+   *          laser line
+   * @param pSlabDepth
+   *          number of planes per slab (without halo)
+   * @param pRegistrationConfigurator
+   *          called with a view stack before fusing the first slab, configures
+   *          registration
+   * @param pStackRecycler
+   *          recycler for the fused stack
+   * @return fused stack (with the metadata of the fused views), or null if no
+   *         slab could be fused
+   */
+  StackInterface fuse(Map<String, StackInterface> pViewMap,
+                      String pChannelKeyPrefix,
+                      int pSlabDepth,
+                      Consumer<StackInterface> pRegistrationConfigurator,
+                      RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
+  {
+    StackInterface lFirstView = pViewMap.values().iterator().next();
+    long lDepth = lFirstView.getDepth();
+    long lSlabDepth = Math.max(1, pSlabDepth);
+    double lScaleZ = lFirstView.getMetaData().getVoxelDimZ()
+                     / lFirstView.getMetaData().getVoxelDimX();
+
+    // the central slab halo is based on the previous transform, the other
+    // slabs on the transform found for the central slab:
+    int lHalo = getZHalo(mEngine.getLastUsedTheta(),
+                         lFirstView.getWidth(),
+                         lFirstView.getHeight(),
+                         lScaleZ);
+
+    ArrayList<Long> lSlabStartList = getSlabOrder(lDepth, lSlabDepth);
+    info("Fusing %d views in %d Z slabs of %d planes (halo %d planes)",
+         pViewMap.size(),
+         lSlabStartList.size(),
+         lSlabDepth,
+         lHalo);
+
+    StackInterface lFusedStack = null;
+    boolean lFusedStackReturned = false;
+    StackMetaData lFusedMetaData = null;
+    ContiguousMemoryInterface lSlabBuffer = null;
+    double[] lCentralTheta = null;
+    double lCentralSlabCentreZ = 0;
+
+    try
+    {
+      boolean lFirstSlab = true;
+      for (long lSlabStart : lSlabStartList)
+      {
+        long lSlabEnd = Math.min(lDepth, lSlabStart + lSlabDepth);
+        long lHaloStart = Math.max(0, lSlabStart - lHalo);
+        long lHaloEnd = Math.min(lDepth, lSlabEnd + lHalo);
+        double lSlabCentreZ = 0.5 * (lHaloStart + lHaloEnd);
+
+        for (StackInterface lView : pViewMap.values())
+          mEngine.passStackSlab(lView,
+                                lHaloStart,
+                                lHaloEnd - lHaloStart);
+
+        if (lFirstSlab)
+          pRegistrationConfigurator.accept(lFirstView);
+        else if (lCentralTheta != null)
+          freezeRegistration(getSlabTheta(lCentralTheta,
+                                          lSlabCentreZ
+                                                         - lCentralSlabCentreZ,
+                                          lScaleZ));
+
+        mEngine.executeAllTasks();
+
+        if (lFirstSlab && mEngine.getLastUsedTheta() != null)
+        {
+          lCentralTheta = mEngine.getLastUsedTheta().clone();
+          lCentralSlabCentreZ = lSlabCentreZ;
+          lHalo = getZHalo(lCentralTheta,
+                           lFirstView.getWidth(),
+                           lFirstView.getHeight(),
+                           lScaleZ);
+        }
+
+        if (!mEngine.isDone(pChannelKeyPrefix))
+        {
+          warning("Fusion of Z slab [%d,%d[ did not produce a fused image",
+                  lSlabStart,
+                  lSlabEnd);
+          return null;
+        }
+
+        ClearCLImage lFusedSlab =
+                                 mEngine.getImage(pChannelKeyPrefix
+                                                  + "fused");
+        long lWidth = lFusedSlab.getDimensions()[0];
+        long lHeight = lFusedSlab.getDimensions()[1];
+        long lPlaneSizeInBytes = lFusedSlab.getSizeInBytes()
+                                 / (lHaloEnd - lHaloStart);
+
+        if (lFusedStack == null)
+        {
+          lFusedStack =
+                      pStackRecycler.getOrWait(1000,
+                                               TimeUnit.SECONDS,
+                                               StackRequest.build(new long[]
+                                               { lWidth, lHeight, lDepth }));
+          if (lFusedStack == null)
+          {
+            warning("Could not obtain a fused stack of %d x %d x %d voxels",
+                    lWidth,
+                    lHeight,
+                    lDepth);
+            return null;
+          }
+          lFusedMetaData = mEngine.getFusedMetaData();
+        }
+
+        // the halo can grow once the central slab is registered:
+        if (lSlabBuffer == null
+            || lSlabBuffer.getSizeInBytes() < lFusedSlab.getSizeInBytes())
+        {
+          if (lSlabBuffer != null)
+            lSlabBuffer.free();
+          long lMaxSlabDepthWithHalo = Math.min(lDepth,
+                                                lSlabDepth + 2 * lHalo);
+          lSlabBuffer =
+                      OffHeapMemory.allocateBytes(lPlaneSizeInBytes
+                                                  * lMaxSlabDepthWithHalo);
+        }
+
+        ContiguousMemoryInterface lSlabRegion =
+                                              lSlabBuffer.subRegion(0,
+                                                                    lFusedSlab.getSizeInBytes());
+        lFusedSlab.writeTo(lSlabRegion, true);
+        mEngine.getProfiler()
+               .recordDeviceToHost(lFusedSlab.getSizeInBytes());
+
+        // only the interior planes of the slab are kept:
+        lSlabRegion.copyRangeTo((lSlabStart - lHaloStart)
+                                * lPlaneSizeInBytes,
+                                lFusedStack.getContiguousMemory(),
+                                lSlabStart * lPlaneSizeInBytes,
+                                (lSlabEnd - lSlabStart) * lPlaneSizeInBytes);
+
+        mEngine.reset(false);
+        lFirstSlab = false;
+      }
+
+      lFusedStack.setMetaData(lFusedMetaData);
+      lFusedStackReturned = true;
+      return lFusedStack;
+    }
+    finally
+    {
+      // a partially fused stack goes back to the recycler:
+      if (lFusedStack != null && !lFusedStackReturned)
+        lFusedStack.release();
+      if (lSlabBuffer != null)
+        lSlabBuffer.free();
+      // the next stack starts from the central slab transform:
+      if (lCentralTheta != null)
+        mEngine.setRegistrationInitialTheta(lCentralTheta);
+    }
+  }
+
+  private void freezeRegistration(double[] pSlabTheta)
+  {
+    if (mEngine.getRegistrationTask() == null)
+      return;
+
+    // a single evaluation at the given transform, used as is:
+    mEngine.setRegistrationInitialTheta(pSlabTheta);
+    if (mEngine.getRegistrationPyramid() != null)
+      mEngine.getRegistrationPyramid().configure(0, 1, 0, 0);
+    mEngine.getRegistrationTask().setSmoothingConstant(1);
+    mEngine.getRegistrationTask().getParameters().setNumberOfRestarts(0);
+    mEngine.getRegistrationTask()
+           .getParameters()
+           .setMaxNumberOfEvaluations(1);
+  }
+
+  /**
+   * Returns the halo needed around a slab: the kernel halo of the engine plus
+   * the largest Z displacement of the transform over a plane (translation and
+   * rotation of the plane corners).
+   */
+  private int getZHalo(double[] pTheta,
+                       long pWidth,
+                       long pHeight,
+                       double pScaleZ)
+  {
+    if (pTheta == null)
+      return mEngine.getZHalo();
+
+    double[][] lRotation = getRotationMatrix(pTheta);
+    double lMaxDisplacementZ = 0;
+    for (int sx = -1; sx <= 1; sx += 2)
+      for (int sy = -1; sy <= 1; sy += 2)
+      {
+        double lX = sx * 0.5 * pWidth;
+        double lY = sy * 0.5 * pHeight;
+        double lRotatedZ = lRotation[2][0] * lX + lRotation[2][1] * lY;
+        lMaxDisplacementZ = Math.max(lMaxDisplacementZ,
+                                     Math.abs(lRotatedZ / pScaleZ
+                                              + pTheta[2]));
+      }
+
+    return mEngine.getZHalo() + (int) Math.ceil(lMaxDisplacementZ);
+  }
+
+  /**
+   * Converts the theta of the central slab to a slab whose centre is offset
+   * along Z: x' = R (x - c) + c + T is the same transform about a centre c + d
+   * with translation T + (R - I) d.
+   *
+   * @param pCentralTheta
+   *          theta of the central slab
+   * @param pCentreOffsetZ
+   *          offset of the slab centre from the central slab centre, in planes
+   * @param pScaleZ
+   *          voxel aspect ratio (depth over width)
+   * @return theta for the slab
+   */
+  public static double[] getSlabTheta(double[] pCentralTheta,
+                                      double pCentreOffsetZ,
+                                      double pScaleZ)
+  {
+    double[][] lRotation = getRotationMatrix(pCentralTheta);
+    double lOffsetZ = pCentreOffsetZ * pScaleZ;
+
+    double[] lSlabTheta = pCentralTheta.clone();
+    lSlabTheta[0] += lRotation[0][2] * lOffsetZ;
+    lSlabTheta[1] += lRotation[1][2] * lOffsetZ;
+    lSlabTheta[2] += (lRotation[2][2] - 1) * lOffsetZ / pScaleZ;
+    return lSlabTheta;
+  }
+
+  /**
+   * Returns the rotation matrix Rz Ry Rx of a theta (rotations in degrees)
+   */
+  private static double[][] getRotationMatrix(double[] pTheta)
+  {
+    double lRx = Math.toRadians(pTheta[3]);
+    double lRy = Math.toRadians(pTheta[4]);
+    double lRz = Math.toRadians(pTheta[5]);
+    double cx = Math.cos(lRx), sx = Math.sin(lRx);
+    double cy = Math.cos(lRy), sy = Math.sin(lRy);
+    double cz = Math.cos(lRz), sz = Math.sin(lRz);
+
+    return new double[][]
+    {
+      { cz * cy, cz * sy * sx - sz * cx, cz * sy * cx + sz * sx },
+      { sz * cy, sz * sy * sx + cz * cx, sz * sy * cx - cz * sx },
+      { -sy, cy * sx, cy * cx } };
+  }
+
+  /**
+   * Returns the slab start planes, central slab first, then alternating
+   * outwards.
+   */
+  private static ArrayList<Long> getSlabOrder(long pDepth,
+                                              long pSlabDepth)
+  {
+    int lNumberOfSlabs = (int) ((pDepth + pSlabDepth - 1) / pSlabDepth);
+    int lCentralSlab = lNumberOfSlabs / 2;
+
+    ArrayList<Long> lSlabStartList = new ArrayList<>();
+    lSlabStartList.add(lCentralSlab * pSlabDepth);
+    for (int d = 1; d < lNumberOfSlabs; d++)
+    {
+      if (lCentralSlab + d < lNumberOfSlabs)
+        lSlabStartList.add((lCentralSlab + d) * pSlabDepth);
+      if (lCentralSlab - d >= 0)
+        lSlabStartList.add((lCentralSlab - d) * pSlabDepth);
+    }
+    return lSlabStartList;
+  }
+
+}
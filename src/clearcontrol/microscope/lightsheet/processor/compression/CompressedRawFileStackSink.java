@@ -0,0 +1,108 @@
+package clearcontrol.microscope.lightsheet.processor.compression;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import clearcontrol.core.log.LoggingFeature;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.sourcesink.sink.RawFileStackSink;
+
+/**
+ * Raw file stack sink that writes the compressed form of stacks that went
+ * through the {@link StackCompressionProcessor} instead of their raw voxels.
+ * Compressed stacks are written one file per stack in a 'compressed' folder
+ * of the dataset, next to an index file listing the stack index, dimensions
+ * and meta data. Stacks without a compressed form are written raw.
+ *
+ * @author royer
+ */
+public class CompressedRawFileStackSink extends RawFileStackSink
+                                        implements LoggingFeature
+{
+  private static final String cCompressedFolderName = "compressed";
+  private static final String cIndexFileName = "index.compressed.txt";
+
+  private File mCompressedFolder;
+  private long mNumberOfCompressedStacks;
+
+  /**
+   * Instantiates a compressed raw file stack sink
+   */
+  public CompressedRawFileStackSink()
+  {
+    super();
+  }
+
+  @Override
+  public void setLocation(File pRootFolder, String pDataSetName)
+  {
+    super.setLocation(pRootFolder, pDataSetName);
+    mCompressedFolder = new File(new File(pRootFolder, pDataSetName),
+                                 cCompressedFolderName);
+    mNumberOfCompressedStacks = 0;
+  }
+
+  @Override
+  public boolean appendStack(StackInterface pStack)
+  {
+    CompressedStack lCompressedStack =
+                                     StackCompressionProcessor.takeCompressedStack(pStack);
+    if (lCompressedStack == null || mCompressedFolder == null)
+    {
+      if (lCompressedStack != null)
+        lCompressedStack.free();
+      return super.appendStack(pStack);
+    }
+
+    try
+    {
+      return writeCompressedStack(lCompressedStack);
+    }
+    catch (IOException e)
+    {
+      severe("Could not write compressed stack: %s", e.toString());
+      e.printStackTrace();
+      return false;
+    }
+    finally
+    {
+      lCompressedStack.free();
+    }
+  }
+
+  private synchronized boolean writeCompressedStack(CompressedStack pCompressedStack) throws IOException
+  {
+    mCompressedFolder.mkdirs();
+
+    long lIndex = mNumberOfCompressedStacks++;
+    File lFile = new File(mCompressedFolder,
+                          String.format("%06d.cst", lIndex));
+    try (DataOutputStream lOutput =
+                                  new DataOutputStream(new BufferedOutputStream(new FileOutputStream(lFile))))
+    {
+      pCompressedStack.write(lOutput);
+    }
+
+    long[] lDimensions = pCompressedStack.getDimensions();
+    try (PrintWriter lIndexWriter =
+                                  new PrintWriter(new FileWriter(new File(mCompressedFolder,
+                                                                          cIndexFileName),
+                                                                 true)))
+    {
+      lIndexWriter.format("%d\t%s\t%d, %d, %d\t%s\n",
+                          lIndex,
+                          lFile.getName(),
+                          lDimensions[0],
+                          lDimensions[1],
+                          lDimensions[2],
+                          pCompressedStack.getMetaData());
+    }
+    return true;
+  }
+
+}
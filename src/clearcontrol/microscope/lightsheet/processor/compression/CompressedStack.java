@@ -0,0 +1,478 @@
+package clearcontrol.microscope.lightsheet.processor.compression;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.stream.IntStream;
+import java.util.zip.DataFormatException;
+
+import clearcontrol.stack.metadata.StackMetaData;
+import coremem.ContiguousMemoryInterface;
+import coremem.offheap.OffHeapMemory;
+
+/**
+ * Losslessly compressed unsigned 16 bit stack. The stack is split into chunks
+ * of consecutive planes that are compressed independently, compressed chunks
+ * are stored back to back in off-heap memory. Planes known to contain only
+ * background can be skipped: they are not stored and are filled with a
+ * background value when decompressing. Compressed stacks can be written to
+ * and read back from a simple binary format: a magic number, the dimensions,
+ * the chunk depth, the skipped planes and fill value (if any), the chunk
+ * lengths and the chunks.
+ *
+ * @author royer
+ */
+public class CompressedStack
+{
+  private static final int cMagicNumber = 0x43535431; // 'CST1'
+  private static final int cSkippedPlanesMagicNumber = 0x43535432; // 'CST2'
+
+  private final long mWidth, mHeight, mDepth;
+  private final int mChunkDepth;
+  private final int[] mSkippedPlanes, mStoredPlanes;
+  private final char mFillValue;
+  private final StackMetaData mMetaData;
+  private final ContiguousMemoryInterface mMemory;
+  private final long[] mChunkOffsets;
+  private final int[] mChunkLengths;
+  private final double mCompressionTimeInSeconds;
+
+  /**
+   * Instantiates a compressed stack
+   *
+   * @param pDimensions
+   *          stack dimensions (width, height, depth)
+   * @param pChunkDepth
+   *          number of planes per chunk
+   * @param pMetaData
+   *          stack meta data
+   * @param pMemory
+   *          compressed chunks, back to back
+   * @param pChunkOffsets
+   *          offset in bytes of each chunk
+   * @param pChunkLengths
+   *          length in bytes of each chunk
+   * @param pCompressionTimeInSeconds
+   *          time it took to compress the stack
+   */
+  public CompressedStack(long[] pDimensions,
+                         int pChunkDepth,
+                         StackMetaData pMetaData,
+                         ContiguousMemoryInterface pMemory,
+                         long[] pChunkOffsets,
+                         int[] pChunkLengths,
+                         double pCompressionTimeInSeconds)
+  {
+    this(pDimensions,
+         pChunkDepth,
+         new int[0],
+         (char) 0,
+         pMetaData,
+         pMemory,
+         pChunkOffsets,
+         pChunkLengths,
+         pCompressionTimeInSeconds);
+  }
+
+  /**
+   * Instantiates a compressed stack for which some planes are not stored
+   *
+   * @param pDimensions
+   *          stack dimensions (width, height, depth)
+   * @param pChunkDepth
+   *          number of stored planes per chunk
+   * @param pSkippedPlanes
+   *          increasing indices of the planes that are not stored
+   * @param pFillValue
+   *          value of the voxels of skipped planes
+   * @param pMetaData
+   *          stack meta data
+   * @param pMemory
+   *          compressed chunks, back to back
+   * @param pChunkOffsets
+   *          offset in bytes of each chunk
+   * @param pChunkLengths
+   *          length in bytes of each chunk
+   * @param pCompressionTimeInSeconds
+   *          time it took to compress the stack
+   */
+  public CompressedStack(long[] pDimensions,
+                         int pChunkDepth,
+                         int[] pSkippedPlanes,
+                         char pFillValue,
+                         StackMetaData pMetaData,
+                         ContiguousMemoryInterface pMemory,
+                         long[] pChunkOffsets,
+                         int[] pChunkLengths,
+                         double pCompressionTimeInSeconds)
+  {
+    mWidth = pDimensions[0];
+    mHeight = pDimensions[1];
+    mDepth = pDimensions[2];
+    mChunkDepth = pChunkDepth;
+    mSkippedPlanes = pSkippedPlanes;
+    mStoredPlanes = getStoredPlanes((int) mDepth, pSkippedPlanes);
+    mFillValue = pFillValue;
+    mMetaData = pMetaData;
+    mMemory = pMemory;
+    mChunkOffsets = pChunkOffsets;
+    mChunkLengths = pChunkLengths;
+    mCompressionTimeInSeconds = pCompressionTimeInSeconds;
+  }
+
+  private static int[] getStoredPlanes(int pDepth, int[] pSkippedPlanes)
+  {
+    int[] lStoredPlanes = new int[pDepth - pSkippedPlanes.length];
+    int i = 0, s = 0;
+    for (int z = 0; z < pDepth; z++)
+      if (s < pSkippedPlanes.length && pSkippedPlanes[s] == z)
+        s++;
+      else
+        lStoredPlanes[i++] = z;
+    if (s != pSkippedPlanes.length || i != lStoredPlanes.length)
+      throw new IllegalArgumentException("Skipped planes must be increasing plane indices");
+    return lStoredPlanes;
+  }
+
+  /**
+   * Returns the stack dimensions (width, height, depth)
+   *
+   * @return dimensions
+   */
+  public long[] getDimensions()
+  {
+    return new long[]
+    { mWidth, mHeight, mDepth };
+  }
+
+  /**
+   * Returns the number of planes per chunk
+   *
+   * @return chunk depth
+   */
+  public int getChunkDepth()
+  {
+    return mChunkDepth;
+  }
+
+  /**
+   * Returns the indices of the planes that are not stored
+   *
+   * @return skipped plane indices
+   */
+  public int[] getSkippedPlanes()
+  {
+    return mSkippedPlanes.clone();
+  }
+
+  /**
+   * Returns the value of the voxels of skipped planes
+   *
+   * @return fill value
+   */
+  public char getFillValue()
+  {
+    return mFillValue;
+  }
+
+  /**
+   * Returns the number of chunks
+   *
+   * @return number of chunks
+   */
+  public int getNumberOfChunks()
+  {
+    return mChunkLengths.length;
+  }
+
+  /**
+   * Returns the number of planes in a given chunk
+   *
+   * @param pChunkIndex
+   *          chunk index
+   * @return number of planes
+   */
+  public int getChunkNumberOfPlanes(int pChunkIndex)
+  {
+    return Math.min(mChunkDepth,
+                    mStoredPlanes.length - pChunkIndex * mChunkDepth);
+  }
+
+  /**
+   * Returns the stack meta data
+   *
+   * @return meta data
+   */
+  public StackMetaData getMetaData()
+  {
+    return mMetaData;
+  }
+
+  /**
+   * Returns the memory holding the compressed chunks
+   *
+   * @return compressed memory
+   */
+  public ContiguousMemoryInterface getCompressedMemory()
+  {
+    return mMemory;
+  }
+
+  /**
+   * Returns the offset in bytes of a chunk within the compressed memory
+   *
+   * @param pChunkIndex
+   *          chunk index
+   * @return offset in bytes
+   */
+  public long getChunkOffset(int pChunkIndex)
+  {
+    return mChunkOffsets[pChunkIndex];
+  }
+
+  /**
+   * Returns the length in bytes of a compressed chunk
+   *
+   * @param pChunkIndex
+   *          chunk index
+   * @return length in bytes
+   */
+  public int getChunkLength(int pChunkIndex)
+  {
+    return mChunkLengths[pChunkIndex];
+  }
+
+  /**
+   * Returns the compressed size in bytes
+   *
+   * @return compressed size in bytes
+   */
+  public long getCompressedSizeInBytes()
+  {
+    long lSize = 0;
+    for (int lChunkLength : mChunkLengths)
+      lSize += lChunkLength;
+    return lSize;
+  }
+
+  /**
+   * Returns the uncompressed size in bytes
+   *
+   * @return uncompressed size in bytes
+   */
+  public long getUncompressedSizeInBytes()
+  {
+    return mWidth * mHeight * mDepth * Character.BYTES;
+  }
+
+  /**
+   * Returns the compression ratio (uncompressed size over compressed size)
+   *
+   * @return compression ratio
+   */
+  public double getCompressionRatio()
+  {
+    return (double) getUncompressedSizeInBytes()
+           / Math.max(1, getCompressedSizeInBytes());
+  }
+
+  /**
+   * Returns the compression throughput in megabytes of uncompressed data per
+   * second
+   *
+   * @return throughput in MB/s
+   */
+  public double getThroughputInMegabytesPerSecond()
+  {
+    return getUncompressedSizeInBytes() * 1e-6
+           / Math.max(1e-9, mCompressionTimeInSeconds);
+  }
+
+  /**
+   * Returns a copy of the compressed bytes of a chunk
+   *
+   * @param pChunkIndex
+   *          chunk index
+   * @return compressed bytes
+   */
+  public byte[] getChunk(int pChunkIndex)
+  {
+    byte[] lChunk = new byte[mChunkLengths[pChunkIndex]];
+    for (int j = 0; j < lChunk.length; j++)
+      lChunk[j] = mMemory.getByte(mChunkOffsets[pChunkIndex] + j);
+    return lChunk;
+  }
+
+  /**
+   * Writes this compressed stack, meta data excluded
+   *
+   * @param pOutput
+   *          output
+   * @throws IOException
+   *           if writing fails
+   */
+  public void write(DataOutput pOutput) throws IOException
+  {
+    boolean lSkippedPlanes = mSkippedPlanes.length > 0;
+    pOutput.writeInt(lSkippedPlanes ? cSkippedPlanesMagicNumber
+                                    : cMagicNumber);
+    pOutput.writeLong(mWidth);
+    pOutput.writeLong(mHeight);
+    pOutput.writeLong(mDepth);
+    pOutput.writeInt(mChunkDepth);
+    if (lSkippedPlanes)
+    {
+      pOutput.writeChar(mFillValue);
+      pOutput.writeInt(mSkippedPlanes.length);
+      for (int lSkippedPlane : mSkippedPlanes)
+        pOutput.writeInt(lSkippedPlane);
+    }
+    pOutput.writeInt(getNumberOfChunks());
+    for (int lChunkLength : mChunkLengths)
+      pOutput.writeInt(lChunkLength);
+    for (int i = 0; i < getNumberOfChunks(); i++)
+      pOutput.write(getChunk(i));
+  }
+
+  /**
+   * Reads a compressed stack written with {@link #write(DataOutput)}
+   *
+   * @param pInput
+   *          input
+   * @param pMetaData
+   *          meta data to attach, may be null
+   * @return compressed stack
+   * @throws IOException
+   *           if reading fails or the format is not recognised
+   */
+  public static CompressedStack read(DataInput pInput,
+                                     StackMetaData pMetaData) throws IOException
+  {
+    int lMagicNumber = pInput.readInt();
+    if (lMagicNumber != cMagicNumber
+        && lMagicNumber != cSkippedPlanesMagicNumber)
+      throw new IOException("Not a compressed stack");
+
+    long[] lDimensions = new long[]
+    { pInput.readLong(), pInput.readLong(), pInput.readLong() };
+    int lChunkDepth = pInput.readInt();
+
+    char lFillValue = 0;
+    int[] lSkippedPlanes = new int[0];
+    if (lMagicNumber == cSkippedPlanesMagicNumber)
+    {
+      lFillValue = pInput.readChar();
+      lSkippedPlanes = new int[pInput.readInt()];
+      for (int i = 0; i < lSkippedPlanes.length; i++)
+        lSkippedPlanes[i] = pInput.readInt();
+    }
+    int lNumberOfChunks = pInput.readInt();
+
+    long[] lChunkOffsets = new long[lNumberOfChunks];
+    int[] lChunkLengths = new int[lNumberOfChunks];
+    long lCompressedSizeInBytes = 0;
+    for (int i = 0; i < lNumberOfChunks; i++)
+    {
+      lChunkOffsets[i] = lCompressedSizeInBytes;
+      lChunkLengths[i] = pInput.readInt();
+      lCompressedSizeInBytes += lChunkLengths[i];
+    }
+
+    ContiguousMemoryInterface lMemory =
+                                      OffHeapMemory.allocateBytes(Math.max(1,
+                                                                           lCompressedSizeInBytes));
+    for (int i = 0; i < lNumberOfChunks; i++)
+    {
+      byte[] lChunk = new byte[lChunkLengths[i]];
+      pInput.readFully(lChunk);
+      for (int j = 0; j < lChunk.length; j++)
+        lMemory.setByte(lChunkOffsets[i] + j, lChunk[j]);
+    }
+
+    try
+    {
+      return new CompressedStack(lDimensions,
+                                 lChunkDepth,
+                                 lSkippedPlanes,
+                                 lFillValue,
+                                 pMetaData,
+                                 lMemory,
+                                 lChunkOffsets,
+                                 lChunkLengths,
+                                 0);
+    }
+    catch (IllegalArgumentException e)
+    {
+      lMemory.free();
+      throw new IOException("Corrupted compressed stack", e);
+    }
+  }
+
+  /**
+   * Decompresses this stack into a given memory, chunks are decompressed in
+   * parallel and skipped planes are filled with the fill value
+   *
+   * @param pMemory
+   *          destination memory, must hold the uncompressed stack
+   */
+  public void decompressTo(ContiguousMemoryInterface pMemory)
+  {
+    int lPlaneLength = (int) (mWidth * mHeight);
+    for (int lSkippedPlane : mSkippedPlanes)
+    {
+      long lOffset = (long) lSkippedPlane * lPlaneLength;
+      for (int j = 0; j < lPlaneLength; j++)
+        pMemory.setCharAligned(lOffset + j, mFillValue);
+    }
+
+    IntStream.range(0, getNumberOfChunks()).parallel().forEach((i) -> {
+      byte[] lCompressed = getChunk(i);
+
+      int lLength = getChunkNumberOfPlanes(i) * lPlaneLength;
+      char[] lValues = new char[lLength];
+      try
+      {
+        StackCompressionCodec.decode(lCompressed,
+                                     lCompressed.length,
+                                     lValues,
+                                     lLength,
+                                     (int) mWidth);
+      }
+      catch (DataFormatException e)
+      {
+        throw new RuntimeException("Corrupted compressed chunk " + i,
+                                   e);
+      }
+
+      for (int p = 0; p < getChunkNumberOfPlanes(i); p++)
+      {
+        long lOffset = (long) mStoredPlanes[i * mChunkDepth + p]
+                       * lPlaneLength;
+        for (int j = 0; j < lPlaneLength; j++)
+          pMemory.setCharAligned(lOffset + j,
+                                 lValues[p * lPlaneLength + j]);
+      }
+    });
+  }
+
+  /**
+   * Frees the compressed memory
+   */
+  public void free()
+  {
+    mMemory.free();
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("CompressedStack [%d x %d x %d, %d chunks, %d skipped planes, ratio=%.2f]",
+                         mWidth,
+                         mHeight,
+                         mDepth,
+                         getNumberOfChunks(),
+                         mSkippedPlanes.length,
+                         getCompressionRatio());
+  }
+
+}
@@ -0,0 +1,226 @@
+package clearcontrol.microscope.lightsheet.processor.compression;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Lossless codec for chunks of unsigned 16 bit voxels. Each voxel is replaced
+ * by its difference with its left neighbour (upper neighbour for the first
+ * voxel of a row), differences are zigzag encoded so that small negative
+ * values stay small, bits are shuffled so that equal bit positions of
+ * consecutive voxels end up in the same bytes, and the result is compressed
+ * with a fast LZ dictionary coder. The shuffle works on blocks of 8 voxels:
+ * low and high bytes are split (byte shuffle) and each 8x8 bit matrix is
+ * transposed with word operations (bit shuffle). The entropy stage is
+ * java.util.zip deflate at best speed rather than LZ4 or zstd, which are not
+ * available without an extra native dependency; after delta and bit-plane
+ * shuffling most of the gain comes from the long zero runs of the high bit
+ * planes, which deflate also captures.
+ *
+ * @author royer
+ */
+public class StackCompressionCodec
+{
+  private static final ThreadLocal<Deflater> cDeflater =
+                                                       ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+
+  private static final ThreadLocal<Inflater> cInflater =
+                                                       ThreadLocal.withInitial(() -> new Inflater());
+
+  /**
+   * Compresses a chunk of voxels
+   *
+   * @param pValues
+   *          voxel values
+   * @param pLength
+   *          number of voxels to compress
+   * @param pRowLength
+   *          number of voxels per row (image width)
+   * @return compressed bytes
+   */
+  public static byte[] encode(char[] pValues, int pLength, int pRowLength)
+  {
+    byte[] lShuffled = bitShuffle(delta(pValues, pLength, pRowLength),
+                                  pLength);
+
+    Deflater lDeflater = cDeflater.get();
+    lDeflater.reset();
+    lDeflater.setInput(lShuffled);
+    lDeflater.finish();
+
+    byte[] lCompressed = new byte[lShuffled.length / 2 + 64];
+    int lCompressedLength = 0;
+    while (!lDeflater.finished())
+    {
+      if (lCompressedLength == lCompressed.length)
+        lCompressed = Arrays.copyOf(lCompressed, 2 * lCompressed.length);
+      lCompressedLength += lDeflater.deflate(lCompressed,
+                                             lCompressedLength,
+                                             lCompressed.length
+                                                                - lCompressedLength);
+    }
+
+    return Arrays.copyOf(lCompressed, lCompressedLength);
+  }
+
+  /**
+   * Decompresses a chunk of voxels
+   *
+   * @param pCompressed
+   *          compressed bytes
+   * @param pCompressedLength
+   *          number of compressed bytes
+   * @param pValues
+   *          array receiving the voxel values
+   * @param pLength
+   *          number of voxels in the chunk
+   * @param pRowLength
+   *          number of voxels per row (image width)
+   * @throws DataFormatException
+   *           if the compressed bytes are corrupted
+   */
+  public static void decode(byte[] pCompressed,
+                            int pCompressedLength,
+                            char[] pValues,
+                            int pLength,
+                            int pRowLength) throws DataFormatException
+  {
+    byte[] lShuffled = new byte[getShuffledLength(pLength)];
+
+    Inflater lInflater = cInflater.get();
+    lInflater.reset();
+    lInflater.setInput(pCompressed, 0, pCompressedLength);
+
+    int lLength = 0;
+    while (lLength < lShuffled.length && !lInflater.finished())
+    {
+      int lInflated = lInflater.inflate(lShuffled,
+                                        lLength,
+                                        lShuffled.length - lLength);
+      if (lInflated == 0 && lInflater.needsInput())
+        throw new DataFormatException("Truncated compressed chunk");
+      lLength += lInflated;
+    }
+
+    bitUnshuffle(lShuffled, pValues, pLength);
+    undelta(pValues, pLength, pRowLength);
+  }
+
+  private static char[] delta(char[] pValues,
+                              int pLength,
+                              int pRowLength)
+  {
+    char[] lDeltas = new char[pLength];
+    for (int i = 0; i < pLength; i++)
+    {
+      int lPrediction = predict(pValues, i, pRowLength);
+      short lDelta = (short) (pValues[i] - lPrediction);
+      lDeltas[i] = (char) ((lDelta << 1) ^ (lDelta >> 15));
+    }
+    return lDeltas;
+  }
+
+  private static void undelta(char[] pValues,
+                              int pLength,
+                              int pRowLength)
+  {
+    for (int i = 0; i < pLength; i++)
+    {
+      int lZigZag = pValues[i];
+      short lDelta = (short) ((lZigZag >>> 1) ^ -(lZigZag & 1));
+      pValues[i] = (char) (predict(pValues, i, pRowLength) + lDelta);
+    }
+  }
+
+  private static int predict(char[] pValues, int pIndex, int pRowLength)
+  {
+    if (pIndex % pRowLength != 0)
+      return pValues[pIndex - 1];
+    if (pIndex >= pRowLength)
+      return pValues[pIndex - pRowLength];
+    return 0;
+  }
+
+  private static int getShuffledLength(int pLength)
+  {
+    return Character.SIZE * ((pLength + 7) / 8);
+  }
+
+  /**
+   * Bit-plane n of a block of 8 consecutive voxels is stored in one byte
+   * (bit i for voxel i of the block), planes are laid out one after the
+   * other. Low and high bytes of a block are gathered into two longs whose
+   * 8x8 bit matrices are transposed, so that each long yields 8 bit-planes.
+   */
+  private static byte[] bitShuffle(char[] pValues, int pLength)
+  {
+    int lNumberOfBlocks = (pLength + 7) / 8;
+    byte[] lShuffled = new byte[getShuffledLength(pLength)];
+    for (int lBlock = 0; lBlock < lNumberOfBlocks; lBlock++)
+    {
+      int lStart = lBlock << 3;
+      int lBlockLength = Math.min(8, pLength - lStart);
+      long lLow = 0, lHigh = 0;
+      for (int j = 0; j < lBlockLength; j++)
+      {
+        int lValue = pValues[lStart + j];
+        lLow |= (long) (lValue & 0xFF) << (8 * j);
+        lHigh |= (long) (lValue >>> 8) << (8 * j);
+      }
+      lLow = transpose(lLow);
+      lHigh = transpose(lHigh);
+      for (int b = 0; b < 8; b++)
+      {
+        lShuffled[b * lNumberOfBlocks + lBlock] = (byte) (lLow >>> (8 * b));
+        lShuffled[(b + 8) * lNumberOfBlocks
+                  + lBlock] = (byte) (lHigh >>> (8 * b));
+      }
+    }
+    return lShuffled;
+  }
+
+  private static void bitUnshuffle(byte[] pShuffled,
+                                   char[] pValues,
+                                   int pLength)
+  {
+    int lNumberOfBlocks = (pLength + 7) / 8;
+    for (int lBlock = 0; lBlock < lNumberOfBlocks; lBlock++)
+    {
+      long lLow = 0, lHigh = 0;
+      for (int b = 0; b < 8; b++)
+      {
+        lLow |= (long) (pShuffled[b * lNumberOfBlocks + lBlock] & 0xFF) << (8
+                                                                             * b);
+        lHigh |= (long) (pShuffled[(b + 8) * lNumberOfBlocks + lBlock]
+                         & 0xFF) << (8 * b);
+      }
+      lLow = transpose(lLow);
+      lHigh = transpose(lHigh);
+
+      int lStart = lBlock << 3;
+      int lBlockLength = Math.min(8, pLength - lStart);
+      for (int j = 0; j < lBlockLength; j++)
+        pValues[lStart + j] = (char) (((lLow >>> (8 * j)) & 0xFF)
+                                      | (((lHigh >>> (8 * j)) & 0xFF) << 8));
+    }
+  }
+
+  /**
+   * Transposes the 8x8 bit matrix held in a long, bit c of byte r becomes bit
+   * r of byte c. The transpose is its own inverse.
+   */
+  private static long transpose(long x)
+  {
+    long t;
+    t = (x ^ (x >>> 7)) & 0x00AA00AA00AA00AAL;
+    x = x ^ t ^ (t << 7);
+    t = (x ^ (x >>> 14)) & 0x0000CCCC0000CCCCL;
+    x = x ^ t ^ (t << 14);
+    t = (x ^ (x >>> 28)) & 0x00000000F0F0F0F0L;
+    x = x ^ t ^ (t << 28);
+    return x;
+  }
+
+}
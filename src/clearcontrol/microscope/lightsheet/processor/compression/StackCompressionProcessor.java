@@ -0,0 +1,355 @@
+package clearcontrol.microscope.lightsheet.processor.compression;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.stream.IntStream;
+
+import clearcontrol.core.configuration.MachineConfiguration;
+import clearcontrol.core.log.LoggingFeature;
+import clearcontrol.core.variable.Variable;
+import clearcontrol.microscope.lightsheet.stacks.MetaDataEmptyPlanes;
+import clearcontrol.microscope.lightsheet.stacks.MetaDataSampleBounds;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.metadata.StackMetaData;
+import clearcontrol.stack.processor.StackProcessorBase;
+import clearcontrol.stack.processor.StackProcessorInterface;
+import coremem.ContiguousMemoryInterface;
+import coremem.offheap.OffHeapMemory;
+import coremem.recycling.RecyclerInterface;
+
+/**
+ * Lossless stack compression processor. Unsigned 16 bit stacks are split in
+ * chunks of planes that are compressed in parallel into off-heap memory. The
+ * original stack is passed down the pipeline untouched (viewers and further
+ * processing need the raw voxels) while its compressed form is kept aside
+ * until the stack writer takes it: {@link CompressedRawFileStackSink} writes
+ * the compressed form instead of the raw voxels. Compressed forms that are
+ * not taken are freed when the stack comes through again or when too many
+ * are pending. Compression ratio and throughput are reported for each stack.
+ * When skipping empty planes is enabled, the planes that the
+ * SampleBoundsProcessor recorded as background only (MetaDataEmptyPlanes) are
+ * not stored and decompress to the recorded background level: this is lossy
+ * for those planes and therefore off by default.
+ *
+ * @author royer
+ */
+public class StackCompressionProcessor extends StackProcessorBase
+                                       implements
+                                       StackProcessorInterface,
+                                       LoggingFeature
+{
+  private static final int cMaxPendingCompressedStacks =
+                                                       MachineConfiguration.get()
+                                                                           .getIntegerProperty("compression.maxpending",
+                                                                                               16);
+
+  // compressed forms waiting for the stack writer, the sink is instantiated
+  // by the timelapse and has no reference to this processor:
+  private static final IdentityHashMap<StackInterface, CompressedStack> cPendingCompressedStackMap =
+                                                                                                  new IdentityHashMap<>();
+  private static final ArrayDeque<StackInterface> cPendingStackQueue =
+                                                                     new ArrayDeque<>();
+
+  private final Variable<Boolean> mEnabledVariable =
+                                                   new Variable<Boolean>("Enabled",
+                                                                         MachineConfiguration.get()
+                                                                                             .getBooleanProperty("compression.enabled",
+                                                                                                                 false));
+
+  private final Variable<Integer> mChunkDepthVariable =
+                                                      new Variable<Integer>("ChunkDepth",
+                                                                            MachineConfiguration.get()
+                                                                                                .getIntegerProperty("compression.chunkdepth",
+                                                                                                                    8));
+
+  private final Variable<Boolean> mSkipEmptyPlanesVariable =
+                                                           new Variable<Boolean>("SkipEmptyPlanes",
+                                                                                 MachineConfiguration.get()
+                                                                                                     .getBooleanProperty("compression.skipemptyplanes",
+                                                                                                                         false));
+
+  private final Variable<Double> mCompressionRatioVariable =
+                                                           new Variable<Double>("CompressionRatio",
+                                                                                1.0);
+
+  private final Variable<Double> mThroughputVariable =
+                                                     new Variable<Double>("Throughput",
+                                                                          0.0);
+
+  /**
+   * Instantiates a stack compression processor
+   *
+   * @param pProcessorName
+   *          processor name
+   */
+  public StackCompressionProcessor(String pProcessorName)
+  {
+    super(pProcessorName);
+  }
+
+  @Override
+  public StackInterface process(StackInterface pStack,
+                                RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
+  {
+    if (!getEnabledVariable().get())
+    {
+      // a stale compressed form must not be written for this stack:
+      discardCompressedStack(pStack);
+      return pStack;
+    }
+
+    boolean[] lSkippedPlanes = null;
+    char lFillValue = 0;
+    StackMetaData lMetaData = pStack.getMetaData();
+    if (getSkipEmptyPlanesVariable().get()
+        && lMetaData.hasEntry(MetaDataSampleBounds.BackgroundLevel))
+    {
+      try
+      {
+        lSkippedPlanes =
+                       MetaDataEmptyPlanes.getEmptyPlanes(lMetaData,
+                                                          (int) pStack.getDepth());
+        lFillValue =
+                   (char) Math.max(0,
+                                   Math.min(Character.MAX_VALUE,
+                                            lMetaData.getValue(MetaDataSampleBounds.BackgroundLevel)));
+      }
+      catch (IllegalArgumentException e)
+      {
+        warning("Ignoring invalid empty planes of stack %s: %s",
+                pStack,
+                e.getMessage());
+        lSkippedPlanes = null;
+      }
+    }
+
+    CompressedStack lCompressedStack = compress(pStack,
+                                                getChunkDepthVariable().get(),
+                                                lSkippedPlanes,
+                                                lFillValue);
+
+    info("Compressed stack %s: skipped planes=%d, ratio=%.2f, throughput=%.1f MB/s",
+         pStack,
+         lCompressedStack.getSkippedPlanes().length,
+         lCompressedStack.getCompressionRatio(),
+         lCompressedStack.getThroughputInMegabytesPerSecond());
+    getCompressionRatioVariable().set(lCompressedStack.getCompressionRatio());
+    getThroughputVariable().set(lCompressedStack.getThroughputInMegabytesPerSecond());
+
+    putCompressedStack(pStack, lCompressedStack);
+
+    return pStack;
+  }
+
+  private static void putCompressedStack(StackInterface pStack,
+                                         CompressedStack pCompressedStack)
+  {
+    synchronized (cPendingCompressedStackMap)
+    {
+      discardCompressedStack(pStack);
+      cPendingCompressedStackMap.put(pStack, pCompressedStack);
+      cPendingStackQueue.addLast(pStack);
+
+      while (cPendingStackQueue.size() > cMaxPendingCompressedStacks)
+        discardCompressedStack(cPendingStackQueue.peekFirst());
+    }
+  }
+
+  private static void discardCompressedStack(StackInterface pStack)
+  {
+    CompressedStack lCompressedStack = takeCompressedStack(pStack);
+    if (lCompressedStack != null)
+      lCompressedStack.free();
+  }
+
+  /**
+   * Takes the compressed form of a stack that went through this processor,
+   * the caller becomes responsible for freeing it.
+   *
+   * @param pStack
+   *          stack
+   * @return compressed stack, or null if none is pending for this stack
+   */
+  public static CompressedStack takeCompressedStack(StackInterface pStack)
+  {
+    synchronized (cPendingCompressedStackMap)
+    {
+      CompressedStack lCompressedStack =
+                                       cPendingCompressedStackMap.remove(pStack);
+      if (lCompressedStack != null)
+        cPendingStackQueue.removeIf((s) -> s == pStack);
+      return lCompressedStack;
+    }
+  }
+
+  /**
+   * Compresses an unsigned 16 bit stack, chunks of planes are compressed in
+   * parallel.
+   *
+   * @param pStack
+   *          stack to compress
+   * @param pChunkDepth
+   *          number of planes per chunk
+   * @return compressed stack
+   */
+  public static CompressedStack compress(StackInterface pStack,
+                                         int pChunkDepth)
+  {
+    return compress(pStack, pChunkDepth, null, (char) 0);
+  }
+
+  /**
+   * Compresses an unsigned 16 bit stack without storing the given planes,
+   * chunks of the remaining planes are compressed in parallel.
+   *
+   * @param pStack
+   *          stack to compress
+   * @param pChunkDepth
+   *          number of stored planes per chunk
+   * @param pSkippedPlanes
+   *          for each plane, true if it should not be stored, may be null
+   * @param pFillValue
+   *          value that skipped planes decompress to
+   * @return compressed stack
+   */
+  public static CompressedStack compress(StackInterface pStack,
+                                         int pChunkDepth,
+                                         boolean[] pSkippedPlanes,
+                                         char pFillValue)
+  {
+    long lStartTime = System.nanoTime();
+
+    int lWidth = (int) pStack.getWidth();
+    int lPlaneLength = (int) (pStack.getWidth() * pStack.getHeight());
+    int lDepth = (int) pStack.getDepth();
+    ContiguousMemoryInterface lMemory = pStack.getContiguousMemory();
+
+    int lNumberOfSkippedPlanes = 0;
+    if (pSkippedPlanes != null)
+      for (int z = 0; z < lDepth; z++)
+        if (pSkippedPlanes[z])
+          lNumberOfSkippedPlanes++;
+    int[] lSkippedPlanes = new int[lNumberOfSkippedPlanes];
+    int[] lStoredPlanes = new int[lDepth - lNumberOfSkippedPlanes];
+    for (int z = 0, s = 0, k = 0; z < lDepth; z++)
+      if (pSkippedPlanes != null && pSkippedPlanes[z])
+        lSkippedPlanes[s++] = z;
+      else
+        lStoredPlanes[k++] = z;
+
+    int lChunkDepth = Math.max(1,
+                               Math.min(pChunkDepth,
+                                        lStoredPlanes.length));
+    int lNumberOfChunks = (lStoredPlanes.length + lChunkDepth - 1)
+                          / lChunkDepth;
+
+    byte[][] lChunks = new byte[lNumberOfChunks][];
+    IntStream.range(0, lNumberOfChunks).parallel().forEach((i) -> {
+      int lNumberOfPlanes = Math.min(lChunkDepth,
+                                     lStoredPlanes.length
+                                                  - i * lChunkDepth);
+      int lLength = lNumberOfPlanes * lPlaneLength;
+
+      char[] lValues = new char[lLength];
+      for (int p = 0; p < lNumberOfPlanes; p++)
+      {
+        long lOffset = (long) lStoredPlanes[i * lChunkDepth + p]
+                       * lPlaneLength;
+        for (int j = 0; j < lPlaneLength; j++)
+          lValues[p * lPlaneLength + j] =
+                                        lMemory.getCharAligned(lOffset + j);
+      }
+
+      lChunks[i] = StackCompressionCodec.encode(lValues,
+                                                lLength,
+                                                lWidth);
+    });
+
+    long[] lChunkOffsets = new long[lNumberOfChunks];
+    int[] lChunkLengths = new int[lNumberOfChunks];
+    long lCompressedSizeInBytes = 0;
+    for (int i = 0; i < lNumberOfChunks; i++)
+    {
+      lChunkOffsets[i] = lCompressedSizeInBytes;
+      lChunkLengths[i] = lChunks[i].length;
+      lCompressedSizeInBytes += lChunks[i].length;
+    }
+
+    ContiguousMemoryInterface lCompressedMemory =
+                                                OffHeapMemory.allocateBytes(Math.max(1,
+                                                                                     lCompressedSizeInBytes));
+    IntStream.range(0, lNumberOfChunks).parallel().forEach((i) -> {
+      byte[] lChunk = lChunks[i];
+      for (int j = 0; j < lChunk.length; j++)
+        lCompressedMemory.setByte(lChunkOffsets[i] + j, lChunk[j]);
+    });
+
+    double lElapsedTimeInSeconds = (System.nanoTime() - lStartTime)
+                                   * 1e-9;
+
+    return new CompressedStack(pStack.getDimensions(),
+                               lChunkDepth,
+                               lSkippedPlanes,
+                               pFillValue,
+                               pStack.getMetaData().clone(),
+                               lCompressedMemory,
+                               lChunkOffsets,
+                               lChunkLengths,
+                               lElapsedTimeInSeconds);
+  }
+
+  /**
+   * Returns the variable holding the flag that enables compression
+   *
+   * @return enabled variable
+   */
+  public Variable<Boolean> getEnabledVariable()
+  {
+    return mEnabledVariable;
+  }
+
+  /**
+   * Returns the variable holding the number of planes compressed together
+   *
+   * @return chunk depth variable
+   */
+  public Variable<Integer> getChunkDepthVariable()
+  {
+    return mChunkDepthVariable;
+  }
+
+  /**
+   * Returns the variable holding the flag that enables skipping the planes
+   * recorded as empty in the stack meta data, these planes decompress to the
+   * recorded background level
+   *
+   * @return skip empty planes variable
+   */
+  public Variable<Boolean> getSkipEmptyPlanesVariable()
+  {
+    return mSkipEmptyPlanesVariable;
+  }
+
+  /**
+   * Returns the variable holding the compression ratio of the last stack
+   *
+   * @return compression ratio variable
+   */
+  public Variable<Double> getCompressionRatioVariable()
+  {
+    return mCompressionRatioVariable;
+  }
+
+  /**
+   * Returns the variable holding the compression throughput (MB/s) of the
+   * last stack
+   *
+   * @return throughput variable
+   */
+  public Variable<Double> getThroughputVariable()
+  {
+    return mThroughputVariable;
+  }
+
+}
@@ -0,0 +1,263 @@
+package clearcontrol.microscope.lightsheet.processor.compression.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import clearcontrol.microscope.lightsheet.processor.compression.CompressedStack;
+import clearcontrol.microscope.lightsheet.processor.compression.StackCompressionCodec;
+import clearcontrol.microscope.lightsheet.stacks.MetaDataEmptyPlanes;
+import coremem.ContiguousMemoryInterface;
+import coremem.offheap.OffHeapMemory;
+
+import org.junit.Test;
+
+/**
+ * Stack compression codec tests
+ *
+ * @author royer
+ */
+public class StackCompressionCodecTests
+{
+
+  /**
+   * tests that random voxels, including extreme values, survive a round trip
+   *
+   * @throws DataFormatException
+   *           NA
+   */
+  @Test
+  public void randomRoundTrip() throws DataFormatException
+  {
+    int lWidth = 37, lLength = lWidth * 29 + 5;
+    char[] lValues = new char[lLength];
+    Random lRandom = new Random(42);
+    for (int i = 0; i < lLength; i++)
+      lValues[i] = (char) lRandom.nextInt(1 << 16);
+    lValues[0] = 0;
+    lValues[1] = 65535;
+    lValues[2] = 0;
+
+    assertArrayEquals(lValues, roundTrip(lValues, lWidth));
+  }
+
+  /**
+   * tests that smooth images survive a round trip and compress well
+   *
+   * @throws DataFormatException
+   *           NA
+   */
+  @Test
+  public void smoothRoundTrip() throws DataFormatException
+  {
+    int lWidth = 128, lHeight = 96, lLength = lWidth * lHeight * 4;
+    char[] lValues = new char[lLength];
+    Random lRandom = new Random(7);
+    for (int i = 0; i < lLength; i++)
+    {
+      int x = i % lWidth, y = (i / lWidth) % lHeight;
+      lValues[i] = (char) (100 + x + 2 * y + lRandom.nextInt(4));
+    }
+
+    byte[] lCompressed = StackCompressionCodec.encode(lValues,
+                                                      lLength,
+                                                      lWidth);
+    assertTrue(lCompressed.length * 2 < lLength * Character.BYTES);
+
+    assertArrayEquals(lValues, roundTrip(lValues, lWidth));
+  }
+
+  /**
+   * tests that a compressed stack written to a file format can be read back
+   * and decompressed
+   *
+   * @throws IOException
+   *           NA
+   */
+  @Test
+  public void writeReadRoundTrip() throws IOException
+  {
+    int lWidth = 16, lHeight = 8, lDepth = 3;
+    int lPlaneLength = lWidth * lHeight;
+    char[] lValues = new char[lPlaneLength * lDepth];
+    Random lRandom = new Random(3);
+    for (int i = 0; i < lValues.length; i++)
+      lValues[i] = (char) (1000 + lRandom.nextInt(50));
+
+    // one plane per chunk:
+    long[] lChunkOffsets = new long[lDepth];
+    int[] lChunkLengths = new int[lDepth];
+    byte[][] lChunks = new byte[lDepth][];
+    long lSize = 0;
+    for (int z = 0; z < lDepth; z++)
+    {
+      char[] lPlane = new char[lPlaneLength];
+      System.arraycopy(lValues, z * lPlaneLength, lPlane, 0, lPlaneLength);
+      lChunks[z] = StackCompressionCodec.encode(lPlane,
+                                                lPlaneLength,
+                                                lWidth);
+      lChunkOffsets[z] = lSize;
+      lChunkLengths[z] = lChunks[z].length;
+      lSize += lChunks[z].length;
+    }
+    ContiguousMemoryInterface lMemory = OffHeapMemory.allocateBytes(lSize);
+    for (int z = 0; z < lDepth; z++)
+      for (int j = 0; j < lChunks[z].length; j++)
+        lMemory.setByte(lChunkOffsets[z] + j, lChunks[z][j]);
+
+    long[] lDimensions = new long[]
+    { lWidth, lHeight, lDepth };
+    CompressedStack lCompressedStack = new CompressedStack(lDimensions,
+                                                           1,
+                                                           null,
+                                                           lMemory,
+                                                           lChunkOffsets,
+                                                           lChunkLengths,
+                                                           0);
+
+    ByteArrayOutputStream lBytes = new ByteArrayOutputStream();
+    lCompressedStack.write(new DataOutputStream(lBytes));
+    CompressedStack lReadStack =
+                               CompressedStack.read(new DataInputStream(new ByteArrayInputStream(lBytes.toByteArray())),
+                                                    null);
+    assertEquals(lDepth, lReadStack.getNumberOfChunks());
+
+    ContiguousMemoryInterface lDecompressed =
+                                            OffHeapMemory.allocateBytes(lValues.length
+                                                                        * Character.BYTES);
+    lReadStack.decompressTo(lDecompressed);
+    char[] lDecoded = new char[lValues.length];
+    for (int i = 0; i < lDecoded.length; i++)
+      lDecoded[i] = lDecompressed.getCharAligned(i);
+    assertArrayEquals(lValues, lDecoded);
+
+    lCompressedStack.free();
+    lReadStack.free();
+    lDecompressed.free();
+  }
+
+  /**
+   * tests that skipped planes are written, read back and decompress to the
+   * fill value, and that empty plane ranges survive a round trip
+   *
+   * @throws IOException
+   *           NA
+   */
+  @Test
+  public void skippedPlanesRoundTrip() throws IOException
+  {
+    boolean[] lEmptyPlanes = new boolean[]
+    { true, true, false, true, false, false, true };
+    assertEquals("0-1,3,6", MetaDataEmptyPlanes.toRanges(lEmptyPlanes));
+    assertArrayEquals(lEmptyPlanes,
+                      MetaDataEmptyPlanes.fromRanges("0-1,3,6",
+                                                     lEmptyPlanes.length));
+
+    int lWidth = 8, lHeight = 4, lDepth = lEmptyPlanes.length;
+    int lPlaneLength = lWidth * lHeight;
+    char lFillValue = 100;
+    int[] lSkippedPlanes = new int[]
+    { 0, 1, 3, 6 };
+    int[] lStoredPlanes = new int[]
+    { 2, 4, 5 };
+
+    char[] lValues = new char[lPlaneLength * lDepth];
+    Arrays.fill(lValues, lFillValue);
+    Random lRandom = new Random(5);
+    for (int lPlane : lStoredPlanes)
+      for (int j = 0; j < lPlaneLength; j++)
+        lValues[lPlane * lPlaneLength + j] =
+                                           (char) (2000 + lRandom.nextInt(50));
+
+    // two stored planes per chunk:
+    int lChunkDepth = 2;
+    int lNumberOfChunks = 2;
+    long[] lChunkOffsets = new long[lNumberOfChunks];
+    int[] lChunkLengths = new int[lNumberOfChunks];
+    byte[][] lChunks = new byte[lNumberOfChunks][];
+    long lSize = 0;
+    for (int i = 0; i < lNumberOfChunks; i++)
+    {
+      int lNumberOfPlanes = Math.min(lChunkDepth,
+                                     lStoredPlanes.length
+                                                  - i * lChunkDepth);
+      char[] lChunkValues = new char[lNumberOfPlanes * lPlaneLength];
+      for (int p = 0; p < lNumberOfPlanes; p++)
+        System.arraycopy(lValues,
+                         lStoredPlanes[i * lChunkDepth + p]
+                                  * lPlaneLength,
+                         lChunkValues,
+                         p * lPlaneLength,
+                         lPlaneLength);
+      lChunks[i] = StackCompressionCodec.encode(lChunkValues,
+                                                lChunkValues.length,
+                                                lWidth);
+      lChunkOffsets[i] = lSize;
+      lChunkLengths[i] = lChunks[i].length;
+      lSize += lChunks[i].length;
+    }
+    ContiguousMemoryInterface lMemory = OffHeapMemory.allocateBytes(lSize);
+    for (int i = 0; i < lNumberOfChunks; i++)
+      for (int j = 0; j < lChunks[i].length; j++)
+        lMemory.setByte(lChunkOffsets[i] + j, lChunks[i][j]);
+
+    long[] lDimensions = new long[]
+    { lWidth, lHeight, lDepth };
+    CompressedStack lCompressedStack = new CompressedStack(lDimensions,
+                                                           lChunkDepth,
+                                                           lSkippedPlanes,
+                                                           lFillValue,
+                                                           null,
+                                                           lMemory,
+                                                           lChunkOffsets,
+                                                           lChunkLengths,
+                                                           0);
+
+    ByteArrayOutputStream lBytes = new ByteArrayOutputStream();
+    lCompressedStack.write(new DataOutputStream(lBytes));
+    CompressedStack lReadStack =
+                               CompressedStack.read(new DataInputStream(new ByteArrayInputStream(lBytes.toByteArray())),
+                                                    null);
+    assertArrayEquals(lSkippedPlanes, lReadStack.getSkippedPlanes());
+    assertEquals(lFillValue, lReadStack.getFillValue());
+    assertEquals(1, lReadStack.getChunkNumberOfPlanes(1));
+
+    ContiguousMemoryInterface lDecompressed =
+                                            OffHeapMemory.allocateBytes(lValues.length
+                                                                        * Character.BYTES);
+    lReadStack.decompressTo(lDecompressed);
+    char[] lDecoded = new char[lValues.length];
+    for (int i = 0; i < lDecoded.length; i++)
+      lDecoded[i] = lDecompressed.getCharAligned(i);
+    assertArrayEquals(lValues, lDecoded);
+
+    lCompressedStack.free();
+    lReadStack.free();
+    lDecompressed.free();
+  }
+
+  private static char[] roundTrip(char[] pValues,
+                                  int pRowLength) throws DataFormatException
+  {
+    byte[] lCompressed = StackCompressionCodec.encode(pValues,
+                                                      pValues.length,
+                                                      pRowLength);
+    char[] lDecoded = new char[pValues.length];
+    StackCompressionCodec.decode(lCompressed,
+                                 lCompressed.length,
+                                 lDecoded,
+                                 lDecoded.length,
+                                 pRowLength);
+    return lDecoded;
+  }
+
+}
@@ -0,0 +1,174 @@
+package clearcontrol.microscope.lightsheet.processor.content;
+
+/**
+ * Sample bounding box of a stack: inclusive voxel bounds of the non-empty
+ * part of the stack, which planes contain only background, and the background
+ * level. The Z range can be expressed relative to the stack extent.
+ *
+ * @author royer
+ */
+public class SampleBounds
+{
+  private final int mMinX, mMaxX, mMinY, mMaxY, mMinZ, mMaxZ;
+  private final long mDepth;
+  private final boolean[] mEmptyPlanes;
+  private final int mNumberOfEmptyPlanes;
+  private final float mBackgroundLevel;
+
+  /**
+   * Instantiates a sample bounding box
+   *
+   * @param pMin
+   *          inclusive lower bounds (x, y, z)
+   * @param pMax
+   *          inclusive upper bounds (x, y, z)
+   * @param pEmptyPlanes
+   *          for each plane, true if it contains only background
+   * @param pBackgroundLevel
+   *          background level
+   */
+  public SampleBounds(int[] pMin,
+                      int[] pMax,
+                      boolean[] pEmptyPlanes,
+                      float pBackgroundLevel)
+  {
+    mMinX = pMin[0];
+    mMinY = pMin[1];
+    mMinZ = pMin[2];
+    mMaxX = pMax[0];
+    mMaxY = pMax[1];
+    mMaxZ = pMax[2];
+    mDepth = pEmptyPlanes.length;
+    mEmptyPlanes = pEmptyPlanes;
+    int lNumberOfEmptyPlanes = 0;
+    for (boolean lEmpty : pEmptyPlanes)
+      if (lEmpty)
+        lNumberOfEmptyPlanes++;
+    mNumberOfEmptyPlanes = lNumberOfEmptyPlanes;
+    mBackgroundLevel = pBackgroundLevel;
+  }
+
+  /**
+   * Returns true if no part of the stack contains sample
+   *
+   * @return true if the whole stack is empty
+   */
+  public boolean isEmpty()
+  {
+    return mNumberOfEmptyPlanes == mDepth;
+  }
+
+  @SuppressWarnings("javadoc")
+  public int getMinX()
+  {
+    return mMinX;
+  }
+
+  @SuppressWarnings("javadoc")
+  public int getMaxX()
+  {
+    return mMaxX;
+  }
+
+  @SuppressWarnings("javadoc")
+  public int getMinY()
+  {
+    return mMinY;
+  }
+
+  @SuppressWarnings("javadoc")
+  public int getMaxY()
+  {
+    return mMaxY;
+  }
+
+  @SuppressWarnings("javadoc")
+  public int getMinZ()
+  {
+    return mMinZ;
+  }
+
+  @SuppressWarnings("javadoc")
+  public int getMaxZ()
+  {
+    return mMaxZ;
+  }
+
+  /**
+   * Returns the number of planes containing only background
+   *
+   * @return number of empty planes
+   */
+  public int getNumberOfEmptyPlanes()
+  {
+    return mNumberOfEmptyPlanes;
+  }
+
+  /**
+   * Returns true if a given plane contains only background
+   *
+   * @param pPlaneIndex
+   *          plane index
+   * @return true if the plane is empty
+   */
+  public boolean isEmptyPlane(int pPlaneIndex)
+  {
+    return mEmptyPlanes[pPlaneIndex];
+  }
+
+  /**
+   * Returns, for each plane, true if it contains only background
+   *
+   * @return copy of the empty plane flags
+   */
+  public boolean[] getEmptyPlanes()
+  {
+    return mEmptyPlanes.clone();
+  }
+
+  /**
+   * Returns the background level: a low percentile of all tile means
+   *
+   * @return background level
+   */
+  public float getBackgroundLevel()
+  {
+    return mBackgroundLevel;
+  }
+
+  /**
+   * Returns the non-empty Z range as fractions of the stack depth, with a
+   * margin in planes added on both sides. Multiplying these fractions with the
+   * Z range used to acquire the stack gives a tighter Z range for the next
+   * time point.
+   *
+   * @param pMarginInPlanes
+   *          margin in planes
+   * @return lower and upper fraction in [0,1], or null if the stack is empty
+   */
+  public double[] getZRangeFraction(int pMarginInPlanes)
+  {
+    if (isEmpty() || mDepth <= 1)
+      return null;
+
+    double lLow = Math.max(0, mMinZ - pMarginInPlanes);
+    double lHigh = Math.min(mDepth - 1, mMaxZ + pMarginInPlanes);
+    return new double[]
+    { lLow / (mDepth - 1), lHigh / (mDepth - 1) };
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("SampleBounds [x=%d..%d, y=%d..%d, z=%d..%d, empty planes=%d/%d]",
+                         mMinX,
+                         mMaxX,
+                         mMinY,
+                         mMaxY,
+                         mMinZ,
+                         mMaxZ,
+                         mNumberOfEmptyPlanes,
+                         mDepth);
+  }
+
+}
@@ -0,0 +1,331 @@
+package clearcontrol.microscope.lightsheet.processor.content;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import clearcontrol.core.configuration.MachineConfiguration;
+import clearcontrol.core.log.LoggingFeature;
+import clearcontrol.core.variable.Variable;
+import clearcontrol.core.variable.bounded.BoundedVariable;
+import clearcontrol.microscope.lightsheet.processor.MetaDataFusion;
+import clearcontrol.microscope.lightsheet.stacks.MetaDataEmptyPlanes;
+import clearcontrol.microscope.lightsheet.stacks.MetaDataSampleBounds;
+import clearcontrol.microscope.lightsheet.stacks.MetaDataView;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.metadata.StackMetaData;
+import clearcontrol.stack.processor.StackProcessorBase;
+import clearcontrol.stack.processor.StackProcessorInterface;
+import coremem.ContiguousMemoryInterface;
+import coremem.recycling.RecyclerInterface;
+
+/**
+ * Sample bounds processor. Detects, as stacks enter the pipeline, the planes
+ * and tiles that only contain background. Each plane is read once and reduced
+ * to the mean of its tiles (planes are processed in parallel), the background
+ * level is a low percentile of all tile means, and tiles brighter than the
+ * background by a given ratio are considered to contain sample. The resulting
+ * bounding box, the indices of the empty planes and the background level are
+ * written into the stack meta data so that compression can skip empty planes
+ * (see StackCompressionProcessor), and the bounds are kept per view to narrow
+ * the Z range of the next time point. Fused stacks fed back into the pipeline
+ * are not analysed again.
+ *
+ * @author royer
+ */
+public class SampleBoundsProcessor extends StackProcessorBase
+                                   implements
+                                   StackProcessorInterface,
+                                   LoggingFeature
+{
+  private static final double cBackgroundPercentile = 0.1;
+
+  private final Variable<Boolean> mEnabledVariable =
+                                                   new Variable<Boolean>("Enabled",
+                                                                         MachineConfiguration.get()
+                                                                                             .getBooleanProperty("content.enabled",
+                                                                                                                 false));
+
+  private final Variable<Integer> mTileSizeVariable =
+                                                    new Variable<Integer>("TileSize",
+                                                                          64);
+
+  private final BoundedVariable<Double> mThresholdRatioVariable =
+                                                                new BoundedVariable<Double>("ThresholdRatio",
+                                                                                            MachineConfiguration.get()
+                                                                                                                .getDoubleProperty("content.thresholdratio",
+                                                                                                                                   0.2));
+
+  private final Variable<Integer> mNumberOfEmptyPlanesVariable =
+                                                               new Variable<Integer>("NumberOfEmptyPlanes",
+                                                                                     0);
+
+  private final Variable<SampleBounds> mSampleBoundsVariable =
+                                                             new Variable<SampleBounds>("SampleBounds",
+                                                                                        null);
+
+  private final ConcurrentHashMap<String, SampleBounds> mSampleBoundsMap =
+                                                                         new ConcurrentHashMap<>();
+
+  /**
+   * Instantiates a sample bounds processor
+   *
+   * @param pProcessorName
+   *          processor name
+   */
+  public SampleBoundsProcessor(String pProcessorName)
+  {
+    super(pProcessorName);
+  }
+
+  @Override
+  public StackInterface process(StackInterface pStack,
+                                RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
+  {
+    // fused stacks fed back into the pipeline already went through:
+    if (!getEnabledVariable().get()
+        || pStack.getMetaData().hasEntry(MetaDataFusion.Fused))
+      return pStack;
+
+    SampleBounds lSampleBounds =
+                               detect(pStack,
+                                      getTileSizeVariable().get(),
+                                      getThresholdRatioVariable().get());
+
+    StackMetaData lMetaData = pStack.getMetaData();
+    lMetaData.addEntry(MetaDataSampleBounds.SampleMinX,
+                       lSampleBounds.getMinX());
+    lMetaData.addEntry(MetaDataSampleBounds.SampleMaxX,
+                       lSampleBounds.getMaxX());
+    lMetaData.addEntry(MetaDataSampleBounds.SampleMinY,
+                       lSampleBounds.getMinY());
+    lMetaData.addEntry(MetaDataSampleBounds.SampleMaxY,
+                       lSampleBounds.getMaxY());
+    lMetaData.addEntry(MetaDataSampleBounds.SampleMinZ,
+                       lSampleBounds.getMinZ());
+    lMetaData.addEntry(MetaDataSampleBounds.SampleMaxZ,
+                       lSampleBounds.getMaxZ());
+    lMetaData.addEntry(MetaDataSampleBounds.NumberOfEmptyPlanes,
+                       lSampleBounds.getNumberOfEmptyPlanes());
+    lMetaData.addEntry(MetaDataSampleBounds.BackgroundLevel,
+                       Math.round(lSampleBounds.getBackgroundLevel()));
+    lMetaData.addEntry(MetaDataEmptyPlanes.EmptyPlanes,
+                       MetaDataEmptyPlanes.toRanges(lSampleBounds.getEmptyPlanes()));
+
+    String lViewKey = MetaDataView.getViewKey(lMetaData);
+    if (lViewKey != null)
+      mSampleBoundsMap.put(lViewKey, lSampleBounds);
+
+    info("Sample bounds of stack %s: %s", pStack, lSampleBounds);
+    getNumberOfEmptyPlanesVariable().set(lSampleBounds.getNumberOfEmptyPlanes());
+    getSampleBoundsVariable().set(lSampleBounds);
+
+    return pStack;
+  }
+
+  /**
+   * Detects the sample bounding box of an unsigned 16 bit stack
+   *
+   * @param pStack
+   *          stack
+   * @param pTileSize
+   *          tile size in pixels along X and Y
+   * @param pThresholdRatio
+   *          tiles brighter than the background by this ratio contain sample
+   * @return sample bounds
+   */
+  public static SampleBounds detect(StackInterface pStack,
+                                    int pTileSize,
+                                    double pThresholdRatio)
+  {
+    int lWidth = (int) pStack.getWidth();
+    int lHeight = (int) pStack.getHeight();
+    int lDepth = (int) pStack.getDepth();
+    int lTileSize = Math.max(1, pTileSize);
+    int lTilesX = (lWidth + lTileSize - 1) / lTileSize;
+    int lTilesY = (lHeight + lTileSize - 1) / lTileSize;
+    int lPlaneLength = lWidth * lHeight;
+    ContiguousMemoryInterface lMemory = pStack.getContiguousMemory();
+
+    // one streaming pass: each plane is reduced to its tile means:
+    float[][] lTileMeans = new float[lDepth][];
+    IntStream.range(0, lDepth).parallel().forEach((z) -> {
+      long lOffset = (long) z * lPlaneLength;
+      double[] lSums = new double[lTilesX * lTilesY];
+      int[] lCounts = new int[lTilesX * lTilesY];
+      for (int y = 0; y < lHeight; y++)
+      {
+        int lTileRow = (y / lTileSize) * lTilesX;
+        long lRowOffset = lOffset + (long) y * lWidth;
+        for (int x = 0; x < lWidth; x++)
+        {
+          int lTile = lTileRow + x / lTileSize;
+          lSums[lTile] += lMemory.getCharAligned(lRowOffset + x);
+          lCounts[lTile]++;
+        }
+      }
+      float[] lMeans = new float[lSums.length];
+      for (int t = 0; t < lMeans.length; t++)
+        lMeans[t] = (float) (lSums[t] / Math.max(1, lCounts[t]));
+      lTileMeans[z] = lMeans;
+    });
+
+    float lBackgroundLevel = getBackgroundLevel(lTileMeans);
+    float lThreshold = (float) (lBackgroundLevel * (1 + pThresholdRatio));
+
+    int[] lMin = new int[]
+    { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE };
+    int[] lMax = new int[]
+    { -1, -1, -1 };
+    boolean[] lEmptyPlanes = new boolean[lDepth];
+    for (int z = 0; z < lDepth; z++)
+    {
+      boolean lEmpty = true;
+      for (int t = 0; t < lTileMeans[z].length; t++)
+        if (lTileMeans[z][t] > lThreshold)
+        {
+          lEmpty = false;
+          int lTileX = t % lTilesX;
+          int lTileY = t / lTilesX;
+          lMin[0] = Math.min(lMin[0], lTileX * lTileSize);
+          lMin[1] = Math.min(lMin[1], lTileY * lTileSize);
+          lMax[0] = Math.max(lMax[0],
+                             Math.min(lWidth, (lTileX + 1) * lTileSize)
+                                      - 1);
+          lMax[1] = Math.max(lMax[1],
+                             Math.min(lHeight, (lTileY + 1) * lTileSize)
+                                       - 1);
+        }
+
+      lEmptyPlanes[z] = lEmpty;
+      if (!lEmpty)
+      {
+        lMin[2] = Math.min(lMin[2], z);
+        lMax[2] = Math.max(lMax[2], z);
+      }
+    }
+
+    // an empty stack has an empty box:
+    if (lMax[2] < 0)
+    {
+      Arrays.fill(lMin, 0);
+      Arrays.fill(lMax, -1);
+    }
+
+    return new SampleBounds(lMin, lMax, lEmptyPlanes, lBackgroundLevel);
+  }
+
+  private static float getBackgroundLevel(float[][] pTileMeans)
+  {
+    int lNumberOfTiles = 0;
+    for (float[] lPlaneTileMeans : pTileMeans)
+      lNumberOfTiles += lPlaneTileMeans.length;
+    if (lNumberOfTiles == 0)
+      return 0;
+
+    float[] lAllTileMeans = new float[lNumberOfTiles];
+    int i = 0;
+    for (float[] lPlaneTileMeans : pTileMeans)
+      for (float lTileMean : lPlaneTileMeans)
+        lAllTileMeans[i++] = lTileMean;
+    Arrays.sort(lAllTileMeans);
+
+    return lAllTileMeans[(int) (cBackgroundPercentile
+                                * (lNumberOfTiles - 1))];
+  }
+
+  /**
+   * Returns the last sample bounds detected for a given view (e.g. C0L1), or
+   * null if none
+   *
+   * @param pViewKey
+   *          view key
+   * @return last sample bounds for that view
+   */
+  public SampleBounds getSampleBounds(String pViewKey)
+  {
+    return mSampleBoundsMap.get(pViewKey);
+  }
+
+  /**
+   * Returns the non-empty Z range, as fractions of the stack depth, of the
+   * union of the last sample bounds of all views. This can be used to shrink
+   * the Z range of the next time point.
+   *
+   * @param pMarginInPlanes
+   *          margin in planes
+   * @return lower and upper fraction in [0,1], or null if no sample was found
+   */
+  public double[] getZRangeFraction(int pMarginInPlanes)
+  {
+    double[] lRange = null;
+    for (SampleBounds lSampleBounds : mSampleBoundsMap.values())
+    {
+      double[] lViewRange =
+                          lSampleBounds.getZRangeFraction(pMarginInPlanes);
+      if (lViewRange == null)
+        continue;
+      if (lRange == null)
+        lRange = lViewRange;
+      else
+      {
+        lRange[0] = Math.min(lRange[0], lViewRange[0]);
+        lRange[1] = Math.max(lRange[1], lViewRange[1]);
+      }
+    }
+    return lRange;
+  }
+
+  /**
+   * Returns the variable holding the flag that enables detection
+   *
+   * @return enabled variable
+   */
+  public Variable<Boolean> getEnabledVariable()
+  {
+    return mEnabledVariable;
+  }
+
+  /**
+   * Returns the variable holding the tile size in pixels
+   *
+   * @return tile size variable
+   */
+  public Variable<Integer> getTileSizeVariable()
+  {
+    return mTileSizeVariable;
+  }
+
+  /**
+   * Returns the variable holding the ratio above background from which a tile
+   * is considered to contain sample
+   *
+   * @return threshold ratio variable
+   */
+  public BoundedVariable<Double> getThresholdRatioVariable()
+  {
+    return mThresholdRatioVariable;
+  }
+
+  /**
+   * Returns the variable holding the number of empty planes of the last stack
+   *
+   * @return number of empty planes variable
+   */
+  public Variable<Integer> getNumberOfEmptyPlanesVariable()
+  {
+    return mNumberOfEmptyPlanesVariable;
+  }
+
+  /**
+   * Returns the variable holding the sample bounds of the last stack
+   *
+   * @return sample bounds variable
+   */
+  public Variable<SampleBounds> getSampleBoundsVariable()
+  {
+    return mSampleBoundsVariable;
+  }
+
+}
@@ -0,0 +1,386 @@
+package clearcontrol.microscope.lightsheet.processor.correction;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import clearcontrol.core.configuration.MachineConfiguration;
+import clearcontrol.core.log.LoggingFeature;
+import clearcontrol.core.variable.Variable;
+import clearcontrol.core.variable.bounded.BoundedVariable;
+import clearcontrol.microscope.lightsheet.processor.MetaDataFusion;
+import clearcontrol.microscope.lightsheet.stacks.MetaDataView;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.processor.StackProcessorBase;
+import clearcontrol.stack.processor.StackProcessorInterface;
+import coremem.ContiguousMemoryInterface;
+import coremem.recycling.RecyclerInterface;
+
+/**
+ * Background correction processor for unsigned 16 bit stacks, works for any
+ * number of lightsheets and detection arms. Stacks are corrected in place,
+ * plane by plane in parallel:
+ * <ul>
+ * <li>dark frame subtraction and flat-field division, using the calibration
+ * of the camera that acquired the stack,</li>
+ * <li>background subtraction: a large-sigma blur of the plane (approximated by
+ * three passes of separable box filters) is subtracted from the plane.</li>
+ * </ul>
+ * The correction is strictly 2D: each plane is corrected on its own, there is
+ * no blur or background estimation along Z. Stacks that already went through
+ * fusion are passed through untouched.
+ *
+ * @author royer
+ */
+public class BackgroundCorrectionProcessor extends StackProcessorBase
+                                           implements
+                                           StackProcessorInterface,
+                                           LoggingFeature
+{
+  private static final int cNumberOfBoxPasses = 3;
+
+  private final Variable<Boolean> mEnabledVariable =
+                                                   new Variable<Boolean>("Enabled",
+                                                                         MachineConfiguration.get()
+                                                                                             .getBooleanProperty("correction.enabled",
+                                                                                                                 false));
+
+  private final Variable<Boolean> mFlatFieldCorrectionVariable =
+                                                               new Variable<Boolean>("FlatFieldCorrection",
+                                                                                     true);
+
+  private final Variable<Boolean> mBackgroundSubtractionVariable =
+                                                                 new Variable<Boolean>("BackgroundSubtraction",
+                                                                                       true);
+
+  private final BoundedVariable<Double> mBackgroundSigmaVariable =
+                                                                 new BoundedVariable<Double>("BackgroundSigma",
+                                                                                             MachineConfiguration.get()
+                                                                                                                 .getDoubleProperty("correction.background.sigma",
+                                                                                                                                    30.0));
+
+  // per camera calibration planes:
+  private final ConcurrentHashMap<Integer, float[]> mDarkFrameMap =
+                                                                  new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Integer, float[]> mFlatFieldMap =
+                                                                  new ConcurrentHashMap<>();
+
+  /**
+   * Instantiates a background correction processor
+   *
+   * @param pProcessorName
+   *          processor name
+   */
+  public BackgroundCorrectionProcessor(String pProcessorName)
+  {
+    super(pProcessorName);
+  }
+
+  /**
+   * Sets the dark frame and flat field of a camera, both are averaged over
+   * their planes. The flat field is normalized to a mean of one after dark
+   * frame subtraction.
+   *
+   * @param pCameraIndex
+   *          camera index
+   * @param pDarkStack
+   *          dark stack (no light), or null for none
+   * @param pFlatStack
+   *          flat stack (uniform illumination), or null for none
+   */
+  public void setCalibration(int pCameraIndex,
+                             StackInterface pDarkStack,
+                             StackInterface pFlatStack)
+  {
+    float[] lDarkFrame = pDarkStack == null ? null
+                                            : averagePlanes(pDarkStack);
+    if (lDarkFrame == null)
+      mDarkFrameMap.remove(pCameraIndex);
+    else
+      mDarkFrameMap.put(pCameraIndex, lDarkFrame);
+
+    if (pFlatStack == null)
+    {
+      mFlatFieldMap.remove(pCameraIndex);
+      return;
+    }
+
+    float[] lFlatField = averagePlanes(pFlatStack);
+    double lSum = 0;
+    for (int i = 0; i < lFlatField.length; i++)
+    {
+      if (lDarkFrame != null && lDarkFrame.length == lFlatField.length)
+        lFlatField[i] -= lDarkFrame[i];
+      lFlatField[i] = Math.max(lFlatField[i], 1);
+      lSum += lFlatField[i];
+    }
+    float lMean = (float) (lSum / lFlatField.length);
+    for (int i = 0; i < lFlatField.length; i++)
+      lFlatField[i] /= lMean;
+    mFlatFieldMap.put(pCameraIndex, lFlatField);
+  }
+
+  @Override
+  public StackInterface process(StackInterface pStack,
+                                RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
+  {
+    if (!getEnabledVariable().get()
+        || pStack.getMetaData().hasEntry(MetaDataFusion.Fused))
+      return pStack;
+
+    int lWidth = (int) pStack.getWidth();
+    int lHeight = (int) pStack.getHeight();
+    int lPlaneLength = lWidth * lHeight;
+
+    float[] lDarkFrame = null, lFlatField = null;
+    Integer lCameraIndex =
+                         pStack.getMetaData().getValue(MetaDataView.Camera);
+    if (lCameraIndex != null && getFlatFieldCorrectionVariable().get())
+    {
+      lDarkFrame = matching(mDarkFrameMap.get(lCameraIndex),
+                            lPlaneLength);
+      lFlatField = matching(mFlatFieldMap.get(lCameraIndex),
+                            lPlaneLength);
+    }
+
+    boolean lBackgroundSubtraction =
+                                   getBackgroundSubtractionVariable().get();
+    if (lDarkFrame == null && lFlatField == null
+        && !lBackgroundSubtraction)
+      return pStack;
+
+    float lSigma = getBackgroundSigmaVariable().get().floatValue();
+    final float[] lFinalDarkFrame = lDarkFrame;
+    final float[] lFinalFlatField = lFlatField;
+    ContiguousMemoryInterface lMemory = pStack.getContiguousMemory();
+
+    long lStartTime = System.nanoTime();
+    IntStream.range(0, (int) pStack.getDepth()).parallel().forEach((z) -> {
+      long lOffset = (long) z * lPlaneLength;
+      float[] lPlane = new float[lPlaneLength];
+      for (int i = 0; i < lPlaneLength; i++)
+        lPlane[i] = lMemory.getCharAligned(lOffset + i);
+
+      if (lFinalDarkFrame != null)
+        for (int i = 0; i < lPlaneLength; i++)
+          lPlane[i] -= lFinalDarkFrame[i];
+      if (lFinalFlatField != null)
+        for (int i = 0; i < lPlaneLength; i++)
+          lPlane[i] /= lFinalFlatField[i];
+
+      if (lBackgroundSubtraction)
+      {
+        float[] lBackground = boxBlur(lPlane.clone(),
+                                      lWidth,
+                                      lHeight,
+                                      lSigma);
+        for (int i = 0; i < lPlaneLength; i++)
+          lPlane[i] -= lBackground[i];
+      }
+
+      for (int i = 0; i < lPlaneLength; i++)
+      {
+        float lValue = lPlane[i] + 0.5f;
+        lValue = lValue < 0 ? 0 : (lValue > 65535 ? 65535 : lValue);
+        lMemory.setCharAligned(lOffset + i, (char) lValue);
+      }
+    });
+
+    info("Corrected stack %s in %.1f ms (dark=%s, flat=%s, background=%s)",
+         pStack,
+         (System.nanoTime() - lStartTime) * 1e-6,
+         lDarkFrame != null,
+         lFlatField != null,
+         lBackgroundSubtraction);
+
+    return pStack;
+  }
+
+  /**
+   * Blurs a plane in place with an approximate Gaussian of given sigma: three
+   * passes of box filters along X then along Y, each pass costs a constant
+   * number of operations per pixel regardless of sigma. Both passes read and
+   * write whole rows: the pass along Y keeps one running sum per column.
+   *
+   * @param pPlane
+   *          plane, modified in place
+   * @param pWidth
+   *          width
+   * @param pHeight
+   *          height
+   * @param pSigma
+   *          Gaussian sigma in pixels
+   * @return blurred plane (same array)
+   */
+  public static float[] boxBlur(float[] pPlane,
+                                int pWidth,
+                                int pHeight,
+                                float pSigma)
+  {
+    int lRadius = getBoxRadius(pSigma);
+    if (lRadius < 1)
+      return pPlane;
+
+    float[] lLine = new float[pWidth];
+    float[] lSource = new float[pPlane.length];
+    float[] lColumnSums = new float[pWidth];
+    for (int p = 0; p < cNumberOfBoxPasses; p++)
+    {
+      for (int y = 0; y < pHeight; y++)
+        boxFilterRow(pPlane, y * pWidth, pWidth, lRadius, lLine);
+      boxFilterColumns(pPlane,
+                       pWidth,
+                       pHeight,
+                       lRadius,
+                       lSource,
+                       lColumnSums);
+    }
+    return pPlane;
+  }
+
+  private static int getBoxRadius(float pSigma)
+  {
+    // width of the box giving the requested variance after n passes:
+    double lBoxWidth = Math.sqrt(12.0 * pSigma * pSigma
+                                 / cNumberOfBoxPasses
+                                 + 1);
+    return (int) Math.round((lBoxWidth - 1) / 2);
+  }
+
+  private static void boxFilterRow(float[] pPlane,
+                                   int pStart,
+                                   int pLength,
+                                   int pRadius,
+                                   float[] pLine)
+  {
+    System.arraycopy(pPlane, pStart, pLine, 0, pLength);
+
+    // running sum with clamped borders:
+    float lNormalization = 1f / (2 * pRadius + 1);
+    float lSum = 0;
+    for (int i = -pRadius; i <= pRadius; i++)
+      lSum += pLine[clamp(i, pLength)];
+
+    for (int i = 0; i < pLength; i++)
+    {
+      pPlane[pStart + i] = lSum * lNormalization;
+      lSum += pLine[clamp(i + pRadius + 1, pLength)]
+              - pLine[clamp(i - pRadius, pLength)];
+    }
+  }
+
+  private static void boxFilterColumns(float[] pPlane,
+                                       int pWidth,
+                                       int pHeight,
+                                       int pRadius,
+                                       float[] pSource,
+                                       float[] pColumnSums)
+  {
+    System.arraycopy(pPlane, 0, pSource, 0, pWidth * pHeight);
+
+    // one running sum per column with clamped borders, rows are added and
+    // removed whole so that memory is only traversed along rows:
+    float lNormalization = 1f / (2 * pRadius + 1);
+    Arrays.fill(pColumnSums, 0);
+    for (int i = -pRadius; i <= pRadius; i++)
+    {
+      int lRowOffset = clamp(i, pHeight) * pWidth;
+      for (int x = 0; x < pWidth; x++)
+        pColumnSums[x] += pSource[lRowOffset + x];
+    }
+
+    for (int y = 0; y < pHeight; y++)
+    {
+      int lRowOffset = y * pWidth;
+      int lAddedRowOffset = clamp(y + pRadius + 1, pHeight) * pWidth;
+      int lRemovedRowOffset = clamp(y - pRadius, pHeight) * pWidth;
+      for (int x = 0; x < pWidth; x++)
+      {
+        pPlane[lRowOffset + x] = pColumnSums[x] * lNormalization;
+        pColumnSums[x] += pSource[lAddedRowOffset + x]
+                          - pSource[lRemovedRowOffset + x];
+      }
+    }
+  }
+
+  private static int clamp(int pIndex, int pLength)
+  {
+    return pIndex < 0 ? 0 : (pIndex >= pLength ? pLength - 1 : pIndex);
+  }
+
+  private static float[] averagePlanes(StackInterface pStack)
+  {
+    int lPlaneLength = (int) (pStack.getWidth() * pStack.getHeight());
+    int lDepth = (int) pStack.getDepth();
+    ContiguousMemoryInterface lMemory = pStack.getContiguousMemory();
+
+    float[] lAverage = new float[lPlaneLength];
+    for (int z = 0; z < lDepth; z++)
+    {
+      long lOffset = (long) z * lPlaneLength;
+      for (int i = 0; i < lPlaneLength; i++)
+        lAverage[i] += lMemory.getCharAligned(lOffset + i);
+    }
+    for (int i = 0; i < lPlaneLength; i++)
+      lAverage[i] /= lDepth;
+    return lAverage;
+  }
+
+  private float[] matching(float[] pCalibration, int pPlaneLength)
+  {
+    if (pCalibration == null)
+      return null;
+    if (pCalibration.length != pPlaneLength)
+    {
+      warning("Calibration plane has %d pixels instead of %d, ignoring it",
+              pCalibration.length,
+              pPlaneLength);
+      return null;
+    }
+    return pCalibration;
+  }
+
+  /**
+   * Returns the variable holding the flag that enables background correction
+   *
+   * @return enabled variable
+   */
+  public Variable<Boolean> getEnabledVariable()
+  {
+    return mEnabledVariable;
+  }
+
+  /**
+   * Returns the variable holding the flag that enables dark frame and flat
+   * field correction
+   *
+   * @return flat field correction variable
+   */
+  public Variable<Boolean> getFlatFieldCorrectionVariable()
+  {
+    return mFlatFieldCorrectionVariable;
+  }
+
+  /**
+   * Returns the variable holding the flag that enables background subtraction
+   *
+   * @return background subtraction variable
+   */
+  public Variable<Boolean> getBackgroundSubtractionVariable()
+  {
+    return mBackgroundSubtractionVariable;
+  }
+
+  /**
+   * Returns the variable holding the sigma (in pixels) of the blur estimating
+   * the background
+   *
+   * @return background sigma variable
+   */
+  public BoundedVariable<Double> getBackgroundSigmaVariable()
+  {
+    return mBackgroundSigmaVariable;
+  }
+
+}
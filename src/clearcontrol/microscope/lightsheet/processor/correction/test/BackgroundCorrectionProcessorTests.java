@@ -0,0 +1,73 @@
+package clearcontrol.microscope.lightsheet.processor.correction.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import clearcontrol.microscope.lightsheet.processor.correction.BackgroundCorrectionProcessor;
+
+import org.junit.Test;
+
+/**
+ * Background correction processor tests
+ *
+ * @author royer
+ */
+public class BackgroundCorrectionProcessorTests
+{
+
+  /**
+   * tests that the box blur matches a direct computation of three passes of
+   * box filters along X and Y with clamped borders
+   */
+  @Test
+  public void boxBlurMatchesDirectBoxFilters()
+  {
+    int lWidth = 37, lHeight = 23;
+    float[] lPlane = new float[lWidth * lHeight];
+    Random lRandom = new Random(11);
+    for (int i = 0; i < lPlane.length; i++)
+      lPlane[i] = 100 + lRandom.nextInt(1000);
+
+    // sigma 3 gives a box radius of 3 with three passes:
+    int lRadius = 3;
+    float[] lExpected = lPlane.clone();
+    for (int p = 0; p < 3; p++)
+    {
+      lExpected = boxFilter(lExpected, lWidth, lHeight, lRadius, 1, 0);
+      lExpected = boxFilter(lExpected, lWidth, lHeight, lRadius, 0, 1);
+    }
+
+    float[] lBlurred =
+                     BackgroundCorrectionProcessor.boxBlur(lPlane.clone(),
+                                                           lWidth,
+                                                           lHeight,
+                                                           3);
+    for (int i = 0; i < lPlane.length; i++)
+      assertEquals("pixel " + i, lExpected[i], lBlurred[i], 1e-2);
+  }
+
+  private static float[] boxFilter(float[] pPlane,
+                                   int pWidth,
+                                   int pHeight,
+                                   int pRadius,
+                                   int pStepX,
+                                   int pStepY)
+  {
+    float[] lResult = new float[pPlane.length];
+    for (int y = 0; y < pHeight; y++)
+      for (int x = 0; x < pWidth; x++)
+      {
+        double lSum = 0;
+        for (int i = -pRadius; i <= pRadius; i++)
+        {
+          int lX = Math.max(0, Math.min(pWidth - 1, x + i * pStepX));
+          int lY = Math.max(0, Math.min(pHeight - 1, y + i * pStepY));
+          lSum += pPlane[lY * pWidth + lX];
+        }
+        lResult[y * pWidth + x] = (float) (lSum / (2 * pRadius + 1));
+      }
+    return lResult;
+  }
+
+}
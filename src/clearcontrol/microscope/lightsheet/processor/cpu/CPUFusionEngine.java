@@ -0,0 +1,216 @@
+package clearcontrol.microscope.lightsheet.processor.cpu;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import clearcontrol.core.log.LoggingFeature;
+import coremem.ContiguousMemoryInterface;
+
+/**
+ * CPU fusion engine. Executes a graph of CPU fusion tasks, a task is executed
+ * as soon as all its input images are available. Intermediate images that are
+ * not needed anymore by pending tasks are freed as soon as possible.
+ *
+ * @author royer
+ */
+public class CPUFusionEngine implements LoggingFeature
+{
+  private final ConcurrentHashMap<String, CPUFusionImage> mImageMap =
+                                                                    new ConcurrentHashMap<>();
+  private final ArrayList<CPUFusionTask> mTaskList = new ArrayList<>();
+  private final HashSet<CPUFusionTask> mExecutedTaskSet =
+                                                        new HashSet<>();
+  private final HashSet<String> mRetainedKeySet = new HashSet<>();
+
+  /**
+   * Adds a task
+   *
+   * @param pTask
+   *          task
+   */
+  public void addTask(CPUFusionTask pTask)
+  {
+    mTaskList.add(pTask);
+  }
+
+  /**
+   * Adds a list of tasks
+   *
+   * @param pTaskList
+   *          tasks
+   */
+  public void addTasks(List<CPUFusionTask> pTaskList)
+  {
+    mTaskList.addAll(pTaskList);
+  }
+
+  /**
+   * Declares images that should never be released automatically, for example
+   * the final or per-camera fused images.
+   *
+   * @param pKeys
+   *          image keys
+   */
+  public void retainImages(String... pKeys)
+  {
+    for (String lKey : pKeys)
+      mRetainedKeySet.add(lKey);
+  }
+
+  /**
+   * Passes an unsigned 16 bit image to this engine
+   *
+   * @param pKey
+   *          image key
+   * @param pMemory
+   *          unsigned 16 bit memory
+   * @param pDimensions
+   *          image dimensions
+   */
+  public void passImage(String pKey,
+                        ContiguousMemoryInterface pMemory,
+                        long... pDimensions)
+  {
+    passImage(pKey,
+              CPUFusionImage.fromUnsignedInt16(pMemory,
+                                               (int) pDimensions[0],
+                                               (int) pDimensions[1],
+                                               (int) pDimensions[2]));
+  }
+
+  /**
+   * Passes a float image to this engine
+   *
+   * @param pKey
+   *          image key
+   * @param pImage
+   *          image
+   */
+  public void passImage(String pKey, CPUFusionImage pImage)
+  {
+    releaseImage(pKey);
+    mImageMap.put(pKey, pImage);
+  }
+
+  /**
+   * Executes all tasks that can be executed given the available images
+   *
+   * @return number of tasks executed
+   */
+  public int executeAllTasks()
+  {
+    int lCounter = 0;
+    boolean lProgress = true;
+    while (lProgress)
+    {
+      lProgress = false;
+      for (CPUFusionTask lTask : mTaskList)
+      {
+        if (mExecutedTaskSet.contains(lTask)
+            || !lTask.isExecutable(getAvailableImageKeys()))
+          continue;
+
+        String[] lInputKeys = lTask.getInputKeys();
+        CPUFusionImage[] lInputs = new CPUFusionImage[lInputKeys.length];
+        for (int i = 0; i < lInputKeys.length; i++)
+          lInputs[i] = mImageMap.get(lInputKeys[i]);
+
+        CPUFusionImage lOutput = lTask.execute(lInputs);
+        mImageMap.put(lTask.getOutputKey(), lOutput);
+        mExecutedTaskSet.add(lTask);
+
+        for (String lInputKey : lInputKeys)
+          if (!isNeededByPendingTask(lInputKey))
+            releaseImage(lInputKey);
+
+        lCounter++;
+        lProgress = true;
+      }
+    }
+    return lCounter;
+  }
+
+  private boolean isNeededByPendingTask(String pKey)
+  {
+    if (mRetainedKeySet.contains(pKey))
+      return true;
+    for (CPUFusionTask lTask : mTaskList)
+      if (!mExecutedTaskSet.contains(lTask))
+        for (String lInputKey : lTask.getInputKeys())
+          if (lInputKey.equals(pKey))
+            return true;
+    return false;
+  }
+
+  /**
+   * Releases the image for a given key. The underlying memory is only freed if
+   * no other key is an alias for the same image.
+   *
+   * @param pKey
+   *          image key
+   */
+  public void releaseImage(String pKey)
+  {
+    CPUFusionImage lImage = mImageMap.remove(pKey);
+    if (lImage != null && !mImageMap.containsValue(lImage))
+      lImage.free();
+  }
+
+  /**
+   * Returns the image for a given key
+   *
+   * @param pKey
+   *          image key
+   * @return image or null if not available
+   */
+  public CPUFusionImage getImage(String pKey)
+  {
+    return mImageMap.get(pKey);
+  }
+
+  /**
+   * Returns true if an image is available for the given key
+   *
+   * @param pKey
+   *          image key
+   * @return true if available
+   */
+  public boolean isImageAvailable(String pKey)
+  {
+    return mImageMap.containsKey(pKey);
+  }
+
+  /**
+   * Returns the keys of all available images
+   *
+   * @return available image keys
+   */
+  public Set<String> getAvailableImageKeys()
+  {
+    return mImageMap.keySet();
+  }
+
+  /**
+   * Returns the list of tasks
+   *
+   * @return task list
+   */
+  public List<CPUFusionTask> getTaskList()
+  {
+    return mTaskList;
+  }
+
+  /**
+   * Resets this engine: frees all images and marks all tasks as pending.
+   */
+  public void reset()
+  {
+    for (String lKey : new ArrayList<>(mImageMap.keySet()))
+      releaseImage(lKey);
+    mExecutedTaskSet.clear();
+  }
+
+}
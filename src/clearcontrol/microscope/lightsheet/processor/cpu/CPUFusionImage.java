@@ -0,0 +1,293 @@
+package clearcontrol.microscope.lightsheet.processor.cpu;
+
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import coremem.ContiguousMemoryInterface;
+
+/**
+ * Single precision image used by the CPU fusion backend. Each plane is a
+ * primitive float array, stored row after row, so that kernels operate
+ * directly on plane arrays that the JIT can vectorize.
+ *
+ * @author royer
+ */
+public class CPUFusionImage
+{
+  private final int mWidth, mHeight, mDepth;
+  private float[][] mPlanes;
+
+  /**
+   * Allocates a new float image of given dimensions
+   *
+   * @param pWidth
+   *          width
+   * @param pHeight
+   *          height
+   * @param pDepth
+   *          depth
+   */
+  public CPUFusionImage(int pWidth, int pHeight, int pDepth)
+  {
+    mWidth = pWidth;
+    mHeight = pHeight;
+    mDepth = pDepth;
+    mPlanes = new float[pDepth][pWidth * pHeight];
+  }
+
+  /**
+   * Allocates a new image with the same dimensions as this image
+   *
+   * @return new image of same dimensions
+   */
+  public CPUFusionImage like()
+  {
+    return new CPUFusionImage(mWidth, mHeight, mDepth);
+  }
+
+  /**
+   * Creates a float image from unsigned 16 bit data stored in the given
+   * contiguous memory.
+   *
+   * @param pMemory
+   *          unsigned 16 bit memory
+   * @param pWidth
+   *          width
+   * @param pHeight
+   *          height
+   * @param pDepth
+   *          depth
+   * @return float image
+   */
+  public static CPUFusionImage fromUnsignedInt16(ContiguousMemoryInterface pMemory,
+                                                 int pWidth,
+                                                 int pHeight,
+                                                 int pDepth)
+  {
+    CPUFusionImage lImage = new CPUFusionImage(pWidth,
+                                               pHeight,
+                                               pDepth);
+    lImage.parallelOverPlanes((z) -> {
+      long lOffset = lImage.getPlaneOffset(z);
+      float[] lPlane = lImage.getPlane(z);
+      for (int i = 0; i < lPlane.length; i++)
+        lPlane[i] = pMemory.getCharAligned(lOffset + i);
+    });
+    return lImage;
+  }
+
+  /**
+   * Writes this image as unsigned 16 bit data (with rounding and clamping) to
+   * the given contiguous memory.
+   *
+   * @param pMemory
+   *          destination memory
+   */
+  public void writeToUnsignedInt16(ContiguousMemoryInterface pMemory)
+  {
+    parallelOverPlanes((z) -> {
+      long lOffset = getPlaneOffset(z);
+      float[] lPlane = getPlane(z);
+      for (int i = 0; i < lPlane.length; i++)
+      {
+        float lValue = lPlane[i] + 0.5f;
+        lValue = lValue < 0 ? 0 : (lValue > 65535 ? 65535 : lValue);
+        pMemory.setCharAligned(lOffset + i, (char) lValue);
+      }
+    });
+  }
+
+  /**
+   * Returns the array backing a given plane, kernels read and write it in
+   * place
+   *
+   * @param pZ
+   *          plane index
+   * @return plane array
+   */
+  public float[] getPlane(int pZ)
+  {
+    return mPlanes[pZ];
+  }
+
+  /**
+   * Replaces the array backing a given plane, the array is not copied
+   *
+   * @param pZ
+   *          plane index
+   * @param pPlane
+   *          plane array of length width*height
+   */
+  public void setPlane(int pZ, float[] pPlane)
+  {
+    if (pPlane.length != getPlaneLength())
+      throw new IllegalArgumentException("Plane length mismatch: "
+                                         + pPlane.length);
+    mPlanes[pZ] = pPlane;
+  }
+
+  /**
+   * Copies a plane into a primitive array
+   *
+   * @param pZ
+   *          plane index
+   * @param pPlane
+   *          array to use, or null to allocate a new one
+   * @return plane array
+   */
+  public float[] readPlane(int pZ, float[] pPlane)
+  {
+    int lLength = getPlaneLength();
+    float[] lPlane = pPlane == null ? new float[lLength] : pPlane;
+    System.arraycopy(mPlanes[pZ], 0, lPlane, 0, lLength);
+    return lPlane;
+  }
+
+  /**
+   * Copies a primitive array into a plane
+   *
+   * @param pZ
+   *          plane index
+   * @param pPlane
+   *          plane array
+   */
+  public void writePlane(int pZ, float[] pPlane)
+  {
+    System.arraycopy(pPlane, 0, mPlanes[pZ], 0, getPlaneLength());
+  }
+
+  /**
+   * Returns the voxel value at a given linear index
+   *
+   * @param pIndex
+   *          linear index
+   * @return voxel value
+   */
+  public float get(long pIndex)
+  {
+    int lPlaneLength = getPlaneLength();
+    return mPlanes[(int) (pIndex / lPlaneLength)][(int) (pIndex
+                                                         % lPlaneLength)];
+  }
+
+  /**
+   * Sets the voxel value at a given linear index
+   *
+   * @param pIndex
+   *          linear index
+   * @param pValue
+   *          voxel value
+   */
+  public void set(long pIndex, float pValue)
+  {
+    int lPlaneLength = getPlaneLength();
+    mPlanes[(int) (pIndex / lPlaneLength)][(int) (pIndex
+                                                  % lPlaneLength)] =
+                                                                     pValue;
+  }
+
+  /**
+   * Runs the given plane operation in parallel (fork-join) over all planes
+   *
+   * @param pPlaneOperation
+   *          plane operation
+   */
+  public void parallelOverPlanes(IntConsumer pPlaneOperation)
+  {
+    IntStream.range(0, mDepth).parallel().forEach(pPlaneOperation);
+  }
+
+  /**
+   * Returns the linear index of the first voxel of a given plane
+   *
+   * @param pZ
+   *          plane index
+   * @return plane offset in voxels
+   */
+  public long getPlaneOffset(int pZ)
+  {
+    return (long) pZ * getPlaneLength();
+  }
+
+  /**
+   * Returns the number of voxels per plane
+   *
+   * @return number of voxels per plane
+   */
+  public int getPlaneLength()
+  {
+    return mWidth * mHeight;
+  }
+
+  /**
+   * Returns the image width
+   *
+   * @return width
+   */
+  public int getWidth()
+  {
+    return mWidth;
+  }
+
+  /**
+   * Returns the image height
+   *
+   * @return height
+   */
+  public int getHeight()
+  {
+    return mHeight;
+  }
+
+  /**
+   * Returns the image depth
+   *
+   * @return depth
+   */
+  public int getDepth()
+  {
+    return mDepth;
+  }
+
+  /**
+   * Returns the image dimensions
+   *
+   * @return dimensions (width, height, depth)
+   */
+  public long[] getDimensions()
+  {
+    return new long[]
+    { mWidth, mHeight, mDepth };
+  }
+
+  /**
+   * Returns true if this image has the same dimensions as the given image
+   *
+   * @param pImage
+   *          other image
+   * @return true if same dimensions
+   */
+  public boolean hasSameDimensions(CPUFusionImage pImage)
+  {
+    return mWidth == pImage.mWidth && mHeight == pImage.mHeight
+           && mDepth == pImage.mDepth;
+  }
+
+  /**
+   * Releases the plane arrays, the image must not be used afterwards
+   */
+  public void free()
+  {
+    mPlanes = null;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("CPUFusionImage [%d x %d x %d]",
+                         mWidth,
+                         mHeight,
+                         mDepth);
+  }
+
+}
@@ -0,0 +1,415 @@
+package clearcontrol.microscope.lightsheet.processor.cpu;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Image processing kernels for the CPU fusion backend. Kernels are written as
+ * plain loops over primitive arrays (one plane or one tile at a time) so that
+ * the JIT can vectorize them, and are parallelized with fork-join over planes
+ * or tiles.
+ *
+ * @author royer
+ */
+public class CPUFusionKernels
+{
+  private static final float cWeightEpsilon = 1e-6f;
+  private static final int cTileHeight = 16;
+
+  /**
+   * Downsamples an image by a factor two along X and Y.
+   *
+   * @param pInput
+   *          input image
+   * @param pMedian
+   *          true -> median of the 2x2 neighbourhood, false -> mean
+   * @return downsampled image
+   */
+  public static CPUFusionImage downsampleXYbyHalf(CPUFusionImage pInput,
+                                                  boolean pMedian)
+  {
+    final int lWidth = pInput.getWidth();
+    final int lOutWidth = lWidth / 2;
+    final int lOutHeight = pInput.getHeight() / 2;
+    CPUFusionImage lOutput = new CPUFusionImage(lOutWidth,
+                                                lOutHeight,
+                                                pInput.getDepth());
+
+    pInput.parallelOverPlanes((z) -> {
+      float[] lIn = pInput.getPlane(z);
+      float[] lOut = lOutput.getPlane(z);
+      for (int y = 0; y < lOutHeight; y++)
+      {
+        int lRow0 = 2 * y * lWidth;
+        int lRow1 = lRow0 + lWidth;
+        int lOutRow = y * lOutWidth;
+        for (int x = 0; x < lOutWidth; x++)
+        {
+          float a = lIn[lRow0 + 2 * x];
+          float b = lIn[lRow0 + 2 * x + 1];
+          float c = lIn[lRow1 + 2 * x];
+          float d = lIn[lRow1 + 2 * x + 1];
+          if (pMedian)
+          {
+            // median of four: mean of the two middle values
+            float lMin = Math.min(Math.min(a, b), Math.min(c, d));
+            float lMax = Math.max(Math.max(a, b), Math.max(c, d));
+            lOut[lOutRow + x] = 0.5f * (a + b + c + d - lMin - lMax);
+          }
+          else
+            lOut[lOutRow + x] = 0.25f * (a + b + c + d);
+        }
+      }
+    });
+
+    return lOutput;
+  }
+
+  /**
+   * Flips an image along X.
+   *
+   * @param pInput
+   *          input image
+   * @return flipped image
+   */
+  public static CPUFusionImage flipX(CPUFusionImage pInput)
+  {
+    final int lWidth = pInput.getWidth();
+    final int lHeight = pInput.getHeight();
+    CPUFusionImage lOutput = pInput.like();
+
+    pInput.parallelOverPlanes((z) -> {
+      float[] lIn = pInput.getPlane(z);
+      float[] lOut = lOutput.getPlane(z);
+      for (int y = 0; y < lHeight; y++)
+      {
+        int lRow = y * lWidth;
+        for (int x = 0; x < lWidth; x++)
+          lOut[lRow + x] = lIn[lRow + lWidth - 1 - x];
+      }
+    });
+
+    return lOutput;
+  }
+
+  /**
+   * Separable Gaussian blur. A sigma of zero along an axis leaves that axis
+   * untouched. X and Y are blurred plane by plane, Z is blurred tile by tile.
+   *
+   * @param pInput
+   *          input image
+   * @param pSigmas
+   *          sigmas along X, Y and Z
+   * @return blurred image
+   */
+  public static CPUFusionImage gaussianBlur(CPUFusionImage pInput,
+                                            float[] pSigmas)
+  {
+    final int lWidth = pInput.getWidth();
+    final int lHeight = pInput.getHeight();
+    final float[] lKernelX = gaussianKernel(pSigmas[0]);
+    final float[] lKernelY = gaussianKernel(pSigmas[1]);
+    final float[] lKernelZ = gaussianKernel(pSigmas[2]);
+
+    CPUFusionImage lOutput = pInput.like();
+
+    pInput.parallelOverPlanes((z) -> {
+      float[] lPlane = pInput.readPlane(z, null);
+      float[] lTemp = new float[lPlane.length];
+      if (lKernelX.length > 1)
+      {
+        convolveRows(lPlane, lTemp, lWidth, lHeight, lKernelX);
+        float[] lSwap = lPlane;
+        lPlane = lTemp;
+        lTemp = lSwap;
+      }
+      if (lKernelY.length > 1)
+      {
+        convolveColumns(lPlane, lTemp, lWidth, lHeight, lKernelY);
+        lPlane = lTemp;
+      }
+      lOutput.setPlane(z, lPlane);
+    });
+
+    if (lKernelZ.length > 1)
+      convolveZ(lOutput, lKernelZ);
+
+    return lOutput;
+  }
+
+  /**
+   * Computes Tenengrad (squared Sobel gradient magnitude in XY) sharpness
+   * weights.
+   *
+   * @param pInput
+   *          input image
+   * @return weight image
+   */
+  public static CPUFusionImage tenengradWeights(CPUFusionImage pInput)
+  {
+    final int lWidth = pInput.getWidth();
+    final int lHeight = pInput.getHeight();
+    CPUFusionImage lOutput = pInput.like();
+
+    pInput.parallelOverPlanes((z) -> {
+      float[] lIn = pInput.getPlane(z);
+      float[] lOut = lOutput.getPlane(z);
+      for (int y = 0; y < lHeight; y++)
+      {
+        int lRowM = Math.max(y - 1, 0) * lWidth;
+        int lRow = y * lWidth;
+        int lRowP = Math.min(y + 1, lHeight - 1) * lWidth;
+        for (int x = 0; x < lWidth; x++)
+        {
+          int xm = Math.max(x - 1, 0);
+          int xp = Math.min(x + 1, lWidth - 1);
+          float lGx = (lIn[lRowM + xp] + 2 * lIn[lRow + xp]
+                       + lIn[lRowP + xp])
+                      - (lIn[lRowM + xm] + 2 * lIn[lRow + xm]
+                         + lIn[lRowP + xm]);
+          float lGy = (lIn[lRowP + xm] + 2 * lIn[lRowP + x]
+                       + lIn[lRowP + xp])
+                      - (lIn[lRowM + xm] + 2 * lIn[lRowM + x]
+                         + lIn[lRowM + xp]);
+          lOut[lRow + x] = lGx * lGx + lGy * lGy;
+        }
+      }
+    });
+
+    return lOutput;
+  }
+
+  /**
+   * Fuses images as a voxel-wise weighted average.
+   *
+   * @param pImages
+   *          images to fuse
+   * @param pWeights
+   *          corresponding weight images
+   * @return fused image
+   */
+  public static CPUFusionImage weightedAverage(CPUFusionImage[] pImages,
+                                               CPUFusionImage[] pWeights)
+  {
+    final int lNumberOfImages = pImages.length;
+    CPUFusionImage lOutput = pImages[0].like();
+
+    lOutput.parallelOverPlanes((z) -> {
+      int lLength = lOutput.getPlaneLength();
+      float[] lSum = lOutput.getPlane(z);
+      float[] lWeightSum = new float[lLength];
+      for (int n = 0; n < lNumberOfImages; n++)
+      {
+        float[] lImage = pImages[n].getPlane(z);
+        float[] lWeight = pWeights[n].getPlane(z);
+        for (int i = 0; i < lLength; i++)
+        {
+          float w = lWeight[i] + cWeightEpsilon;
+          lSum[i] += w * lImage[i];
+          lWeightSum[i] += w;
+        }
+      }
+      for (int i = 0; i < lLength; i++)
+        lSum[i] /= lWeightSum[i];
+    });
+
+    return lOutput;
+  }
+
+  /**
+   * Fuses images using Tenengrad weights smoothed with a Gaussian of given
+   * sigmas.
+   *
+   * @param pWeightSigmas
+   *          sigmas used to smooth the weights
+   * @param pImages
+   *          images to fuse
+   * @return fused image
+   */
+  public static CPUFusionImage tenengradFusion(float[] pWeightSigmas,
+                                               CPUFusionImage... pImages)
+  {
+    CPUFusionImage[] lWeights = new CPUFusionImage[pImages.length];
+    try
+    {
+      for (int n = 0; n < pImages.length; n++)
+      {
+        CPUFusionImage lRawWeights = tenengradWeights(pImages[n]);
+        lWeights[n] = gaussianBlur(lRawWeights, pWeightSigmas);
+        lRawWeights.free();
+      }
+      return weightedAverage(pImages, lWeights);
+    }
+    finally
+    {
+      for (CPUFusionImage lWeight : lWeights)
+        if (lWeight != null)
+          lWeight.free();
+    }
+  }
+
+  /**
+   * Subtracts a blurred copy of the image from itself, clamping at zero.
+   *
+   * @param pInput
+   *          input image
+   * @param pSigmas
+   *          sigmas of the background blur
+   * @return background subtracted image
+   */
+  public static CPUFusionImage subtractBlurredCopy(CPUFusionImage pInput,
+                                                   float[] pSigmas)
+  {
+    CPUFusionImage lOutput = gaussianBlur(pInput, pSigmas);
+
+    lOutput.parallelOverPlanes((z) -> {
+      float[] lIn = pInput.getPlane(z);
+      float[] lBackground = lOutput.getPlane(z);
+      for (int i = 0; i < lIn.length; i++)
+        lBackground[i] = Math.max(0, lIn[i] - lBackground[i]);
+    });
+
+    return lOutput;
+  }
+
+  /**
+   * Returns a normalized Gaussian kernel of radius ceil(3*sigma).
+   *
+   * @param pSigma
+   *          sigma
+   * @return kernel (length 1 for sigma zero)
+   */
+  public static float[] gaussianKernel(float pSigma)
+  {
+    if (pSigma <= 0)
+      return new float[]
+      { 1 };
+
+    int lRadius = (int) Math.ceil(3 * pSigma);
+    float[] lKernel = new float[2 * lRadius + 1];
+    float lSum = 0;
+    for (int i = -lRadius; i <= lRadius; i++)
+    {
+      lKernel[i + lRadius] =
+                           (float) Math.exp(-(i * i)
+                                            / (2.0 * pSigma * pSigma));
+      lSum += lKernel[i + lRadius];
+    }
+    for (int i = 0; i < lKernel.length; i++)
+      lKernel[i] /= lSum;
+    return lKernel;
+  }
+
+  private static void convolveRows(float[] pIn,
+                                   float[] pOut,
+                                   int pWidth,
+                                   int pHeight,
+                                   float[] pKernel)
+  {
+    int lRadius = pKernel.length / 2;
+    for (int y = 0; y < pHeight; y++)
+    {
+      int lRow = y * pWidth;
+      for (int x = 0; x < pWidth; x++)
+      {
+        float lSum = 0;
+        for (int k = -lRadius; k <= lRadius; k++)
+        {
+          int xk = Math.min(Math.max(x + k, 0), pWidth - 1);
+          lSum += pKernel[k + lRadius] * pIn[lRow + xk];
+        }
+        pOut[lRow + x] = lSum;
+      }
+    }
+  }
+
+  private static void convolveColumns(float[] pIn,
+                                      float[] pOut,
+                                      int pWidth,
+                                      int pHeight,
+                                      float[] pKernel)
+  {
+    int lRadius = pKernel.length / 2;
+    for (int y = 0; y < pHeight; y++)
+    {
+      int lRow = y * pWidth;
+      Arrays.fill(pOut, lRow, lRow + pWidth, 0);
+      for (int k = -lRadius; k <= lRadius; k++)
+      {
+        int lRowK = Math.min(Math.max(y + k, 0), pHeight - 1) * pWidth;
+        float lWeight = pKernel[k + lRadius];
+        // row-wise accumulation, contiguous and vectorizable:
+        for (int x = 0; x < pWidth; x++)
+          pOut[lRow + x] += lWeight * pIn[lRowK + x];
+      }
+    }
+  }
+
+  /**
+   * Convolves along Z in place, tile by tile. Each tile keeps a ring buffer of
+   * the 2r+1 input planes (clamped at the borders) of the current output
+   * plane, so output planes can be written back before the following ones are
+   * computed.
+   */
+  private static void convolveZ(CPUFusionImage pImage, float[] pKernel)
+  {
+    final int lWidth = pImage.getWidth();
+    final int lHeight = pImage.getHeight();
+    final int lDepth = pImage.getDepth();
+    final int lRadius = pKernel.length / 2;
+    final int lRingSize = pKernel.length;
+    final int lNumberOfTiles = (lHeight + cTileHeight - 1) / cTileHeight;
+
+    IntStream.range(0, lNumberOfTiles).parallel().forEach((t) -> {
+      int lY0 = t * cTileHeight;
+      int lY1 = Math.min(lY0 + cTileHeight, lHeight);
+      int lTileLength = (lY1 - lY0) * lWidth;
+      int lTileOffset = lY0 * lWidth;
+
+      // ring slot of plane p (p can be out of bounds, the content is the
+      // clamped plane) is p modulo the ring size:
+      float[][] lRing = new float[lRingSize][lTileLength];
+      for (int p = -lRadius; p <= lRadius; p++)
+        loadTile(pImage, p, lTileOffset, lRing[getRingSlot(p, lRingSize)]);
+
+      for (int z = 0; z < lDepth; z++)
+      {
+        float[] lOut = pImage.getPlane(z);
+        Arrays.fill(lOut, lTileOffset, lTileOffset + lTileLength, 0);
+        for (int k = -lRadius; k <= lRadius; k++)
+        {
+          float[] lPlaneK = lRing[getRingSlot(z + k, lRingSize)];
+          float lWeight = pKernel[k + lRadius];
+          for (int i = 0; i < lTileLength; i++)
+            lOut[lTileOffset + i] += lWeight * lPlaneK[i];
+        }
+
+        // plane z-r is not needed anymore, plane z+r+1 is not written yet:
+        if (z + 1 < lDepth)
+          loadTile(pImage,
+                   z + lRadius + 1,
+                   lTileOffset,
+                   lRing[getRingSlot(z + lRadius + 1, lRingSize)]);
+      }
+    });
+  }
+
+  private static void loadTile(CPUFusionImage pImage,
+                               int pZ,
+                               int pTileOffset,
+                               float[] pTile)
+  {
+    int lZ = Math.min(Math.max(pZ, 0), pImage.getDepth() - 1);
+    System.arraycopy(pImage.getPlane(lZ),
+                     pTileOffset,
+                     pTile,
+                     0,
+                     pTile.length);
+  }
+
+  private static int getRingSlot(int pZ, int pRingSize)
+  {
+    return ((pZ % pRingSize) + pRingSize) % pRingSize;
+  }
+
+}
@@ -0,0 +1,116 @@
+package clearcontrol.microscope.lightsheet.processor.cpu;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * CPU fusion task: computes one output image from a list of input images,
+ * images are referred to by the same keys as in the ClearCL fusion engine
+ * (e.g. "C0L0" -> "C0L0d" -> "fused").
+ *
+ * @author royer
+ */
+public class CPUFusionTask
+{
+  /**
+   * Kernel computing the output image from the input images
+   */
+  @FunctionalInterface
+  public interface Kernel
+  {
+    /**
+     * Computes the output image. The returned image may be one of the inputs,
+     * in which case the output key becomes an alias of that input.
+     *
+     * @param pInputs
+     *          input images in the order of the input keys
+     * @return output image
+     */
+    CPUFusionImage apply(CPUFusionImage[] pInputs);
+  }
+
+  private final String mName;
+  private final Kernel mKernel;
+  private final String mOutputKey;
+  private final String[] mInputKeys;
+
+  /**
+   * Instantiates a CPU fusion task
+   *
+   * @param pName
+   *          task name
+   * @param pKernel
+   *          kernel
+   * @param pOutputKey
+   *          output image key
+   * @param pInputKeys
+   *          input image keys
+   */
+  public CPUFusionTask(String pName,
+                       Kernel pKernel,
+                       String pOutputKey,
+                       String... pInputKeys)
+  {
+    mName = pName;
+    mKernel = pKernel;
+    mOutputKey = pOutputKey;
+    mInputKeys = pInputKeys;
+  }
+
+  /**
+   * Returns true if all input images are available
+   *
+   * @param pAvailableImageKeys
+   *          keys of available images
+   * @return true if this task can be executed
+   */
+  public boolean isExecutable(Set<String> pAvailableImageKeys)
+  {
+    for (String lInputKey : mInputKeys)
+      if (!pAvailableImageKeys.contains(lInputKey))
+        return false;
+    return true;
+  }
+
+  /**
+   * Executes this task
+   *
+   * @param pInputs
+   *          input images in the order of the input keys
+   * @return output image
+   */
+  public CPUFusionImage execute(CPUFusionImage[] pInputs)
+  {
+    return mKernel.apply(pInputs);
+  }
+
+  /**
+   * Returns the input image keys
+   *
+   * @return input keys
+   */
+  public String[] getInputKeys()
+  {
+    return mInputKeys;
+  }
+
+  /**
+   * Returns the output image key
+   *
+   * @return output key
+   */
+  public String getOutputKey()
+  {
+    return mOutputKey;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("%s %s -> %s",
+                         mName,
+                         Arrays.toString(mInputKeys),
+                         mOutputKey);
+  }
+
+}
@@ -0,0 +1,152 @@
+package clearcontrol.microscope.lightsheet.processor.cpu;
+
+/**
+ * Factory methods for CPU fusion tasks, mirroring the ClearCL fastfuse tasks.
+ *
+ * @author royer
+ */
+public class CPUFusionTasks
+{
+
+  /**
+   * Downsamples by half along X and Y
+   *
+   * @param pInputKey
+   *          input key
+   * @param pOutputKey
+   *          output key
+   * @param pMedian
+   *          true -> median, false -> mean
+   * @return task
+   */
+  public static CPUFusionTask downsampleXYbyHalf(String pInputKey,
+                                                 String pOutputKey,
+                                                 boolean pMedian)
+  {
+    return new CPUFusionTask("DownsampleXYbyHalf",
+                             (i) -> CPUFusionKernels.downsampleXYbyHalf(i[0],
+                                                                        pMedian),
+                             pOutputKey,
+                             pInputKey);
+  }
+
+  /**
+   * Identity task, the output key becomes an alias for the input image (no
+   * copy).
+   *
+   * @param pInputKey
+   *          input key
+   * @param pOutputKey
+   *          output key
+   * @return task
+   */
+  public static CPUFusionTask identity(String pInputKey,
+                                       String pOutputKey)
+  {
+    return new CPUFusionTask("Identity",
+                             (i) -> i[0],
+                             pOutputKey,
+                             pInputKey);
+  }
+
+  /**
+   * Flips along X
+   *
+   * @param pInputKey
+   *          input key
+   * @param pOutputKey
+   *          output key
+   * @return task
+   */
+  public static CPUFusionTask flipX(String pInputKey, String pOutputKey)
+  {
+    return new CPUFusionTask("FlipX",
+                             (i) -> CPUFusionKernels.flipX(i[0]),
+                             pOutputKey,
+                             pInputKey);
+  }
+
+  /**
+   * Gaussian blur
+   *
+   * @param pInputKey
+   *          input key
+   * @param pOutputKey
+   *          output key
+   * @param pSigmas
+   *          sigmas along X, Y and Z
+   * @return task
+   */
+  public static CPUFusionTask gaussianBlur(String pInputKey,
+                                           String pOutputKey,
+                                           float[] pSigmas)
+  {
+    return new CPUFusionTask("GaussianBlur",
+                             (i) -> CPUFusionKernels.gaussianBlur(i[0],
+                                                                  pSigmas),
+                             pOutputKey,
+                             pInputKey);
+  }
+
+  /**
+   * Tenengrad fusion with lightly smoothed weights
+   *
+   * @param pOutputKey
+   *          output key
+   * @param pInputKeys
+   *          input keys
+   * @return task
+   */
+  public static CPUFusionTask tenengradFusion(String pOutputKey,
+                                              String... pInputKeys)
+  {
+    return fuseWithSmoothWeights(pOutputKey, new float[]
+    { 2, 2, 1 }, pInputKeys);
+  }
+
+  /**
+   * Tenengrad fusion with weights smoothed with a Gaussian of given sigmas
+   *
+   * @param pOutputKey
+   *          output key
+   * @param pWeightSigmas
+   *          weight smoothing sigmas along X, Y and Z
+   * @param pInputKeys
+   *          input keys
+   * @return task
+   */
+  public static CPUFusionTask fuseWithSmoothWeights(String pOutputKey,
+                                                    float[] pWeightSigmas,
+                                                    String... pInputKeys)
+  {
+    return new CPUFusionTask("TenengradFusion",
+                             (i) -> i.length == 1 ? i[0]
+                                                  : CPUFusionKernels.tenengradFusion(pWeightSigmas,
+                                                                                     i),
+                             pOutputKey,
+                             pInputKeys);
+  }
+
+  /**
+   * Subtracts a blurred copy of the image from itself
+   *
+   * @param pInputKey
+   *          input key
+   * @param pOutputKey
+   *          output key
+   * @param pSigmas
+   *          background sigmas along X, Y and Z
+   * @return task
+   */
+  public static CPUFusionTask subtractBlurredCopy(String pInputKey,
+                                                  String pOutputKey,
+                                                  float[] pSigmas)
+  {
+    return new CPUFusionTask("SubtractBlurredCopy",
+                             (i) -> CPUFusionKernels.subtractBlurredCopy(i[0],
+                                                                         pSigmas),
+                             pOutputKey,
+                             pInputKey);
+  }
+
+}
@@ -0,0 +1,247 @@
+package clearcontrol.microscope.lightsheet.processor.cpu;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import clearcontrol.core.configuration.MachineConfiguration;
+import clearcontrol.microscope.lightsheet.stacks.MetaDataView;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.metadata.StackMetaData;
+
+/**
+ * Lightsheet CPU fusion engine. Pure Java fallback for the ClearCL based
+ * lightsheet fast fusion engine when no OpenCL device is available, it uses
+ * the same image keys ("C0L0" -> "C0L0d" -> "C0" -> "fused"). Like the OpenCL
+ * engine, views of different laser lines are fused separately: keys are
+ * prefixed with the channel key prefix (e.g. "ch1-C0L0" -> "ch1-fused") and
+ * the graph of a channel is built the first time one of its views is passed.
+ * Views from the second detection arm are only mirrored along X: this engine
+ * does no registration, so its output is not equivalent to the OpenCL path as
+ * soon as the detection arms are not perfectly aligned.
+ *
+ * @author royer
+ */
+public class LightSheetCPUFusionEngine extends CPUFusionEngine
+{
+  private volatile boolean mDownscale =
+                                      MachineConfiguration.get()
+                                                          .getBooleanProperty("fastfuse.downscale",
+                                                                              true);
+
+  private final int mNumberOfLightSheets;
+  private final int mNumberOfDetectionArms;
+  private final float[] mKernelSigmasFusion, mKernelSigmasBackground;
+
+  // channels for which a graph was built, and for which views were passed
+  // since the last reset:
+  private final Set<String> mChannelKeyPrefixSet = new HashSet<>();
+  private final Set<String> mPassedChannelKeyPrefixSet =
+                                                       new LinkedHashSet<>();
+
+  private StackMetaData mFusedStackMetaData = new StackMetaData();
+
+  /**
+   * Instantiates a lightsheet CPU fusion engine
+   *
+   * @param pNumberOfLightSheets
+   *          number of lightsheets
+   * @param pNumberOfDetectionArms
+   *          number of detection arms
+   */
+  public LightSheetCPUFusionEngine(int pNumberOfLightSheets,
+                                   int pNumberOfDetectionArms)
+  {
+    mNumberOfLightSheets = pNumberOfLightSheets;
+    mNumberOfDetectionArms = pNumberOfDetectionArms;
+
+    float[] lKernelSigmasFusion = new float[]
+    { 15, 15, 5 };
+
+    float[] lKernelSigmasBackground = new float[]
+    { 30, 30, 10 };
+
+    // same smoothing and background subtraction as the ClearCL engine for
+    // 4 lightsheets and 2 detection arms:
+    boolean lSmoothWeights = pNumberOfLightSheets == 4
+                             && pNumberOfDetectionArms == 2;
+
+    mKernelSigmasFusion = lSmoothWeights ? lKernelSigmasFusion : null;
+    mKernelSigmasBackground = lSmoothWeights ? lKernelSigmasBackground
+                                             : null;
+  }
+
+  /**
+   * Makes sure that a task graph exists for the channel with given key prefix
+   * (e.g. 'ch1-'), the graph is built on first use.
+   *
+   * @param pChannelKeyPrefix
+   *          channel key prefix, empty for stacks without laser line
+   */
+  public void ensureChannel(String pChannelKeyPrefix)
+  {
+    if (mChannelKeyPrefixSet.add(pChannelKeyPrefix))
+      setup(pChannelKeyPrefix,
+            mKernelSigmasFusion,
+            mKernelSigmasBackground);
+  }
+
+  private void setup(String pChannelKeyPrefix,
+                     float[] pKernelSigmasFusion,
+                     float[] pKernelSigmasBackground)
+  {
+    String lFusedKey = pChannelKeyPrefix + "fused";
+    ArrayList<String> lCameraKeyList = new ArrayList<>();
+    for (int c = 0; c < mNumberOfDetectionArms; c++)
+    {
+      String[] lViewKeys = new String[mNumberOfLightSheets];
+      for (int l = 0; l < mNumberOfLightSheets; l++)
+      {
+        String lKey = pChannelKeyPrefix + String.format("C%dL%d", c, l);
+        lViewKeys[l] = lKey + "d";
+        if (isDownscale())
+          addTask(CPUFusionTasks.downsampleXYbyHalf(lKey,
+                                                    lKey + "d",
+                                                    true));
+        else
+          addTask(CPUFusionTasks.identity(lKey, lKey + "d"));
+      }
+
+      String lCameraKey = pChannelKeyPrefix + "C" + c;
+      addTask(fuse(lCameraKey, pKernelSigmasFusion, lViewKeys));
+
+      if (c % 2 == 1)
+      {
+        addTask(CPUFusionTasks.flipX(lCameraKey,
+                                     lCameraKey + "adjusted"));
+        lCameraKeyList.add(lCameraKey + "adjusted");
+      }
+      else
+        lCameraKeyList.add(lCameraKey);
+
+      retainImages(lCameraKey);
+    }
+
+    String[] lCameraKeys =
+                         lCameraKeyList.toArray(new String[lCameraKeyList.size()]);
+
+    if (pKernelSigmasBackground != null)
+    {
+      addTask(fuse(lFusedKey + "-preliminary",
+                   pKernelSigmasFusion,
+                   lCameraKeys));
+      addTask(CPUFusionTasks.subtractBlurredCopy(lFusedKey
+                                                 + "-preliminary",
+                                                 lFusedKey,
+                                                 pKernelSigmasBackground));
+    }
+    else
+      addTask(fuse(lFusedKey, pKernelSigmasFusion, lCameraKeys));
+
+    retainImages(lFusedKey);
+  }
+
+  private CPUFusionTask fuse(String pOutputKey,
+                             float[] pKernelSigmasFusion,
+                             String... pInputKeys)
+  {
+    if (pKernelSigmasFusion != null)
+      return CPUFusionTasks.fuseWithSmoothWeights(pOutputKey,
+                                                  pKernelSigmasFusion,
+                                                  pInputKeys);
+    else
+      return CPUFusionTasks.tenengradFusion(pOutputKey, pInputKeys);
+  }
+
+  /**
+   * Passes a stack to this CPU fusion engine, the stack is released once its
+   * contents have been copied.
+   *
+   * @param pStack
+   *          stack
+   */
+  public void passStack(StackInterface pStack)
+  {
+    try
+    {
+      StackMetaData lStackMetaData = pStack.getMetaData();
+
+      String lKey = MetaDataView.getViewKey(lStackMetaData);
+      if (lKey == null)
+      {
+        pStack.release();
+        return;
+      }
+
+      String lChannelKeyPrefix =
+                               MetaDataView.getChannelKeyPrefix(lStackMetaData);
+      ensureChannel(lChannelKeyPrefix);
+      mPassedChannelKeyPrefixSet.add(lChannelKeyPrefix);
+
+      passImage(lKey,
+                pStack.getContiguousMemory(),
+                pStack.getDimensions());
+
+      mFusedStackMetaData.addAll(lStackMetaData);
+
+      pStack.release();
+    }
+    catch (Throwable e)
+    {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Returns the fused metadata object
+   *
+   * @return fused metadata
+   */
+  public StackMetaData getFusedMetaData()
+  {
+    return mFusedStackMetaData.clone();
+  }
+
+  @Override
+  public void reset()
+  {
+    super.reset();
+    mFusedStackMetaData.clear();
+    mPassedChannelKeyPrefixSet.clear();
+  }
+
+  /**
+   * Returns the key prefixes of the channels for which views were passed since
+   * the last reset, in the order they were first passed
+   *
+   * @return channel key prefixes
+   */
+  public Set<String> getPassedChannelKeyPrefixes()
+  {
+    return new LinkedHashSet<>(mPassedChannelKeyPrefixSet);
+  }
+
+  /**
+   * Returns true if the fusion of a given channel is done
+   *
+   * @param pChannelKeyPrefix
+   *          channel key prefix, empty for stacks without laser line
+   * @return true -> fusion done
+   */
+  public boolean isDone(String pChannelKeyPrefix)
+  {
+    return isImageAvailable(pChannelKeyPrefix + "fused");
+  }
+
+  /**
+   * Returns true if downscale by a factor 2 along XY is active
+   *
+   * @return true if downscale is active
+   */
+  public boolean isDownscale()
+  {
+    return mDownscale;
+  }
+
+}
@@ -0,0 +1,170 @@
+package clearcontrol.microscope.lightsheet.processor.cpu.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import clearcontrol.microscope.lightsheet.processor.cpu.CPUFusionEngine;
+import clearcontrol.microscope.lightsheet.processor.cpu.CPUFusionImage;
+import clearcontrol.microscope.lightsheet.processor.cpu.CPUFusionKernels;
+import clearcontrol.microscope.lightsheet.processor.cpu.CPUFusionTasks;
+
+import org.junit.Test;
+
+/**
+ * CPU fusion engine tests
+ *
+ * @author royer
+ */
+public class CPUFusionEngineTests
+{
+
+  /**
+   * tests that blurring and fusing constant images leaves them unchanged
+   */
+  @Test
+  public void constantImages()
+  {
+    CPUFusionImage lImage = constant(32, 24, 8, 100);
+
+    CPUFusionImage lBlurred =
+                            CPUFusionKernels.gaussianBlur(lImage,
+                                                          new float[]
+                                                          { 2, 2, 1 });
+    assertConstant(lBlurred, 100);
+
+    CPUFusionImage lFused = CPUFusionKernels.tenengradFusion(new float[]
+    { 2, 2, 1 }, lImage, lBlurred);
+    assertConstant(lFused, 100);
+
+    CPUFusionImage lDownsampled =
+                                CPUFusionKernels.downsampleXYbyHalf(lImage,
+                                                                    true);
+    assertEquals(16, lDownsampled.getWidth());
+    assertEquals(12, lDownsampled.getHeight());
+    assertEquals(8, lDownsampled.getDepth());
+    assertConstant(lDownsampled, 100);
+
+    lImage.free();
+    lBlurred.free();
+    lFused.free();
+    lDownsampled.free();
+  }
+
+  /**
+   * tests that flipping twice along X is the identity
+   */
+  @Test
+  public void flipX()
+  {
+    CPUFusionImage lImage = new CPUFusionImage(7, 5, 3);
+    for (long i = 0; i < 7 * 5 * 3; i++)
+      lImage.set(i, i);
+
+    CPUFusionImage lFlipped = CPUFusionKernels.flipX(lImage);
+    assertEquals(6, lFlipped.get(0), 0);
+
+    CPUFusionImage lFlippedTwice = CPUFusionKernels.flipX(lFlipped);
+    for (long i = 0; i < 7 * 5 * 3; i++)
+      assertEquals(lImage.get(i), lFlippedTwice.get(i), 0);
+
+    lImage.free();
+    lFlipped.free();
+    lFlippedTwice.free();
+  }
+
+  /**
+   * tests that the in-place Z convolution (ring buffer of planes) matches a
+   * direct convolution with clamped borders
+   */
+  @Test
+  public void gaussianBlurZ()
+  {
+    int lWidth = 5, lHeight = 37, lDepth = 9;
+    CPUFusionImage lImage = new CPUFusionImage(lWidth, lHeight, lDepth);
+    for (long i = 0; i < lWidth * lHeight * lDepth; i++)
+      lImage.set(i, (i * 7919) % 101);
+
+    float[] lKernel = CPUFusionKernels.gaussianKernel(1.5f);
+    int lRadius = lKernel.length / 2;
+
+    CPUFusionImage lBlurred =
+                            CPUFusionKernels.gaussianBlur(lImage,
+                                                          new float[]
+                                                          { 0, 0, 1.5f });
+
+    int lPlaneLength = lImage.getPlaneLength();
+    for (int z = 0; z < lDepth; z++)
+      for (int i = 0; i < lPlaneLength; i++)
+      {
+        float lExpected = 0;
+        for (int k = -lRadius; k <= lRadius; k++)
+        {
+          int zk = Math.min(Math.max(z + k, 0), lDepth - 1);
+          lExpected += lKernel[k + lRadius]
+                       * lImage.get((long) zk * lPlaneLength + i);
+        }
+        assertEquals(lExpected,
+                     lBlurred.get((long) z * lPlaneLength + i),
+                     1e-3);
+      }
+
+    lImage.free();
+    lBlurred.free();
+  }
+
+  /**
+   * tests task graph execution and release of intermediate images
+   */
+  @Test
+  public void taskGraph()
+  {
+    CPUFusionEngine lEngine = new CPUFusionEngine();
+    lEngine.addTask(CPUFusionTasks.downsampleXYbyHalf("C0L0",
+                                                      "C0L0d",
+                                                      false));
+    lEngine.addTask(CPUFusionTasks.downsampleXYbyHalf("C0L1",
+                                                      "C0L1d",
+                                                      false));
+    lEngine.addTask(CPUFusionTasks.tenengradFusion("fused",
+                                                   "C0L0d",
+                                                   "C0L1d"));
+    lEngine.retainImages("fused");
+
+    lEngine.passImage("C0L0", constant(16, 16, 4, 10));
+    assertEquals(1, lEngine.executeAllTasks());
+    assertFalse(lEngine.isImageAvailable("fused"));
+
+    lEngine.passImage("C0L1", constant(16, 16, 4, 10));
+    assertEquals(2, lEngine.executeAllTasks());
+    assertTrue(lEngine.isImageAvailable("fused"));
+    assertFalse(lEngine.isImageAvailable("C0L0"));
+    assertFalse(lEngine.isImageAvailable("C0L0d"));
+    assertConstant(lEngine.getImage("fused"), 10);
+
+    lEngine.reset();
+    assertTrue(lEngine.getAvailableImageKeys().isEmpty());
+  }
+
+  private static CPUFusionImage constant(int pWidth,
+                                         int pHeight,
+                                         int pDepth,
+                                         float pValue)
+  {
+    CPUFusionImage lImage = new CPUFusionImage(pWidth,
+                                               pHeight,
+                                               pDepth);
+    for (long i = 0; i < (long) pWidth * pHeight * pDepth; i++)
+      lImage.set(i, pValue);
+    return lImage;
+  }
+
+  private static void assertConstant(CPUFusionImage pImage,
+                                     float pValue)
+  {
+    long lVolume = (long) pImage.getPlaneLength() * pImage.getDepth();
+    for (long i = 0; i < lVolume; i++)
+      assertEquals(pValue, pImage.get(i), 1e-3);
+  }
+
+}
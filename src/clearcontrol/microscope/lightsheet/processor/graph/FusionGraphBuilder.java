@@ -0,0 +1,656 @@
+package clearcontrol.microscope.lightsheet.processor.graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import clearcl.enums.ImageChannelDataType;
+import clearcontrol.core.log.LoggingFeature;
+import clearcontrol.microscope.lightsheet.processor.RegistrationPyramid;
+import clearcontrol.microscope.lightsheet.processor.graph.FusionGraphNode.Type;
+import fastfuse.registration.AffineMatrix;
+import fastfuse.tasks.CompositeTasks;
+import fastfuse.tasks.DownsampleXYbyHalfTask;
+import fastfuse.tasks.FlipTask;
+import fastfuse.tasks.GaussianBlurTask;
+import fastfuse.tasks.IdentityTask;
+import fastfuse.tasks.MemoryReleaseTask;
+import fastfuse.tasks.RegistrationTask;
+import fastfuse.tasks.TaskInterface;
+import fastfuse.tasks.TenengradFusionTask;
+
+/**
+ * Fusion graph builder. Generates the fusion graph for an arbitrary number of
+ * lightsheets and detection arms from a fusion graph description, and turns it
+ * into a list of fast fusion tasks:
+ * <ul>
+ * <li>identity steps are collapsed into key aliases instead of image copies,
+ * </li>
+ * <li>tasks are ordered greedily so as to minimise the peak image memory,</li>
+ * <li>memory release tasks are inserted right after the last consumer of each
+ * intermediate image.</li>
+ * </ul>
+ *
+ * @author royer
+ */
+public class FusionGraphBuilder implements LoggingFeature
+{
+  private static final String cFusedKey = "fused";
+
+  private static final float[] cDefaultKernelSigmasFusion = new float[]
+  { 15, 15, 5 };
+
+  private final FusionGraphDescription mDescription;
+
+  private final HashMap<String, String> mAliasMap = new HashMap<>();
+  private final HashSet<String> mRetainedKeySet = new HashSet<>();
+  private final HashSet<String> mFlippedRegistrationSet =
+                                                        new HashSet<>();
+  // registered camera keys in camera order, tasks are emitted in schedule
+  // order:
+  private final ArrayList<String> mRegisteredKeyList = new ArrayList<>();
+  private final HashMap<String, RegistrationPyramid> mRegistrationPyramidMap =
+                                                                           new HashMap<>();
+  private double mEstimatedPeakMemory;
+
+  /**
+   * Instantiates a fusion graph builder for a given description
+   *
+   * @param pDescription
+   *          fusion graph description
+   */
+  public FusionGraphBuilder(FusionGraphDescription pDescription)
+  {
+    mDescription = pDescription;
+  }
+
+  /**
+   * Builds the list of fast fusion tasks
+   *
+   * @return list of tasks
+   */
+  public List<TaskInterface> build()
+  {
+    mAliasMap.clear();
+    mRetainedKeySet.clear();
+    mFlippedRegistrationSet.clear();
+    mRegisteredKeyList.clear();
+    mRegistrationPyramidMap.clear();
+
+    List<FusionGraphNode> lNodeList = buildNodes();
+    lNodeList = collapseIdentities(lNodeList);
+    lNodeList = schedule(lNodeList);
+
+    List<TaskInterface> lTaskList = emitTasks(lNodeList);
+
+    info("Built fusion graph for %s: %d nodes, %d tasks, %d aliases, estimated peak memory: %.2f views",
+         mDescription,
+         lNodeList.size(),
+         lTaskList.size(),
+         mAliasMap.size(),
+         mEstimatedPeakMemory);
+
+    return lTaskList;
+  }
+
+  /**
+   * Generates the fusion graph nodes from the description (before identity
+   * collapsing and scheduling)
+   *
+   * @return list of nodes
+   */
+  public List<FusionGraphNode> buildNodes()
+  {
+    int lNumberOfLightSheets = mDescription.getNumberOfLightSheets();
+    int lNumberOfDetectionArms = mDescription.getNumberOfDetectionArms();
+    boolean lRegistration = mDescription.isRegistration()
+                            && lNumberOfDetectionArms > 1;
+    float[] lKernelSigmasFusion = mDescription.getKernelSigmasFusion();
+    float[] lKernelSigmasBackground =
+                                    mDescription.getKernelSigmasBackground();
+
+    ImageChannelDataType lCameraDataType =
+                                         lRegistration ? ImageChannelDataType.Float
+                                                       : ImageChannelDataType.UnsignedInt16;
+
+    ArrayList<FusionGraphNode> lNodeList = new ArrayList<>();
+
+    String lKeyPrefix = mDescription.getKeyPrefix();
+    String lFusedKey = lKeyPrefix + cFusedKey;
+    mRetainedKeySet.add(lFusedKey);
+
+    // per view downscaling and per camera fusion:
+    String[] lCameraKeys = new String[lNumberOfDetectionArms];
+    for (int c = 0; c < lNumberOfDetectionArms; c++)
+    {
+      String[] lViewKeys = new String[lNumberOfLightSheets];
+      for (int l = 0; l < lNumberOfLightSheets; l++)
+      {
+        String lViewKey = lKeyPrefix
+                          + FusionGraphDescription.getViewKey(c, l);
+        lViewKeys[l] = lViewKey + "d";
+        lNodeList.add(new FusionGraphNode(mDescription.isDownscale() ? Type.Downsample
+                                                                     : Type.Identity,
+                                          ImageChannelDataType.UnsignedInt16,
+                                          lViewKeys[l],
+                                          lViewKey));
+      }
+
+      lCameraKeys[c] = lNumberOfDetectionArms == 1 ? lFusedKey
+                                                   : lKeyPrefix + "C" + c;
+      if (lNumberOfDetectionArms > 1)
+        mRetainedKeySet.add(lCameraKeys[c]);
+
+      lNodeList.add(fusionNode(lCameraKeys[c],
+                               lNumberOfDetectionArms == 1 ? ImageChannelDataType.UnsignedInt16
+                                                           : lCameraDataType,
+                               lKernelSigmasFusion,
+                               lViewKeys));
+    }
+
+    if (lNumberOfDetectionArms == 1)
+      return lNodeList;
+
+    // bring all cameras into the frame of reference of camera 0, every camera
+    // is registered onto camera 0:
+    String[] lAdjustedCameraKeys = new String[lNumberOfDetectionArms];
+    lAdjustedCameraKeys[0] = lCameraKeys[0];
+    if (lRegistration)
+      lNodeList.add(new FusionGraphNode(Type.GaussianBlur,
+                                        ImageChannelDataType.Float,
+                                        lCameraKeys[0] + "blur",
+                                        lCameraKeys[0]));
+    for (int c = 1; c < lNumberOfDetectionArms; c++)
+    {
+      lAdjustedCameraKeys[c] = lCameraKeys[c] + "adjusted";
+      boolean lFlipX = mDescription.isFlipX(c) != mDescription.isFlipX(0);
+      if (lRegistration)
+      {
+        lNodeList.add(new FusionGraphNode(Type.GaussianBlur,
+                                          ImageChannelDataType.Float,
+                                          lCameraKeys[c] + "blur",
+                                          lCameraKeys[c]));
+        lNodeList.add(new FusionGraphNode(Type.Registration,
+                                          lCameraDataType,
+                                          lAdjustedCameraKeys[c],
+                                          lCameraKeys[0] + "blur",
+                                          lCameraKeys[c] + "blur",
+                                          lCameraKeys[0],
+                                          lCameraKeys[c]));
+        mRegisteredKeyList.add(lAdjustedCameraKeys[c]);
+        if (lFlipX)
+          mFlippedRegistrationSet.add(lAdjustedCameraKeys[c]);
+      }
+      else if (lFlipX)
+        lNodeList.add(new FusionGraphNode(Type.FlipX,
+                                          lCameraDataType,
+                                          lAdjustedCameraKeys[c],
+                                          lCameraKeys[c]));
+      else
+        lNodeList.add(new FusionGraphNode(Type.Identity,
+                                          lCameraDataType,
+                                          lAdjustedCameraKeys[c],
+                                          lCameraKeys[c]));
+    }
+
+    // final fusion:
+    if (lKernelSigmasBackground != null)
+    {
+      lNodeList.add(new FusionGraphNode(Type.SmoothWeightFusion,
+                                        ImageChannelDataType.Float,
+                                        lKeyPrefix + "fused-preliminary",
+                                        lAdjustedCameraKeys));
+      lNodeList.add(new FusionGraphNode(Type.BackgroundSubtraction,
+                                        ImageChannelDataType.UnsignedInt16,
+                                        lFusedKey,
+                                        lKeyPrefix + "fused-preliminary"));
+    }
+    else
+      lNodeList.add(fusionNode(lFusedKey,
+                               ImageChannelDataType.UnsignedInt16,
+                               lKernelSigmasFusion,
+                               lAdjustedCameraKeys));
+
+    return lNodeList;
+  }
+
+  private FusionGraphNode fusionNode(String pOutputKey,
+                                     ImageChannelDataType pDataType,
+                                     float[] pKernelSigmasFusion,
+                                     String... pInputKeys)
+  {
+    if (pInputKeys.length == 1)
+      return new FusionGraphNode(Type.Identity,
+                                 pDataType,
+                                 pOutputKey,
+                                 pInputKeys);
+
+    // Tenengrad fusion tasks exist for 2 and 4 inputs only:
+    boolean lTenengrad = pKernelSigmasFusion == null
+                         && (pInputKeys.length == 2
+                             || pInputKeys.length == 4);
+
+    return new FusionGraphNode(lTenengrad ? Type.TenengradFusion
+                                          : Type.SmoothWeightFusion,
+                               pDataType,
+                               pOutputKey,
+                               pInputKeys);
+  }
+
+  /**
+   * Replaces identity nodes by key aliases: consumers of the identity output
+   * read the identity input directly.
+   */
+  private List<FusionGraphNode> collapseIdentities(List<FusionGraphNode> pNodeList)
+  {
+    List<FusionGraphNode> lNodeList = new ArrayList<>(pNodeList);
+
+    boolean lCollapsed = true;
+    while (lCollapsed)
+    {
+      lCollapsed = false;
+      for (FusionGraphNode lNode : lNodeList)
+      {
+        if (lNode.getType() != Type.Identity)
+          continue;
+
+        String lSource = lNode.getInputKeys()[0];
+        String lAlias = lNode.getOutputKey();
+
+        mAliasMap.put(lAlias, lSource);
+        for (Map.Entry<String, String> lEntry : mAliasMap.entrySet())
+          if (lEntry.getValue().equals(lAlias))
+            lEntry.setValue(lSource);
+        if (mRetainedKeySet.contains(lAlias))
+          mRetainedKeySet.add(lSource);
+
+        ArrayList<FusionGraphNode> lRenamedNodeList = new ArrayList<>();
+        for (FusionGraphNode lOtherNode : lNodeList)
+          if (lOtherNode != lNode)
+            lRenamedNodeList.add(lOtherNode.withRenamedInput(lAlias,
+                                                             lSource));
+        lNodeList = lRenamedNodeList;
+        lCollapsed = true;
+        break;
+      }
+    }
+
+    return lNodeList;
+  }
+
+  /**
+   * Greedy list scheduling: among the nodes whose inputs are available, picks
+   * the one that increases the amount of live image memory the least.
+   */
+  private List<FusionGraphNode> schedule(List<FusionGraphNode> pNodeList)
+  {
+    HashMap<String, Double> lSizeMap = estimateImageSizes(pNodeList);
+
+    HashSet<String> lProducedKeySet = new HashSet<>();
+    for (FusionGraphNode lNode : pNodeList)
+      lProducedKeySet.add(lNode.getOutputKey());
+
+    // keys not produced by any node are views, they are available upfront:
+    HashSet<String> lAvailableKeySet = new HashSet<>();
+    double lLiveMemory = 0;
+    for (FusionGraphNode lNode : pNodeList)
+      for (String lInputKey : lNode.getInputKeys())
+        if (!lProducedKeySet.contains(lInputKey)
+            && lAvailableKeySet.add(lInputKey))
+          lLiveMemory += lSizeMap.get(lInputKey);
+
+    HashMap<String, Integer> lConsumerCountMap =
+                                               countConsumers(pNodeList);
+
+    ArrayList<FusionGraphNode> lPendingList = new ArrayList<>(pNodeList);
+    ArrayList<FusionGraphNode> lScheduledList = new ArrayList<>();
+    mEstimatedPeakMemory = lLiveMemory;
+
+    while (!lPendingList.isEmpty())
+    {
+      FusionGraphNode lBestNode = null;
+      double lBestDelta = Double.POSITIVE_INFINITY;
+      for (FusionGraphNode lNode : lPendingList)
+      {
+        if (!isReady(lNode, lAvailableKeySet))
+          continue;
+
+        double lDelta = lSizeMap.get(lNode.getOutputKey());
+        for (String lInputKey : lNode.getInputKeys())
+          if (lConsumerCountMap.get(lInputKey) == 1
+              && !mRetainedKeySet.contains(lInputKey))
+            lDelta -= lSizeMap.get(lInputKey);
+
+        if (lDelta < lBestDelta)
+        {
+          lBestDelta = lDelta;
+          lBestNode = lNode;
+        }
+      }
+
+      if (lBestNode == null)
+      {
+        warning("Fusion graph has unsatisfiable nodes: %s", lPendingList);
+        break;
+      }
+
+      // peak happens while inputs and output coexist:
+      double lOutputSize = lSizeMap.get(lBestNode.getOutputKey());
+      mEstimatedPeakMemory = Math.max(mEstimatedPeakMemory,
+                                      lLiveMemory + lOutputSize);
+      lLiveMemory += lBestDelta;
+
+      for (String lInputKey : lBestNode.getInputKeys())
+        lConsumerCountMap.merge(lInputKey, -1, Integer::sum);
+      lAvailableKeySet.add(lBestNode.getOutputKey());
+      lPendingList.remove(lBestNode);
+      lScheduledList.add(lBestNode);
+    }
+
+    return lScheduledList;
+  }
+
+  private static boolean isReady(FusionGraphNode pNode,
+                                 HashSet<String> pAvailableKeySet)
+  {
+    for (String lInputKey : pNode.getInputKeys())
+      if (!pAvailableKeySet.contains(lInputKey))
+        return false;
+    return true;
+  }
+
+  private static HashMap<String, Integer> countConsumers(List<FusionGraphNode> pNodeList)
+  {
+    HashMap<String, Integer> lConsumerCountMap = new HashMap<>();
+    for (FusionGraphNode lNode : pNodeList)
+      for (String lInputKey : new HashSet<>(Arrays.asList(lNode.getInputKeys())))
+        lConsumerCountMap.merge(lInputKey, 1, Integer::sum);
+    return lConsumerCountMap;
+  }
+
+  /**
+   * Estimates image sizes in units of one full resolution 16 bit view.
+   */
+  private HashMap<String, Double> estimateImageSizes(List<FusionGraphNode> pNodeList)
+  {
+    HashMap<String, Double> lSizeMap = new HashMap<>();
+    HashMap<String, Double> lVoxelsMap = new HashMap<>();
+
+    boolean lProgress = true;
+    while (lProgress)
+    {
+      lProgress = false;
+      for (FusionGraphNode lNode : pNodeList)
+      {
+        if (lVoxelsMap.containsKey(lNode.getOutputKey()))
+          continue;
+
+        String lFirstInputKey = lNode.getInputKeys()[0];
+        Double lInputVoxels = lVoxelsMap.get(lFirstInputKey);
+        if (lInputVoxels == null)
+        {
+          if (isProduced(pNodeList, lFirstInputKey))
+            continue;
+          // view:
+          lInputVoxels = 1.0;
+          lVoxelsMap.put(lFirstInputKey, 1.0);
+          lSizeMap.put(lFirstInputKey, 1.0);
+        }
+
+        double lVoxels = lNode.getType() == Type.Downsample
+                                                            ? 0.25 * lInputVoxels
+                                                            : lInputVoxels;
+        double lBytesFactor =
+                            lNode.getOutputDataType() == ImageChannelDataType.Float ? 2
+                                                                                    : 1;
+        lVoxelsMap.put(lNode.getOutputKey(), lVoxels);
+        lSizeMap.put(lNode.getOutputKey(), lVoxels * lBytesFactor);
+        lProgress = true;
+      }
+    }
+
+    // views that are not first inputs:
+    for (FusionGraphNode lNode : pNodeList)
+      for (String lInputKey : lNode.getInputKeys())
+        lSizeMap.putIfAbsent(lInputKey, 1.0);
+
+    return lSizeMap;
+  }
+
+  private static boolean isProduced(List<FusionGraphNode> pNodeList,
+                                    String pKey)
+  {
+    for (FusionGraphNode lNode : pNodeList)
+      if (lNode.getOutputKey().equals(pKey))
+        return true;
+    return false;
+  }
+
+  /**
+   * Turns scheduled nodes into tasks and inserts memory release tasks after
+   * the last consumer of each intermediate image.
+   */
+  private List<TaskInterface> emitTasks(List<FusionGraphNode> pScheduledNodeList)
+  {
+    HashMap<String, Integer> lConsumerCountMap =
+                                               countConsumers(pScheduledNodeList);
+
+    ArrayList<TaskInterface> lTaskList = new ArrayList<>();
+    for (FusionGraphNode lNode : pScheduledNodeList)
+    {
+      boolean lReleasesInputs = releasesInputs(lNode, lConsumerCountMap);
+      lTaskList.addAll(toTasks(lNode, lReleasesInputs));
+
+      ArrayList<String> lReleaseList = new ArrayList<>();
+      for (String lInputKey : new HashSet<>(Arrays.asList(lNode.getInputKeys())))
+      {
+        int lRemaining = lConsumerCountMap.merge(lInputKey,
+                                                 -1,
+                                                 Integer::sum);
+        if (lRemaining == 0 && !lReleasesInputs
+            && !mRetainedKeySet.contains(lInputKey))
+          lReleaseList.add(lInputKey);
+      }
+
+      if (!lReleaseList.isEmpty())
+        lTaskList.add(new MemoryReleaseTask(lNode.getOutputKey(),
+                                            lReleaseList.toArray(new String[lReleaseList.size()])));
+    }
+    return lTaskList;
+  }
+
+  /**
+   * Composite and downsampling tasks can release their inputs themselves, this
+   * is only allowed if none of the inputs is retained or consumed later: the
+   * node must be the last remaining consumer of each of its inputs.
+   */
+  private boolean releasesInputs(FusionGraphNode pNode,
+                                 HashMap<String, Integer> pRemainingConsumerCountMap)
+  {
+    switch (pNode.getType())
+    {
+    case Downsample:
+    case SmoothWeightFusion:
+    case BackgroundSubtraction:
+      for (String lInputKey : pNode.getInputKeys())
+        if (mRetainedKeySet.contains(lInputKey)
+            || pRemainingConsumerCountMap.get(lInputKey) != 1)
+          return false;
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  private List<TaskInterface> toTasks(FusionGraphNode pNode,
+                                      boolean pReleaseInputs)
+  {
+    ArrayList<TaskInterface> lTaskList = new ArrayList<>();
+    String[] lInputs = pNode.getInputKeys();
+    String lOutput = pNode.getOutputKey();
+
+    switch (pNode.getType())
+    {
+    case Downsample:
+      if (pReleaseInputs && lOutput.startsWith(lInputs[0]))
+        lTaskList.addAll(DownsampleXYbyHalfTask.applyAndReleaseInputs(DownsampleXYbyHalfTask.Type.Median,
+                                                                      lOutput.substring(lInputs[0].length()),
+                                                                      lInputs[0]));
+      else
+        lTaskList.add(new DownsampleXYbyHalfTask(lInputs[0], lOutput));
+      break;
+
+    case Identity:
+      lTaskList.add(new IdentityTask(lInputs[0], lOutput));
+      break;
+
+    case FlipX:
+      lTaskList.add(FlipTask.flipX(lInputs[0], lOutput));
+      break;
+
+    case TenengradFusion:
+      if (lInputs.length == 4)
+        lTaskList.add(new TenengradFusionTask(lInputs[0],
+                                              lInputs[1],
+                                              lInputs[2],
+                                              lInputs[3],
+                                              lOutput,
+                                              pNode.getOutputDataType()));
+      else
+        lTaskList.add(new TenengradFusionTask(lInputs[0],
+                                              lInputs[1],
+                                              lOutput,
+                                              pNode.getOutputDataType()));
+      break;
+
+    case SmoothWeightFusion:
+      float[] lKernelSigmasFusion = mDescription.getKernelSigmasFusion();
+      lTaskList.addAll(CompositeTasks.fuseWithSmoothWeights(lOutput,
+                                                            pNode.getOutputDataType(),
+                                                            lKernelSigmasFusion != null ? lKernelSigmasFusion
+                                                                                        : cDefaultKernelSigmasFusion,
+                                                            pReleaseInputs,
+                                                            lInputs));
+      break;
+
+    case GaussianBlur:
+      lTaskList.add(new GaussianBlurTask(lInputs[0],
+                                         lOutput,
+                                         mDescription.getKernelSigmasRegistration(),
+                                         mDescription.getKernelSizesRegistration()));
+      break;
+
+    case Registration:
+      RegistrationPyramid lRegistrationPyramid =
+                                               new RegistrationPyramid(mDescription.getRegistrationPyramidLevels(),
+                                                                       lInputs[0],
+                                                                       lInputs[1],
+                                                                       lInputs[2],
+                                                                       lInputs[3],
+                                                                       lOutput,
+                                                                       mFlippedRegistrationSet.contains(lOutput) ? AffineMatrix.scaling(-1,
+                                                                                                                                        1,
+                                                                                                                                        1)
+                                                                                                                 : null);
+      mRegistrationPyramidMap.put(lOutput, lRegistrationPyramid);
+      lTaskList.addAll(lRegistrationPyramid.getTasks());
+      break;
+
+    case BackgroundSubtraction:
+      lTaskList.addAll(CompositeTasks.subtractBlurredCopyFromFloatImage(lInputs[0],
+                                                                        lOutput,
+                                                                        mDescription.getKernelSigmasBackground(),
+                                                                        pReleaseInputs,
+                                                                        pNode.getOutputDataType()));
+      break;
+    }
+
+    return lTaskList;
+  }
+
+  /**
+   * Returns the alias map: image keys that are not computed but refer to the
+   * image of another key (for example 'C0L0d' -> 'C0L0' without downscaling)
+   *
+   * @return alias map
+   */
+  public Map<String, String> getAliasMap()
+  {
+    return mAliasMap;
+  }
+
+  /**
+   * Returns the keys of the images that are kept after fusion (fused image and
+   * per camera images), including the keys they are aliases of
+   *
+   * @return retained keys
+   */
+  public Set<String> getRetainedKeys()
+  {
+    return mRetainedKeySet;
+  }
+
+  /**
+   * Returns the registration task of the first camera pair (camera 1 onto
+   * camera 0), or null if none
+   *
+   * @return registration task
+   */
+  public RegistrationTask getRegistrationTask()
+  {
+    List<RegistrationPyramid> lRegistrationPyramidList =
+                                                       getRegistrationPyramids();
+    if (lRegistrationPyramidList.isEmpty())
+      return null;
+    return lRegistrationPyramidList.get(0).getFinestRegistrationTask();
+  }
+
+  /**
+   * Returns the registration pyramid of the first camera pair, or null if
+   * registration is single resolution
+   *
+   * @return registration pyramid or null
+   */
+  public RegistrationPyramid getRegistrationPyramid()
+  {
+    List<RegistrationPyramid> lRegistrationPyramidList =
+                                                       getRegistrationPyramids();
+    if (lRegistrationPyramidList.isEmpty()
+        || lRegistrationPyramidList.get(0).getNumberOfLevels() == 1)
+      return null;
+    return lRegistrationPyramidList.get(0);
+  }
+
+  /**
+   * Returns the registration pyramids (single level ones included) of all
+   * camera pairs, in camera order: camera 1 onto camera 0, camera 2 onto
+   * camera 0, etc.
+   *
+   * @return registration pyramids
+   */
+  public List<RegistrationPyramid> getRegistrationPyramids()
+  {
+    ArrayList<RegistrationPyramid> lRegistrationPyramidList =
+                                                            new ArrayList<>();
+    for (String lRegisteredKey : mRegisteredKeyList)
+      if (mRegistrationPyramidMap.containsKey(lRegisteredKey))
+        lRegistrationPyramidList.add(mRegistrationPyramidMap.get(lRegisteredKey));
+    return lRegistrationPyramidList;
+  }
+
+  /**
+   * Returns the estimated peak image memory of the last built graph, in units
+   * of one full resolution 16 bit view
+   *
+   * @return estimated peak memory
+   */
+  public double getEstimatedPeakMemory()
+  {
+    return mEstimatedPeakMemory;
+  }
+
+}
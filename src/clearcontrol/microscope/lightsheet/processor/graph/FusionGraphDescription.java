@@ -0,0 +1,329 @@
+package clearcontrol.microscope.lightsheet.processor.graph;
+
+/**
+ * Declarative description of a fusion graph: number of lightsheets and
+ * detection arms, and which processing steps to apply. The fusion graph
+ * builder turns such a description into a list of fast fusion tasks.
+ *
+ * @author royer
+ */
+public class FusionGraphDescription
+{
+  private final int mNumberOfLightSheets;
+  private final int mNumberOfDetectionArms;
+
+  private boolean mDownscale = true;
+  private boolean mRegistration = true;
+  private int mRegistrationPyramidLevels = 1;
+  private String mKeyPrefix = "";
+
+  private float[] mKernelSigmasFusion = null;
+  private float[] mKernelSigmasBackground = null;
+
+  private float[] mKernelSigmasRegistration = new float[]
+  { 0.5f, 0.5f, 0.5f };
+  private int[] mKernelSizesRegistration = new int[]
+  { 3, 3, 3 };
+
+  // detection arms whose images are mirrored along X, by default every other
+  // arm faces the first one:
+  private final boolean[] mFlipX;
+
+  /**
+   * Instantiates a fusion graph description for a given number of lightsheets
+   * and detection arms
+   *
+   * @param pNumberOfLightSheets
+   *          number of lightsheets
+   * @param pNumberOfDetectionArms
+   *          number of detection arms
+   */
+  public FusionGraphDescription(int pNumberOfLightSheets,
+                                int pNumberOfDetectionArms)
+  {
+    mNumberOfLightSheets = pNumberOfLightSheets;
+    mNumberOfDetectionArms = pNumberOfDetectionArms;
+    mFlipX = new boolean[pNumberOfDetectionArms];
+    for (int c = 0; c < pNumberOfDetectionArms; c++)
+      mFlipX[c] = c % 2 == 1;
+  }
+
+  /**
+   * Returns the key of a given view, e.g. C1L0
+   *
+   * @param pCameraIndex
+   *          camera index
+   * @param pLightSheetIndex
+   *          lightsheet index
+   * @return view key
+   */
+  public static String getViewKey(int pCameraIndex, int pLightSheetIndex)
+  {
+    return String.format("C%dL%d", pCameraIndex, pLightSheetIndex);
+  }
+
+  /**
+   * Returns a copy of this description whose image keys all start with a given
+   * prefix, e.g. 'ch1-', so that several graphs can share one engine
+   *
+   * @param pKeyPrefix
+   *          key prefix
+   * @return prefixed copy of this description
+   */
+  public FusionGraphDescription withKeyPrefix(String pKeyPrefix)
+  {
+    FusionGraphDescription lDescription =
+                                        new FusionGraphDescription(mNumberOfLightSheets,
+                                                                   mNumberOfDetectionArms);
+    lDescription.mDownscale = mDownscale;
+    lDescription.mRegistration = mRegistration;
+    lDescription.mRegistrationPyramidLevels = mRegistrationPyramidLevels;
+    lDescription.mKernelSigmasFusion = mKernelSigmasFusion;
+    lDescription.mKernelSigmasBackground = mKernelSigmasBackground;
+    lDescription.mKernelSigmasRegistration = mKernelSigmasRegistration;
+    lDescription.mKernelSizesRegistration = mKernelSizesRegistration;
+    System.arraycopy(mFlipX,
+                     0,
+                     lDescription.mFlipX,
+                     0,
+                     mNumberOfDetectionArms);
+    lDescription.mKeyPrefix = pKeyPrefix;
+    return lDescription;
+  }
+
+  /**
+   * Returns the prefix of all image keys of graphs built from this description
+   *
+   * @return key prefix, empty by default
+   */
+  public String getKeyPrefix()
+  {
+    return mKeyPrefix;
+  }
+
+  /**
+   * Returns the number of lightsheets
+   *
+   * @return number of lightsheets
+   */
+  public int getNumberOfLightSheets()
+  {
+    return mNumberOfLightSheets;
+  }
+
+  /**
+   * Returns the number of detection arms
+   *
+   * @return number of detection arms
+   */
+  public int getNumberOfDetectionArms()
+  {
+    return mNumberOfDetectionArms;
+  }
+
+  /**
+   * Returns true if views are downscaled by a factor 2 along XY
+   *
+   * @return true if downscale
+   */
+  public boolean isDownscale()
+  {
+    return mDownscale;
+  }
+
+  /**
+   * Sets whether views are downscaled by a factor 2 along XY
+   *
+   * @param pDownscale
+   *          downscale flag
+   */
+  public void setDownscale(boolean pDownscale)
+  {
+    mDownscale = pDownscale;
+  }
+
+  /**
+   * Returns true if the images of a given detection arm are mirrored along X.
+   * Images of an arm are flipped before fusion (or registration starts from a
+   * flip) if its mirroring differs from the one of the first arm.
+   *
+   * @param pCameraIndex
+   *          camera index
+   * @return true if mirrored along X
+   */
+  public boolean isFlipX(int pCameraIndex)
+  {
+    return mFlipX[pCameraIndex];
+  }
+
+  /**
+   * Sets whether the images of a given detection arm are mirrored along X, by
+   * default odd detection arms are.
+   *
+   * @param pCameraIndex
+   *          camera index
+   * @param pFlipX
+   *          true if mirrored along X
+   */
+  public void setFlipX(int pCameraIndex, boolean pFlipX)
+  {
+    mFlipX[pCameraIndex] = pFlipX;
+  }
+
+  /**
+   * Returns true if views from different detection arms are registered
+   *
+   * @return true if registration
+   */
+  public boolean isRegistration()
+  {
+    return mRegistration;
+  }
+
+  /**
+   * Sets whether views from different detection arms are registered
+   *
+   * @param pRegistration
+   *          registration flag
+   */
+  public void setRegistration(boolean pRegistration)
+  {
+    mRegistration = pRegistration;
+  }
+
+  /**
+   * Returns the number of levels of the registration pyramid, 1 means single
+   * resolution registration
+   *
+   * @return number of pyramid levels
+   */
+  public int getRegistrationPyramidLevels()
+  {
+    return mRegistrationPyramidLevels;
+  }
+
+  /**
+   * Sets the number of levels of the registration pyramid, 1 means single
+   * resolution registration
+   *
+   * @param pRegistrationPyramidLevels
+   *          number of pyramid levels
+   */
+  public void setRegistrationPyramidLevels(int pRegistrationPyramidLevels)
+  {
+    mRegistrationPyramidLevels = pRegistrationPyramidLevels;
+  }
+
+  /**
+   * Returns the sigmas used to smooth fusion weights, null means plain
+   * Tenengrad fusion
+   *
+   * @return fusion kernel sigmas or null
+   */
+  public float[] getKernelSigmasFusion()
+  {
+    return mKernelSigmasFusion;
+  }
+
+  /**
+   * Sets the sigmas used to smooth fusion weights, null means plain Tenengrad
+   * fusion
+   *
+   * @param pKernelSigmasFusion
+   *          fusion kernel sigmas or null
+   */
+  public void setKernelSigmasFusion(float[] pKernelSigmasFusion)
+  {
+    mKernelSigmasFusion = pKernelSigmasFusion;
+  }
+
+  /**
+   * Returns the sigmas of the background subtracted from the fused image,
+   * null means no background subtraction
+   *
+   * @return background kernel sigmas or null
+   */
+  public float[] getKernelSigmasBackground()
+  {
+    return mKernelSigmasBackground;
+  }
+
+  /**
+   * Sets the sigmas of the background subtracted from the fused image, null
+   * means no background subtraction
+   *
+   * @param pKernelSigmasBackground
+   *          background kernel sigmas or null
+   */
+  public void setKernelSigmasBackground(float[] pKernelSigmasBackground)
+  {
+    mKernelSigmasBackground = pKernelSigmasBackground;
+  }
+
+  /**
+   * Returns the sigmas of the blur applied before registration
+   *
+   * @return registration kernel sigmas
+   */
+  public float[] getKernelSigmasRegistration()
+  {
+    return mKernelSigmasRegistration;
+  }
+
+  /**
+   * Returns the sizes of the blur kernels applied before registration
+   *
+   * @return registration kernel sizes
+   */
+  public int[] getKernelSizesRegistration()
+  {
+    return mKernelSizesRegistration;
+  }
+
+  /**
+   * Sets the blur applied before registration
+   *
+   * @param pKernelSigmasRegistration
+   *          registration kernel sigmas
+   * @param pKernelSizesRegistration
+   *          registration kernel sizes
+   */
+  public void setRegistrationKernels(float[] pKernelSigmasRegistration,
+                                     int[] pKernelSizesRegistration)
+  {
+    mKernelSigmasRegistration = pKernelSigmasRegistration;
+    mKernelSizesRegistration = pKernelSizesRegistration;
+  }
+
+  /**
+   * Returns the largest Gaussian sigma along Z used by graphs built from this
+   * description
+   *
+   * @return largest Z sigma
+   */
+  public float getMaxKernelSigmaZ()
+  {
+    float lMax = mRegistration && mNumberOfDetectionArms > 1
+                                                             ? mKernelSigmasRegistration[2]
+                                                             : 0;
+    if (mKernelSigmasFusion != null)
+      lMax = Math.max(lMax, mKernelSigmasFusion[2]);
+    if (mKernelSigmasBackground != null)
+      lMax = Math.max(lMax, mKernelSigmasBackground[2]);
+    return lMax;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("FusionGraphDescription [key prefix='%s', lightsheets=%d, detection arms=%d, downscale=%s, registration=%s, smooth weights=%s, background subtraction=%s]",
+                         mKeyPrefix,
+                         mNumberOfLightSheets,
+                         mNumberOfDetectionArms,
+                         mDownscale,
+                         mRegistration,
+                         mKernelSigmasFusion != null,
+                         mKernelSigmasBackground != null);
+  }
+
+}
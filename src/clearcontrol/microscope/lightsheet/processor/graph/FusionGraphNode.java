@@ -0,0 +1,129 @@
+package clearcontrol.microscope.lightsheet.processor.graph;
+
+import java.util.Arrays;
+
+import clearcl.enums.ImageChannelDataType;
+
+/**
+ * Node of a fusion graph: one processing step from input image keys to an
+ * output image key. Nodes are turned into fast fusion tasks by the fusion
+ * graph builder.
+ *
+ * @author royer
+ */
+public class FusionGraphNode
+{
+  /**
+   * Node types
+   */
+  public enum Type
+  {
+   Downsample,
+   Identity,
+   FlipX,
+   TenengradFusion,
+   SmoothWeightFusion,
+   GaussianBlur,
+   Registration,
+   BackgroundSubtraction
+  }
+
+  private final Type mType;
+  private final String[] mInputKeys;
+  private final String mOutputKey;
+  private final ImageChannelDataType mOutputDataType;
+
+  /**
+   * Instantiates a fusion graph node
+   *
+   * @param pType
+   *          node type
+   * @param pOutputDataType
+   *          output image data type
+   * @param pOutputKey
+   *          output key
+   * @param pInputKeys
+   *          input keys
+   */
+  public FusionGraphNode(Type pType,
+                         ImageChannelDataType pOutputDataType,
+                         String pOutputKey,
+                         String... pInputKeys)
+  {
+    mType = pType;
+    mOutputDataType = pOutputDataType;
+    mOutputKey = pOutputKey;
+    mInputKeys = pInputKeys;
+  }
+
+  /**
+   * Returns the node type
+   *
+   * @return node type
+   */
+  public Type getType()
+  {
+    return mType;
+  }
+
+  /**
+   * Returns the input keys
+   *
+   * @return input keys
+   */
+  public String[] getInputKeys()
+  {
+    return mInputKeys;
+  }
+
+  /**
+   * Returns the output key
+   *
+   * @return output key
+   */
+  public String getOutputKey()
+  {
+    return mOutputKey;
+  }
+
+  /**
+   * Returns the output data type
+   *
+   * @return output data type
+   */
+  public ImageChannelDataType getOutputDataType()
+  {
+    return mOutputDataType;
+  }
+
+  /**
+   * Returns a copy of this node with input keys renamed
+   *
+   * @param pOldKey
+   *          key to rename
+   * @param pNewKey
+   *          new key
+   * @return renamed node
+   */
+  public FusionGraphNode withRenamedInput(String pOldKey, String pNewKey)
+  {
+    String[] lInputKeys = mInputKeys.clone();
+    for (int i = 0; i < lInputKeys.length; i++)
+      if (lInputKeys[i].equals(pOldKey))
+        lInputKeys[i] = pNewKey;
+    return new FusionGraphNode(mType,
+                               mOutputDataType,
+                               mOutputKey,
+                               lInputKeys);
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("%s %s -> %s",
+                         mType,
+                         Arrays.toString(mInputKeys),
+                         mOutputKey);
+  }
+
+}
@@ -0,0 +1,482 @@
+package clearcontrol.microscope.lightsheet.processor.graph;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import clearcl.enums.ImageChannelDataType;
+import clearcontrol.microscope.lightsheet.processor.RegistrationPyramid;
+import fastfuse.registration.AffineMatrix;
+import fastfuse.tasks.CompositeTasks;
+import fastfuse.tasks.DownsampleXYbyHalfTask;
+import fastfuse.tasks.DownsampleXYbyHalfTask.Type;
+import fastfuse.tasks.FlipTask;
+import fastfuse.tasks.GaussianBlurTask;
+import fastfuse.tasks.IdentityTask;
+import fastfuse.tasks.MemoryReleaseTask;
+import fastfuse.tasks.RegistrationTask;
+import fastfuse.tasks.TaskInterface;
+import fastfuse.tasks.TenengradFusionTask;
+
+/**
+ * Hand-written fusion task graphs for 1, 2 or 4 lightsheets and 1 or 2
+ * detection arms. These are the graphs the fast fusion engine used before the
+ * fusion graph builder, they are still used unless the builder is enabled
+ * (property 'fastfuse.graphbuilder') and serve as reference for the builder.
+ *
+ * @author royer
+ */
+public class LegacyFusionGraphs
+{
+  private final boolean mDownscale;
+  private final boolean mRegistration;
+  private final int mRegistrationPyramidLevels;
+
+  private final ArrayList<TaskInterface> mTaskList = new ArrayList<>();
+  private RegistrationTask mRegistrationTask;
+  private RegistrationPyramid mRegistrationPyramid;
+
+  /**
+   * Instantiates a legacy fusion graph factory
+   *
+   * @param pDownscale
+   *          true if views are downscaled by a factor 2 along XY
+   * @param pRegistration
+   *          true if views from different detection arms are registered
+   * @param pRegistrationPyramidLevels
+   *          number of levels of the registration pyramid
+   */
+  public LegacyFusionGraphs(boolean pDownscale,
+                            boolean pRegistration,
+                            int pRegistrationPyramidLevels)
+  {
+    mDownscale = pDownscale;
+    mRegistration = pRegistration;
+    mRegistrationPyramidLevels = pRegistrationPyramidLevels;
+  }
+
+  /**
+   * Returns true if a hand-written graph exists for a given topology
+   *
+   * @param pNumberOfLightSheets
+   *          number of lightsheets
+   * @param pNumberOfDetectionArms
+   *          number of detection arms
+   * @return true if supported
+   */
+  public static boolean isSupported(int pNumberOfLightSheets,
+                                    int pNumberOfDetectionArms)
+  {
+    return (pNumberOfLightSheets == 1 || pNumberOfLightSheets == 2
+            || pNumberOfLightSheets == 4)
+           && (pNumberOfDetectionArms == 1 || pNumberOfDetectionArms == 2);
+  }
+
+  /**
+   * Builds the task list of the hand-written graph for a given topology
+   *
+   * @param pNumberOfLightSheets
+   *          number of lightsheets
+   * @param pNumberOfDetectionArms
+   *          number of detection arms
+   * @param pKernelSizesRegistration
+   *          sizes of the blur kernels applied before registration
+   * @param pKernelSigmasRegistration
+   *          sigmas of the blur applied before registration
+   * @param pKernelSigmasFusion
+   *          sigmas used to smooth fusion weights (4 lightsheets, 2 arms)
+   * @param pKernelSigmasBackground
+   *          sigmas of the subtracted background (4 lightsheets, 2 arms)
+   * @return list of tasks
+   */
+  public List<TaskInterface> build(int pNumberOfLightSheets,
+                                   int pNumberOfDetectionArms,
+                                   int[] pKernelSizesRegistration,
+                                   float[] pKernelSigmasRegistration,
+                                   float[] pKernelSigmasFusion,
+                                   float[] pKernelSigmasBackground)
+  {
+    mTaskList.clear();
+    mRegistrationTask = null;
+    mRegistrationPyramid = null;
+
+    if (pNumberOfLightSheets == 1)
+    {
+      if (pNumberOfDetectionArms == 1)
+        setupOneLightsheetOneDetectionArm();
+      else if (pNumberOfDetectionArms == 2)
+        setupOneLightsheetTwoDetectionArm(pKernelSizesRegistration,
+                                          pKernelSigmasRegistration);
+    }
+    else if (pNumberOfLightSheets == 2)
+    {
+      if (pNumberOfDetectionArms == 1)
+        setupTwoLightSheetsOneDetectionArm();
+      else if (pNumberOfDetectionArms == 2)
+        setupTwoLightsheetsTwoDetectionArms(pKernelSizesRegistration,
+                                            pKernelSigmasRegistration);
+    }
+    else if (pNumberOfLightSheets == 4)
+    {
+      if (pNumberOfDetectionArms == 1)
+        setupFourLightsheetsOneDetectionArm();
+      else if (pNumberOfDetectionArms == 2)
+        setupFourLightsheetsTwoDetectionArms(pKernelSizesRegistration,
+                                             pKernelSigmasRegistration,
+                                             pKernelSigmasFusion,
+                                             pKernelSigmasBackground);
+    }
+
+    return new ArrayList<>(mTaskList);
+  }
+
+  /**
+   * Returns the registration task of the last built graph, or null if none
+   *
+   * @return registration task
+   */
+  public RegistrationTask getRegistrationTask()
+  {
+    return mRegistrationTask;
+  }
+
+  /**
+   * Returns the registration pyramid of the last built graph, or null if
+   * registration is single resolution
+   *
+   * @return registration pyramid or null
+   */
+  public RegistrationPyramid getRegistrationPyramid()
+  {
+    return mRegistrationPyramid;
+  }
+
+  private void setupFourLightsheetsTwoDetectionArms(int[] pKernelSizesRegistration,
+                                                    float[] pKernelSigmasRegistration,
+                                                    float[] pKernelSigmasFusion,
+                                                    float[] pKernelSigmasBackground)
+  {
+    if (mDownscale)
+      mTaskList.addAll(DownsampleXYbyHalfTask.applyAndReleaseInputs(Type.Median,
+                                                                    "d",
+                                                                    "C0L0",
+                                                                    "C0L1",
+                                                                    "C0L2",
+                                                                    "C0L3",
+                                                                    "C1L0",
+                                                                    "C1L1",
+                                                                    "C1L2",
+                                                                    "C1L3"));
+    else
+      mTaskList.addAll(IdentityTask.withSuffix("d",
+                                               "C0L0",
+                                               "C0L1",
+                                               "C0L2",
+                                               "C0L3",
+                                               "C1L0",
+                                               "C1L1",
+                                               "C1L2",
+                                               "C1L3"));
+
+    ImageChannelDataType lInitialFusionDataType =
+                                                mRegistration ? ImageChannelDataType.Float
+                                                                 : ImageChannelDataType.UnsignedInt16;
+
+    mTaskList.addAll(CompositeTasks.fuseWithSmoothWeights("C0",
+                                                          lInitialFusionDataType,
+                                                          pKernelSigmasFusion,
+                                                          true,
+                                                          "C0L0d",
+                                                          "C0L1d",
+                                                          "C0L2d",
+                                                          "C0L3d"));
+
+    mTaskList.addAll(CompositeTasks.fuseWithSmoothWeights("C1",
+                                                          lInitialFusionDataType,
+                                                          pKernelSigmasFusion,
+                                                          true,
+                                                          "C1L0d",
+                                                          "C1L1d",
+                                                          "C1L2d",
+                                                          "C1L3d"));
+
+    if (mRegistration && mRegistrationPyramidLevels > 1)
+    {
+      mTaskList.add(new GaussianBlurTask("C0",
+                                         "C0blur",
+                                         pKernelSigmasRegistration,
+                                         pKernelSizesRegistration));
+      mTaskList.add(new GaussianBlurTask("C1",
+                                         "C1blur",
+                                         pKernelSigmasRegistration,
+                                         pKernelSizesRegistration));
+      addRegistrationTasks("C0blur", "C1blur", "C0", "C1", "C1adjusted");
+      mTaskList.add(new MemoryReleaseTask("C1adjusted",
+                                          "C0blur",
+                                          "C1blur",
+                                          "C1"));
+    }
+    else if (mRegistration)
+    {
+      List<TaskInterface> lRegistrationTaskList =
+                                                CompositeTasks.registerWithBlurPreprocessing("C0",
+                                                                                             "C1",
+                                                                                             "C1adjusted",
+                                                                                             pKernelSigmasRegistration,
+                                                                                             pKernelSizesRegistration,
+                                                                                             AffineMatrix.scaling(-1,
+                                                                                                                  1,
+                                                                                                                  1),
+                                                                                             true);
+      mTaskList.addAll(lRegistrationTaskList);
+      // extract registration task from list
+      for (TaskInterface lTask : lRegistrationTaskList)
+        if (lTask instanceof RegistrationTask)
+        {
+          mRegistrationTask = (RegistrationTask) lTask;
+          break;
+        }
+    }
+    else
+    {
+      mTaskList.add(FlipTask.flipX("C1", "C1adjusted"));
+      mTaskList.add(new MemoryReleaseTask("C1adjusted", "C1"));
+    }
+
+    // addTasks(CompositeTasks.fuseWithSmoothWeights("fused",
+    // ImageChannelDataType.UnsignedInt16,
+    // pKernelSigmasFusion,
+    // true,
+    // "C0",
+    // "C1adjusted"));
+
+    mTaskList.addAll(CompositeTasks.fuseWithSmoothWeights("fused-preliminary",
+                                                          ImageChannelDataType.Float,
+                                                          pKernelSigmasFusion,
+                                                          true,
+                                                          "C0",
+                                                          "C1adjusted"));
+
+    mTaskList.addAll(CompositeTasks.subtractBlurredCopyFromFloatImage("fused-preliminary",
+                                                                      "fused",
+                                                                      pKernelSigmasBackground,
+                                                                      true,
+                                                                      ImageChannelDataType.UnsignedInt16));
+  }
+
+  private void setupFourLightsheetsOneDetectionArm()
+  {
+    if (mDownscale)
+    {
+      mTaskList.add(new DownsampleXYbyHalfTask("C0L0", "C0L0d"));
+      mTaskList.add(new DownsampleXYbyHalfTask("C0L1", "C0L1d"));
+      mTaskList.add(new DownsampleXYbyHalfTask("C0L2", "C0L2d"));
+      mTaskList.add(new DownsampleXYbyHalfTask("C0L3", "C0L3d"));
+    }
+    else
+    {
+      mTaskList.add(new IdentityTask("C0L0", "C0L0d"));
+      mTaskList.add(new IdentityTask("C0L1", "C0L1d"));
+      mTaskList.add(new IdentityTask("C0L2", "C0L2d"));
+      mTaskList.add(new IdentityTask("C0L3", "C0L3d"));
+    }
+
+    mTaskList.add(new TenengradFusionTask("C0L0d",
+                                          "C0L1d",
+                                          "C0L2d",
+                                          "C0L3d",
+                                          "fused",
+                                          ImageChannelDataType.UnsignedInt16));
+  }
+
+  private void setupTwoLightsheetsTwoDetectionArms(int[] lKernelSizes,
+                                                   float[] lKernelSigmas)
+  {
+    if (mRegistration)
+    {
+      if (mDownscale)
+      {
+        mTaskList.add(new DownsampleXYbyHalfTask("C0L0", "C0L0d"));
+        mTaskList.add(new DownsampleXYbyHalfTask("C0L1", "C0L1d"));
+        mTaskList.add(new DownsampleXYbyHalfTask("C1L0", "C1L0d"));
+        mTaskList.add(new DownsampleXYbyHalfTask("C1L1", "C1L1d"));
+      }
+      else
+      {
+        mTaskList.add(new IdentityTask("C0L0", "C0L0d"));
+        mTaskList.add(new IdentityTask("C0L1", "C0L1d"));
+        mTaskList.add(new IdentityTask("C1L0", "C1L0d"));
+        mTaskList.add(new IdentityTask("C1L1", "C1L1d"));
+      }
+
+      mTaskList.add(new TenengradFusionTask("C0L0d",
+                                            "C0L1d",
+                                            "C0",
+                                            ImageChannelDataType.Float));
+      mTaskList.add(new TenengradFusionTask("C1L0d",
+                                            "C1L1d",
+                                            "C1",
+                                            ImageChannelDataType.Float));
+
+      mTaskList.add(new GaussianBlurTask("C0",
+                                         "C0blur",
+                                         lKernelSigmas,
+                                         lKernelSizes));
+      mTaskList.add(new GaussianBlurTask("C1",
+                                         "C1blur",
+                                         lKernelSigmas,
+                                         lKernelSizes));
+
+      addRegistrationTasks("C0blur", "C1blur", "C0", "C1", "C1reg");
+      mTaskList.add(new TenengradFusionTask("C0",
+                                            "C1reg",
+                                            "fused",
+                                            ImageChannelDataType.UnsignedInt16));
+    }
+    else
+    {
+      mTaskList.add(new TenengradFusionTask("C0L0",
+                                            "C0L1",
+                                            "C0",
+                                            ImageChannelDataType.UnsignedInt16));
+      mTaskList.add(new TenengradFusionTask("C1L0",
+                                            "C1L1",
+                                            "C1",
+                                            ImageChannelDataType.UnsignedInt16));
+
+      mTaskList.add(FlipTask.flipX("C1", "C1flipped"));
+
+      mTaskList.add(new TenengradFusionTask("C0",
+                                            "C1flipped",
+                                            "fused",
+                                            ImageChannelDataType.UnsignedInt16));
+    }
+  }
+
+  /**
+   * Adds the registration of the (X flipped) second detection arm onto the
+   * first one. Depending on the number of pyramid levels, registration is
+   * single resolution or coarse-to-fine.
+   * 
+   * @param pImageABlurredKey
+   *          blurred reference image key
+   * @param pImageBBlurredKey
+   *          blurred moving image key
+   * @param pImageAKey
+   *          reference image key
+   * @param pImageBKey
+   *          moving image key
+   * @param pRegisteredImageBKey
+   *          registered moving image key
+   */
+  private void addRegistrationTasks(String pImageABlurredKey,
+                                    String pImageBBlurredKey,
+                                    String pImageAKey,
+                                    String pImageBKey,
+                                    String pRegisteredImageBKey)
+  {
+    RegistrationPyramid lRegistrationPyramid =
+                                             new RegistrationPyramid(mRegistrationPyramidLevels,
+                                                                     pImageABlurredKey,
+                                                                     pImageBBlurredKey,
+                                                                     pImageAKey,
+                                                                     pImageBKey,
+                                                                     pRegisteredImageBKey,
+                                                                     AffineMatrix.scaling(-1,
+                                                                                          1,
+                                                                                          1));
+    mTaskList.addAll(lRegistrationPyramid.getTasks());
+    mRegistrationTask = lRegistrationPyramid.getFinestRegistrationTask();
+    if (lRegistrationPyramid.getNumberOfLevels() > 1)
+      mRegistrationPyramid = lRegistrationPyramid;
+  }
+
+  private void setupTwoLightSheetsOneDetectionArm()
+  {
+    if (mDownscale)
+    {
+      mTaskList.add(new DownsampleXYbyHalfTask("C0L0", "C0L0d"));
+      mTaskList.add(new DownsampleXYbyHalfTask("C0L1", "C0L1d"));
+    }
+    else
+    {
+      mTaskList.add(new IdentityTask("C0L0", "C0L0d"));
+      mTaskList.add(new IdentityTask("C0L1", "C0L1d"));
+    }
+
+    mTaskList.add(new TenengradFusionTask("C0L0d",
+                                          "C0L1d",
+                                          "fused",
+                                          ImageChannelDataType.UnsignedInt16));
+  }
+
+  private void setupOneLightsheetTwoDetectionArm(int[] lKernelSizes,
+                                                 float[] lKernelSigmas)
+  {
+    if (mRegistration)
+    {
+      if (mDownscale)
+      {
+        mTaskList.add(new DownsampleXYbyHalfTask("C0L0", "C0L0d"));
+        mTaskList.add(new DownsampleXYbyHalfTask("C1L0", "C1L0d"));
+      }
+      else
+      {
+        mTaskList.add(new IdentityTask("C0L0", "C0L0d"));
+        mTaskList.add(new IdentityTask("C1L0", "C1L0d"));
+      }
+
+      mTaskList.add(new GaussianBlurTask("C0L0d",
+                                         "C0L0blur",
+                                         lKernelSigmas,
+                                         lKernelSizes));
+      mTaskList.add(new GaussianBlurTask("C1L0d",
+                                         "C1L0blur",
+                                         lKernelSigmas,
+                                         lKernelSizes));
+
+      addRegistrationTasks("C0L0blur",
+                           "C1L0blur",
+                           "C0L0d",
+                           "C1L0d",
+                           "C1L0reg");
+      mTaskList.add(new TenengradFusionTask("C0L0d",
+                                            "C1L0reg",
+                                            "fused",
+                                            ImageChannelDataType.UnsignedInt16));
+    }
+    else
+    {
+      if (mDownscale)
+      {
+        mTaskList.add(new DownsampleXYbyHalfTask("C0L0", "C0L0d"));
+        mTaskList.add(new DownsampleXYbyHalfTask("C1L0", "C1L0d"));
+      }
+      else
+      {
+        mTaskList.add(new IdentityTask("C0L0", "C0L0d"));
+        mTaskList.add(new IdentityTask("C1L0", "C1L0d"));
+      }
+
+      mTaskList.add(FlipTask.flipX("C1L0d", "C1L0flipped"));
+
+      mTaskList.add(new TenengradFusionTask("C0L0d",
+                                            "C1flipped",
+                                            "fused",
+                                            ImageChannelDataType.UnsignedInt16));
+
+    }
+  }
+
+  private void setupOneLightsheetOneDetectionArm()
+  {
+    if (mDownscale)
+    {
+      mTaskList.add(new DownsampleXYbyHalfTask("C0L0", "fused"));
+    }
+    else
+    {
+      mTaskList.add(new IdentityTask("C0L0", "fused"));
+    }
+  }
+
+}
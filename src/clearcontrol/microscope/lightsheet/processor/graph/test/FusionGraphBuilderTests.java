@@ -0,0 +1,314 @@
+package clearcontrol.microscope.lightsheet.processor.graph.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import clearcontrol.microscope.lightsheet.processor.graph.FusionGraphBuilder;
+import clearcontrol.microscope.lightsheet.processor.graph.FusionGraphDescription;
+import clearcontrol.microscope.lightsheet.processor.graph.LegacyFusionGraphs;
+import fastfuse.tasks.IdentityTask;
+import fastfuse.tasks.MemoryReleaseTask;
+import fastfuse.tasks.TaskInterface;
+
+import org.junit.Test;
+
+/**
+ * Fusion graph builder tests: the graphs generated by the builder must compute
+ * the same images as the hand-written graphs, and release intermediate images
+ * only once they are not needed anymore.
+ *
+ * @author royer
+ */
+public class FusionGraphBuilderTests
+{
+  private static final int[] cKernelSizesRegistration = new int[]
+  { 3, 3, 3 };
+  private static final float[] cKernelSigmasRegistration = new float[]
+  { 0.5f, 0.5f, 0.5f };
+  private static final float[] cKernelSigmasFusion = new float[]
+  { 15, 15, 5 };
+  private static final float[] cKernelSigmasBackground = new float[]
+  { 30, 30, 10 };
+
+  /**
+   * tests one lightsheet and one detection arm
+   */
+  @Test
+  public void oneLightSheetOneDetectionArm()
+  {
+    checkEquivalence(1, 1, true, false, 1);
+    checkEquivalence(1, 1, false, false, 1);
+  }
+
+  /**
+   * tests two lightsheets and two detection arms
+   */
+  @Test
+  public void twoLightSheetsTwoDetectionArms()
+  {
+    checkEquivalence(2, 2, true, true, 1);
+    checkEquivalence(2, 2, false, true, 1);
+    checkEquivalence(2, 2, true, true, 2);
+    // without registration the hand-written graph never downscales:
+    checkEquivalence(2, 2, false, false, 1);
+  }
+
+  /**
+   * tests four lightsheets and two detection arms. Single resolution
+   * registration is a composite task in the hand-written graph, the
+   * registration path is compared with a pyramid instead.
+   */
+  @Test
+  public void fourLightSheetsTwoDetectionArms()
+  {
+    checkEquivalence(4, 2, true, false, 1);
+    checkEquivalence(4, 2, false, false, 1);
+    checkEquivalence(4, 2, true, true, 2);
+  }
+
+  private static void checkEquivalence(int pNumberOfLightSheets,
+                                       int pNumberOfDetectionArms,
+                                       boolean pDownscale,
+                                       boolean pRegistration,
+                                       int pRegistrationPyramidLevels)
+  {
+    String lConfiguration =
+                          String.format("%dx%d downscale=%s registration=%s levels=%d",
+                                        pNumberOfLightSheets,
+                                        pNumberOfDetectionArms,
+                                        pDownscale,
+                                        pRegistration,
+                                        pRegistrationPyramidLevels);
+
+    // same description as the one set up by the fast fusion engine:
+    FusionGraphDescription lDescription =
+                                        new FusionGraphDescription(pNumberOfLightSheets,
+                                                                   pNumberOfDetectionArms);
+    lDescription.setDownscale(pDownscale);
+    lDescription.setRegistration(pRegistration);
+    lDescription.setRegistrationPyramidLevels(pRegistrationPyramidLevels);
+    lDescription.setRegistrationKernels(cKernelSigmasRegistration,
+                                        cKernelSizesRegistration);
+    if (pNumberOfLightSheets * pNumberOfDetectionArms > 4)
+    {
+      lDescription.setKernelSigmasFusion(cKernelSigmasFusion);
+      lDescription.setKernelSigmasBackground(cKernelSigmasBackground);
+    }
+
+    FusionGraphBuilder lFusionGraphBuilder =
+                                           new FusionGraphBuilder(lDescription);
+    TaskGraph lBuiltGraph = new TaskGraph(lFusionGraphBuilder.build(),
+                                          lFusionGraphBuilder.getAliasMap());
+
+    LegacyFusionGraphs lLegacyFusionGraphs =
+                                           new LegacyFusionGraphs(pDownscale,
+                                                                  pRegistration,
+                                                                  pRegistrationPyramidLevels);
+    TaskGraph lLegacyGraph =
+                           new TaskGraph(lLegacyFusionGraphs.build(pNumberOfLightSheets,
+                                                                   pNumberOfDetectionArms,
+                                                                   cKernelSizesRegistration,
+                                                                   cKernelSigmasRegistration,
+                                                                   cKernelSigmasFusion,
+                                                                   cKernelSigmasBackground),
+                                         Collections.emptyMap());
+
+    // same task list, up to ordering, image names and copies:
+    assertEquals(lConfiguration,
+                 lLegacyGraph.getComputations(),
+                 lBuiltGraph.getComputations());
+
+    // same fused and per camera images:
+    assertEquals(lConfiguration,
+                 lLegacyGraph.getCanonicalKey("fused"),
+                 lBuiltGraph.getCanonicalKey("fused"));
+    if (pNumberOfDetectionArms > 1)
+      for (int c = 0; c < pNumberOfDetectionArms; c++)
+        assertEquals(lConfiguration,
+                     lLegacyGraph.getCanonicalKey("C" + c),
+                     lBuiltGraph.getCanonicalKey("C" + c));
+
+    assertEquals(lConfiguration,
+                 lLegacyFusionGraphs.getRegistrationTask() != null,
+                 lFusionGraphBuilder.getRegistrationTask() != null);
+
+    // release points: no image is used after its release, retained images are
+    // never released, and everything the hand-written graph releases is
+    // released too:
+    assertTrue(lConfiguration + " " + lBuiltGraph.getUseAfterReleaseList(),
+               lBuiltGraph.getUseAfterReleaseList().isEmpty());
+
+    HashSet<String> lRetainedCanonicalKeySet = new HashSet<>();
+    for (String lRetainedKey : lFusionGraphBuilder.getRetainedKeys())
+    {
+      assertFalse(lConfiguration + " releases " + lRetainedKey,
+                  lBuiltGraph.getReleasedKeys().contains(lRetainedKey));
+      lRetainedCanonicalKeySet.add(lBuiltGraph.getCanonicalKey(lRetainedKey));
+    }
+
+    Set<String> lBuiltReleasedSet = lBuiltGraph.getReleasedCanonicalKeys();
+    for (String lReleasedKey : lLegacyGraph.getReleasedCanonicalKeys())
+      if (!lRetainedCanonicalKeySet.contains(lReleasedKey))
+        assertTrue(lConfiguration + " does not release " + lReleasedKey,
+                   lBuiltReleasedSet.contains(lReleasedKey));
+  }
+
+  /**
+   * Data flow of a task list. Image keys are replaced by canonical keys that
+   * describe how the image is computed (task class and canonical input keys),
+   * so that graphs can be compared regardless of intermediate image names.
+   * Image keys of tasks are found by reflection, inputs are the keys without
+   * which a task cannot run.
+   */
+  private static class TaskGraph
+  {
+    private final HashMap<String, String> mCanonicalKeyMap =
+                                                           new HashMap<>();
+    private final ArrayList<String> mComputationList = new ArrayList<>();
+    private final HashSet<String> mReleasedKeySet = new HashSet<>();
+    private final ArrayList<String> mUseAfterReleaseList =
+                                                         new ArrayList<>();
+
+    TaskGraph(List<TaskInterface> pTaskList, Map<String, String> pAliasMap)
+    {
+      for (TaskInterface lTask : pTaskList)
+      {
+        Set<String> lKeySet = getKeys(lTask);
+        Set<String> lInputKeySet = getInputKeys(lTask, lKeySet);
+        TreeSet<String> lOutputKeySet = new TreeSet<>(lKeySet);
+        lOutputKeySet.removeAll(lInputKeySet);
+
+        for (String lInputKey : lInputKeySet)
+          if (mReleasedKeySet.contains(lInputKey))
+            mUseAfterReleaseList.add(lInputKey + " used by "
+                                     + lTask.getClass().getSimpleName());
+
+        if (lTask instanceof MemoryReleaseTask)
+        {
+          mReleasedKeySet.addAll(lOutputKeySet);
+          continue;
+        }
+
+        if (lTask instanceof IdentityTask)
+        {
+          String lInputKey = lInputKeySet.iterator().next();
+          for (String lOutputKey : lOutputKeySet)
+            mCanonicalKeyMap.put(lOutputKey, getCanonicalKey(lInputKey));
+          continue;
+        }
+
+        TreeSet<String> lCanonicalInputKeySet = new TreeSet<>();
+        for (String lInputKey : lInputKeySet)
+          lCanonicalInputKeySet.add(getCanonicalKey(lInputKey));
+        String lComputation = lTask.getClass().getSimpleName()
+                              + lCanonicalInputKeySet;
+        mComputationList.add(lComputation);
+
+        int lOutputIndex = 0;
+        for (String lOutputKey : lOutputKeySet)
+          mCanonicalKeyMap.put(lOutputKey,
+                               lOutputKeySet.size() == 1 ? lComputation
+                                                         : lComputation
+                                                           + "#"
+                                                           + lOutputIndex++);
+      }
+
+      for (Map.Entry<String, String> lEntry : pAliasMap.entrySet())
+        mCanonicalKeyMap.put(lEntry.getKey(),
+                             getCanonicalKey(lEntry.getValue()));
+
+      Collections.sort(mComputationList);
+    }
+
+    String getCanonicalKey(String pKey)
+    {
+      // keys that are not computed are views:
+      return mCanonicalKeyMap.getOrDefault(pKey, pKey);
+    }
+
+    List<String> getComputations()
+    {
+      return mComputationList;
+    }
+
+    Set<String> getReleasedKeys()
+    {
+      return mReleasedKeySet;
+    }
+
+    Set<String> getReleasedCanonicalKeys()
+    {
+      HashSet<String> lReleasedSet = new HashSet<>();
+      for (String lReleasedKey : mReleasedKeySet)
+        lReleasedSet.add(getCanonicalKey(lReleasedKey));
+      return lReleasedSet;
+    }
+
+    List<String> getUseAfterReleaseList()
+    {
+      return mUseAfterReleaseList;
+    }
+
+    private static Set<String> getKeys(TaskInterface pTask)
+    {
+      HashSet<String> lKeySet = new HashSet<>();
+      try
+      {
+        Class<?> lClass = pTask.getClass();
+        for (; lClass != null; lClass = lClass.getSuperclass())
+          for (Field lField : lClass.getDeclaredFields())
+          {
+            if (Modifier.isStatic(lField.getModifiers()))
+              continue;
+            lField.setAccessible(true);
+            Object lValue = lField.get(pTask);
+            if (lValue instanceof String)
+              lKeySet.add((String) lValue);
+            else if (lValue instanceof String[])
+              Collections.addAll(lKeySet, (String[]) lValue);
+            else if (lValue instanceof Collection)
+              for (Object lElement : (Collection<?>) lValue)
+                if (lElement instanceof String)
+                  lKeySet.add((String) lElement);
+          }
+      }
+      catch (IllegalAccessException e)
+      {
+        throw new RuntimeException(e);
+      }
+      return lKeySet;
+    }
+
+    private static Set<String> getInputKeys(TaskInterface pTask,
+                                            Set<String> pKeySet)
+    {
+      assertTrue(pTask.getClass().getSimpleName()
+                 + " needs images it does not name",
+                 pTask.checkIfRequiredImagesAvailable(pKeySet));
+
+      HashSet<String> lInputKeySet = new HashSet<>();
+      for (String lKey : pKeySet)
+      {
+        HashSet<String> lOtherKeySet = new HashSet<>(pKeySet);
+        lOtherKeySet.remove(lKey);
+        if (!pTask.checkIfRequiredImagesAvailable(lOtherKeySet))
+          lInputKeySet.add(lKey);
+      }
+      return lInputKeySet;
+    }
+  }
+
+}
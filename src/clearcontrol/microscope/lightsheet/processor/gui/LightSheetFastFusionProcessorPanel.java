@@ -67,6 +67,36 @@ public class LightSheetFastFusionProcessorPanel extends TabPane
     Variable<Integer> lTransformLockThresholdVariable =
                                                       pLightSheetFastFusionProcessor.getTransformLockThresholdVariable();
 
+    Variable<Integer> lNumberOfEngineSlotsVariable =
+                                                   pLightSheetFastFusionProcessor.getNumberOfEngineSlotsVariable();
+
+    Variable<Boolean> lStreamingFusionVariable =
+                                               pLightSheetFastFusionProcessor.getStreamingFusionVariable();
+
+    Variable<Integer> lSlabDepthVariable =
+                                         pLightSheetFastFusionProcessor.getSlabDepthVariable();
+
+    Variable<Integer> lDownloadChunkDepthVariable =
+                                                  pLightSheetFastFusionProcessor.getDownloadChunkDepthVariable();
+
+    Variable<Boolean> lProfilingVariable =
+                                         pLightSheetFastFusionProcessor.getProfilingVariable();
+
+    Variable<Boolean> lAsynchronousUploadVariable =
+                                                  pLightSheetFastFusionProcessor.getAsynchronousUploadVariable();
+
+    BoundedVariable<Double> lInFlightMemoryRatioVariable =
+                                                         pLightSheetFastFusionProcessor.getInFlightMemoryRatioVariable();
+
+    Variable<Boolean> lRegistrationWarmStartVariable =
+                                                     pLightSheetFastFusionProcessor.getRegistrationWarmStartVariable();
+
+    Variable<Boolean> lSkipRegistrationWhenLockedVariable =
+                                                          pLightSheetFastFusionProcessor.getSkipRegistrationWhenLockedVariable();
+
+    BoundedVariable<Double> lRegistrationErrorBudgetVariable =
+                                                             pLightSheetFastFusionProcessor.getRegistrationErrorBudgetVariable();
+
     CustomVariablePane lCustomVariablePane = new CustomVariablePane();
 
     lCustomVariablePane.addTab("");
@@ -110,6 +140,51 @@ public class LightSheetFastFusionProcessorPanel extends TabPane
                                                       Integer.MAX_VALUE,
                                                       1);
 
+    lCustomVariablePane.addCheckBoxForVariable("Registration warm start",
+                                               lRegistrationWarmStartVariable);
+
+    lCustomVariablePane.addCheckBoxForVariable("Skip registration when locked",
+                                               lSkipRegistrationWhenLockedVariable);
+
+    lCustomVariablePane.addNumberTextFieldForVariable("Registration error budget",
+                                                      lRegistrationErrorBudgetVariable,
+                                                      0d,
+                                                      10d,
+                                                      0.01d);
+
+    lCustomVariablePane.addNumberTextFieldForVariable("Number of engine slots",
+                                                      lNumberOfEngineSlotsVariable,
+                                                      1,
+                                                      8,
+                                                      1);
+
+    lCustomVariablePane.addCheckBoxForVariable("Streaming fusion (Z slabs)",
+                                               lStreamingFusionVariable);
+
+    lCustomVariablePane.addNumberTextFieldForVariable("Slab depth",
+                                                      lSlabDepthVariable,
+                                                      1,
+                                                      Integer.MAX_VALUE,
+                                                      1);
+
+    lCustomVariablePane.addNumberTextFieldForVariable("Download chunk depth",
+                                                      lDownloadChunkDepthVariable,
+                                                      0,
+                                                      Integer.MAX_VALUE,
+                                                      1);
+
+    lCustomVariablePane.addCheckBoxForVariable("Profiling",
+                                               lProfilingVariable);
+
+    lCustomVariablePane.addCheckBoxForVariable("Asynchronous upload",
+                                               lAsynchronousUploadVariable);
+
+    lCustomVariablePane.addNumberTextFieldForVariable("In-flight memory ratio",
+                                                      lInFlightMemoryRatioVariable,
+                                                      0d,
+                                                      1d,
+                                                      0.05d);
+
     return lCustomVariablePane;
   }
 
@@ -0,0 +1,131 @@
+package clearcontrol.microscope.lightsheet.processor.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import clearcontrol.microscope.lightsheet.processor.ZSlabFusion;
+
+import org.junit.Test;
+
+/**
+ * Z slab fusion tests
+ *
+ * @author royer
+ */
+public class ZSlabFusionTests
+{
+  private static final double cScaleZ = 2.5;
+
+  /**
+   * tests that the slab theta, applied about the slab centre, maps every point
+   * to the same place as the central theta applied about the central centre
+   */
+  @Test
+  public void slabThetaIsTheSameTransform()
+  {
+    double[] lCentralTheta = new double[]
+    { 3.5, -2, 1.25, 4, -7, 12 };
+    double[] lCentralCentre = new double[]
+    { 256, 128, 50 };
+
+    for (double lOffsetZ : new double[]
+    { -40, -3.5, 0, 17, 64 })
+    {
+      double[] lSlabTheta = ZSlabFusion.getSlabTheta(lCentralTheta,
+                                                     lOffsetZ,
+                                                     cScaleZ);
+      double[] lSlabCentre = new double[]
+      { lCentralCentre[0], lCentralCentre[1], lCentralCentre[2] + lOffsetZ };
+
+      // rotations are not changed, only translations:
+      for (int i = 3; i < 6; i++)
+        assertEquals(lCentralTheta[i], lSlabTheta[i], 0);
+
+      for (double[] lPoint : new double[][]
+      { { 0, 0, 0 }, { 511, 255, 99 }, { 100, 200, 60 }, { 300, 20, 5 } })
+        assertArrayEquals("offset " + lOffsetZ,
+                          apply(lCentralTheta, lCentralCentre, lPoint),
+                          apply(lSlabTheta, lSlabCentre, lPoint),
+                          1e-9);
+    }
+  }
+
+  /**
+   * tests that without rotation the slab theta equals the central theta
+   */
+  @Test
+  public void translationOnlyIsUnchanged()
+  {
+    double[] lCentralTheta = new double[]
+    { 1, 2, 3, 0, 0, 0 };
+    assertArrayEquals(lCentralTheta,
+                      ZSlabFusion.getSlabTheta(lCentralTheta, 25, cScaleZ),
+                      1e-12);
+  }
+
+  /**
+   * Applies a theta about a centre to a point in voxel coordinates: Z is
+   * scaled by the voxel aspect ratio, translations are in voxels and rotations
+   * are Rz Ry Rx in degrees.
+   */
+  private static double[] apply(double[] pTheta,
+                                double[] pCentre,
+                                double[] pPoint)
+  {
+    double[][] lRotation =
+                         multiply(rotationZ(pTheta[5]),
+                                  multiply(rotationY(pTheta[4]),
+                                           rotationX(pTheta[3])));
+
+    double[] lScale = new double[]
+    { 1, 1, cScaleZ };
+    double[] lRelative = new double[3];
+    for (int i = 0; i < 3; i++)
+      lRelative[i] = (pPoint[i] - pCentre[i]) * lScale[i];
+
+    double[] lResult = new double[3];
+    for (int i = 0; i < 3; i++)
+    {
+      double lRotated = 0;
+      for (int j = 0; j < 3; j++)
+        lRotated += lRotation[i][j] * lRelative[j];
+      lResult[i] = lRotated / lScale[i] + pCentre[i] + pTheta[i];
+    }
+    return lResult;
+  }
+
+  private static double[][] rotationX(double pDegrees)
+  {
+    double c = Math.cos(Math.toRadians(pDegrees));
+    double s = Math.sin(Math.toRadians(pDegrees));
+    return new double[][]
+    { { 1, 0, 0 }, { 0, c, -s }, { 0, s, c } };
+  }
+
+  private static double[][] rotationY(double pDegrees)
+  {
+    double c = Math.cos(Math.toRadians(pDegrees));
+    double s = Math.sin(Math.toRadians(pDegrees));
+    return new double[][]
+    { { c, 0, s }, { 0, 1, 0 }, { -s, 0, c } };
+  }
+
+  private static double[][] rotationZ(double pDegrees)
+  {
+    double c = Math.cos(Math.toRadians(pDegrees));
+    double s = Math.sin(Math.toRadians(pDegrees));
+    return new double[][]
+    { { c, -s, 0 }, { s, c, 0 }, { 0, 0, 1 } };
+  }
+
+  private static double[][] multiply(double[][] pA, double[][] pB)
+  {
+    double[][] lResult = new double[3][3];
+    for (int i = 0; i < 3; i++)
+      for (int j = 0; j < 3; j++)
+        for (int k = 0; k < 3; k++)
+          lResult[i][j] += pA[i][k] * pB[k][j];
+    return lResult;
+  }
+
+}
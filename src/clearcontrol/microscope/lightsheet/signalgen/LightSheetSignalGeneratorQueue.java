@@ -53,6 +53,10 @@ public class LightSheetSignalGeneratorQueue implements
   private final ConcurrentHashMap<LightSheetOpticalSwitch, LightSheetOpticalSwitchStaves> mOpticalSwitchToStavesMap =
                                                                                                                     new ConcurrentHashMap<>();
 
+  // staves last updated in shared lightsheet control mode, staves of
+  // different lightsheets then write into the same staves of the movements:
+  private LightSheetStaves mLastSelectedLightSheetStaves;
+
   private final Variable<Double> mTransitionDurationInSecondsVariable =
                                                                       new Variable<Double>("mTransitionDurationInSeconds",
                                                                                            0d);
@@ -188,6 +192,28 @@ public class LightSheetSignalGeneratorQueue implements
 
   }
 
+  /**
+   * Returns the number of lightsheets
+   * 
+   * @return number of lightsheets
+   */
+  public int getNumberOfLightSheets()
+  {
+    return mLightSheetList.size();
+  }
+
+  /**
+   * Returns the staves of the lightsheet of given index
+   * 
+   * @param pLightSheetIndex
+   *          lightsheet index
+   * @return lightsheet staves
+   */
+  public LightSheetStaves getLightSheetStaves(int pLightSheetIndex)
+  {
+    return mLightSheetToStavesMap.get(mLightSheetList.get(pLightSheetIndex));
+  }
+
   /**
    * Adds light sheet optical switch
    * 
@@ -270,19 +296,41 @@ public class LightSheetSignalGeneratorQueue implements
         LightSheetStaves lLightSheetStaves =
                                            mLightSheetToStavesMap.get(lSelectedLightSheet);
 
+        if (lLightSheetStaves != mLastSelectedLightSheetStaves)
+        {
+          lLightSheetStaves.invalidate();
+          mLastSelectedLightSheetStaves = lLightSheetStaves;
+        }
+
         lLightSheetStaves.update(mBeforeExposureMovement,
                                  mExposureMovement,
                                  mFinalMovement);
 
       }
       else
-        for (Map.Entry<LightSheet, LightSheetStaves> lEntry : mLightSheetToStavesMap.entrySet())
+      {
+        boolean lInvalidate = mLastSelectedLightSheetStaves != null;
+        mLastSelectedLightSheetStaves = null;
+
+        // movement durations and laser trigger lines are shared by all
+        // lightsheets, the last lightsheet in order must write them last. Once
+        // a lightsheet rewrites them, all following lightsheets rewrite them
+        // too:
+        boolean lSharedStavesRewritten = false;
+        for (LightSheet lLightSheet : mLightSheetList)
         {
-          LightSheetStaves lLightSheetStaves = lEntry.getValue();
-          lLightSheetStaves.update(mBeforeExposureMovement,
-                                   mExposureMovement,
-                                   mFinalMovement);
+          LightSheetStaves lLightSheetStaves =
+                                             mLightSheetToStavesMap.get(lLightSheet);
+          if (lInvalidate)
+            lLightSheetStaves.invalidate();
+          else if (lSharedStavesRewritten)
+            lLightSheetStaves.invalidateSharedStaves();
+          lSharedStavesRewritten |=
+                                 lLightSheetStaves.update(mBeforeExposureMovement,
+                                                          mExposureMovement,
+                                                          mFinalMovement);
         }
+      }
 
       for (Entry<LightSheetOpticalSwitch, LightSheetOpticalSwitchStaves> lEntry : mOpticalSwitchToStavesMap.entrySet())
       {
@@ -0,0 +1,182 @@
+package clearcontrol.microscope.lightsheet.signalgen.raster;
+
+/**
+ * Rasterized score: the sampled values of all channels (staves) of all
+ * movements of a score, at a fixed sample period. Movements are grouped into
+ * planes, the movements that remain after the last plane are the
+ * finalization movements.
+ *
+ * @author royer
+ */
+public class RasterizedScore
+{
+  private final double mSamplePeriodInMicroseconds;
+  private final int mNumberOfChannels;
+  private final int mNumberOfMovementsPerPlane;
+  private final int mNumberOfPlanes;
+
+  // buffers indexed [movement][channel][sample]:
+  private final float[][][] mMovementBuffers;
+  private final long[] mMovementStartSample;
+  private final long mNumberOfSamples;
+
+  /**
+   * Instantiates a rasterized score
+   *
+   * @param pSamplePeriodInMicroseconds
+   *          sample period in microseconds
+   * @param pNumberOfChannels
+   *          number of channels
+   * @param pNumberOfMovementsPerPlane
+   *          number of movements per plane
+   * @param pMovementBuffers
+   *          buffers indexed [movement][channel][sample]
+   */
+  public RasterizedScore(double pSamplePeriodInMicroseconds,
+                         int pNumberOfChannels,
+                         int pNumberOfMovementsPerPlane,
+                         float[][][] pMovementBuffers)
+  {
+    mSamplePeriodInMicroseconds = pSamplePeriodInMicroseconds;
+    mNumberOfChannels = pNumberOfChannels;
+    mNumberOfMovementsPerPlane = Math.max(1, pNumberOfMovementsPerPlane);
+    mNumberOfPlanes = pMovementBuffers.length
+                      / mNumberOfMovementsPerPlane;
+    mMovementBuffers = pMovementBuffers;
+
+    mMovementStartSample = new long[pMovementBuffers.length + 1];
+    for (int m = 0; m < pMovementBuffers.length; m++)
+      mMovementStartSample[m + 1] = mMovementStartSample[m]
+                                    + getNumberOfSamples(m);
+    mNumberOfSamples = mMovementStartSample[pMovementBuffers.length];
+  }
+
+  /**
+   * Returns the sample period in microseconds
+   *
+   * @return sample period in microseconds
+   */
+  public double getSamplePeriodInMicroseconds()
+  {
+    return mSamplePeriodInMicroseconds;
+  }
+
+  /**
+   * Returns the number of channels
+   *
+   * @return number of channels
+   */
+  public int getNumberOfChannels()
+  {
+    return mNumberOfChannels;
+  }
+
+  /**
+   * Returns the number of movements
+   *
+   * @return number of movements
+   */
+  public int getNumberOfMovements()
+  {
+    return mMovementBuffers.length;
+  }
+
+  /**
+   * Returns the number of movements per plane
+   *
+   * @return number of movements per plane
+   */
+  public int getNumberOfMovementsPerPlane()
+  {
+    return mNumberOfMovementsPerPlane;
+  }
+
+  /**
+   * Returns the number of planes
+   *
+   * @return number of planes
+   */
+  public int getNumberOfPlanes()
+  {
+    return mNumberOfPlanes;
+  }
+
+  /**
+   * Returns the total number of samples
+   *
+   * @return total number of samples
+   */
+  public long getNumberOfSamples()
+  {
+    return mNumberOfSamples;
+  }
+
+  /**
+   * Returns the number of samples of a given movement
+   *
+   * @param pMovementIndex
+   *          movement index
+   * @return number of samples
+   */
+  public int getNumberOfSamples(int pMovementIndex)
+  {
+    float[][] lBuffer = mMovementBuffers[pMovementIndex];
+    return lBuffer.length == 0 ? 0 : lBuffer[0].length;
+  }
+
+  /**
+   * Returns the index of the first sample of a given movement
+   *
+   * @param pMovementIndex
+   *          movement index
+   * @return index of first sample
+   */
+  public long getMovementStartSample(int pMovementIndex)
+  {
+    return mMovementStartSample[pMovementIndex];
+  }
+
+  /**
+   * Returns the buffers of a given movement, indexed [channel][sample]
+   *
+   * @param pMovementIndex
+   *          movement index
+   * @return movement buffers
+   */
+  public float[][] getMovementBuffer(int pMovementIndex)
+  {
+    return mMovementBuffers[pMovementIndex];
+  }
+
+  /**
+   * Returns the index of the first movement of a given plane
+   *
+   * @param pPlaneIndex
+   *          plane index
+   * @return index of first movement
+   */
+  public int getPlaneStartMovement(int pPlaneIndex)
+  {
+    return pPlaneIndex * mNumberOfMovementsPerPlane;
+  }
+
+  /**
+   * Returns the whole signal of one channel, concatenating all movements
+   *
+   * @param pChannelIndex
+   *          channel index
+   * @return channel signal
+   */
+  public float[] getChannel(int pChannelIndex)
+  {
+    float[] lChannel = new float[Math.toIntExact(mNumberOfSamples)];
+    for (int m = 0; m < mMovementBuffers.length; m++)
+      System.arraycopy(mMovementBuffers[m][pChannelIndex],
+                       0,
+                       lChannel,
+                       (int) mMovementStartSample[m],
+                       getNumberOfSamples(m));
+    return lChannel;
+  }
+
+}
@@ -0,0 +1,237 @@
+package clearcontrol.microscope.lightsheet.signalgen.raster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.core.log.LoggingFeature;
+import clearcontrol.devices.signalgen.SignalGeneratorQueue;
+import clearcontrol.devices.signalgen.movement.MovementInterface;
+import clearcontrol.devices.signalgen.score.ScoreInterface;
+import clearcontrol.devices.signalgen.staves.StaveInterface;
+import clearcontrol.microscope.lightsheet.signalgen.LightSheetSignalGeneratorQueue;
+import clearcontrol.microscope.lightsheet.signalgen.staves.LightSheetStaves;
+
+/**
+ * Score rasterizer. Renders the movements of a score into per-channel float
+ * buffers at a given sample period, without any signal generator hardware.
+ * Movements are rasterized concurrently. Together with
+ * {@link ScoreTimingReport} this allows to benchmark and check the timing of
+ * queues offline.
+ *
+ * @author royer
+ */
+public class ScoreRasterizer implements LoggingFeature
+{
+  private static final int cNumberOfRasterizerThreads =
+                                                      Math.max(1,
+                                                               Runtime.getRuntime()
+                                                                      .availableProcessors());
+
+  private static final ExecutorService cRasterizerExecutor =
+                                                           Executors.newFixedThreadPool(cNumberOfRasterizerThreads,
+                                                                                        (r) -> {
+                                                                                          Thread lThread =
+                                                                                                         new Thread(r,
+                                                                                                                    "ScoreRasterizer");
+                                                                                          lThread.setDaemon(true);
+                                                                                          return lThread;
+                                                                                        });
+
+  private final double mSamplePeriodInMicroseconds;
+
+  /**
+   * Instantiates a score rasterizer for a given sample period, typically the
+   * temporal granularity of the signal generator.
+   *
+   * @param pSamplePeriodInMicroseconds
+   *          sample period in microseconds
+   */
+  public ScoreRasterizer(double pSamplePeriodInMicroseconds)
+  {
+    if (pSamplePeriodInMicroseconds <= 0)
+      throw new IllegalArgumentException("Sample period must be strictly positive: "
+                                         + pSamplePeriodInMicroseconds);
+    mSamplePeriodInMicroseconds = pSamplePeriodInMicroseconds;
+  }
+
+  /**
+   * Returns the sample period in microseconds
+   *
+   * @return sample period in microseconds
+   */
+  public double getSamplePeriodInMicroseconds()
+  {
+    return mSamplePeriodInMicroseconds;
+  }
+
+  /**
+   * Rasterizes a finalized lightsheet signal generator queue: the queued
+   * score, one plane per staging score, followed by the finalization score
+   * if it is not already part of the queued score.
+   *
+   * @param pQueue
+   *          finalized lightsheet signal generator queue
+   * @return rasterized score
+   */
+  public RasterizedScore rasterize(LightSheetSignalGeneratorQueue pQueue)
+  {
+    SignalGeneratorQueue lDelegatedQueue = pQueue.getDelegatedQueue();
+
+    int lNumberOfMovementsPerPlane =
+                                   getMovements(lDelegatedQueue.getStagingScore()).size();
+
+    List<MovementInterface> lMovementList =
+                                          getMovements(lDelegatedQueue.getQueuedScore());
+    if (lMovementList.size() == pQueue.getQueueLength()
+                                * lNumberOfMovementsPerPlane)
+      lMovementList.addAll(getMovements(lDelegatedQueue.getFinalizationScore()));
+
+    return rasterize(lMovementList, lNumberOfMovementsPerPlane);
+  }
+
+  /**
+   * Rasterizes a score
+   *
+   * @param pScore
+   *          score
+   * @param pNumberOfMovementsPerPlane
+   *          number of movements per plane
+   * @return rasterized score
+   */
+  public RasterizedScore rasterize(ScoreInterface pScore,
+                                   int pNumberOfMovementsPerPlane)
+  {
+    return rasterize(getMovements(pScore), pNumberOfMovementsPerPlane);
+  }
+
+  /**
+   * Rasterizes a list of movements
+   *
+   * @param pMovementList
+   *          movements
+   * @param pNumberOfMovementsPerPlane
+   *          number of movements per plane
+   * @return rasterized score
+   */
+  public RasterizedScore rasterize(List<MovementInterface> pMovementList,
+                                   int pNumberOfMovementsPerPlane)
+  {
+    int lNumberOfChannels = 1;
+    for (MovementInterface lMovement : pMovementList)
+      lNumberOfChannels = Math.max(lNumberOfChannels,
+                                   lMovement.getNumberOfStaves());
+    final int lFinalNumberOfChannels = lNumberOfChannels;
+
+    ArrayList<Future<float[][]>> lFutureList = new ArrayList<>();
+    for (MovementInterface lMovement : pMovementList)
+      lFutureList.add(cRasterizerExecutor.submit(() -> rasterize(lMovement,
+                                                                 lFinalNumberOfChannels)));
+
+    float[][][] lMovementBuffers = new float[lFutureList.size()][][];
+    try
+    {
+      for (int m = 0; m < lMovementBuffers.length; m++)
+        lMovementBuffers[m] = lFutureList.get(m).get();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while rasterizing score",
+                                 e);
+    }
+    catch (ExecutionException e)
+    {
+      throw new RuntimeException("Error while rasterizing score",
+                                 e.getCause());
+    }
+
+    return new RasterizedScore(mSamplePeriodInMicroseconds,
+                               lFinalNumberOfChannels,
+                               pNumberOfMovementsPerPlane,
+                               lMovementBuffers);
+  }
+
+  private float[][] rasterize(MovementInterface pMovement,
+                              int pNumberOfChannels)
+  {
+    double lDurationInMicroseconds =
+                                   pMovement.getDuration(TimeUnit.NANOSECONDS)
+                                     * 1e-3;
+    int lNumberOfSamples =
+                         Math.max(1,
+                                  (int) Math.round(lDurationInMicroseconds
+                                                   / mSamplePeriodInMicroseconds));
+
+    float[][] lBuffer = new float[pNumberOfChannels][lNumberOfSamples];
+    int lNumberOfStaves = Math.min(pNumberOfChannels,
+                                   pMovement.getNumberOfStaves());
+    for (int c = 0; c < lNumberOfStaves; c++)
+    {
+      StaveInterface lStave = pMovement.getStave(c);
+      if (lStave == null)
+        continue;
+
+      float[] lChannel = lBuffer[c];
+      for (int s = 0; s < lNumberOfSamples; s++)
+        lChannel[s] = lStave.getValue((float) s / lNumberOfSamples);
+    }
+    return lBuffer;
+  }
+
+  /**
+   * Rasterizes a finalized lightsheet signal generator queue and analyses its
+   * timing, with the trigger, laser and galvo channels of the queue's
+   * lightsheets.
+   *
+   * @param pQueue
+   *          finalized lightsheet signal generator queue
+   * @return timing report
+   */
+  public ScoreTimingReport analyse(LightSheetSignalGeneratorQueue pQueue)
+  {
+    ArrayList<Integer> lTriggerChannels = new ArrayList<>();
+    ArrayList<Integer> lLaserChannels = new ArrayList<>();
+    ArrayList<Integer> lGalvoChannels = new ArrayList<>();
+
+    for (int l = 0; l < pQueue.getNumberOfLightSheets(); l++)
+    {
+      LightSheetStaves lStaves = pQueue.getLightSheetStaves(l);
+      addChannel(lTriggerChannels, lStaves.getTriggerOutStaveIndex());
+      for (int lLaserChannel : lStaves.getLaserDigitalTriggerStaveIndices())
+        addChannel(lLaserChannels, lLaserChannel);
+      addChannel(lGalvoChannels, lStaves.getGalvoScannerYStaveIndex());
+      addChannel(lGalvoChannels, lStaves.getGalvoScannerZStaveIndex());
+    }
+
+    return new ScoreTimingReport(rasterize(pQueue),
+                                 toArray(lTriggerChannels),
+                                 toArray(lLaserChannels),
+                                 toArray(lGalvoChannels));
+  }
+
+  private static List<MovementInterface> getMovements(ScoreInterface pScore)
+  {
+    ArrayList<MovementInterface> lMovementList = new ArrayList<>();
+    for (MovementInterface lMovement : pScore.getMovements())
+      lMovementList.add(lMovement);
+    return lMovementList;
+  }
+
+  private static void addChannel(List<Integer> pChannelList,
+                                 int pChannel)
+  {
+    if (!pChannelList.contains(pChannel))
+      pChannelList.add(pChannel);
+  }
+
+  private static int[] toArray(List<Integer> pChannelList)
+  {
+    return pChannelList.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+}
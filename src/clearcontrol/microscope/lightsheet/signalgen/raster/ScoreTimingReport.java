@@ -0,0 +1,349 @@
+package clearcontrol.microscope.lightsheet.signalgen.raster;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Score timing report. Analyses a rasterized score plane by plane: duration,
+ * dead time (time during which no laser is triggered), trigger edges and
+ * galvo slew rates. Digital channels are considered high above 0.5.
+ *
+ * @author royer
+ */
+public class ScoreTimingReport
+{
+  private static final float cDigitalThreshold = 0.5f;
+
+  private final RasterizedScore mRasterizedScore;
+  private final int[] mTriggerChannels, mGalvoChannels;
+
+  private final double[] mPlaneDurationInMicroseconds;
+  private final double[] mPlaneDeadTimeInMicroseconds;
+  // indexed [plane][channel]:
+  private final int[][] mRisingEdges, mFallingEdges;
+  private final double[][] mMaxSlewRatePerSecond;
+  private final double mFinalizationDurationInMicroseconds;
+
+  /**
+   * Analyses the timing of a rasterized score
+   *
+   * @param pRasterizedScore
+   *          rasterized score
+   * @param pTriggerChannels
+   *          digital trigger channels, for which edges are counted
+   * @param pLaserChannels
+   *          digital laser trigger channels, that define the dead time
+   * @param pGalvoChannels
+   *          galvo channels, for which slew rates are measured
+   */
+  public ScoreTimingReport(RasterizedScore pRasterizedScore,
+                           int[] pTriggerChannels,
+                           int[] pLaserChannels,
+                           int[] pGalvoChannels)
+  {
+    checkChannels(pRasterizedScore, pTriggerChannels);
+    checkChannels(pRasterizedScore, pLaserChannels);
+    checkChannels(pRasterizedScore, pGalvoChannels);
+
+    mRasterizedScore = pRasterizedScore;
+    mTriggerChannels = pTriggerChannels;
+    mGalvoChannels = pGalvoChannels;
+
+    int lNumberOfPlanes = pRasterizedScore.getNumberOfPlanes();
+    mPlaneDurationInMicroseconds = new double[lNumberOfPlanes];
+    mPlaneDeadTimeInMicroseconds = new double[lNumberOfPlanes];
+    mRisingEdges = new int[lNumberOfPlanes][pTriggerChannels.length];
+    mFallingEdges = new int[lNumberOfPlanes][pTriggerChannels.length];
+    mMaxSlewRatePerSecond =
+                          new double[lNumberOfPlanes][pGalvoChannels.length];
+
+    final double lSamplePeriod =
+                               pRasterizedScore.getSamplePeriodInMicroseconds();
+
+    // last sample of each channel, carried over from movement to movement:
+    float[] lPreviousTriggerValues = new float[pTriggerChannels.length];
+    float[] lPreviousGalvoValues = new float[pGalvoChannels.length];
+
+    int lNumberOfPlaneMovements =
+                                lNumberOfPlanes
+                                  * pRasterizedScore.getNumberOfMovementsPerPlane();
+    long lFinalizationSamples = 0;
+
+    for (int m = 0; m < pRasterizedScore.getNumberOfMovements(); m++)
+    {
+      float[][] lBuffer = pRasterizedScore.getMovementBuffer(m);
+      int lNumberOfSamples = pRasterizedScore.getNumberOfSamples(m);
+      boolean lFirstMovement = m == 0;
+
+      if (m >= lNumberOfPlaneMovements)
+      {
+        lFinalizationSamples += lNumberOfSamples;
+        continue;
+      }
+
+      int p = m / pRasterizedScore.getNumberOfMovementsPerPlane();
+
+      mPlaneDurationInMicroseconds[p] += lNumberOfSamples * lSamplePeriod;
+
+      int lDeadSamples = 0;
+      for (int s = 0; s < lNumberOfSamples; s++)
+        if (!isAnyHigh(lBuffer, pLaserChannels, s))
+          lDeadSamples++;
+      mPlaneDeadTimeInMicroseconds[p] += lDeadSamples * lSamplePeriod;
+
+      for (int t = 0; t < pTriggerChannels.length; t++)
+      {
+        float[] lChannel = lBuffer[pTriggerChannels[t]];
+        boolean lHigh = lPreviousTriggerValues[t] > cDigitalThreshold;
+        for (int s = 0; s < lNumberOfSamples; s++)
+        {
+          boolean lNewHigh = lChannel[s] > cDigitalThreshold;
+          if (!(lFirstMovement && s == 0) && lNewHigh != lHigh)
+          {
+            if (lNewHigh)
+              mRisingEdges[p][t]++;
+            else
+              mFallingEdges[p][t]++;
+          }
+          lHigh = lNewHigh;
+        }
+        lPreviousTriggerValues[t] = lChannel[lNumberOfSamples - 1];
+      }
+
+      for (int g = 0; g < pGalvoChannels.length; g++)
+      {
+        float[] lChannel = lBuffer[pGalvoChannels[g]];
+        float lPrevious = lFirstMovement ? lChannel[0]
+                                         : lPreviousGalvoValues[g];
+        double lMaxDelta = 0;
+        for (int s = 0; s < lNumberOfSamples; s++)
+        {
+          lMaxDelta = Math.max(lMaxDelta,
+                               Math.abs(lChannel[s] - lPrevious));
+          lPrevious = lChannel[s];
+        }
+        mMaxSlewRatePerSecond[p][g] =
+                                    Math.max(mMaxSlewRatePerSecond[p][g],
+                                             lMaxDelta / (lSamplePeriod
+                                                          * 1e-6));
+        lPreviousGalvoValues[g] = lPrevious;
+      }
+    }
+
+    mFinalizationDurationInMicroseconds = lFinalizationSamples
+                                          * lSamplePeriod;
+  }
+
+  private static void checkChannels(RasterizedScore pRasterizedScore,
+                                    int[] pChannels)
+  {
+    for (int lChannel : pChannels)
+      if (lChannel < 0
+          || lChannel >= pRasterizedScore.getNumberOfChannels())
+        throw new IllegalArgumentException("Channel not rasterized: "
+                                           + lChannel);
+  }
+
+  private static boolean isAnyHigh(float[][] pBuffer,
+                                   int[] pChannels,
+                                   int pSampleIndex)
+  {
+    for (int lChannel : pChannels)
+      if (pBuffer[lChannel][pSampleIndex] > cDigitalThreshold)
+        return true;
+    return false;
+  }
+
+  /**
+   * Returns the rasterized score
+   *
+   * @return rasterized score
+   */
+  public RasterizedScore getRasterizedScore()
+  {
+    return mRasterizedScore;
+  }
+
+  /**
+   * Returns the number of planes
+   *
+   * @return number of planes
+   */
+  public int getNumberOfPlanes()
+  {
+    return mPlaneDurationInMicroseconds.length;
+  }
+
+  /**
+   * Returns the duration of a given plane in microseconds
+   *
+   * @param pPlaneIndex
+   *          plane index
+   * @return plane duration in microseconds
+   */
+  public double getPlaneDurationInMicroseconds(int pPlaneIndex)
+  {
+    return mPlaneDurationInMicroseconds[pPlaneIndex];
+  }
+
+  /**
+   * Returns the dead time of a given plane in microseconds, that is the time
+   * during which no laser is triggered
+   *
+   * @param pPlaneIndex
+   *          plane index
+   * @return dead time in microseconds
+   */
+  public double getPlaneDeadTimeInMicroseconds(int pPlaneIndex)
+  {
+    return mPlaneDeadTimeInMicroseconds[pPlaneIndex];
+  }
+
+  /**
+   * Returns the number of rising edges of a trigger channel within a plane
+   *
+   * @param pPlaneIndex
+   *          plane index
+   * @param pTriggerChannel
+   *          trigger channel
+   * @return number of rising edges
+   */
+  public int getRisingEdges(int pPlaneIndex, int pTriggerChannel)
+  {
+    return mRisingEdges[pPlaneIndex][indexOf(mTriggerChannels,
+                                             pTriggerChannel)];
+  }
+
+  /**
+   * Returns the number of falling edges of a trigger channel within a plane
+   *
+   * @param pPlaneIndex
+   *          plane index
+   * @param pTriggerChannel
+   *          trigger channel
+   * @return number of falling edges
+   */
+  public int getFallingEdges(int pPlaneIndex, int pTriggerChannel)
+  {
+    return mFallingEdges[pPlaneIndex][indexOf(mTriggerChannels,
+                                              pTriggerChannel)];
+  }
+
+  /**
+   * Returns the maximal slew rate of a galvo channel within a plane, in units
+   * per second
+   *
+   * @param pPlaneIndex
+   *          plane index
+   * @param pGalvoChannel
+   *          galvo channel
+   * @return maximal slew rate per second
+   */
+  public double getMaxSlewRatePerSecond(int pPlaneIndex,
+                                        int pGalvoChannel)
+  {
+    return mMaxSlewRatePerSecond[pPlaneIndex][indexOf(mGalvoChannels,
+                                                      pGalvoChannel)];
+  }
+
+  /**
+   * Returns the duration of the finalization movements in microseconds
+   *
+   * @return finalization duration in microseconds
+   */
+  public double getFinalizationDurationInMicroseconds()
+  {
+    return mFinalizationDurationInMicroseconds;
+  }
+
+  /**
+   * Returns the total duration in microseconds
+   *
+   * @return total duration in microseconds
+   */
+  public double getTotalDurationInMicroseconds()
+  {
+    double lTotal = mFinalizationDurationInMicroseconds;
+    for (double lDuration : mPlaneDurationInMicroseconds)
+      lTotal += lDuration;
+    return lTotal;
+  }
+
+  /**
+   * Returns the total dead time of all planes in microseconds
+   *
+   * @return total dead time in microseconds
+   */
+  public double getTotalDeadTimeInMicroseconds()
+  {
+    double lTotal = 0;
+    for (double lDeadTime : mPlaneDeadTimeInMicroseconds)
+      lTotal += lDeadTime;
+    return lTotal;
+  }
+
+  /**
+   * Returns the indices of the planes for which a galvo exceeds a given slew
+   * rate
+   *
+   * @param pMaxSlewRatePerSecond
+   *          maximal slew rate in units per second
+   * @return plane indices
+   */
+  public List<Integer> getPlanesExceedingSlewRate(double pMaxSlewRatePerSecond)
+  {
+    ArrayList<Integer> lPlaneList = new ArrayList<>();
+    for (int p = 0; p < getNumberOfPlanes(); p++)
+      for (double lSlewRate : mMaxSlewRatePerSecond[p])
+        if (lSlewRate > pMaxSlewRatePerSecond)
+        {
+          lPlaneList.add(p);
+          break;
+        }
+    return lPlaneList;
+  }
+
+  /**
+   * Returns the indices of the planes that do not have exactly one rising
+   * edge on each trigger channel
+   *
+   * @return plane indices
+   */
+  public List<Integer> getPlanesWithUnexpectedTriggers()
+  {
+    ArrayList<Integer> lPlaneList = new ArrayList<>();
+    for (int p = 0; p < getNumberOfPlanes(); p++)
+      for (int lRisingEdges : mRisingEdges[p])
+        if (lRisingEdges != 1)
+        {
+          lPlaneList.add(p);
+          break;
+        }
+    return lPlaneList;
+  }
+
+  private static int indexOf(int[] pChannels, int pChannel)
+  {
+    for (int i = 0; i < pChannels.length; i++)
+      if (pChannels[i] == pChannel)
+        return i;
+    throw new IllegalArgumentException("Channel not analysed: "
+                                       + pChannel);
+  }
+
+  @Override
+  public String toString()
+  {
+    double lTotalDuration = getTotalDurationInMicroseconds();
+    double lTotalDeadTime = getTotalDeadTimeInMicroseconds();
+    return String.format("ScoreTimingReport [planes=%d, duration=%.1f us, deadtime=%.1f us (%.1f%%), finalization=%.1f us]",
+                         getNumberOfPlanes(),
+                         lTotalDuration,
+                         lTotalDeadTime,
+                         lTotalDuration == 0 ? 0
+                                             : 100 * lTotalDeadTime
+                                               / lTotalDuration,
+                         mFinalizationDurationInMicroseconds);
+  }
+
+}
@@ -0,0 +1,104 @@
+package clearcontrol.microscope.lightsheet.signalgen.raster.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.devices.signalgen.movement.Movement;
+import clearcontrol.devices.signalgen.score.Score;
+import clearcontrol.devices.signalgen.staves.ConstantStave;
+import clearcontrol.devices.signalgen.staves.EdgeStave;
+import clearcontrol.microscope.lightsheet.signalgen.raster.RasterizedScore;
+import clearcontrol.microscope.lightsheet.signalgen.raster.ScoreRasterizer;
+import clearcontrol.microscope.lightsheet.signalgen.raster.ScoreTimingReport;
+
+import org.junit.Test;
+
+/**
+ * Score rasterizer tests
+ *
+ * @author royer
+ */
+public class ScoreRasterizerTests
+{
+  private static final int cGalvoChannel = 0;
+  private static final int cLaserChannel = 1;
+  private static final int cTriggerChannel = 2;
+
+  /**
+   * tests rasterization and timing analysis of a two plane score
+   */
+  @Test
+  public void twoPlanes()
+  {
+    Score lScore = new Score("score");
+    for (int p = 0; p < 2; p++)
+    {
+      // readout: galvo at 0, laser off, trigger rising at half time
+      Movement lBeforeExposure = new Movement("BeforeExposure");
+      lBeforeExposure.setDuration(100, TimeUnit.MICROSECONDS);
+      lBeforeExposure.setStave(cGalvoChannel,
+                               new ConstantStave("galvo.be", 0));
+      lBeforeExposure.setStave(cLaserChannel,
+                               new ConstantStave("laser.be", 0));
+      lBeforeExposure.setStave(cTriggerChannel,
+                               new EdgeStave("trigger.be", 0.5f, 0, 1));
+      lScore.addMovement(lBeforeExposure);
+
+      // exposure: galvo at 1, laser on, trigger low
+      Movement lExposure = new Movement("Exposure");
+      lExposure.setDuration(200, TimeUnit.MICROSECONDS);
+      lExposure.setStave(cGalvoChannel, new ConstantStave("galvo.e", 1));
+      lExposure.setStave(cLaserChannel, new ConstantStave("laser.e", 1));
+      lExposure.setStave(cTriggerChannel,
+                         new ConstantStave("trigger.e", 0));
+      lScore.addMovement(lExposure);
+    }
+
+    ScoreRasterizer lScoreRasterizer = new ScoreRasterizer(10);
+    RasterizedScore lRasterizedScore = lScoreRasterizer.rasterize(lScore,
+                                                                  2);
+
+    assertEquals(4, lRasterizedScore.getNumberOfMovements());
+    assertEquals(2, lRasterizedScore.getNumberOfPlanes());
+    assertEquals(60, lRasterizedScore.getNumberOfSamples());
+    assertEquals(10, lRasterizedScore.getNumberOfSamples(0));
+    assertEquals(20, lRasterizedScore.getNumberOfSamples(1));
+
+    float[] lLaser = lRasterizedScore.getChannel(cLaserChannel);
+    assertEquals(0, lLaser[9], 0);
+    assertEquals(1, lLaser[10], 0);
+    assertEquals(0, lLaser[30], 0);
+
+    ScoreTimingReport lReport =
+                              new ScoreTimingReport(lRasterizedScore,
+                                                    new int[]
+                                                    { cTriggerChannel },
+                                                    new int[]
+                                                    { cLaserChannel },
+                                                    new int[]
+                                                    { cGalvoChannel });
+
+    for (int p = 0; p < 2; p++)
+    {
+      assertEquals(300, lReport.getPlaneDurationInMicroseconds(p), 1e-9);
+      assertEquals(100,
+                   lReport.getPlaneDeadTimeInMicroseconds(p),
+                   1e-9);
+      assertEquals(1, lReport.getRisingEdges(p, cTriggerChannel));
+      assertEquals(1, lReport.getFallingEdges(p, cTriggerChannel));
+      // galvo jumps by 1 within one sample of 10 microseconds:
+      assertEquals(1e5,
+                   lReport.getMaxSlewRatePerSecond(p, cGalvoChannel),
+                   1e-3);
+    }
+
+    assertEquals(600, lReport.getTotalDurationInMicroseconds(), 1e-9);
+    assertEquals(200, lReport.getTotalDeadTimeInMicroseconds(), 1e-9);
+    assertTrue(lReport.getPlanesWithUnexpectedTriggers().isEmpty());
+    assertEquals(2, lReport.getPlanesExceedingSlewRate(1e4).size());
+    assertTrue(lReport.getPlanesExceedingSlewRate(1e6).isEmpty());
+  }
+
+}
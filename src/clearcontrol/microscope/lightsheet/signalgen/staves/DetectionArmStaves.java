@@ -21,6 +21,9 @@ public class DetectionArmStaves
 
   private final int mStaveIndex;
 
+  private final StaveInputSignature mZSignature =
+                                                new StaveInputSignature();
+
   /**
    * Instantiates an object holding detection arm staves
    * 
@@ -102,7 +105,8 @@ public class DetectionArmStaves
     double lZFocus = lZVariable.get().doubleValue();
     float lZFocusTransformed =
                              (float) lZFunction.get().value(lZFocus);
-    mDetectionZStave.setValue(lZFocusTransformed);
+    if (mZSignature.begin().add(lZFocusTransformed).changed())
+      mDetectionZStave.setValue(lZFocusTransformed);
 
   }
 
@@ -21,6 +21,9 @@ public class LightSheetOpticalSwitchStaves
 
   private int[] mStaveIndex;
 
+  private final StaveInputSignature mSwitchSignature =
+                                                     new StaveInputSignature();
+
   /**
    * Instanciates given a lightsheet optical switch device and default stave
    * index.
@@ -93,6 +96,13 @@ public class LightSheetOpticalSwitchStaves
   {
     synchronized (this)
     {
+      mSwitchSignature.begin();
+      for (int i = 0; i < mBitStave.length; i++)
+        mSwitchSignature.add(mLightSheetOpticalSwitchQueue.getSwitchVariable(i)
+                                                          .get());
+      if (!mSwitchSignature.changed())
+        return;
+
       for (int i = 0; i < mBitStave.length; i++)
       {
         mBitStave[i].setValue(mLightSheetOpticalSwitchQueue.getSwitchVariable(i)
@@ -0,0 +1,270 @@
+package clearcontrol.microscope.lightsheet.signalgen.staves;
+
+import static java.lang.Math.cos;
+import static java.lang.Math.sin;
+
+import clearcontrol.core.math.functions.UnivariateAffineFunction;
+import clearcontrol.microscope.lightsheet.component.lightsheet.LightSheet;
+import clearcontrol.microscope.lightsheet.component.lightsheet.LightSheetQueue;
+
+import org.apache.commons.math3.analysis.polynomials.PolynomialFunction;
+
+/**
+ * Lightsheet stave compiler. Computes the stave parameters of a lightsheet
+ * (galvo Y/Z low and high values, X, beta, width and laser power) for all
+ * planes of a stack. The device functions and all per-queue constants are
+ * resolved once per stack, each plane is then compiled from the bounded
+ * variables of the lightsheet queue right after they have been set, so that
+ * plane values are clamped exactly as the values used by the queue itself.
+ *
+ * @author royer
+ */
+public class LightSheetStaveCompiler
+{
+  private final LightSheetQueue mLightSheetQueue;
+
+  private int mNumberOfPlanes;
+  private float[] mGalvoYLowValues, mGalvoYHighValues,
+      mGalvoZLowValues, mGalvoZHighValues, mXValues, mBValues,
+      mWValues, mPowerValues;
+
+  // constants resolved once per stack:
+  private double mXOffset, mXSlope, mYOffset, mYSlope, mZOffset,
+      mZSlope, mWOffset, mWSlope, mHOffset, mHSlope, mAOffset,
+      mASlope, mBOffset, mBSlope, mPOffset, mPSlope, mZCenter,
+      mOverscan;
+  private boolean mAdaptPower;
+  private PolynomialFunction mWidthPowerFunction,
+      mHeightPowerFunction;
+
+  /**
+   * Instantiates a stave compiler for a given lightsheet queue
+   *
+   * @param pLightSheetQueue
+   *          lightsheet queue
+   */
+  public LightSheetStaveCompiler(LightSheetQueue pLightSheetQueue)
+  {
+    mLightSheetQueue = pLightSheetQueue;
+  }
+
+  /**
+   * Prepares the compilation of a given number of planes: the device
+   * functions and the per-queue constants are resolved once for all planes.
+   *
+   * @param pNumberOfPlanes
+   *          number of planes to compile
+   */
+  public void prepare(int pNumberOfPlanes)
+  {
+    allocate(pNumberOfPlanes);
+
+    LightSheet lLightSheet = mLightSheetQueue.getLightSheet();
+
+    // affine functions are reduced to slope and offset:
+    UnivariateAffineFunction lXFunction = lLightSheet.getXFunction()
+                                                     .get();
+    UnivariateAffineFunction lYFunction = lLightSheet.getYFunction()
+                                                     .get();
+    UnivariateAffineFunction lZFunction = lLightSheet.getZFunction()
+                                                     .get();
+    UnivariateAffineFunction lWidthFunction =
+                                            lLightSheet.getWidthFunction()
+                                                       .get();
+    UnivariateAffineFunction lHeightFunction =
+                                             lLightSheet.getHeightFunction()
+                                                        .get();
+    UnivariateAffineFunction lAlphaFunction =
+                                            lLightSheet.getAlphaFunction()
+                                                       .get();
+    UnivariateAffineFunction lBetaFunction =
+                                           lLightSheet.getBetaFunction()
+                                                      .get();
+    UnivariateAffineFunction lPowerFunction =
+                                            lLightSheet.getPowerFunction()
+                                                       .get();
+    mWidthPowerFunction = lLightSheet.getWidthPowerFunction().get();
+    mHeightPowerFunction = lLightSheet.getHeightPowerFunction().get();
+
+    mXOffset = lXFunction.value(0);
+    mXSlope = lXFunction.value(1) - mXOffset;
+    mYOffset = lYFunction.value(0);
+    mYSlope = lYFunction.value(1) - mYOffset;
+    mZOffset = lZFunction.value(0);
+    mZSlope = lZFunction.value(1) - mZOffset;
+    mWOffset = lWidthFunction.value(0);
+    mWSlope = lWidthFunction.value(1) - mWOffset;
+    mHOffset = lHeightFunction.value(0);
+    mHSlope = lHeightFunction.value(1) - mHOffset;
+    mAOffset = lAlphaFunction.value(0);
+    mASlope = lAlphaFunction.value(1) - mAOffset;
+    mBOffset = lBetaFunction.value(0);
+    mBSlope = lBetaFunction.value(1) - mBOffset;
+    mPOffset = lPowerFunction.value(0);
+    mPSlope = lPowerFunction.value(1) - mPOffset;
+
+    final double lZminBF = mLightSheetQueue.getZVariable()
+                                           .getMin()
+                                           .doubleValue();
+    final double lZmaxBF = mLightSheetQueue.getZVariable()
+                                           .getMax()
+                                           .doubleValue();
+    mZCenter = (lZmaxBF - lZminBF) / 2;
+
+    mOverscan = mLightSheetQueue.getOverScanVariable()
+                                .get()
+                                .doubleValue();
+    mAdaptPower = mLightSheetQueue.getAdaptPowerToWidthHeightVariable()
+                                  .get();
+  }
+
+  /**
+   * Compiles the stave parameters of a given plane from the current values of
+   * the lightsheet queue DOF variables. The variables are read back after
+   * having been set, so that compiled planes see the same clamped values as
+   * the queue.
+   *
+   * @param pPlaneIndex
+   *          plane index
+   */
+  public void compilePlane(int pPlaneIndex)
+  {
+    final double lIX = mLightSheetQueue.getXVariable()
+                                       .get()
+                                       .doubleValue();
+    final double lIY = mLightSheetQueue.getYVariable()
+                                       .get()
+                                       .doubleValue();
+    final double lIZ = mLightSheetQueue.getZVariable()
+                                       .get()
+                                       .doubleValue();
+    final double lIA = mLightSheetQueue.getAlphaInDegreesVariable()
+                                       .get()
+                                       .doubleValue();
+    final double lIB = mLightSheetQueue.getBetaInDegreesVariable()
+                                       .get()
+                                       .doubleValue();
+    final double lIW = mLightSheetQueue.getWidthVariable()
+                                       .get()
+                                       .doubleValue();
+    final double lIH = mLightSheetQueue.getHeightVariable()
+                                       .get()
+                                       .doubleValue();
+    final double lIP = mLightSheetQueue.getPowerVariable()
+                                       .get()
+                                       .doubleValue();
+
+    final int p = pPlaneIndex;
+
+    final double lHeight = mHSlope * lIH + mHOffset;
+    final double lAlpha = Math.toRadians(mASlope * lIA + mAOffset);
+    final double lCos = cos(lAlpha);
+    final double lSin = sin(lAlpha);
+
+    final double lGalvoYOffset = lIY * lCos - (lIZ - mZCenter) * lSin;
+    final double lGalvoZOffset = lIY * lSin + lIZ * lCos;
+    final double lGalvoAmplitudeY = lHeight * lCos;
+    final double lGalvoAmplitudeZ = lHeight * lSin;
+
+    mGalvoYLowValues[p] = (float) (mYSlope * (lGalvoYOffset
+                                              - lGalvoAmplitudeY)
+                                   + mYOffset);
+    mGalvoYHighValues[p] = (float) (mYSlope * (lGalvoYOffset
+                                               + lGalvoAmplitudeY)
+                                    + mYOffset);
+    mGalvoZLowValues[p] = (float) (mZSlope * (lGalvoZOffset
+                                              - lGalvoAmplitudeZ)
+                                   + mZOffset);
+    mGalvoZHighValues[p] = (float) (mZSlope * (lGalvoZOffset
+                                               + lGalvoAmplitudeZ)
+                                    + mZOffset);
+
+    mXValues[p] = (float) (mXSlope * lIX + mXOffset);
+    mBValues[p] = (float) (mBSlope * lIB + mBOffset);
+
+    final double lWidth = mWSlope * lIW + mWOffset;
+    mWValues[p] = (float) lWidth;
+
+    double lPower = mPSlope * lIP + mPOffset;
+    if (mAdaptPower)
+      lPower *= mWidthPowerFunction.value(lWidth)
+                * mHeightPowerFunction.value(lHeight / mOverscan);
+    mPowerValues[p] = (float) lPower;
+  }
+
+  private void allocate(int pNumberOfPlanes)
+  {
+    if (mGalvoYLowValues == null
+        || mGalvoYLowValues.length < pNumberOfPlanes)
+    {
+      mGalvoYLowValues = new float[pNumberOfPlanes];
+      mGalvoYHighValues = new float[pNumberOfPlanes];
+      mGalvoZLowValues = new float[pNumberOfPlanes];
+      mGalvoZHighValues = new float[pNumberOfPlanes];
+      mXValues = new float[pNumberOfPlanes];
+      mBValues = new float[pNumberOfPlanes];
+      mWValues = new float[pNumberOfPlanes];
+      mPowerValues = new float[pNumberOfPlanes];
+    }
+    mNumberOfPlanes = pNumberOfPlanes;
+  }
+
+  /**
+   * Returns the number of compiled planes
+   *
+   * @return number of planes
+   */
+  public int getNumberOfPlanes()
+  {
+    return mNumberOfPlanes;
+  }
+
+  @SuppressWarnings("javadoc")
+  public float getGalvoYLowValue(int pPlaneIndex)
+  {
+    return mGalvoYLowValues[pPlaneIndex];
+  }
+
+  @SuppressWarnings("javadoc")
+  public float getGalvoYHighValue(int pPlaneIndex)
+  {
+    return mGalvoYHighValues[pPlaneIndex];
+  }
+
+  @SuppressWarnings("javadoc")
+  public float getGalvoZLowValue(int pPlaneIndex)
+  {
+    return mGalvoZLowValues[pPlaneIndex];
+  }
+
+  @SuppressWarnings("javadoc")
+  public float getGalvoZHighValue(int pPlaneIndex)
+  {
+    return mGalvoZHighValues[pPlaneIndex];
+  }
+
+  @SuppressWarnings("javadoc")
+  public float getXValue(int pPlaneIndex)
+  {
+    return mXValues[pPlaneIndex];
+  }
+
+  @SuppressWarnings("javadoc")
+  public float getBValue(int pPlaneIndex)
+  {
+    return mBValues[pPlaneIndex];
+  }
+
+  @SuppressWarnings("javadoc")
+  public float getWValue(int pPlaneIndex)
+  {
+    return mWValues[pPlaneIndex];
+  }
+
+  @SuppressWarnings("javadoc")
+  public float getPowerValue(int pPlaneIndex)
+  {
+    return mPowerValues[pPlaneIndex];
+  }
+
+}
@@ -57,6 +57,33 @@ public class LightSheetStaves implements LoggingFeature
   private int mStaveXIndex, mStaveYIndex, mStaveZIndex, mStaveBIndex,
       mStaveWIndex, mStaveLAIndex, mStaveTIndex;
 
+  // digital line of each laser trigger, resolved once from the configuration:
+  private final int[] mLaserDigitalLineIndex;
+
+  private final StaveInputSignature mTimingSignature =
+                                                     new StaveInputSignature(),
+      mGalvoSignature = new StaveInputSignature(),
+      mXSignature = new StaveInputSignature(),
+      mBSignature = new StaveInputSignature(),
+      mWSignature = new StaveInputSignature(),
+      mLaserTriggerSignature = new StaveInputSignature(),
+      mPowerSignature = new StaveInputSignature(),
+      mGalvoStaveSignature = new StaveInputSignature();
+
+  private double mGalvoYLowValue, mGalvoYHighValue, mGalvoZLowValue,
+      mGalvoZHighValue;
+
+  // stave parameters precompiled for all planes of a stack, used instead of
+  // the queue variables while a compiled plane index is set:
+  private LightSheetStaveCompiler mCompiler;
+  private int mCompiledPlaneIndex = -1;
+
+  // timing of the current stack, only read once while compiled:
+  private boolean mCompiledTimingValid;
+  private double mReadoutTimeInMicroseconds,
+      mExposureMovementTimeInMicroseconds,
+      mFinalMovementTimeInMicroseconds, mOverscan;
+
   public LightSheetStaves(LightSheetQueue pLightSheetQueue)
   {
     super();
@@ -126,6 +153,17 @@ public class LightSheetStaves implements LoggingFeature
                                                                  + ".t.index",
                                                                  8 + 7);
 
+    int lNumberOfLaserDigitalControls =
+                                      mLightSheetQueue.getNumberOfLaserDigitalControls();
+    mLaserDigitalLineIndex = new int[lNumberOfLaserDigitalControls];
+    for (int i = 0; i < lNumberOfLaserDigitalControls; i++)
+      mLaserDigitalLineIndex[i] =
+                                cCurrentMachineConfiguration.getIntegerProperty(lPrefix
+                                                                                + ".ld"
+                                                                                + i
+                                                                                + ".index",
+                                                                                8 + i);
+
   }
 
   protected String getDevicePrefixInConfigFile()
@@ -249,161 +287,336 @@ public class LightSheetStaves implements LoggingFeature
 
   }
 
-  public void update(Movement pBeforeExposureMovement,
-                     Movement pExposureMovement,
-                     Movement pFinalMovement)
+  /**
+   * Forces the recomputation of all staves on next update, for example when
+   * other staves may have been written into the same movements.
+   */
+  public void invalidate()
+  {
+    synchronized (this)
+    {
+      mTimingSignature.invalidate();
+      mGalvoSignature.invalidate();
+      mXSignature.invalidate();
+      mBSignature.invalidate();
+      mWSignature.invalidate();
+      mLaserTriggerSignature.invalidate();
+      mPowerSignature.invalidate();
+      mGalvoStaveSignature.invalidate();
+    }
+  }
+
+  /**
+   * Prepares the compilation of a given number of planes, see
+   * {@link #compilePlane(int)}. Timing variables are expected to stay the same
+   * for all compiled planes and are only read for the first one.
+   * 
+   * @param pNumberOfPlanes
+   *          number of planes to compile
+   */
+  public void prepareCompilation(int pNumberOfPlanes)
   {
     synchronized (this)
     {
+      if (mCompiler == null)
+        mCompiler = new LightSheetStaveCompiler(mLightSheetQueue);
+      mCompiler.prepare(pNumberOfPlanes);
+      mCompiledPlaneIndex = -1;
+      mCompiledTimingValid = false;
+    }
+  }
+
+  /**
+   * Compiles the stave parameters of a given plane from the current values of
+   * the queue variables, and sets it as the compiled plane to use on next
+   * update. The parameters of the compiled plane are used by
+   * {@link #update(Movement, Movement, Movement)} instead of being computed
+   * from the queue variables and device functions.
+   * 
+   * @param pPlaneIndex
+   *          plane index
+   */
+  public void compilePlane(int pPlaneIndex)
+  {
+    synchronized (this)
+    {
+      mCompiler.compilePlane(pPlaneIndex);
+      mCompiledPlaneIndex = pPlaneIndex;
+    }
+  }
+
+  /**
+   * Sets the index of the compiled plane to use on next update, -1 to compute
+   * stave parameters from the queue variables.
+   * 
+   * @param pPlaneIndex
+   *          compiled plane index, or -1
+   */
+  public void setCompiledPlaneIndex(int pPlaneIndex)
+  {
+    synchronized (this)
+    {
+      if (mCompiledPlaneIndex >= 0 && pPlaneIndex < 0)
+      {
+        mGalvoSignature.invalidate();
+        mCompiledTimingValid = false;
+      }
+      mCompiledPlaneIndex = pPlaneIndex;
+    }
+  }
+
+  /**
+   * Invalidates the staves that are shared with the other lightsheets: the
+   * movement durations and the laser digital trigger lines. They are then
+   * rewritten on next update.
+   */
+  public void invalidateSharedStaves()
+  {
+    synchronized (this)
+    {
+      mTimingSignature.invalidate();
+      mLaserTriggerSignature.invalidate();
+    }
+  }
+
+  /**
+   * Updates the staves from the queue variables, or from the compiled plane
+   * if one is set.
+   * 
+   * @param pBeforeExposureMovement
+   *          before exposure movement
+   * @param pExposureMovement
+   *          exposure movement
+   * @param pFinalMovement
+   *          final movement
+   * @return true if staves shared with other lightsheets have been rewritten
+   */
+  public boolean update(Movement pBeforeExposureMovement,
+                        Movement pExposureMovement,
+                        Movement pFinalMovement)
+  {
+    synchronized (this)
+    {
+      boolean lSharedStavesRewritten = false;
 
       // info("Updating: " + getLightSheet().getName());
 
+      // each group of staves is only recomputed when its inputs changed since
+      // the last update, typically only a few DOFs change between planes:
+
+      final boolean lCompiled = mCompiler != null
+                                && mCompiledPlaneIndex >= 0
+                                && mCompiledPlaneIndex < mCompiler.getNumberOfPlanes();
+      final int lPlaneIndex = mCompiledPlaneIndex;
+
+      if (!lCompiled || !mCompiledTimingValid)
+      {
+        mReadoutTimeInMicroseconds =
+                                   getBeforeExposureMovementDuration(TimeUnit.MICROSECONDS);
+        mExposureMovementTimeInMicroseconds =
+                                            getExposureMovementDuration(TimeUnit.MICROSECONDS);
+        mFinalMovementTimeInMicroseconds =
+                                         getFinalMovementDuration(TimeUnit.MICROSECONDS);
+        mOverscan = mLightSheetQueue.getOverScanVariable()
+                                    .get()
+                                    .doubleValue();
+        mCompiledTimingValid = lCompiled;
+      }
+
       final double lReadoutTimeInMicroseconds =
-                                              getBeforeExposureMovementDuration(TimeUnit.MICROSECONDS);
+                                              mReadoutTimeInMicroseconds;
       final double lExposureMovementTimeInMicroseconds =
-                                                       getExposureMovementDuration(TimeUnit.MICROSECONDS);
-
+                                                       mExposureMovementTimeInMicroseconds;
       final double lFinalMovementTimeInMicroseconds =
-                                                    getFinalMovementDuration(TimeUnit.MICROSECONDS);
+                                                    mFinalMovementTimeInMicroseconds;
+      final double lOverscan = mOverscan;
+
+      if (mTimingSignature.begin()
+                          .add(lReadoutTimeInMicroseconds)
+                          .add(lExposureMovementTimeInMicroseconds)
+                          .add(lFinalMovementTimeInMicroseconds)
+                          .changed())
+      {
+        lSharedStavesRewritten = true;
 
-      pBeforeExposureMovement.setDuration(round(lReadoutTimeInMicroseconds),
-                                          TimeUnit.MICROSECONDS);
+        pBeforeExposureMovement.setDuration(round(lReadoutTimeInMicroseconds),
+                                            TimeUnit.MICROSECONDS);
 
-      pExposureMovement.setDuration(round(lExposureMovementTimeInMicroseconds),
-                                    TimeUnit.MICROSECONDS);
+        pExposureMovement.setDuration(round(lExposureMovementTimeInMicroseconds),
+                                      TimeUnit.MICROSECONDS);
 
-      pFinalMovement.setDuration(round(lFinalMovementTimeInMicroseconds),
-                                 TimeUnit.MICROSECONDS);
+        pFinalMovement.setDuration(round(lFinalMovementTimeInMicroseconds),
+                                   TimeUnit.MICROSECONDS);
 
-      final double lLineExposureTimeInMicroseconds =
-                                                   lReadoutTimeInMicroseconds
-                                                     + lExposureMovementTimeInMicroseconds;
-      mLineExposureInMicrosecondsVariable.set(lLineExposureTimeInMicroseconds);
+        final double lLineExposureTimeInMicroseconds =
+                                                     lReadoutTimeInMicroseconds
+                                                       + lExposureMovementTimeInMicroseconds;
+        mLineExposureInMicrosecondsVariable.set(lLineExposureTimeInMicroseconds);
+      }
 
-      UnivariateAffineFunction lYFunction =
-                                          getLightSheet().getYFunction()
-                                                         .get();
+      // in compiled mode neither functions nor DOF variables are evaluated:
+      double lLightSheetHeight = 0;
+      if (lCompiled)
+      {
+        mGalvoYLowValue = mCompiler.getGalvoYLowValue(lPlaneIndex);
+        mGalvoYHighValue = mCompiler.getGalvoYHighValue(lPlaneIndex);
+        mGalvoZLowValue = mCompiler.getGalvoZLowValue(lPlaneIndex);
+        mGalvoZHighValue = mCompiler.getGalvoZHighValue(lPlaneIndex);
+      }
+      else
+      {
+        UnivariateAffineFunction lYFunction =
+                                            getLightSheet().getYFunction()
+                                                           .get();
 
-      UnivariateAffineFunction lZFunction =
-                                          getLightSheet().getZFunction()
-                                                         .get();
+        UnivariateAffineFunction lZFunction =
+                                            getLightSheet().getZFunction()
+                                                           .get();
 
-      UnivariateAffineFunction lHeightFunction =
-                                               getLightSheet().getHeightFunction()
-                                                              .get();
+        UnivariateAffineFunction lHeightFunction =
+                                                 getLightSheet().getHeightFunction()
+                                                                .get();
 
-      final double lYBF = mLightSheetQueue.getYVariable()
-                                          .get()
-                                          .doubleValue();
+        final double lYBF = mLightSheetQueue.getYVariable()
+                                            .get()
+                                            .doubleValue();
 
-      final double lZBF = mLightSheetQueue.getZVariable()
-                                          .get()
-                                          .doubleValue();
-      final double lZminBF = mLightSheetQueue.getZVariable()
-                                             .getMin()
-                                             .doubleValue();
-      final double lZmaxBF = mLightSheetQueue.getZVariable()
-                                             .getMax()
-                                             .doubleValue();
+        final double lZBF = mLightSheetQueue.getZVariable()
+                                            .get()
+                                            .doubleValue();
+        final double lZminBF = mLightSheetQueue.getZVariable()
+                                               .getMin()
+                                               .doubleValue();
+        final double lZmaxBF = mLightSheetQueue.getZVariable()
+                                               .getMax()
+                                               .doubleValue();
 
-      final double lZCenter = (lZmaxBF - lZminBF) / 2;
+        final double lHeightBF = mLightSheetQueue.getHeightVariable()
+                                                 .get()
+                                                 .doubleValue();
 
-      final double lGalvoYOffsetBeforeRotation = lYBF;
-      final double lGalvoZOffsetBeforeRotation = lZBF;
+        lLightSheetHeight = lHeightFunction.value(lHeightBF);
 
-      final double lHeightBF = mLightSheetQueue.getHeightVariable()
-                                               .get()
-                                               .doubleValue();
+        if (mGalvoSignature.begin()
+                           .add(lYBF)
+                           .add(lZBF)
+                           .add(lZminBF)
+                           .add(lZmaxBF)
+                           .add(lLightSheetHeight)
+                           .add(mLightSheetQueue.getAlphaInDegreesVariable()
+                                                .get()
+                                                .doubleValue())
+                           .addFunction(getLightSheet().getAlphaFunction().get())
+                           .addFunction(lYFunction)
+                           .addFunction(lZFunction)
+                           .changed())
+        {
+          final double lZCenter = (lZmaxBF - lZminBF) / 2;
+
+          final double lGalvoYOffsetBeforeRotation = lYBF;
+          final double lGalvoZOffsetBeforeRotation = lZBF;
+
+          final double lGalvoYOffset =
+                                     galvoRotateY(lGalvoYOffsetBeforeRotation,
+                                                  lGalvoZOffsetBeforeRotation - lZCenter);
+          final double lGalvoZOffset =
+                                     galvoRotateZ(lGalvoYOffsetBeforeRotation,
+                                                  lGalvoZOffsetBeforeRotation);
+
+          final double lGalvoAmplitudeY = galvoRotateY(lLightSheetHeight,
+                                                       0);
+          final double lGalvoAmplitudeZ = galvoRotateZ(lLightSheetHeight,
+                                                       0);
+
+          mGalvoYLowValue = lYFunction.value(lGalvoYOffset
+                                             - lGalvoAmplitudeY);
+          mGalvoYHighValue = lYFunction.value(lGalvoYOffset
+                                              + lGalvoAmplitudeY);
+
+          mGalvoZLowValue = lZFunction.value(lGalvoZOffset
+                                             - lGalvoAmplitudeZ);
+          mGalvoZHighValue = lZFunction.value(lGalvoZOffset
+                                              + lGalvoAmplitudeZ);
+        }
+      }
+
+      if (mGalvoStaveSignature.begin()
+                              .add(mGalvoYLowValue)
+                              .add(mGalvoYHighValue)
+                              .add(mGalvoZLowValue)
+                              .add(mGalvoZHighValue)
+                              .changed())
+      {
+        final double lGalvoYLowValue = mGalvoYLowValue;
+        final double lGalvoYHighValue = mGalvoYHighValue;
+        final double lGalvoZLowValue = mGalvoZLowValue;
+        final double lGalvoZHighValue = mGalvoZHighValue;
+
+        mBeforeExposureYStave.setStartValue((float) lGalvoYHighValue);
+        mBeforeExposureYStave.setStopValue((float) lGalvoYLowValue);
+        mBeforeExposureYStave.setStartSlope((float) (lGalvoYHighValue
+                                                     - lGalvoYLowValue));
+        mBeforeExposureYStave.setStopSlope((float) (lGalvoYHighValue
+                                                    - lGalvoYLowValue));
+        mBeforeExposureYStave.setSmoothness(0.50f);
+        mBeforeExposureYStave.setMargin(0.1f);
+
+        mBeforeExposureZStave.setStartValue((float) lGalvoZHighValue);
+        mBeforeExposureZStave.setStopValue((float) lGalvoZLowValue);
+        mBeforeExposureZStave.setStartSlope((float) (lGalvoZHighValue
+                                                     - lGalvoZLowValue));
+        mBeforeExposureZStave.setStopSlope((float) (lGalvoZHighValue
+                                                    - lGalvoZLowValue));
+        mBeforeExposureZStave.setSmoothness(0.50f);
+        mBeforeExposureZStave.setMargin(0.1f);
+
+        mExposureYStave.setSyncStart(0);
+        mExposureYStave.setSyncStop(1);
+        mExposureYStave.setStartValue((float) lGalvoYLowValue);
+        mExposureYStave.setStopValue((float) lGalvoYHighValue);
+        mExposureYStave.setOutsideValue((float) lGalvoYHighValue);
+        mExposureYStave.setNoJump(true);
+
+        mExposureZStave.setSyncStart(0);
+        mExposureZStave.setSyncStop(1);
+        mExposureZStave.setStartValue((float) lGalvoZLowValue);
+        mExposureZStave.setStopValue((float) lGalvoZHighValue);
+        mExposureZStave.setOutsideValue((float) lGalvoZHighValue);
+        mExposureZStave.setNoJump(true);
+
+        mFinalYStave.setSyncStart(0);
+        mFinalYStave.setSyncStop(1);
+        mFinalYStave.setStartValue((float) lGalvoYHighValue);
+        mFinalYStave.setStopValue((float) lGalvoYHighValue);
+        mFinalYStave.setOutsideValue((float) lGalvoYHighValue);
+        mFinalYStave.setNoJump(true);
+      }
 
-      final double lLightSheetHeight =
-                                     lHeightFunction.value(lHeightBF);
-
-      final double lGalvoYOffset =
-                                 galvoRotateY(lGalvoYOffsetBeforeRotation,
-                                              lGalvoZOffsetBeforeRotation - lZCenter);
-      final double lGalvoZOffset =
-                                 galvoRotateZ(lGalvoYOffsetBeforeRotation,
-                                              lGalvoZOffsetBeforeRotation);
-
-      final double lGalvoAmplitudeY = galvoRotateY(lLightSheetHeight,
-                                                   0);
-      final double lGalvoAmplitudeZ = galvoRotateZ(lLightSheetHeight,
-                                                   0);
-
-      final double lGalvoYLowValue =
-                                   lYFunction.value(lGalvoYOffset
-                                                    - lGalvoAmplitudeY);
-      final double lGalvoYHighValue =
-                                    lYFunction.value(lGalvoYOffset
-                                                     + lGalvoAmplitudeY);
-
-      final double lGalvoZLowValue =
-                                   lZFunction.value(lGalvoZOffset
-                                                    - lGalvoAmplitudeZ);
-      final double lGalvoZHighValue =
-                                    lZFunction.value(lGalvoZOffset
-                                                     + lGalvoAmplitudeZ);
-
-      mBeforeExposureYStave.setStartValue((float) lGalvoYHighValue);
-      mBeforeExposureYStave.setStopValue((float) lGalvoYLowValue);
-      mBeforeExposureYStave.setStartSlope((float) (lGalvoYHighValue
-                                                   - lGalvoYLowValue));
-      mBeforeExposureYStave.setStopSlope((float) (lGalvoYHighValue
-                                                  - lGalvoYLowValue));
-      mBeforeExposureYStave.setSmoothness(0.50f);
-      mBeforeExposureYStave.setMargin(0.1f);
-
-      mBeforeExposureZStave.setStartValue((float) lGalvoZHighValue);
-      mBeforeExposureZStave.setStopValue((float) lGalvoZLowValue);
-      mBeforeExposureZStave.setStartSlope((float) (lGalvoZHighValue
-                                                   - lGalvoZLowValue));
-      mBeforeExposureZStave.setStopSlope((float) (lGalvoZHighValue
-                                                  - lGalvoZLowValue));
-      mBeforeExposureZStave.setSmoothness(0.50f);
-      mBeforeExposureZStave.setMargin(0.1f);
-
-      mExposureYStave.setSyncStart(0);
-      mExposureYStave.setSyncStop(1);
-      mExposureYStave.setStartValue((float) lGalvoYLowValue);
-      mExposureYStave.setStopValue((float) lGalvoYHighValue);
-      mExposureYStave.setOutsideValue((float) lGalvoYHighValue);
-      mExposureYStave.setNoJump(true);
-
-      mExposureZStave.setSyncStart(0);
-      mExposureZStave.setSyncStop(1);
-      mExposureZStave.setStartValue((float) lGalvoZLowValue);
-      mExposureZStave.setStopValue((float) lGalvoZHighValue);
-      mExposureZStave.setOutsideValue((float) lGalvoZHighValue);
-      mExposureZStave.setNoJump(true);
-
-      mFinalYStave.setSyncStart(0);
-      mFinalYStave.setSyncStop(1);
-      mFinalYStave.setStartValue((float) lGalvoYHighValue);
-      mFinalYStave.setStopValue((float) lGalvoYHighValue);
-      mFinalYStave.setOutsideValue((float) lGalvoYHighValue);
-      mFinalYStave.setNoJump(true);
-
-      mBeforeExposureXStave.setValue((float) getLightSheet().getXFunction()
-                                                            .get()
-                                                            .value(mLightSheetQueue.getXVariable()
-                                                                                   .get()
-                                                                                   .doubleValue()));
-      mExposureXStave.setValue((float) getLightSheet().getXFunction()
-                                                      .get()
-                                                      .value(mLightSheetQueue.getXVariable()
-                                                                             .get()
-                                                                             .doubleValue()));
-
-      mBeforeExposureBStave.setValue((float) getLightSheet().getBetaFunction()
-                                                            .get()
-                                                            .value(mLightSheetQueue.getBetaInDegreesVariable()
-                                                                                   .get()
-                                                                                   .doubleValue()));
-      mExposureBStave.setValue((float) getLightSheet().getBetaFunction()
-                                                      .get()
-                                                      .value(mLightSheetQueue.getBetaInDegreesVariable()
-                                                                             .get()
-                                                                             .doubleValue()));
+      final float lXValue =
+                          lCompiled ? mCompiler.getXValue(lPlaneIndex)
+                                    : (float) getLightSheet().getXFunction()
+                                                             .get()
+                                                             .value(mLightSheetQueue.getXVariable()
+                                                                                    .get()
+                                                                                    .doubleValue());
+      if (mXSignature.begin().add(lXValue).changed())
+      {
+        mBeforeExposureXStave.setValue(lXValue);
+        mExposureXStave.setValue(lXValue);
+      }
+
+      final float lBValue =
+                          lCompiled ? mCompiler.getBValue(lPlaneIndex)
+                                    : (float) getLightSheet().getBetaFunction()
+                                                             .get()
+                                                             .value(mLightSheetQueue.getBetaInDegreesVariable()
+                                                                                    .get()
+                                                                                    .doubleValue());
+      if (mBSignature.begin().add(lBValue).changed())
+      {
+        mBeforeExposureBStave.setValue(lBValue);
+        mExposureBStave.setValue(lBValue);
+      }
 
       /*final double lFocalLength = mFocalLengthInMicronsVariable.get();
       final double lLambdaInMicrons = mLambdaInMicronsVariable.get();
@@ -413,18 +626,19 @@ public class LightSheetStaves implements LoggingFeature
                                                                                 lLambdaInMicrons,
                                                                                 lLightSheetRangeInMicrons);/**/
       double lWidthValue =
-                         getLightSheet().getWidthFunction()
-                                        .get()
-                                        .value(mLightSheetQueue.getWidthVariable()
-                                                               .get()
-                                                               .doubleValue());
-
-      mBeforeExposureWStave.setValue((float) lWidthValue);
-      mExposureWStave.setValue((float) lWidthValue);
+                         lCompiled ? mCompiler.getWValue(lPlaneIndex)
+                                   : getLightSheet().getWidthFunction()
+                                                    .get()
+                                                    .value(mLightSheetQueue.getWidthVariable()
+                                                                           .get()
+                                                                           .doubleValue());
+
+      if (mWSignature.begin().add((float) lWidthValue).changed())
+      {
+        mBeforeExposureWStave.setValue((float) lWidthValue);
+        mExposureWStave.setValue((float) lWidthValue);
+      }
 
-      final double lOverscan = mLightSheetQueue.getOverScanVariable()
-                                               .get()
-                                               .doubleValue();
       double lMarginTimeInMicroseconds = (lOverscan - 1)
                                          / (2 * lOverscan)
                                          * lExposureMovementTimeInMicroseconds;
@@ -432,56 +646,72 @@ public class LightSheetStaves implements LoggingFeature
                                             microsecondsToRelative(lExposureMovementTimeInMicroseconds,
                                                                    lMarginTimeInMicroseconds);
 
-      boolean lIsStepping = true;
-      for (int i =
-                 0; i < mLightSheetQueue.getNumberOfLaserDigitalControls(); i++)
-        lIsStepping &= mLightSheetQueue.getSIPatternOnOffVariable(i)
-                                       .get();
-
-      mExposureYStave.setStepping(lIsStepping);
-      mExposureZStave.setStepping(lIsStepping);
-
-      for (int i =
-                 0; i < mLightSheetQueue.getNumberOfLaserDigitalControls(); i++)
+      int lNumberOfLaserDigitalControls =
+                                        mLightSheetQueue.getNumberOfLaserDigitalControls();
+      mLaserTriggerSignature.begin().add(lMarginTimeRelativeUnits);
+      for (int i = 0; i < lNumberOfLaserDigitalControls; i++)
+        mLaserTriggerSignature.add(mLightSheetQueue.getSIPatternOnOffVariable(i)
+                                                   .get())
+                              .add(mLightSheetQueue.getLaserOnOffArrayVariable(i)
+                                                   .get())
+                              .addReference(mLightSheetQueue.getSIPatternVariable(i)
+                                                            .get());
+
+      if (mLaserTriggerSignature.changed())
       {
-        final Variable<Boolean> lLaserBooleanVariable =
-                                                      mLightSheetQueue.getLaserOnOffArrayVariable(i);
+        lSharedStavesRewritten = true;
 
-        if (mLightSheetQueue.getSIPatternOnOffVariable(i).get())
-        {
+        boolean lIsStepping = true;
+        for (int i = 0; i < lNumberOfLaserDigitalControls; i++)
+          lIsStepping &= mLightSheetQueue.getSIPatternOnOffVariable(i)
+                                         .get();
 
-          final StructuredIlluminationPatternInterface lStructuredIlluminatioPatternInterface =
-                                                                                              mLightSheetQueue.getSIPatternVariable(i)
-                                                                                                              .get();
-          final StaveInterface lSIIlluminationLaserTriggerStave =
-                                                                lStructuredIlluminatioPatternInterface.getStave(lMarginTimeRelativeUnits);
-          lSIIlluminationLaserTriggerStave.setEnabled(lLaserBooleanVariable.get());
+        mExposureYStave.setStepping(lIsStepping);
+        mExposureZStave.setStepping(lIsStepping);
 
-          setLaserDigitalTriggerStave(pExposureMovement,
-                                      i,
-                                      lSIIlluminationLaserTriggerStave);
-        }
-        else
+        for (int i = 0; i < lNumberOfLaserDigitalControls; i++)
         {
-          mNonSIIluminationLaserTriggerStave.setEnabled(lLaserBooleanVariable.get());
-          mNonSIIluminationLaserTriggerStave.setStart((float) lMarginTimeRelativeUnits);
-          mNonSIIluminationLaserTriggerStave.setStop((float) (1.0f
-                                                              - lMarginTimeRelativeUnits));
-          setLaserDigitalTriggerStave(pExposureMovement,
-                                      i,
-                                      mNonSIIluminationLaserTriggerStave);
-        }
+          final Variable<Boolean> lLaserBooleanVariable =
+                                                        mLightSheetQueue.getLaserOnOffArrayVariable(i);
+
+          if (mLightSheetQueue.getSIPatternOnOffVariable(i).get())
+          {
+
+            final StructuredIlluminationPatternInterface lStructuredIlluminatioPatternInterface =
+                                                                                                mLightSheetQueue.getSIPatternVariable(i)
+                                                                                                                .get();
+            final StaveInterface lSIIlluminationLaserTriggerStave =
+                                                                  lStructuredIlluminatioPatternInterface.getStave(lMarginTimeRelativeUnits);
+            lSIIlluminationLaserTriggerStave.setEnabled(lLaserBooleanVariable.get());
+
+            setLaserDigitalTriggerStave(pExposureMovement,
+                                        i,
+                                        lSIIlluminationLaserTriggerStave);
+          }
+          else
+          {
+            mNonSIIluminationLaserTriggerStave.setEnabled(lLaserBooleanVariable.get());
+            mNonSIIluminationLaserTriggerStave.setStart((float) lMarginTimeRelativeUnits);
+            mNonSIIluminationLaserTriggerStave.setStop((float) (1.0f
+                                                                - lMarginTimeRelativeUnits));
+            setLaserDigitalTriggerStave(pExposureMovement,
+                                        i,
+                                        mNonSIIluminationLaserTriggerStave);
+          }
 
+        }
       }
 
       double lPowerValue =
-                         getLightSheet().getPowerFunction()
-                                        .get()
-                                        .value(mLightSheetQueue.getPowerVariable()
-                                                               .get()
-                                                               .doubleValue());
-
-      if (mLightSheetQueue.getAdaptPowerToWidthHeightVariable().get())
+                         lCompiled ? mCompiler.getPowerValue(lPlaneIndex)
+                                   : getLightSheet().getPowerFunction()
+                                                    .get()
+                                                    .value(mLightSheetQueue.getPowerVariable()
+                                                                           .get()
+                                                                           .doubleValue());
+
+      if (!lCompiled
+          && mLightSheetQueue.getAdaptPowerToWidthHeightVariable().get())
       {
         double lWidthPowerFactor =
                                  getLightSheet().getWidthPowerFunction()
@@ -497,9 +727,13 @@ public class LightSheetStaves implements LoggingFeature
         lPowerValue *= lWidthPowerFactor * lHeightPowerFactor;
       }
 
-      mBeforeExposureLAStave.setValue(0f);
-      mExposureLAStave.setValue((float) lPowerValue);
+      if (mPowerSignature.begin().add((float) lPowerValue).changed())
+      {
+        mBeforeExposureLAStave.setValue(0f);
+        mExposureLAStave.setValue((float) lPowerValue);
+      }
 
+      return lSharedStavesRewritten;
     }
 
   }
@@ -508,16 +742,7 @@ public class LightSheetStaves implements LoggingFeature
                                                                    int pLaserLineIndex,
                                                                    O pStave)
   {
-
-    final int lLaserDigitalLineIndex =
-                                     MachineConfiguration.get()
-                                                         .getIntegerProperty("device.lsm.lightsheet."
-                                                                             + getLightSheet().getName()
-                                                                             + ".ld"
-                                                                             + pLaserLineIndex
-                                                                             + ".index",
-                                                                             8 + pLaserLineIndex);
-    return pExposureMovement.ensureSetStave(lLaserDigitalLineIndex,
+    return pExposureMovement.ensureSetStave(mLaserDigitalLineIndex[pLaserLineIndex],
                                             pStave);
   }
 
@@ -637,4 +862,24 @@ public class LightSheetStaves implements LoggingFeature
     return mExposureLAStave;
   }
 
+  public int getGalvoScannerYStaveIndex()
+  {
+    return mStaveYIndex;
+  }
+
+  public int getGalvoScannerZStaveIndex()
+  {
+    return mStaveZIndex;
+  }
+
+  public int getTriggerOutStaveIndex()
+  {
+    return mStaveTIndex;
+  }
+
+  public int[] getLaserDigitalTriggerStaveIndices()
+  {
+    return mLaserDigitalLineIndex.clone();
+  }
+
 }
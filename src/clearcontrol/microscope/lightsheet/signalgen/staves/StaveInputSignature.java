@@ -0,0 +1,132 @@
+package clearcontrol.microscope.lightsheet.signalgen.staves;
+
+import java.util.Arrays;
+
+import clearcontrol.core.math.functions.UnivariateAffineFunction;
+
+/**
+ * Signature of the inputs of a group of staves. Staves are only recomputed
+ * when the signature of their inputs changed since their last update, inputs
+ * are added in the same order at each update.
+ *
+ * @author royer
+ */
+class StaveInputSignature
+{
+  private double[] mValues = new double[16];
+  private double[] mLastValues = new double[16];
+  private Object[] mReferences = new Object[4];
+  private Object[] mLastReferences = new Object[4];
+  private int mNumberOfValues, mLastNumberOfValues;
+  private int mNumberOfReferences, mLastNumberOfReferences;
+  private boolean mValid;
+
+  /**
+   * Starts a new signature
+   *
+   * @return this signature
+   */
+  StaveInputSignature begin()
+  {
+    mNumberOfValues = 0;
+    mNumberOfReferences = 0;
+    return this;
+  }
+
+  /**
+   * Adds a value to the signature
+   *
+   * @param pValue
+   *          value
+   * @return this signature
+   */
+  StaveInputSignature add(double pValue)
+  {
+    if (mNumberOfValues == mValues.length)
+      mValues = Arrays.copyOf(mValues, 2 * mValues.length);
+    mValues[mNumberOfValues++] = pValue;
+    return this;
+  }
+
+  /**
+   * Adds a boolean to the signature
+   *
+   * @param pValue
+   *          boolean
+   * @return this signature
+   */
+  StaveInputSignature add(boolean pValue)
+  {
+    return add(pValue ? 1 : 0);
+  }
+
+  /**
+   * Adds an affine function to the signature, an affine function is fully
+   * determined by its values at 0 and 1.
+   *
+   * @param pFunction
+   *          affine function
+   * @return this signature
+   */
+  StaveInputSignature addFunction(UnivariateAffineFunction pFunction)
+  {
+    return add(pFunction.value(0)).add(pFunction.value(1));
+  }
+
+  /**
+   * Adds an object to the signature, objects are compared by identity.
+   *
+   * @param pReference
+   *          object
+   * @return this signature
+   */
+  StaveInputSignature addReference(Object pReference)
+  {
+    if (mNumberOfReferences == mReferences.length)
+      mReferences = Arrays.copyOf(mReferences, 2 * mReferences.length);
+    mReferences[mNumberOfReferences++] = pReference;
+    return this;
+  }
+
+  /**
+   * Returns true if the signature changed since the last call, or if it was
+   * invalidated. The current signature becomes the reference for the next
+   * call.
+   *
+   * @return true if changed
+   */
+  boolean changed()
+  {
+    boolean lChanged = !mValid
+                       || mNumberOfValues != mLastNumberOfValues
+                       || mNumberOfReferences != mLastNumberOfReferences;
+
+    for (int i = 0; !lChanged && i < mNumberOfValues; i++)
+      lChanged = mValues[i] != mLastValues[i];
+    for (int i = 0; !lChanged && i < mNumberOfReferences; i++)
+      lChanged = mReferences[i] != mLastReferences[i];
+
+    double[] lValues = mLastValues;
+    mLastValues = mValues;
+    mValues = lValues;
+    mLastNumberOfValues = mNumberOfValues;
+
+    Object[] lReferences = mLastReferences;
+    mLastReferences = mReferences;
+    mReferences = lReferences;
+    mLastNumberOfReferences = mNumberOfReferences;
+
+    mValid = true;
+    return lChanged;
+  }
+
+  /**
+   * Invalidates this signature, the next call to {@link #changed()} returns
+   * true.
+   */
+  void invalidate()
+  {
+    mValid = false;
+  }
+
+}
@@ -0,0 +1,158 @@
+package clearcontrol.microscope.lightsheet.signalgen.staves.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.core.math.functions.UnivariateAffineFunction;
+import clearcontrol.core.variable.bounded.BoundedVariable;
+import clearcontrol.devices.signalgen.movement.Movement;
+import clearcontrol.devices.signalgen.staves.StaveInterface;
+import clearcontrol.microscope.lightsheet.component.lightsheet.LightSheet;
+import clearcontrol.microscope.lightsheet.component.lightsheet.LightSheetQueue;
+import clearcontrol.microscope.lightsheet.signalgen.staves.LightSheetStaves;
+
+import org.junit.Test;
+
+/**
+ * Lightsheet staves tests
+ *
+ * @author royer
+ */
+public class LightSheetStavesTests
+{
+  private static final int cNumberOfPlanes = 8;
+
+  private static final float[] cSamplePositions = new float[]
+  { 0, 0.25f, 0.5f, 0.75f, 0.99f };
+
+  /**
+   * tests that compiled planes produce the same staves as planes computed one
+   * by one from the queue variables, including for values that are clamped by
+   * the bounded variables.
+   */
+  @Test
+  public void compiledPlanesMatchPerPlaneUpdates()
+  {
+    LightSheet lLightSheet = new LightSheet("L0", 9.4, 2);
+    lLightSheet.getXFunction().set(new UnivariateAffineFunction(2, 0.1));
+    lLightSheet.getYFunction().set(new UnivariateAffineFunction(0.5, -0.2));
+    lLightSheet.getZFunction().set(new UnivariateAffineFunction(1.5, 0.3));
+    lLightSheet.getAlphaFunction()
+               .set(new UnivariateAffineFunction(1, 2));
+    lLightSheet.getBetaFunction().set(new UnivariateAffineFunction(3, 0));
+    lLightSheet.getWidthFunction()
+               .set(new UnivariateAffineFunction(0.8, 0.05));
+    lLightSheet.getHeightFunction()
+               .set(new UnivariateAffineFunction(1.2, 0.1));
+    lLightSheet.getPowerFunction()
+               .set(new UnivariateAffineFunction(0.9, 0));
+
+    LightSheetQueue lQueue = lLightSheet.requestQueue();
+    lQueue.getZVariable().setMinMax(-1, 1);
+    lQueue.getHeightVariable().setMinMax(0, 0.5);
+    lQueue.getAdaptPowerToWidthHeightVariable().set(true);
+    lQueue.getLaserOnOffArrayVariable(0).set(true);
+
+    // per plane values, Z and height run out of their bounds:
+    double[][] lColumns = new double[8][cNumberOfPlanes];
+    for (int p = 0; p < cNumberOfPlanes; p++)
+    {
+      lColumns[0][p] = 0.1 * p;
+      lColumns[1][p] = 0.2 - 0.05 * p;
+      lColumns[2][p] = -1.6 + 0.4 * p;
+      lColumns[3][p] = p % 3;
+      lColumns[4][p] = 0.5 * (p / 2);
+      lColumns[5][p] = 0.3;
+      lColumns[6][p] = 0.15 * p;
+      lColumns[7][p] = 0.5 + 0.05 * p;
+    }
+    @SuppressWarnings("unchecked")
+    BoundedVariable<Number>[] lVariables = new BoundedVariable[]
+    { lQueue.getXVariable(),
+      lQueue.getYVariable(),
+      lQueue.getZVariable(),
+      lQueue.getAlphaInDegreesVariable(),
+      lQueue.getBetaInDegreesVariable(),
+      lQueue.getWidthVariable(),
+      lQueue.getHeightVariable(),
+      lQueue.getPowerVariable() };
+
+    // reference: each plane computed from the queue variables:
+    LightSheetStaves lReferenceStaves = new LightSheetStaves(lQueue);
+    Movement[] lReferenceMovements = newMovements(lReferenceStaves);
+    List<List<Float>> lReferenceSamples = new ArrayList<>();
+    for (int p = 0; p < cNumberOfPlanes; p++)
+    {
+      setPlane(lVariables, lColumns, p);
+      lReferenceStaves.update(lReferenceMovements[0],
+                              lReferenceMovements[1],
+                              lReferenceMovements[2]);
+      lReferenceSamples.add(sample(lReferenceMovements));
+    }
+
+    // compiled: each plane compiled from the variables right after being set:
+    LightSheetStaves lCompiledStaves = new LightSheetStaves(lQueue);
+    Movement[] lCompiledMovements = newMovements(lCompiledStaves);
+    lCompiledStaves.prepareCompilation(cNumberOfPlanes);
+    for (int p = 0; p < cNumberOfPlanes; p++)
+    {
+      setPlane(lVariables, lColumns, p);
+      lCompiledStaves.compilePlane(p);
+      lCompiledStaves.update(lCompiledMovements[0],
+                             lCompiledMovements[1],
+                             lCompiledMovements[2]);
+
+      List<Float> lReference = lReferenceSamples.get(p);
+      List<Float> lCompiled = sample(lCompiledMovements);
+      assertEquals(lReference.size(), lCompiled.size());
+      for (int i = 0; i < lReference.size(); i++)
+        assertEquals("plane " + p + " sample " + i,
+                     lReference.get(i),
+                     lCompiled.get(i),
+                     1e-5);
+    }
+    lCompiledStaves.setCompiledPlaneIndex(-1);
+  }
+
+  private static Movement[] newMovements(LightSheetStaves pStaves)
+  {
+    Movement[] lMovements = new Movement[]
+    { new Movement("BeforeExposure"),
+      new Movement("Exposure"),
+      new Movement("Final") };
+    pStaves.addStavesToMovements(lMovements[0],
+                                 lMovements[1],
+                                 lMovements[2]);
+    return lMovements;
+  }
+
+  private static void setPlane(BoundedVariable<Number>[] pVariables,
+                               double[][] pColumns,
+                               int pPlaneIndex)
+  {
+    for (int c = 0; c < pVariables.length; c++)
+      pVariables[c].set(pColumns[c][pPlaneIndex]);
+  }
+
+  private static List<Float> sample(Movement[] pMovements)
+  {
+    ArrayList<Float> lSampleList = new ArrayList<>();
+    for (Movement lMovement : pMovements)
+    {
+      lSampleList.add((float) lMovement.getDuration(TimeUnit.MICROSECONDS));
+      for (int s = 0; s < lMovement.getNumberOfStaves(); s++)
+      {
+        StaveInterface lStave = lMovement.getStave(s);
+        if (lStave == null)
+          continue;
+        for (float lPosition : cSamplePositions)
+          lSampleList.add(lStave.getValue(lPosition));
+      }
+    }
+    return lSampleList;
+  }
+
+}
@@ -24,6 +24,7 @@ import clearcontrol.microscope.lightsheet.calibrator.CalibrationEngine;
 import clearcontrol.microscope.lightsheet.component.detection.DetectionArm;
 import clearcontrol.microscope.lightsheet.component.lightsheet.LightSheet;
 import clearcontrol.microscope.lightsheet.component.opticalswitch.LightSheetOpticalSwitch;
+import clearcontrol.microscope.lightsheet.processor.compression.CompressedRawFileStackSink;
 import clearcontrol.microscope.lightsheet.signalgen.LightSheetSignalGeneratorDevice;
 import clearcontrol.microscope.lightsheet.state.ControlPlaneLayout;
 import clearcontrol.microscope.lightsheet.state.InterpolatedAcquisitionState;
@@ -326,6 +327,7 @@ public class SimulatedLightSheetMicroscope extends
       TimelapseInterface lTimelapse = addTimelapse();
 
       lTimelapse.addFileStackSinkType(RawFileStackSink.class);
+      lTimelapse.addFileStackSinkType(CompressedRawFileStackSink.class);
     }
 
   }
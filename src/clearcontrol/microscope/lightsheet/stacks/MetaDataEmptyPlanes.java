@@ -0,0 +1,122 @@
+package clearcontrol.microscope.lightsheet.stacks;
+
+import clearcontrol.stack.metadata.MetaDataEntryInterface;
+import clearcontrol.stack.metadata.StackMetaData;
+
+/**
+ * Empty planes stack meta data entry: indices of the planes containing only
+ * background, as a list of inclusive ranges (e.g. "0-3,60-63").
+ *
+ * @author royer
+ */
+@SuppressWarnings("javadoc")
+public enum MetaDataEmptyPlanes implements
+                                 MetaDataEntryInterface<String>
+{
+
+ EmptyPlanes(String.class);
+
+  private final Class<String> mClass;
+
+  private MetaDataEmptyPlanes(Class<String> pClass)
+  {
+    mClass = pClass;
+  }
+
+  @Override
+  public Class<String> getMetaDataClass()
+  {
+    return mClass;
+  }
+
+  /**
+   * Formats empty plane flags as a list of inclusive ranges
+   *
+   * @param pEmptyPlanes
+   *          for each plane, true if it contains only background
+   * @return ranges, empty string if no plane is empty
+   */
+  public static final String toRanges(boolean[] pEmptyPlanes)
+  {
+    StringBuilder lBuilder = new StringBuilder();
+    int z = 0;
+    while (z < pEmptyPlanes.length)
+    {
+      if (!pEmptyPlanes[z])
+      {
+        z++;
+        continue;
+      }
+      int lStart = z;
+      while (z < pEmptyPlanes.length && pEmptyPlanes[z])
+        z++;
+      if (lBuilder.length() > 0)
+        lBuilder.append(',');
+      lBuilder.append(lStart);
+      if (z - 1 > lStart)
+        lBuilder.append('-').append(z - 1);
+    }
+    return lBuilder.toString();
+  }
+
+  /**
+   * Parses a list of inclusive ranges into empty plane flags
+   *
+   * @param pRanges
+   *          ranges, as formatted by {@link #toRanges(boolean[])}
+   * @param pDepth
+   *          stack depth
+   * @return for each plane, true if it contains only background
+   * @throws IllegalArgumentException
+   *           if the ranges are malformed or out of the stack
+   */
+  public static final boolean[] fromRanges(String pRanges, int pDepth)
+  {
+    boolean[] lEmptyPlanes = new boolean[pDepth];
+    if (pRanges.trim().isEmpty())
+      return lEmptyPlanes;
+
+    try
+    {
+      for (String lRange : pRanges.split(","))
+      {
+        String[] lBounds = lRange.trim().split("-");
+        int lStart = Integer.parseInt(lBounds[0]);
+        int lEnd = lBounds.length > 1 ? Integer.parseInt(lBounds[1])
+                                      : lStart;
+        if (lBounds.length > 2 || lStart < 0
+            || lEnd < lStart
+            || lEnd >= pDepth)
+          throw new IllegalArgumentException("Invalid plane range: "
+                                             + lRange);
+        for (int z = lStart; z <= lEnd; z++)
+          lEmptyPlanes[z] = true;
+      }
+    }
+    catch (NumberFormatException e)
+    {
+      throw new IllegalArgumentException("Invalid plane ranges: "
+                                         + pRanges, e);
+    }
+    return lEmptyPlanes;
+  }
+
+  /**
+   * Returns the empty plane flags recorded in the given stack meta data
+   *
+   * @param pStackMetaData
+   *          stack meta data
+   * @param pDepth
+   *          stack depth
+   * @return for each plane, true if it contains only background, or null if
+   *         no empty planes are recorded
+   */
+  public static final boolean[] getEmptyPlanes(StackMetaData pStackMetaData,
+                                               int pDepth)
+  {
+    if (!pStackMetaData.hasEntry(EmptyPlanes))
+      return null;
+    return fromRanges(pStackMetaData.getValue(EmptyPlanes), pDepth);
+  }
+
+}
@@ -0,0 +1,54 @@
+package clearcontrol.microscope.lightsheet.stacks;
+
+import clearcontrol.stack.metadata.MetaDataEntryInterface;
+import clearcontrol.stack.metadata.StackMetaData;
+
+/**
+ * Sample bounding box stack meta data entries: inclusive voxel bounds of the
+ * non-empty part of a stack, number of planes containing only background, and
+ * background level. The indices of the empty planes are listed by
+ * {@link MetaDataEmptyPlanes}.
+ *
+ * @author royer
+ */
+@SuppressWarnings("javadoc")
+public enum MetaDataSampleBounds implements
+                                  MetaDataEntryInterface<Integer>
+{
+
+ SampleMinX(Integer.class),
+ SampleMaxX(Integer.class),
+ SampleMinY(Integer.class),
+ SampleMaxY(Integer.class),
+ SampleMinZ(Integer.class),
+ SampleMaxZ(Integer.class),
+ NumberOfEmptyPlanes(Integer.class),
+ BackgroundLevel(Integer.class);
+
+  private final Class<Integer> mClass;
+
+  private MetaDataSampleBounds(Class<Integer> pClass)
+  {
+    mClass = pClass;
+  }
+
+  @Override
+  public Class<Integer> getMetaDataClass()
+  {
+    return mClass;
+  }
+
+  /**
+   * Returns true if the given stack meta data holds a sample bounding box
+   *
+   * @param pStackMetaData
+   *          stack meta data
+   * @return true if bounds are available
+   */
+  public static final boolean hasSampleBounds(StackMetaData pStackMetaData)
+  {
+    return pStackMetaData.hasEntry(SampleMinZ)
+           && pStackMetaData.hasEntry(SampleMaxZ);
+  }
+
+}
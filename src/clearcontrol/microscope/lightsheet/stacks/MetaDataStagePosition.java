@@ -0,0 +1,56 @@
+package clearcontrol.microscope.lightsheet.stacks;
+
+import clearcontrol.stack.metadata.MetaDataEntryInterface;
+import clearcontrol.stack.metadata.StackMetaData;
+
+/**
+ * Stage position stack meta data entries
+ *
+ * @author royer
+ */
+@SuppressWarnings("javadoc")
+public enum MetaDataStagePosition implements
+                                   MetaDataEntryInterface<Double>
+{
+
+ StageX(Double.class), StageY(Double.class), StageZ(Double.class);
+
+  private final Class<Double> mClass;
+
+  private MetaDataStagePosition(Class<Double> pClass)
+  {
+    mClass = pClass;
+  }
+
+  @Override
+  public Class<Double> getMetaDataClass()
+  {
+    return mClass;
+  }
+
+  /**
+   * Returns a string identifying the stage position (rounded to the nearest
+   * stage unit) of a stack, or null if the stage position is not known.
+   * 
+   * @param pStackMetaData
+   *          stack meta data
+   * @return stage position key, e.g. X10Y-3Z250
+   */
+  public static final String getStagePositionKey(StackMetaData pStackMetaData)
+  {
+    Double lStageX = pStackMetaData.getValue(StageX);
+    Double lStageY = pStackMetaData.getValue(StageY);
+    Double lStageZ = pStackMetaData.getValue(StageZ);
+
+    if (lStageX == null || lStageY == null || lStageZ == null)
+      return null;
+
+    String lKey = String.format("X%dY%dZ%d",
+                                Math.round(lStageX),
+                                Math.round(lStageY),
+                                Math.round(lStageZ));
+
+    return lKey;
+  }
+
+}
@@ -12,7 +12,9 @@ import clearcontrol.stack.metadata.StackMetaData;
 public enum MetaDataView implements MetaDataEntryInterface<Integer>
 {
 
- Camera(Integer.class), LightSheet(Integer.class);
+ Camera(Integer.class),
+ LightSheet(Integer.class),
+ LaserLine(Integer.class);
 
   private final Class<Integer> mClass;
 
@@ -43,4 +45,52 @@ public enum MetaDataView implements MetaDataEntryInterface<Integer>
     return lKey;
   }
 
+  /**
+   * Returns the prefix qualifying image keys with the laser line of a stack,
+   * e.g. 'ch1-', or an empty string for stacks without laser line entry
+   *
+   * @param pStackMetaData
+   *          stack meta data
+   * @return channel key prefix
+   */
+  public static final String getChannelKeyPrefix(StackMetaData pStackMetaData)
+  {
+    Integer lLaserLineIndex =
+                            pStackMetaData.getValue(MetaDataView.LaserLine);
+
+    if (lLaserLineIndex == null)
+      return "";
+
+    return getChannelKeyPrefix(lLaserLineIndex);
+  }
+
+  /**
+   * Returns the channel key prefix of a given laser line, e.g. 'ch1-'
+   *
+   * @param pLaserLineIndex
+   *          laser line index
+   * @return channel key prefix
+   */
+  public static final String getChannelKeyPrefix(int pLaserLineIndex)
+  {
+    return String.format("ch%d-", pLaserLineIndex);
+  }
+
+  /**
+   * Returns the view key of a stack: the CxLy string qualified with the channel
+   * key prefix, e.g. 'ch1-C0L1'
+   *
+   * @param pStackMetaData
+   *          stack meta data
+   * @return view key, or null if camera or lightsheet are missing
+   */
+  public static final String getViewKey(StackMetaData pStackMetaData)
+  {
+    String lCxLyString = getCxLyString(pStackMetaData);
+    if (lCxLyString == null)
+      return null;
+
+    return getChannelKeyPrefix(pStackMetaData) + lCxLyString;
+  }
+
 }
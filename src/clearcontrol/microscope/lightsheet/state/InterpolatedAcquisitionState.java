@@ -2,7 +2,11 @@ package clearcontrol.microscope.lightsheet.state;
 
 import static java.lang.Math.round;
 
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
 
 import clearcontrol.core.log.LoggingFeature;
 import clearcontrol.core.variable.Variable;
@@ -14,6 +18,7 @@ import clearcontrol.microscope.lightsheet.LightSheetMicroscopeInterface;
 import clearcontrol.microscope.lightsheet.LightSheetMicroscopeQueue;
 import clearcontrol.microscope.lightsheet.component.detection.DetectionArmInterface;
 import clearcontrol.microscope.lightsheet.state.tables.InterpolationTables;
+import clearcontrol.microscope.lightsheet.state.tables.InterpolationTablesChange;
 import clearcontrol.microscope.state.AcquisitionStateBase;
 
 /**
@@ -52,6 +57,21 @@ public class InterpolatedAcquisitionState extends
   private final InterpolationTables mInterpolationTables;
 
   private volatile boolean mQueueUpdateNeeded = true;
+  private final AtomicLong mVersion = new AtomicLong();
+
+  // values of all DOFs at all stack planes, indexed [dof][device][plane],
+  // rebuilt lazily when the tables or the Z range/step change. When only the
+  // values of some DOFs change, the previous lattice is kept as 'stale' and
+  // only its dirty rows (dof, device) are recomputed. Only the lattice is
+  // updated incrementally, queues are still re-emitted in full from it:
+  private volatile double[][][] mLattice;
+  private double[][][] mStaleLattice;
+  private final Set<Integer> mDirtyLatticeRows = new HashSet<>();
+  private final Object mLatticeLock = new Object();
+  // serializes lattice builds and other spline evaluations, queues for
+  // several views can be built concurrently from the same state:
+  private final Object mLatticeBuildLock = new Object();
+  private final AtomicLong mLatticeVersion = new AtomicLong();
 
   /**
    * Instantiates an interpolated acquisition state
@@ -75,6 +95,7 @@ public class InterpolatedAcquisitionState extends
     @SuppressWarnings("rawtypes")
     final VariableSetListener lChangeListener = (o, n) -> {
       // info("State changed!");
+      mVersion.incrementAndGet();
       mQueueUpdateNeeded = true;
       notifyListeners(this);
     };
@@ -133,6 +154,8 @@ public class InterpolatedAcquisitionState extends
 
       mInterpolationTables.addChangeListener((e) -> {
         // info("Interpolation table changed!");
+        invalidateLattice(mInterpolationTables.getLastChange());
+        mVersion.incrementAndGet();
         mQueueUpdateNeeded = true;
         notifyListeners(this);
       });
@@ -197,6 +220,13 @@ public class InterpolatedAcquisitionState extends
           setZStepBasedOnNumberOfPlanes(n);
       });
 
+      VariableSetListener<Number> lLatticeListener =
+                                                   (o, n) -> invalidateLattice();
+      mZLowVariable.addSetListener(lLatticeListener);
+      mZHighVariable.addSetListener(lLatticeListener);
+      mZStepVariable.addSetListener(lLatticeListener);
+      mNumberOfZPlanesVariable.addSetListener(lLatticeListener);
+
       mZLowVariable.addSetListener(lChangeListener);
       mZHighVariable.addSetListener(lChangeListener);
       mZStepVariable.addSetListener(lChangeListener);
@@ -428,13 +458,21 @@ public class InterpolatedAcquisitionState extends
                                   .getMax();
     }
 
-    for (int zpi =
-                 0; zpi < getInterpolationTables().getNumberOfControlPlanes(); zpi++)
+    getInterpolationTables().beginBatch();
+    try
     {
-      getInterpolationTables().set(LightSheetDOF.IH,
-                                   zpi,
-                                   lMaxHeight.doubleValue());
-      getInterpolationTables().set(LightSheetDOF.IP, zpi, 1);
+      for (int zpi =
+                   0; zpi < getInterpolationTables().getNumberOfControlPlanes(); zpi++)
+      {
+        getInterpolationTables().set(LightSheetDOF.IH,
+                                     zpi,
+                                     lMaxHeight.doubleValue());
+        getInterpolationTables().set(LightSheetDOF.IP, zpi, 1);
+      }
+    }
+    finally
+    {
+      getInterpolationTables().commitBatch();
     }
   }
 
@@ -463,23 +501,31 @@ public class InterpolatedAcquisitionState extends
 
     int lNumberOfControlPlanes = getNumberOfControlPlanes();
 
-    for (int cpi = 0; cpi < lNumberOfControlPlanes; cpi++)
+    mInterpolationTables.beginBatch();
+    try
     {
-      for (int l = 0; l < mNumberOfLightSheets; l++)
+      for (int cpi = 0; cpi < lNumberOfControlPlanes; cpi++)
       {
-        double lHeight = getMicroscope().getLightSheet(l)
-                                        .getHeightVariable()
-                                        .get()
-                                        .doubleValue();
-        double lPower = getMicroscope().getLightSheet(l)
-                                       .getPowerVariable()
-                                       .get()
-                                       .doubleValue();
-
-        mInterpolationTables.set(LightSheetDOF.IH, cpi, l, lHeight);
-        mInterpolationTables.set(LightSheetDOF.IP, cpi, l, lPower);
+        for (int l = 0; l < mNumberOfLightSheets; l++)
+        {
+          double lHeight = getMicroscope().getLightSheet(l)
+                                          .getHeightVariable()
+                                          .get()
+                                          .doubleValue();
+          double lPower = getMicroscope().getLightSheet(l)
+                                         .getPowerVariable()
+                                         .get()
+                                         .doubleValue();
+
+          mInterpolationTables.set(LightSheetDOF.IH, cpi, l, lHeight);
+          mInterpolationTables.set(LightSheetDOF.IP, cpi, l, lPower);
+        }
       }
     }
+    finally
+    {
+      mInterpolationTables.commitBatch();
+    }
   }
 
   @Override
@@ -548,18 +594,26 @@ public class InterpolatedAcquisitionState extends
 
     lQueue.clearQueue();
 
-    for (int lIndex = 0; lIndex < lStackDepthInPlanes; lIndex++)
-    {
-      applyAcquisitionStateAtStackPlane(lQueue,
-                                        lIndex,
-                                        pCameraIndexMin,
-                                        pCameraIndexMax,
-                                        pLightSheetIndexMin,
-                                        pLightSheetIndexMax,
-                                        pLaserLineIndexMin,
-                                        pLaserLineIndexMax);
-      lQueue.addCurrentStateToQueue();
-    }
+    // settings that do not change from plane to plane are applied once, the
+    // DOF values of all planes are then appended from the lattice. Device
+    // queues are append-only and cannot be patched: after a table edit every
+    // plane is re-emitted, only the spline evaluation of unchanged lattice
+    // rows is saved:
+    applyAcquisitionStateAtStackPlane(lQueue,
+                                      0,
+                                      pCameraIndexMin,
+                                      pCameraIndexMax,
+                                      pLightSheetIndexMin,
+                                      pLightSheetIndexMax,
+                                      pLaserLineIndexMin,
+                                      pLaserLineIndexMax);
+    lQueue.addPlanes(getLattice(),
+                     0,
+                     (int) lStackDepthInPlanes,
+                     pCameraIndexMin,
+                     pCameraIndexMax,
+                     pLightSheetIndexMin,
+                     pLightSheetIndexMax);
 
     lQueue.setTransitionTime(0.5);
     lQueue.setFinalisationTime(0.005);
@@ -568,6 +622,12 @@ public class InterpolatedAcquisitionState extends
     return lQueue;
   }
 
+  @Override
+  public long getVersion()
+  {
+    return mVersion.get();
+  }
+
   @Override
   public LightSheetMicroscopeQueue getQueue()
   {
@@ -886,6 +946,22 @@ public class InterpolatedAcquisitionState extends
   public double get(LightSheetDOF pDOF,
                     int pPlaneIndex,
                     int pDeviceIndex)
+  {
+    double[] lPlaneValues =
+                          getLattice()[pDOF.ordinal()][pDeviceIndex];
+    if (pPlaneIndex >= 0 && pPlaneIndex < lPlaneValues.length)
+      return lPlaneValues[pPlaneIndex];
+
+    // outside of the stack, e.g. margins or arbitrary Z positions:
+    synchronized (mLatticeBuildLock)
+    {
+      return interpolate(pDOF, pPlaneIndex, pDeviceIndex);
+    }
+  }
+
+  private double interpolate(LightSheetDOF pDOF,
+                             int pPlaneIndex,
+                             int pDeviceIndex)
   {
     final double lRamp = getZRamp(pPlaneIndex);
     final double lInterpolatedValue =
@@ -901,6 +977,146 @@ public class InterpolatedAcquisitionState extends
       return lInterpolatedValue;
   }
 
+  /**
+   * Returns the lattice of DOF values at all stack planes, indexed
+   * [dof][device][plane]. The lattice is rebuilt, in parallel over DOFs, when
+   * the Z range/step or the control planes changed since it was last built.
+   * When only values of some DOFs changed, only the rows of these DOFs and
+   * devices are recomputed, the other rows are shared with the previous
+   * lattice. This method is thread safe, concurrent callers wait for a
+   * single build.
+   * 
+   * @return DOF value lattice, must not be modified
+   */
+  public double[][][] getLattice()
+  {
+    double[][][] lLattice = mLattice;
+    if (lLattice != null)
+      return lLattice;
+
+    synchronized (mLatticeBuildLock)
+    {
+      lLattice = mLattice;
+      if (lLattice != null)
+        return lLattice;
+      return buildLattice();
+    }
+  }
+
+  private double[][][] buildLattice()
+  {
+    long lVersion;
+    double[][][] lStaleLattice;
+    Set<Integer> lDirtyRows;
+    synchronized (mLatticeLock)
+    {
+      lVersion = mLatticeVersion.get();
+      lStaleLattice = mStaleLattice;
+      lDirtyRows = new HashSet<>(mDirtyLatticeRows);
+    }
+
+    int lNumberOfPlanes = getNumberOfZPlanesVariable().get().intValue();
+    LightSheetDOF[] lDOFs = LightSheetDOF.values();
+
+    double[][][] lNewLattice = lStaleLattice == null
+                                                     ? new double[lDOFs.length][][]
+                                                     : lStaleLattice.clone();
+    // each DOF has its own spline table, spline tables can be shared with
+    // other states and are evaluated under their own lock:
+    IntStream.range(0, lDOFs.length).parallel().forEach((dof) -> {
+      LightSheetDOF lDOF = lDOFs[dof];
+      int lNumberOfDevices =
+                           mInterpolationTables.getNumberOfDevices(lDOF);
+      if (lStaleLattice == null)
+        lNewLattice[dof] = new double[lNumberOfDevices][];
+      else
+        lNewLattice[dof] = lStaleLattice[dof].clone();
+
+      for (int d = 0; d < lNumberOfDevices; d++)
+      {
+        if (lStaleLattice != null
+            && !lDirtyRows.contains(getLatticeRowKey(dof, d)))
+          continue;
+
+        double[] lRow = new double[lNumberOfPlanes];
+        for (int p = 0; p < lNumberOfPlanes; p++)
+          lRow[p] = interpolate(lDOF, p, d);
+        lNewLattice[dof][d] = lRow;
+      }
+    });
+
+    // a lattice built while the tables changed is used once but not kept:
+    synchronized (mLatticeLock)
+    {
+      if (mLatticeVersion.get() == lVersion)
+      {
+        mLattice = lNewLattice;
+        mStaleLattice = null;
+        mDirtyLatticeRows.clear();
+      }
+    }
+    return lNewLattice;
+  }
+
+  /**
+   * Invalidates the DOF value lattice, it is rebuilt on next use
+   */
+  public void invalidateLattice()
+  {
+    synchronized (mLatticeLock)
+    {
+      mLatticeVersion.incrementAndGet();
+      mLattice = null;
+      mStaleLattice = null;
+      mDirtyLatticeRows.clear();
+    }
+  }
+
+  /**
+   * Invalidates the part of the DOF value lattice affected by a given change
+   * of the interpolation tables. Changes of values of some DOFs only mark the
+   * rows of these DOFs (and devices) as dirty, all other changes invalidate
+   * the whole lattice.
+   * 
+   * @param pChange
+   *          interpolation tables change
+   */
+  public void invalidateLattice(InterpolationTablesChange pChange)
+  {
+    if (pChange.isAll())
+    {
+      invalidateLattice();
+      return;
+    }
+
+    synchronized (mLatticeLock)
+    {
+      mLatticeVersion.incrementAndGet();
+      if (mLattice != null)
+      {
+        mStaleLattice = mLattice;
+        mLattice = null;
+      }
+      // nothing to patch, the whole lattice is rebuilt anyway:
+      if (mStaleLattice == null)
+        return;
+
+      for (LightSheetDOF lLightSheetDOF : pChange.getLightSheetDOFs())
+      {
+        int lDOF = lLightSheetDOF.ordinal();
+        int lNumberOfDevices = mStaleLattice[lDOF].length;
+        for (int d = 0; d < lNumberOfDevices; d++)
+          if (pChange.affects(lLightSheetDOF, d))
+            mDirtyLatticeRows.add(getLatticeRowKey(lDOF, d));
+      }
+    }
+  }
+
+  private static int getLatticeRowKey(int pDOF, int pDeviceIndex)
+  {
+    return (pDOF << 16) | pDeviceIndex;
+  }
+
   /**
    * Returns the number of detection arms
    * 
@@ -44,6 +44,15 @@ public interface LightSheetAcquisitionStateInterface<S extends LightSheetAcquisi
                                      int pLaserLineIndexMin,
                                      int pLaserLineIndexMax);
 
+  /**
+   * Returns the version of this state. The version changes each time a
+   * setting that affects the queues returned by this state changes, two
+   * queues obtained for the same version and the same ranges are identical.
+   * 
+   * @return state version
+   */
+  long getVersion();
+
   /**
    * Returns current interpolation tables
    * 
@@ -1,6 +1,8 @@
 package clearcontrol.microscope.lightsheet.state.tables;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 import clearcontrol.core.device.change.ChangeListeningBase;
 import clearcontrol.core.math.interpolation.Row;
@@ -8,7 +10,11 @@ import clearcontrol.core.math.interpolation.SplineInterpolationTable;
 import clearcontrol.microscope.lightsheet.LightSheetDOF;
 
 /**
- * Interpolation tables
+ * Interpolation tables. Tables are copy-on-write: copies share the underlying
+ * spline tables until one of them is modified, and each modification gives
+ * the tables a new version, unique across all instances. Two instances with
+ * the same version have the same content. Since spline tables can be shared,
+ * they are evaluated and modified under their own lock.
  *
  * @author royer
  */
@@ -20,6 +26,19 @@ public class InterpolationTables extends
   private int mNumberOfDetectionArmDevices;
   private ArrayList<SplineInterpolationTable> mInterpolationTableList =
                                                                       new ArrayList<SplineInterpolationTable>();
+  // for each spline table, whether it is owned by this instance or possibly
+  // shared with copies, shared tables are copied before being modified:
+  private boolean[] mOwned;
+  private volatile InterpolationTablesChange mLastChange =
+                                                         InterpolationTablesChange.all();
+
+  // batches can be nested, changes are merged until the outermost batch is
+  // committed:
+  private int mBatchDepth;
+  private InterpolationTablesChange mBatchChange;
+
+  private static final AtomicLong cVersionCounter = new AtomicLong();
+  private volatile long mVersion = cVersionCounter.incrementAndGet();
 
   /**
    * Instanciates an interpolation table given a number of detection arms and
@@ -69,6 +88,9 @@ public class InterpolationTables extends
     mInterpolationTableList.add(lInterpolationTableIW);
     mInterpolationTableList.add(lInterpolationTableIH);
     mInterpolationTableList.add(lInterpolationTableIP);
+
+    mOwned = new boolean[mInterpolationTableList.size()];
+    Arrays.fill(mOwned, true);
   }
 
   /**
@@ -91,24 +113,38 @@ public class InterpolationTables extends
 
   /**
    * Sets this interpolation table to be identical to the given interpolation
-   * table. (Uses a deep copy of each interpolation table)
+   * table. Spline tables are shared between both instances and copied on
+   * write, this instance takes the version of the given table.
    * 
    * @param pInterpolationTable
    *          existing interpolation table
    */
   public void set(InterpolationTables pInterpolationTable)
   {
-    mNumberOfDetectionArmDevices =
-                                 pInterpolationTable.mNumberOfDetectionArmDevices;
-    mNumberOfLightSheetDevices =
-                               pInterpolationTable.mNumberOfLightSheetDevices;
+    if (pInterpolationTable == this)
+      return;
 
-    mInterpolationTableList = new ArrayList<>();
+    ArrayList<SplineInterpolationTable> lInterpolationTableList;
+    long lVersion;
+    synchronized (pInterpolationTable)
+    {
+      lInterpolationTableList =
+                              new ArrayList<>(pInterpolationTable.mInterpolationTableList);
+      Arrays.fill(pInterpolationTable.mOwned, false);
+      lVersion = pInterpolationTable.mVersion;
+    }
 
-    for (SplineInterpolationTable lSplineInterpolationTable : pInterpolationTable.mInterpolationTableList)
+    synchronized (this)
     {
-      mInterpolationTableList.add(lSplineInterpolationTable.clone());
+      mNumberOfDetectionArmDevices =
+                                   pInterpolationTable.mNumberOfDetectionArmDevices;
+      mNumberOfLightSheetDevices =
+                                 pInterpolationTable.mNumberOfLightSheetDevices;
+      mInterpolationTableList = lInterpolationTableList;
+      mOwned = new boolean[lInterpolationTableList.size()];
+      mVersion = lVersion;
     }
+    notifyChange(InterpolationTablesChange.all());
   }
 
   /**
@@ -119,9 +155,16 @@ public class InterpolationTables extends
    */
   public void addControlPlane(double pZ)
   {
-    for (SplineInterpolationTable lSplineInterpolationTable : mInterpolationTableList)
-      lSplineInterpolationTable.addRow(pZ);
-    notifyListeners(this);
+    synchronized (this)
+    {
+      for (SplineInterpolationTable lSplineInterpolationTable : getTablesForWriting())
+        synchronized (lSplineInterpolationTable)
+        {
+          lSplineInterpolationTable.addRow(pZ);
+        }
+      newVersion();
+    }
+    notifyChange(InterpolationTablesChange.all());
   }
 
   /**
@@ -136,29 +179,55 @@ public class InterpolationTables extends
   public void addControlPlane(InterpolationTables pInterpolationTables,
                               double pZ)
   {
-    int lNumberOfTables = mInterpolationTableList.size();
-
-    for (int j = 0; j < lNumberOfTables; j++)
+    // values are sampled first, so that both instances are never locked at
+    // the same time:
+    double[][] lValues;
+    synchronized (pInterpolationTables)
     {
-      SplineInterpolationTable lSplineInterpolationTable =
-                                                         mInterpolationTableList.get(j);
-      SplineInterpolationTable lOtherSplineInterpolationTable =
-                                                              pInterpolationTables.mInterpolationTableList.get(j);
-
-      Row lRow = lSplineInterpolationTable.addRow(pZ);
+      int lNumberOfTables =
+                          pInterpolationTables.mInterpolationTableList.size();
+      lValues = new double[lNumberOfTables][];
+      for (int j = 0; j < lNumberOfTables; j++)
+      {
+        SplineInterpolationTable lOtherSplineInterpolationTable =
+                                                                pInterpolationTables.mInterpolationTableList.get(j);
+        synchronized (lOtherSplineInterpolationTable)
+        {
+          int lNumberOfColumns =
+                               lOtherSplineInterpolationTable.getNumberOfColumns();
+          lValues[j] = new double[lNumberOfColumns];
+          for (int c = 0; c < lNumberOfColumns; c++)
+            lValues[j][c] =
+                          lOtherSplineInterpolationTable.getInterpolatedValue(c,
+                                                                              pZ);
+        }
+      }
+    }
 
-      int lNumberOfColumns = lRow.getNumberOfColumns();
+    synchronized (this)
+    {
+      ArrayList<SplineInterpolationTable> lInterpolationTableList =
+                                                                  getTablesForWriting();
+      int lNumberOfTables = lInterpolationTableList.size();
 
-      for (int c = 0; c < lNumberOfColumns; c++)
+      for (int j = 0; j < lNumberOfTables; j++)
       {
-        double lValue =
-                      lOtherSplineInterpolationTable.getInterpolatedValue(c,
-                                                                          pZ);
-        lRow.setY(c, lValue);
+        SplineInterpolationTable lSplineInterpolationTable =
+                                                           lInterpolationTableList.get(j);
+        synchronized (lSplineInterpolationTable)
+        {
+          Row lRow = lSplineInterpolationTable.addRow(pZ);
+
+          int lNumberOfColumns = Math.min(lRow.getNumberOfColumns(),
+                                          lValues[j].length);
+
+          for (int c = 0; c < lNumberOfColumns; c++)
+            lRow.setY(c, lValues[j][c]);
+        }
       }
-
+      newVersion();
     }
-    notifyListeners(this);
+    notifyChange(InterpolationTablesChange.all());
 
   }
 
@@ -170,9 +239,16 @@ public class InterpolationTables extends
    */
   public void addControlPlaneAfter(double pZ)
   {
-    for (SplineInterpolationTable lSplineInterpolationTable : mInterpolationTableList)
-      lSplineInterpolationTable.addRowAfter(pZ);
-    notifyListeners(this);
+    synchronized (this)
+    {
+      for (SplineInterpolationTable lSplineInterpolationTable : getTablesForWriting())
+        synchronized (lSplineInterpolationTable)
+        {
+          lSplineInterpolationTable.addRowAfter(pZ);
+        }
+      newVersion();
+    }
+    notifyChange(InterpolationTablesChange.all());
   }
 
   /**
@@ -183,9 +259,16 @@ public class InterpolationTables extends
    */
   public void removeControlPlane(double pZ)
   {
-    for (SplineInterpolationTable lSplineInterpolationTable : mInterpolationTableList)
-      lSplineInterpolationTable.removeRow(pZ);
-    notifyListeners(this);
+    synchronized (this)
+    {
+      for (SplineInterpolationTable lSplineInterpolationTable : getTablesForWriting())
+        synchronized (lSplineInterpolationTable)
+        {
+          lSplineInterpolationTable.removeRow(pZ);
+        }
+      newVersion();
+    }
+    notifyChange(InterpolationTablesChange.all());
   }
 
   /**
@@ -198,9 +281,16 @@ public class InterpolationTables extends
    */
   public void changeControlPlane(int pControlPlaneIndex, double pNewZ)
   {
-    for (SplineInterpolationTable lSplineInterpolationTable : mInterpolationTableList)
-      lSplineInterpolationTable.moveRow(pControlPlaneIndex, pNewZ);
-    notifyListeners(this);
+    synchronized (this)
+    {
+      for (SplineInterpolationTable lSplineInterpolationTable : getTablesForWriting())
+        synchronized (lSplineInterpolationTable)
+        {
+          lSplineInterpolationTable.moveRow(pControlPlaneIndex, pNewZ);
+        }
+      newVersion();
+    }
+    notifyChange(InterpolationTablesChange.all());
   }
 
   /**
@@ -208,10 +298,27 @@ public class InterpolationTables extends
    */
   public void removeAllControlPlanes()
   {
-    for (SplineInterpolationTable lSplineInterpolationTable : mInterpolationTableList)
-      lSplineInterpolationTable.clear();
+    synchronized (this)
+    {
+      // shared tables are replaced by empty ones rather than copied:
+      for (int i = 0; i < mInterpolationTableList.size(); i++)
+        if (mOwned[i])
+          synchronized (mInterpolationTableList.get(i))
+          {
+            mInterpolationTableList.get(i).clear();
+          }
+        else
+        {
+          int lNumberOfColumns = mInterpolationTableList.get(i)
+                                                        .getNumberOfColumns();
+          mInterpolationTableList.set(i,
+                                      new SplineInterpolationTable(lNumberOfColumns));
+          mOwned[i] = true;
+        }
+      newVersion();
+    }
 
-    notifyListeners(this);
+    notifyChange(InterpolationTablesChange.all());
   }
 
   /**
@@ -287,8 +394,13 @@ public class InterpolationTables extends
                                 int pDeviceIndex,
                                 double pZ)
   {
-    return getTable(pLightSheetDOF).getInterpolatedValue(pDeviceIndex,
-                                                         pZ);
+    // spline tables can be shared with copies of these tables, and are only
+    // evaluated under their own lock:
+    SplineInterpolationTable lTable = getTable(pLightSheetDOF);
+    synchronized (lTable)
+    {
+      return lTable.getInterpolatedValue(pDeviceIndex, pZ);
+    }
   }
 
   /**
@@ -307,8 +419,11 @@ public class InterpolationTables extends
                     int pControlPlaneIndex,
                     int pDeviceIndex)
   {
-    return getTable(pLightSheetDOF).getY(pControlPlaneIndex,
-                                         pDeviceIndex);
+    SplineInterpolationTable lTable = getTable(pLightSheetDOF);
+    synchronized (lTable)
+    {
+      return lTable.getY(pControlPlaneIndex, pDeviceIndex);
+    }
   }
 
   /**
@@ -328,10 +443,17 @@ public class InterpolationTables extends
                   int pDeviceIndex,
                   double pValue)
   {
-    getTable(pLightSheetDOF).setY(pControlPlaneIndex,
-                                  pDeviceIndex,
-                                  pValue);
-    notifyListeners(this);
+    synchronized (this)
+    {
+      SplineInterpolationTable lTable = getTableForWriting(pLightSheetDOF);
+      synchronized (lTable)
+      {
+        lTable.setY(pControlPlaneIndex, pDeviceIndex, pValue);
+      }
+      newVersion();
+    }
+    notifyChange(InterpolationTablesChange.of(pLightSheetDOF,
+                                              pDeviceIndex));
   }
 
   /**
@@ -351,10 +473,17 @@ public class InterpolationTables extends
                   int pDeviceIndex,
                   double pDeltaValue)
   {
-    getTable(pLightSheetDOF).addY(pControlPlaneIndex,
-                                  pDeviceIndex,
-                                  pDeltaValue);
-    notifyListeners(this);
+    synchronized (this)
+    {
+      SplineInterpolationTable lTable = getTableForWriting(pLightSheetDOF);
+      synchronized (lTable)
+      {
+        lTable.addY(pControlPlaneIndex, pDeviceIndex, pDeltaValue);
+      }
+      newVersion();
+    }
+    notifyChange(InterpolationTablesChange.of(pLightSheetDOF,
+                                              pDeviceIndex));
   }
 
   /**
@@ -371,8 +500,16 @@ public class InterpolationTables extends
                   int pControlPlaneIndex,
                   double pValue)
   {
-    getTable(pLightSheetDOF).setY(pControlPlaneIndex, pValue);
-    notifyListeners(this);
+    synchronized (this)
+    {
+      SplineInterpolationTable lTable = getTableForWriting(pLightSheetDOF);
+      synchronized (lTable)
+      {
+        lTable.setY(pControlPlaneIndex, pValue);
+      }
+      newVersion();
+    }
+    notifyChange(InterpolationTablesChange.of(pLightSheetDOF, -1));
   }
 
   /**
@@ -385,7 +522,100 @@ public class InterpolationTables extends
    */
   public void set(LightSheetDOF pLightSheetDOF, double pValue)
   {
-    getTable(pLightSheetDOF).setY(pValue);
+    synchronized (this)
+    {
+      SplineInterpolationTable lTable = getTableForWriting(pLightSheetDOF);
+      synchronized (lTable)
+      {
+        lTable.setY(pValue);
+      }
+      newVersion();
+    }
+    notifyChange(InterpolationTablesChange.of(pLightSheetDOF, -1));
+  }
+
+  /**
+   * Begins a batch of changes: listeners are not notified of changes made
+   * until the batch is committed, and are then notified once with a change
+   * covering all touched DOFs, devices and control planes. Batches can be
+   * nested, every call must be matched by a call to {@link #commitBatch()}.
+   */
+  public synchronized void beginBatch()
+  {
+    mBatchDepth++;
+  }
+
+  /**
+   * Commits a batch of changes started with {@link #beginBatch()}, listeners
+   * are notified once if anything changed during the outermost batch.
+   */
+  public void commitBatch()
+  {
+    InterpolationTablesChange lChange;
+    synchronized (this)
+    {
+      if (mBatchDepth == 0)
+        throw new IllegalStateException("No batch to commit");
+      if (--mBatchDepth > 0)
+        return;
+      lChange = mBatchChange;
+      mBatchChange = null;
+    }
+
+    if (lChange != null)
+    {
+      mLastChange = lChange;
+      notifyListeners(this);
+    }
+  }
+
+  /**
+   * Returns the extent of the last change notified to listeners. Listeners
+   * are notified synchronously, so this can be queried from within a listener
+   * to only update what depends on the changed DOF and devices.
+   * 
+   * @return last change
+   */
+  public InterpolationTablesChange getLastChange()
+  {
+    return mLastChange;
+  }
+
+  /**
+   * Returns the version of these tables. The version changes with every
+   * modification and is unique across instances: tables with the same version
+   * have the same content, so consumers can compare versions instead of
+   * listening to every change.
+   * 
+   * @return version
+   */
+  public long getVersion()
+  {
+    return mVersion;
+  }
+
+  /**
+   * Gives these tables a new version, must be called while holding the lock,
+   * in the same synchronized block as the modification itself so that copies
+   * never share a table that is being modified.
+   */
+  private void newVersion()
+  {
+    mVersion = cVersionCounter.incrementAndGet();
+  }
+
+  private void notifyChange(InterpolationTablesChange pChange)
+  {
+    synchronized (this)
+    {
+      if (mBatchDepth > 0)
+      {
+        mBatchChange = mBatchChange == null ? pChange
+                                            : mBatchChange.merge(pChange);
+        return;
+      }
+    }
+    mLastChange = pChange;
     notifyListeners(this);
   }
 
@@ -394,4 +624,25 @@ public class InterpolationTables extends
     return mInterpolationTableList.get(pLightSheetDOF.ordinal());
   }
 
+  // callers must hold the lock until they are done modifying the table:
+  private synchronized SplineInterpolationTable getTableForWriting(LightSheetDOF pLightSheetDOF)
+  {
+    int lIndex = pLightSheetDOF.ordinal();
+    if (!mOwned[lIndex])
+    {
+      mInterpolationTableList.set(lIndex,
+                                  mInterpolationTableList.get(lIndex)
+                                                         .clone());
+      mOwned[lIndex] = true;
+    }
+    return mInterpolationTableList.get(lIndex);
+  }
+
+  private synchronized ArrayList<SplineInterpolationTable> getTablesForWriting()
+  {
+    for (LightSheetDOF lLightSheetDOF : LightSheetDOF.values())
+      getTableForWriting(lLightSheetDOF);
+    return mInterpolationTableList;
+  }
+
 }
@@ -0,0 +1,145 @@
+package clearcontrol.microscope.lightsheet.state.tables;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import clearcontrol.microscope.lightsheet.LightSheetDOF;
+
+/**
+ * Describes the extent of a change of interpolation tables: a set of touched
+ * [DOF, device] rows, or everything (e.g. when control planes are added, moved
+ * or removed). Changed control planes are not tracked, the spline tables do
+ * not have local support so a control plane change affects the whole row.
+ * Changes made within a batch are merged into a single change.
+ *
+ * @author royer
+ */
+public class InterpolationTablesChange
+{
+  private static final InterpolationTablesChange cAll =
+                                                      new InterpolationTablesChange(true,
+                                                                                    Collections.emptyList());
+
+  private final boolean mAll;
+
+  // touched entries, each entry is {dof ordinal, device index}, with -1
+  // standing for all devices:
+  private final List<int[]> mEntryList;
+
+  private InterpolationTablesChange(boolean pAll,
+                                    List<int[]> pEntryList)
+  {
+    mAll = pAll;
+    mEntryList = pEntryList;
+  }
+
+  /**
+   * Returns a change affecting all DOFs, devices and control planes
+   *
+   * @return change affecting everything
+   */
+  public static InterpolationTablesChange all()
+  {
+    return cAll;
+  }
+
+  /**
+   * Returns a change of values of a given DOF
+   *
+   * @param pLightSheetDOF
+   *          DOF
+   * @param pDeviceIndex
+   *          device index, -1 for all devices
+   * @return change
+   */
+  public static InterpolationTablesChange of(LightSheetDOF pLightSheetDOF,
+                                             int pDeviceIndex)
+  {
+    return new InterpolationTablesChange(false,
+                                         Collections.singletonList(new int[]
+                                         { pLightSheetDOF.ordinal(),
+                                           pDeviceIndex }));
+  }
+
+  /**
+   * Returns a change that covers both this change and a given change
+   *
+   * @param pChange
+   *          other change
+   * @return merged change
+   */
+  public InterpolationTablesChange merge(InterpolationTablesChange pChange)
+  {
+    if (isAll() || pChange.isAll())
+      return cAll;
+
+    List<int[]> lEntryList =
+                           new ArrayList<>(mEntryList.size()
+                                           + pChange.mEntryList.size());
+    lEntryList.addAll(mEntryList);
+    lEntryList.addAll(pChange.mEntryList);
+    return new InterpolationTablesChange(false, lEntryList);
+  }
+
+  /**
+   * Returns true if this change affects all DOFs (control planes added, moved
+   * or removed, or tables replaced)
+   *
+   * @return true if everything changed
+   */
+  public boolean isAll()
+  {
+    return mAll;
+  }
+
+  /**
+   * Returns the set of changed DOFs
+   *
+   * @return changed DOFs
+   */
+  public EnumSet<LightSheetDOF> getLightSheetDOFs()
+  {
+    if (isAll())
+      return EnumSet.allOf(LightSheetDOF.class);
+
+    EnumSet<LightSheetDOF> lLightSheetDOFs =
+                                           EnumSet.noneOf(LightSheetDOF.class);
+    for (int[] lEntry : mEntryList)
+      lLightSheetDOFs.add(LightSheetDOF.values()[lEntry[0]]);
+    return lLightSheetDOFs;
+  }
+
+  /**
+   * Returns true if this change affects the values of a given DOF for a given
+   * device
+   *
+   * @param pLightSheetDOF
+   *          DOF
+   * @param pDeviceIndex
+   *          device index
+   * @return true if affected
+   */
+  public boolean affects(LightSheetDOF pLightSheetDOF, int pDeviceIndex)
+  {
+    if (isAll())
+      return true;
+
+    for (int[] lEntry : mEntryList)
+      if (lEntry[0] == pLightSheetDOF.ordinal()
+          && (lEntry[1] < 0 || lEntry[1] == pDeviceIndex))
+        return true;
+    return false;
+  }
+
+  @Override
+  public String toString()
+  {
+    return isAll() ? "InterpolationTablesChange [all]"
+                   : String.format("InterpolationTablesChange [dofs=%s, entries=%d]",
+                                   getLightSheetDOFs(),
+                                   mEntryList.size());
+  }
+
+}
@@ -1,7 +1,11 @@
 package clearcontrol.microscope.lightsheet.timelapse;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -11,6 +15,7 @@ import clearcontrol.microscope.QueuePrinter;
 import clearcontrol.microscope.lightsheet.LightSheetMicroscope;
 import clearcontrol.microscope.lightsheet.LightSheetMicroscopeQueue;
 import clearcontrol.microscope.lightsheet.processor.MetaDataFusion;
+import clearcontrol.microscope.lightsheet.stacks.MetaDataStagePosition;
 import clearcontrol.microscope.lightsheet.stacks.MetaDataView;
 import clearcontrol.microscope.lightsheet.state.LightSheetAcquisitionStateInterface;
 import clearcontrol.microscope.stacks.metadata.MetaDataAcquisitionType;
@@ -36,6 +41,25 @@ public class LightSheetTimelapse extends TimelapseBase implements
   private static final int cMinimumNumberOfAvailableStacks = 16;
   private static final int cMaximumNumberOfAvailableStacks = 16;
   private static final int cMaximumNumberOfLiveStacks = 16;
+  private static final int cMaximumNumberOfQueueBuilders =
+                                                         Math.max(1,
+                                                                  Math.min(8,
+                                                                           Runtime.getRuntime()
+                                                                                  .availableProcessors()
+                                                                               / 2));
+
+  // queues of the views of a time point are built concurrently, the pool is
+  // shared by all timelapse instances so that none has to be shut down, its
+  // daemon threads do not prevent the JVM from exiting:
+  private static final ExecutorService cQueueBuildingExecutor =
+                                                              Executors.newFixedThreadPool(cMaximumNumberOfQueueBuilders,
+                                                                                           (r) -> {
+                                                                                             Thread lThread =
+                                                                                                            new Thread(r,
+                                                                                                                       "LightSheetTimelapseQueueBuilder");
+                                                                                             lThread.setDaemon(true);
+                                                                                             return lThread;
+                                                                                           });
 
   private final LightSheetMicroscope mLightSheetMicroscope;
 
@@ -51,6 +75,26 @@ public class LightSheetTimelapse extends TimelapseBase implements
                                                                   new Variable<Boolean>("InterleavedAcquisition",
                                                                                         false);
 
+  private final Variable<Boolean> mAcquirePerLaserLineVariable =
+                                                               new Variable<Boolean>("AcquirePerLaserLine",
+                                                                                     false);
+
+  private final Variable<Boolean> mCacheQueuesVariable =
+                                                       new Variable<Boolean>("CacheQueues",
+                                                                             false);
+
+  // finalized queues per view, valid for one state and one state version.
+  // Device settings outside of the state (calibration functions, overscan,
+  // readout time, structured illumination patterns, laser powers) are not
+  // tracked, the cache is off by default and must be cleared when they
+  // change. The views of a time point have distinct keys, so each cached
+  // queue is only ever fetched by one builder at a time:
+  private final ConcurrentHashMap<String, LightSheetMicroscopeQueue> mQueueCache =
+                                                                                 new ConcurrentHashMap<>();
+  private LightSheetAcquisitionStateInterface<?> mQueueCacheState;
+  private long mQueueCacheVersion = -1;
+
+
   /**
    * @param pLightSheetMicroscope
    *          microscope
@@ -121,97 +165,233 @@ public class LightSheetTimelapse extends TimelapseBase implements
     int lNumberOfLightSheets =
                              mLightSheetMicroscope.getNumberOfLightSheets();
 
-    HashMap<Integer, LightSheetMicroscopeQueue> lViewToQueueMap =
-                                                                new HashMap<>();
-
-    // preparing queues:
-    for (int l = 0; l < lNumberOfLightSheets; l++)
-      if (pCurrentState.getLightSheetOnOffVariable(l).get())
-      {
-        LightSheetMicroscopeQueue lQueueForView =
-                                                getQueueForSingleLightSheet(pCurrentState,
-                                                                            l);
+    int lNumberOfLaserLines =
+                            mLightSheetMicroscope.getNumberOfLaserLines();
 
-        lViewToQueueMap.put(l, lQueueForView);
-      }
+    // when acquiring per laser line, all views of one laser line are acquired
+    // before the next one so that each color can be fused as soon as its views
+    // are in, a laser line index of -1 stands for all laser lines at once:
+    ArrayList<int[]> lLaserLineAndLightSheetList = new ArrayList<>();
+    if (getAcquirePerLaserLineVariable().get())
+    {
+      for (int k = 0; k < lNumberOfLaserLines; k++)
+        if (pCurrentState.getLaserOnOffVariable(k).get())
+          for (int l = 0; l < lNumberOfLightSheets; l++)
+            if (pCurrentState.getLightSheetOnOffVariable(l).get())
+              lLaserLineAndLightSheetList.add(new int[]
+              { k, l });
+    }
+    else
+    {
+      for (int l = 0; l < lNumberOfLightSheets; l++)
+        if (pCurrentState.getLightSheetOnOffVariable(l).get())
+          lLaserLineAndLightSheetList.add(new int[]
+          { -1, l });
+    }
 
-    // playing the queues in sequence:
+    // preparing queues concurrently, each view has its own microscope queue
+    // and device queues, so views can be compiled independently:
+    ArrayList<Future<LightSheetMicroscopeQueue>> lQueueFutureList =
+                                                                 new ArrayList<>();
+    for (int[] lLaserLineAndLightSheet : lLaserLineAndLightSheetList)
+    {
+      int k = lLaserLineAndLightSheet[0];
+      int l = lLaserLineAndLightSheet[1];
+      lQueueFutureList.add(cQueueBuildingExecutor.submit(() -> k < 0 ? getQueueForSingleLightSheet(pCurrentState,
+                                                                                                    l)
+                                                                      : getQueueForSingleLightSheet(pCurrentState,
+                                                                                                    l,
+                                                                                                    k)));
+    }
 
-    for (int l = 0; l < lNumberOfLightSheets; l++)
-      if (pCurrentState.getLightSheetOnOffVariable(l).get())
-      {
-        LightSheetMicroscopeQueue lQueueForView =
-                                                lViewToQueueMap.get(l);
+    // playing the queues in sequence, in the same order as before, each
+    // queue is played as soon as it is built:
 
-        for (int c = 0; c < lNumberOfDetectionArms; c++)
-          if (pCurrentState.getCameraOnOffVariable(c).get())
+    for (int i = 0; i < lQueueFutureList.size(); i++)
+    {
+      int k = lLaserLineAndLightSheetList.get(i)[0];
+      int l = lLaserLineAndLightSheetList.get(i)[1];
+      LightSheetMicroscopeQueue lQueueForView =
+                                              lQueueFutureList.get(i)
+                                                              .get();
+
+      for (int c = 0; c < lNumberOfDetectionArms; c++)
+        if (pCurrentState.getCameraOnOffVariable(c).get())
+        {
+          // the metadata of a queue is copied for each time point, stacks of
+          // previous time points may still refer to the former one:
+          Variable<StackMetaData> lMetaDataVariable =
+                                                    lQueueForView.getCameraDeviceQueue(c)
+                                                                 .getMetaDataVariable();
+          StackMetaData lMetaData = lMetaDataVariable.get().clone();
+
+          lMetaData.addEntry(MetaDataOrdinals.TimePoint,
+                             getTimePointCounterVariable().get());
+          lMetaData.addEntry(MetaDataAcquisitionType.AcquisitionType,
+                             AcquisitionType.TimeLapse);
+          lMetaData.addEntry(MetaDataView.Camera, c);
+          lMetaData.addEntry(MetaDataView.LightSheet, l);
+          if (k >= 0)
+            lMetaData.addEntry(MetaDataView.LaserLine, k);
+          lMetaData.addEntry(MetaDataStagePosition.StageX,
+                             pCurrentState.getStageXVariable()
+                                          .get()
+                                          .doubleValue());
+          lMetaData.addEntry(MetaDataStagePosition.StageY,
+                             pCurrentState.getStageYVariable()
+                                          .get()
+                                          .doubleValue());
+          lMetaData.addEntry(MetaDataStagePosition.StageZ,
+                             pCurrentState.getStageZVariable()
+                                          .get()
+                                          .doubleValue());
+
+          // copies from cached queues keep the entries of the previous time
+          // point:
+          lMetaData.removeEntry(MetaDataFusion.RequestPerCameraFusion);
+          lMetaData.removeEntry(MetaDataFusion.RequestFullFusion);
+          lMetaData.removeEntry(MetaDataChannel.Channel);
+
+          if (getFuseStacksVariable().get())
           {
-
-            StackMetaData lMetaData =
-                                    lQueueForView.getCameraDeviceQueue(c)
-                                                 .getMetaDataVariable()
-                                                 .get();
-
-            lMetaData.addEntry(MetaDataAcquisitionType.AcquisitionType,
-                               AcquisitionType.TimeLapse);
-            lMetaData.addEntry(MetaDataView.Camera, c);
-            lMetaData.addEntry(MetaDataView.LightSheet, l);
-
-            if (getFuseStacksVariable().get())
-            {
-              if (getFuseStacksPerCameraVariable().get())
-                lMetaData.addEntry(MetaDataFusion.RequestPerCameraFusion,
-                                   true);
-              else
-                lMetaData.addEntry(MetaDataFusion.RequestFullFusion,
-                                   true);
-
-            }
+            if (getFuseStacksPerCameraVariable().get())
+              lMetaData.addEntry(MetaDataFusion.RequestPerCameraFusion,
+                                 true);
             else
-            {
-              String lCxLyString =
-                                 MetaDataView.getCxLyString(lMetaData);
-              lMetaData.addEntry(MetaDataChannel.Channel,
-                                 lCxLyString);
-            }
+              lMetaData.addEntry(MetaDataFusion.RequestFullFusion,
+                                 true);
+
+          }
+          else
+          {
+            String lViewKey = MetaDataView.getViewKey(lMetaData);
+            lMetaData.addEntry(MetaDataChannel.Channel, lViewKey);
           }
 
-        new QueuePrinter(lQueueForView).printAll();
+          lMetaDataVariable.set(lMetaData);
+        }
+
+      new QueuePrinter(lQueueForView).printAll();
 
-        mLightSheetMicroscope.playQueueAndWait(lQueueForView,
-                                               cTimeOut,
-                                               TimeUnit.SECONDS);
+      mLightSheetMicroscope.playQueueAndWait(lQueueForView,
+                                             cTimeOut,
+                                             TimeUnit.SECONDS);
 
-      }
+    }
 
   }
 
   protected LightSheetMicroscopeQueue getQueueForSingleLightSheet(LightSheetAcquisitionStateInterface<?> pCurrentState,
                                                                   int pLightSheetIndex)
+  {
+    int lNumberOfLaserLines =
+                            mLightSheetMicroscope.getNumberOfLaserLines();
+
+    return getQueueForSingleLightSheet(pCurrentState,
+                                       pLightSheetIndex,
+                                       0,
+                                       lNumberOfLaserLines);
+  }
+
+  /**
+   * Returns a queue for a single lightsheet and a single laser line
+   * 
+   * @param pCurrentState
+   *          current acquisition state
+   * @param pLightSheetIndex
+   *          lightsheet index
+   * @param pLaserLineIndex
+   *          laser line index
+   * @return queue
+   */
+  protected LightSheetMicroscopeQueue getQueueForSingleLightSheet(LightSheetAcquisitionStateInterface<?> pCurrentState,
+                                                                  int pLightSheetIndex,
+                                                                  int pLaserLineIndex)
+  {
+    return getQueueForSingleLightSheet(pCurrentState,
+                                       pLightSheetIndex,
+                                       pLaserLineIndex,
+                                       pLaserLineIndex + 1);
+  }
+
+  private LightSheetMicroscopeQueue getQueueForSingleLightSheet(LightSheetAcquisitionStateInterface<?> pCurrentState,
+                                                                int pLightSheetIndex,
+                                                                int pLaserLineMin,
+                                                                int pLaserLineMax)
   {
     int lNumberOfDetectionArms =
                                mLightSheetMicroscope.getNumberOfDetectionArms();
 
-    @SuppressWarnings("unused")
-    int lNumberOfLightSheets =
-                             mLightSheetMicroscope.getNumberOfLightSheets();
-
-    int lNumberOfLaserLines =
-                            mLightSheetMicroscope.getNumberOfLaserLines();
+    // queues are only rebuilt when the state changed, a cached queue is
+    // already finalized. Builders do not modify queues once built, the
+    // metadata of each time point is set on the acquisition thread:
+    boolean lCacheQueues = getCacheQueuesVariable().get();
+    String lKey = String.format("C%d-%dL%dK%d-%d",
+                                0,
+                                lNumberOfDetectionArms,
+                                pLightSheetIndex,
+                                pLaserLineMin,
+                                pLaserLineMax);
+    if (lCacheQueues)
+      checkQueueCache(pCurrentState);
 
     LightSheetMicroscopeQueue lQueue =
-                                     pCurrentState.getQueue(0,
-                                                            lNumberOfDetectionArms,
-                                                            pLightSheetIndex,
-                                                            pLightSheetIndex + 1,
-                                                            0,
-                                                            lNumberOfLaserLines);
-    lQueue.addMetaDataEntry(MetaDataOrdinals.TimePoint,
-                            getTimePointCounterVariable().get());
+                                     lCacheQueues ? mQueueCache.get(lKey)
+                                                  : null;
+    if (lQueue == null)
+    {
+      lQueue = pCurrentState.getQueue(0,
+                                      lNumberOfDetectionArms,
+                                      pLightSheetIndex,
+                                      pLightSheetIndex + 1,
+                                      pLaserLineMin,
+                                      pLaserLineMax);
+      if (lCacheQueues)
+        mQueueCache.put(lKey, lQueue);
+    }
 
     return lQueue;
   }
 
+  private synchronized void checkQueueCache(LightSheetAcquisitionStateInterface<?> pCurrentState)
+  {
+    long lVersion = pCurrentState.getVersion();
+    if (mQueueCacheState != pCurrentState
+        || mQueueCacheVersion != lVersion)
+    {
+      mQueueCache.clear();
+      mQueueCacheState = pCurrentState;
+      mQueueCacheVersion = lVersion;
+    }
+  }
+
+  /**
+   * Clears the queue cache, queues are rebuilt from the current state on the
+   * next time point. This is needed when device settings that are not part of
+   * the acquisition state (e.g. calibration functions, overscan, readout time,
+   * structured illumination patterns or laser powers) are changed during a
+   * timelapse. The calibration engine clears the cache after calibrating or
+   * loading a calibration.
+   */
+  public synchronized void clearQueueCache()
+  {
+    mQueueCache.clear();
+    mQueueCacheState = null;
+    mQueueCacheVersion = -1;
+  }
+
+  /**
+   * Returns the variable holding the flag that decides whether queues are
+   * cached between time points and only rebuilt when the acquisition state
+   * changes. Off by default, see {@link #clearQueueCache()}.
+   * 
+   * @return cache queues variable
+   */
+  public Variable<Boolean> getCacheQueuesVariable()
+  {
+    return mCacheQueuesVariable;
+  }
+
   /**
    * Returns the variable holding the flag interleaved-acquisition
    * 
@@ -222,6 +402,18 @@ public class LightSheetTimelapse extends TimelapseBase implements
     return mInterleavedAcquisitionVariable;
   }
 
+  /**
+   * Returns the variable holding the flag that decides whether each laser line
+   * is acquired separately, one color after the other. Stacks are then tagged
+   * with their laser line and fused per color.
+   * 
+   * @return acquire-per-laser-line variable
+   */
+  public Variable<Boolean> getAcquirePerLaserLineVariable()
+  {
+    return mAcquirePerLaserLineVariable;
+  }
+
   /**
    * Returns the variable holding the boolean flag that decides whether stacks
    * should or should not be fused.
@@ -2,6 +2,7 @@ package clearcontrol.microscope.lightsheet.timelapse.gui;
 
 import javafx.geometry.HPos;
 import javafx.geometry.Orientation;
+import javafx.scene.control.Button;
 import javafx.scene.control.Label;
 import javafx.scene.control.Separator;
 import javafx.scene.layout.GridPane;
@@ -91,6 +92,44 @@ public class LightSheetTimelapseToolbar extends TimelapseToolbar
       mRow++;
     }
 
+    {
+      VariableCheckBox lAcquirePerLaserLineCheckBox =
+                                                    new VariableCheckBox("Acquire and fuse per laser line",
+                                                                         pLightSheetTimelapse.getAcquirePerLaserLineVariable());
+
+      GridPane.setHalignment(lAcquirePerLaserLineCheckBox.getCheckBox(),
+                             HPos.RIGHT);
+      GridPane.setColumnSpan(lAcquirePerLaserLineCheckBox.getCheckBox(),
+                             1);
+      GridPane.setColumnSpan(lAcquirePerLaserLineCheckBox.getLabel(),
+                             3);
+      add(lAcquirePerLaserLineCheckBox.getCheckBox(), 0, mRow);
+      add(lAcquirePerLaserLineCheckBox.getLabel(), 1, mRow);
+
+      mRow++;
+    }
+
+    {
+      VariableCheckBox lCacheQueuesCheckBox =
+                                            new VariableCheckBox("Cache queues",
+                                                                 pLightSheetTimelapse.getCacheQueuesVariable());
+
+      GridPane.setHalignment(lCacheQueuesCheckBox.getCheckBox(),
+                             HPos.RIGHT);
+      GridPane.setColumnSpan(lCacheQueuesCheckBox.getCheckBox(), 1);
+      GridPane.setColumnSpan(lCacheQueuesCheckBox.getLabel(), 2);
+      add(lCacheQueuesCheckBox.getCheckBox(), 0, mRow);
+      add(lCacheQueuesCheckBox.getLabel(), 1, mRow);
+
+      Button lClearQueueCacheButton = new Button("Clear");
+      lClearQueueCacheButton.setOnAction((e) -> {
+        pLightSheetTimelapse.clearQueueCache();
+      });
+      add(lClearQueueCacheButton, 3, mRow);
+
+      mRow++;
+    }
+
   }
 
 }